@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.http.IncomingRequest;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+
+/**
+ * Creates drivers connected to a {@link org.esigate.test.conn.MockConnectionManager} instead of real providers, so that
+ * the network is never part of the measures.
+ */
+final class Backends {
+    static final String BASE_URL = "http://provider.example.com/";
+
+    private Backends() {
+
+    }
+
+    /**
+     * Creates a driver, every request is answered with the same content.
+     * 
+     * @param useCache
+     *            whether the http cache is enabled
+     * @param cacheControl
+     *            the Cache-Control header of the responses
+     * @param content
+     *            the body of the responses
+     * @return the driver
+     */
+    static Driver createDriver(boolean useCache, final String cacheControl, final String content) {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), BASE_URL);
+        properties.setProperty(Parameters.USE_CACHE.getName(), Boolean.toString(useCache));
+        return TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                        .header("Content-Type", "text/html; charset=UTF-8").header("Cache-Control", cacheControl)
+                        .entity(content).build();
+            }
+        });
+    }
+
+    /**
+     * @param uri
+     *            the uri requested
+     * @return an incoming request with a query string and a few cookies, as sent by a browser
+     */
+    static IncomingRequest createRequest(String uri) {
+        return TestUtils.createIncomingRequest(uri).addHeader("Accept", "text/html")
+                .addHeader("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) Firefox/40.0")
+                .addHeader("Accept-Language", "en-US,en;q=0.8").addCookie(new BasicClientCookie("user", "john"))
+                .addCookie(new BasicClientCookie("session", "1234567890")).build();
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.http.IncomingRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Proxies requests through the {@link org.esigate.cache.CacheAdapter}: a hit served from the cache and a response the
+ * cache is not allowed to store, which goes to the provider every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+    private Driver cacheableDriver;
+    private Driver privateDriver;
+
+    @Setup
+    public void setup() {
+        cacheableDriver = Backends.createDriver(true, "public, max-age=3600", Corpus.page(Corpus.SMALL));
+        privateDriver = Backends.createDriver(true, "private, no-store", Corpus.page(Corpus.SMALL));
+    }
+
+    private static String proxy(Driver driver) throws IOException, HttpErrorPage {
+        IncomingRequest request = Backends.createRequest("http://localhost/page.html");
+        CloseableHttpResponse response = driver.proxy("/page.html", request);
+        try {
+            return EntityUtils.toString(response.getEntity());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Benchmark
+    public String hit() throws IOException, HttpErrorPage {
+        return proxy(cacheableDriver);
+    }
+
+    @Benchmark
+    public String notCacheable() throws IOException, HttpErrorPage {
+        return proxy(privateDriver);
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks;
+
+/**
+ * Generates the pages used by the benchmarks. The content is always the same for a given size so that the results can
+ * be compared between two versions.
+ */
+final class Corpus {
+    /** Number of blocks of a small page, about 5 kB. */
+    static final int SMALL = 10;
+    /** Number of blocks of a large page, about 500 kB. */
+    static final int LARGE = 1000;
+
+    private Corpus() {
+
+    }
+
+    /**
+     * @param size
+     *            "small" or "large"
+     * @return the number of blocks of a page
+     */
+    static int blocks(String size) {
+        if ("large".equals(size)) {
+            return LARGE;
+        }
+        return SMALL;
+    }
+
+    /**
+     * A page without any include but with the other ESI tags and a lot of markup the parser has to skip.
+     * 
+     * @param blocks
+     *            the number of blocks of the page
+     * @return the page
+     */
+    static String page(int blocks) {
+        StringBuilder result = new StringBuilder();
+        result.append("<!DOCTYPE html>\n<html>\n<head><title>Benchmark</title>"
+                + "<script type=\"text/javascript\">var a = 1 < 2;</script></head>\n<body>\n");
+        for (int i = 0; i < blocks; i++) {
+            result.append("<div class=\"block\" id=\"block").append(i).append("\">\n");
+            result.append("<h2>Title ").append(i).append("</h2>\n");
+            result.append("<p>Lorem ipsum dolor sit amet, <b>consectetur</b> adipiscing elit, sed do eiusmod tempor "
+                    + "incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud "
+                    + "exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat.</p>\n");
+            result.append("<!-- html comment ").append(i).append(" -->\n");
+            result.append("<esi:comment text=\"esi comment\"/>\n");
+            result.append("<esi:remove><p>removed</p></esi:remove>\n");
+            result.append("<!--esi <p>esi comment block</p> -->\n");
+            result.append("</div>\n");
+        }
+        result.append("</body>\n</html>\n");
+        return result.toString();
+    }
+
+    /**
+     * A page full of links, images, scripts and forms to be rewritten.
+     * 
+     * @param blocks
+     *            the number of blocks of the page
+     * @return the page
+     */
+    static String linkPage(int blocks) {
+        StringBuilder result = new StringBuilder();
+        result.append("<!DOCTYPE html>\n<html>\n<head><title>Benchmark</title>"
+                + "<link rel=\"stylesheet\" href=\"/css/style.css\"/></head>\n<body>\n");
+        for (int i = 0; i < blocks; i++) {
+            result.append("<ul>\n");
+            for (int j = 0; j < 10; j++) {
+                result.append("<li><a href=\"/products/").append(i).append('/').append(j)
+                        .append("/details.html?lang=en\">Product ").append(j).append("</a></li>\n");
+            }
+            result.append("</ul>\n");
+            result.append("<img src=\"images/product").append(i).append(".png\" alt=\"\"/>\n");
+            result.append("<a href=\"http://www.example.com/external").append(i).append("\">external</a>\n");
+            result.append("<a href=\"#anchor").append(i).append("\">anchor</a>\n");
+            result.append("<form action=\"../search\" method=\"get\"><input name=\"q\"/></form>\n");
+            result.append("<script src=\"/js/block").append(i).append(".js\"></script>\n");
+        }
+        result.append("</body>\n</html>\n");
+        return result.toString();
+    }
+
+    /**
+     * A template including many fragments, some of them with variables in the url.
+     * 
+     * @param includes
+     *            the number of includes
+     * @return the template
+     */
+    static String includeTemplate(int includes) {
+        StringBuilder result = new StringBuilder();
+        result.append("<!DOCTYPE html>\n<html>\n<head><title>Benchmark</title></head>\n<body>\n");
+        for (int i = 0; i < includes; i++) {
+            result.append("<div class=\"fragment\">\n");
+            if (i % 2 == 0) {
+                result.append("<esi:include src=\"/fragments/").append(i).append("\"/>\n");
+            } else {
+                result.append("<esi:include src=\"/fragments/").append(i)
+                        .append("?user=$(HTTP_COOKIE{user})&amp;lang=$(QUERY_STRING{lang})\"/>\n");
+            }
+            result.append("</div>\n");
+        }
+        result.append("</body>\n</html>\n");
+        return result.toString();
+    }
+
+    /**
+     * @return a fragment as returned by the providers
+     */
+    static String fragment() {
+        return "<div class=\"product\"><h3>Product</h3><p>Description of the product with a "
+                + "<a href=\"/products/1\">link</a>.</p></div>";
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.esi.EsiRenderer;
+import org.esigate.impl.DriverRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Renders templates with many includes. The fragments are fetched from a
+ * {@link org.esigate.test.conn.MockConnectionManager} with the cache disabled, so the time measured includes the
+ * variables, the http client and the rendering of each fragment but no network.
+ * <p>
+ * A new request is created for each rendering: the fragments already rendered are kept in the attributes of the
+ * incoming request, reusing it would measure nothing but a lookup in these attributes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EsiRenderingBenchmark {
+    @Param({"10", "100"})
+    int includes;
+
+    private Driver driver;
+    private String template;
+    private EsiRenderer renderer;
+
+    @Setup
+    public void setup() throws HttpErrorPage {
+        driver = Backends.createDriver(false, "no-cache", Corpus.fragment());
+        template = Corpus.includeTemplate(includes);
+        renderer = new EsiRenderer();
+    }
+
+    @Benchmark
+    public String render() throws IOException, HttpErrorPage {
+        DriverRequest request =
+                new DriverRequest(Backends.createRequest("http://localhost/page?lang=en"), driver, "/page");
+        StringBuilderWriter out = new StringBuilderWriter();
+        renderer.render(request, template, out);
+        return out.toString();
+    }
+
+}
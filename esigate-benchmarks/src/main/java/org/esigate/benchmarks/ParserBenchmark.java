@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.esi.EsiRenderer;
+import org.esigate.impl.DriverRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses pages without any include: the time measured is the time spent by the {@link org.esigate.parser.Parser} to
+ * find the tags and copy the content around them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"small", "large"})
+    String size;
+
+    private String page;
+    private DriverRequest request;
+    private EsiRenderer renderer;
+
+    @Setup
+    public void setup() throws HttpErrorPage {
+        Driver driver = Backends.createDriver(false, "no-cache", Corpus.fragment());
+        page = Corpus.page(Corpus.blocks(size));
+        request = new DriverRequest(Backends.createRequest("http://localhost/page"), driver, "/page");
+        renderer = new EsiRenderer();
+    }
+
+    @Benchmark
+    public String parse() throws IOException, HttpErrorPage {
+        StringBuilderWriter out = new StringBuilderWriter(page.length());
+        renderer.render(request, page, out);
+        return out.toString();
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.esigate.impl.UrlRewriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rewrites the urls of pages full of links, relative and absolute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlRewriterBenchmark {
+    private static final String REQUEST_URL = "/products/list.html";
+    private static final String VISIBLE_BASE_URL = "http://www.example.com/shop/";
+
+    @Param({"small", "large"})
+    String size;
+
+    @Param({"false", "true"})
+    boolean absolute;
+
+    private String page;
+    private UrlRewriter urlRewriter;
+
+    @Setup
+    public void setup() {
+        page = Corpus.linkPage(Corpus.blocks(size));
+        urlRewriter = new UrlRewriter(new Properties());
+    }
+
+    @Benchmark
+    public CharSequence rewriteHtml() {
+        return urlRewriter.rewriteHtml(page, REQUEST_URL, Backends.BASE_URL, VISIBLE_BASE_URL, absolute);
+    }
+
+}
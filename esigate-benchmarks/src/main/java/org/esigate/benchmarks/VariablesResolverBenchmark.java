@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.impl.DriverRequest;
+import org.esigate.vars.VariablesResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Replaces the ESI variables found in the urls of the includes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VariablesResolverBenchmark {
+    private static final String NO_VARIABLE = "/fragments/header.html";
+    private static final String VARIABLES =
+            "/fragments/header.html?user=$(HTTP_COOKIE{user})"
+                    + "&lang=$(QUERY_STRING{lang})&agent=$(HTTP_USER_AGENT{os})&host=$(HTTP_HOST)&missing=$(HTTP_COOKIE{x}|none)";
+
+    private DriverRequest request;
+
+    @Setup
+    public void setup() throws HttpErrorPage {
+        Driver driver = Backends.createDriver(false, "no-cache", Corpus.fragment());
+        request = new DriverRequest(Backends.createRequest("http://localhost/page?lang=en&page=2"), driver, "/page");
+    }
+
+    @Benchmark
+    public String noVariable() {
+        return VariablesResolver.replaceAllVariables(NO_VARIABLE, request);
+    }
+
+    @Benchmark
+    public String variables() {
+        return VariablesResolver.replaceAllVariables(VARIABLES, request);
+    }
+
+}
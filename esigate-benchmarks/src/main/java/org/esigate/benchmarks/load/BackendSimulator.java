@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks.load;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Embedded provider application answering with generated content after a configurable delay:
+ * <ul>
+ * <li>/page: a template including /fragment/0 to /fragment/&lt;includes - 1&gt;</li>
+ * <li>/fragment/*: a fragment of bodySize bytes</li>
+ * </ul>
+ * A proportion of the requests (errorRate) fail with a 500 error. All the responses have the same Cache-Control header.
+ */
+final class BackendSimulator {
+    static final String PAGE = "/page";
+    private static final String FRAGMENT = "/fragment/";
+
+    private final Server server;
+    private final ServerConnector connector;
+
+    /**
+     * @param latency
+     *            the response times of the provider
+     * @param errorRate
+     *            between 0 and 1
+     * @param bodySize
+     *            the size of the fragments in bytes
+     * @param includes
+     *            the number of fragments included in the page
+     * @param cacheControl
+     *            the Cache-Control header of the responses, may be null
+     * @param threads
+     *            the maximum number of requests processed at the same time
+     */
+    BackendSimulator(final LatencyDistribution latency, final double errorRate, int bodySize, int includes,
+            final String cacheControl, int threads) {
+        final byte[] page = createPage(includes);
+        final byte[] fragment = createFragment(bodySize);
+        server = new Server(new QueuedThreadPool(threads, Math.min(threads, 8)));
+        connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setAcceptQueueSize(1000);
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(latency.sample(random));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+                if (random.nextDouble() < errorRate) {
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    return;
+                }
+                byte[] body;
+                if (PAGE.equals(target)) {
+                    body = page;
+                    response.setHeader("Surrogate-Control", "content=\"ESI/1.0\"");
+                } else if (target.startsWith(FRAGMENT)) {
+                    body = fragment;
+                } else {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                if (cacheControl != null) {
+                    response.setHeader("Cache-Control", cacheControl);
+                }
+                response.setContentType("text/html; charset=UTF-8");
+                response.setContentLength(body.length);
+                response.getOutputStream().write(body);
+            }
+        });
+    }
+
+    private static byte[] createPage(int includes) {
+        StringBuilder result =
+                new StringBuilder("<!DOCTYPE html>\n<html>\n<head><title>Load test</title></head>\n<body>\n");
+        for (int i = 0; i < includes; i++) {
+            result.append("<div><esi:include src=\"").append(FRAGMENT).append(i).append("\"/></div>\n");
+        }
+        result.append("</body>\n</html>\n");
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] createFragment(int bodySize) {
+        byte[] result = new byte[bodySize];
+        Arrays.fill(result, (byte) 'x');
+        return result;
+    }
+
+    void start() throws Exception {
+        server.start();
+    }
+
+    void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return the url of the provider, for instance http://127.0.0.1:12345/
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + connector.getLocalPort() + "/";
+    }
+
+}
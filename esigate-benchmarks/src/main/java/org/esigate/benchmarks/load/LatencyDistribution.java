@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks.load;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of response times, configured with a string:
+ * <ul>
+ * <li>fixed:20 always 20 ms</li>
+ * <li>uniform:10-50 between 10 and 50 ms</li>
+ * <li>exponential:20 exponential distribution with a mean of 20 ms, most responses are fast but a few of them are very
+ * slow</li>
+ * </ul>
+ */
+final class LatencyDistribution {
+    private static final String FIXED = "fixed";
+    private static final String UNIFORM = "uniform";
+    private static final String EXPONENTIAL = "exponential";
+
+    private final String type;
+    private final long min;
+    private final long max;
+
+    private LatencyDistribution(String type, long min, long max) {
+        this.type = type;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @param spec
+     *            the distribution, for instance "exponential:20"
+     * @return the distribution
+     * @throws IllegalArgumentException
+     *             if the syntax is not supported
+     */
+    static LatencyDistribution parse(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Invalid latency distribution: " + spec);
+        }
+        String type = spec.substring(0, colon).trim();
+        String value = spec.substring(colon + 1).trim();
+        try {
+            switch (type) {
+            case FIXED:
+            case EXPONENTIAL:
+                long millis = Long.parseLong(value);
+                return new LatencyDistribution(type, millis, millis);
+            case UNIFORM:
+                int dash = value.indexOf('-');
+                long from = Long.parseLong(value.substring(0, dash).trim());
+                long to = Long.parseLong(value.substring(dash + 1).trim());
+                if (to < from) {
+                    throw new IllegalArgumentException("Invalid latency distribution: " + spec);
+                }
+                return new LatencyDistribution(type, from, to);
+            default:
+                throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid latency distribution: " + spec, e);
+        }
+    }
+
+    /**
+     * @param random
+     *            the source of randomness
+     * @return a response time in nanoseconds
+     */
+    long sample(Random random) {
+        switch (type) {
+        case UNIFORM:
+            return TimeUnit.MILLISECONDS.toNanos(min) + (long) (random.nextDouble() * (max - min) * 1000000L);
+        case EXPONENTIAL:
+            return (long) (-Math.log(1 - random.nextDouble()) * TimeUnit.MILLISECONDS.toNanos(min));
+        default:
+            return TimeUnit.MILLISECONDS.toNanos(min);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (UNIFORM.equals(type)) {
+            return type + ":" + min + "-" + max;
+        }
+        return type + ":" + min;
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks.load;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the response times of a run, in microseconds. The array is allocated once at the beginning of the run so that
+ * recording does not allocate anything.
+ */
+final class LatencyRecorder {
+    private final long[] latencies;
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long[] sorted;
+
+    LatencyRecorder(int capacity) {
+        latencies = new long[capacity];
+    }
+
+    /**
+     * @param micros
+     *            the response time, measured from the time the request should have been sent
+     * @param error
+     *            whether the request failed
+     */
+    void record(long micros, boolean error) {
+        if (error) {
+            errors.incrementAndGet();
+        }
+        int index = count.getAndIncrement();
+        if (index < latencies.length) {
+            latencies[index] = micros;
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of responses received, including the errors
+     */
+    int getCount() {
+        return Math.min(count.get(), latencies.length);
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of responses received after the array was full, their time has not been recorded
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @param percentile
+     *            between 0 and 100
+     * @return the response time in microseconds, 0 if nothing has been recorded
+     */
+    synchronized long getPercentile(double percentile) {
+        int n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        if (sorted == null || sorted.length != n) {
+            sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+        }
+        int index = (int) Math.ceil(percentile / 100 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, index))];
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks.load;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Open-model load generator: the requests are sent at random times (Poisson arrivals) with a given mean rate, whatever
+ * the time the server takes to respond. A slow server gets more concurrent requests instead of fewer requests, as it
+ * would in production.
+ * <p>
+ * The response time is measured from the time the request was scheduled, not from the time it was actually sent, so
+ * that a stall of the client does not hide the latency of the server (coordinated omission).
+ * <p>
+ * The threads sending the requests are kept until the generator is closed, so that the memory they allocated can still
+ * be measured after a run.
+ */
+final class LoadGenerator implements Closeable {
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    private final CloseableHttpClient httpClient;
+    private final String url;
+    private final double rate;
+    private final ExecutorService executor;
+
+    /**
+     * @param httpClient
+     *            the client, its connection pool must be large enough for all the concurrent requests
+     * @param url
+     *            the url requested
+     * @param rate
+     *            the mean number of requests per second
+     */
+    LoadGenerator(CloseableHttpClient httpClient, String url, double rate) {
+        this.httpClient = httpClient;
+        this.url = url;
+        this.rate = rate;
+        // Idle threads never expire
+        this.executor =
+                new ThreadPoolExecutor(0, Integer.MAX_VALUE, Long.MAX_VALUE, TimeUnit.NANOSECONDS,
+                        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                            private final AtomicInteger count = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "load-" + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+    }
+
+    /**
+     * Sends requests during a given time then waits for all the responses.
+     * 
+     * @param seconds
+     *            the duration of the run
+     * @return the response times
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    LatencyRecorder run(int seconds) throws InterruptedException {
+        // Room for twice the expected number of requests
+        final LatencyRecorder recorder =
+                new LatencyRecorder((int) Math.min(Integer.MAX_VALUE - 8, rate * seconds * 2 + 1000));
+        final Semaphore completed = new Semaphore(0);
+        int sent = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double meanInterval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long next = start;
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            final long scheduled = next;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean error;
+                    try (CloseableHttpResponse response = httpClient.execute(new HttpGet(url))) {
+                        EntityUtils.consume(response.getEntity());
+                        error = response.getStatusLine().getStatusCode() >= HttpStatus.SC_BAD_REQUEST;
+                    } catch (IOException | RuntimeException e) {
+                        error = true;
+                    }
+                    recorder.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled), error);
+                    completed.release();
+                }
+            });
+            sent++;
+            next += (long) (-Math.log(1 - random.nextDouble()) * meanInterval);
+        }
+        completed.tryAcquire(sent, DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return recorder;
+    }
+
+    /**
+     * Stops the threads.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
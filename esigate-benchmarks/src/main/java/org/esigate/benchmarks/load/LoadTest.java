@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks.load;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.esigate.DriverFactory;
+import org.esigate.Parameters;
+import org.esigate.server.EsigateServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load test of esigate-server running in the same JVM as an embedded provider ({@link BackendSimulator}) and an
+ * open-model load generator ({@link LoadGenerator}). Nothing goes through the network but the loopback interface.
+ * <p>
+ * Usage: java -cp esigate-benchmarks/target/benchmarks.jar org.esigate.benchmarks.load.LoadTest [load.properties]
+ * <p>
+ * Parameters (file or -D system properties, the system properties win):
+ * <ul>
+ * <li>rate: requests per second, default 200</li>
+ * <li>duration: seconds measured, default 30</li>
+ * <li>warmup: seconds of load before the measure, default 10</li>
+ * <li>backend.latency: response time of the provider, see {@link LatencyDistribution}, default exponential:20</li>
+ * <li>backend.errorRate: proportion of 500 errors returned by the provider, default 0</li>
+ * <li>backend.bodySize: size of the fragments in bytes, default 2048</li>
+ * <li>backend.includes: number of fragments included in the page, default 5</li>
+ * <li>backend.cacheControl: Cache-Control header of the provider, default private</li>
+ * <li>backend.threads: maximum number of requests processed by the provider at the same time, default 1000</li>
+ * <li>server.*: configuration of esigate-server, for instance server.maxThreads</li>
+ * <li>esigate.*: esigate.properties, for instance esigate.maxConnectionsPerHost</li>
+ * </ul>
+ * GC and allocation figures cover the whole JVM: esigate, the provider and the load generator. The allocation is summed
+ * over the threads alive at the beginning and at the end of the measure, the memory allocated by a thread that ends in
+ * between is not counted. The load generator keeps its threads until the end for this reason.
+ */
+public final class LoadTest {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+    private static final int STARTUP_RETRIES = 100;
+    private static final long STARTUP_SLEEP = 100;
+
+    private LoadTest() {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        if (args.length > 0) {
+            try (InputStream inputStream = new FileInputStream(args[0])) {
+                properties.load(inputStream);
+            }
+        }
+        properties.putAll(System.getProperties());
+
+        double rate = Double.parseDouble(properties.getProperty("rate", "200"));
+        int duration = Integer.parseInt(properties.getProperty("duration", "30"));
+        int warmup = Integer.parseInt(properties.getProperty("warmup", "10"));
+        LatencyDistribution latency =
+                LatencyDistribution.parse(properties.getProperty("backend.latency", "exponential:20"));
+        double errorRate = Double.parseDouble(properties.getProperty("backend.errorRate", "0"));
+        int bodySize = Integer.parseInt(properties.getProperty("backend.bodySize", "2048"));
+        int includes = Integer.parseInt(properties.getProperty("backend.includes", "5"));
+        String cacheControl = properties.getProperty("backend.cacheControl", "private");
+        int backendThreads = Integer.parseInt(properties.getProperty("backend.threads", "1000"));
+
+        BackendSimulator backend =
+                new BackendSimulator(latency, errorRate, bodySize, includes, cacheControl, backendThreads);
+        backend.start();
+        int port = freePort();
+        try {
+            startServer(properties, backend.getBaseUrl(), port);
+            String url = "http://127.0.0.1:" + port + BackendSimulator.PAGE;
+            System.out.println(String.format(Locale.ENGLISH,
+                    "Load test: %s at %.0f req/s, provider latency %s, %d includes of %d bytes, "
+                            + "error rate %.3f, Cache-Control: %s", url, rate, latency, includes, bodySize, errorRate,
+                    cacheControl));
+            try (CloseableHttpClient httpClient = createHttpClient();
+                    LoadGenerator loadGenerator = new LoadGenerator(httpClient, url, rate)) {
+                if (warmup > 0) {
+                    System.out.println("Warming up for " + warmup + " s");
+                    loadGenerator.run(warmup);
+                }
+                System.out.println("Measuring for " + duration + " s");
+                JvmStats before = new JvmStats();
+                long start = System.nanoTime();
+                LatencyRecorder recorder = loadGenerator.run(duration);
+                double elapsed = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+                JvmStats after = new JvmStats();
+                report(recorder, elapsed, before, after);
+            }
+        } finally {
+            EsigateServer.stop();
+            backend.stop();
+        }
+    }
+
+    private static void startServer(Properties properties, String backendUrl, int port) throws IOException,
+            InterruptedException {
+        Properties esigateProperties = new Properties();
+        esigateProperties.setProperty(Parameters.REMOTE_URL_BASE.getName(), backendUrl);
+        esigateProperties.setProperty(Parameters.MAPPINGS.getName(), "/*");
+        Properties serverProperties = new Properties();
+        serverProperties.setProperty("port", Integer.toString(port));
+        serverProperties.setProperty("controlPort", Integer.toString(freePort()));
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("esigate.")) {
+                esigateProperties.setProperty(name.substring("esigate.".length()), properties.getProperty(name));
+            } else if (name.startsWith("server.")) {
+                serverProperties.setProperty(name.substring("server.".length()), properties.getProperty(name));
+            }
+        }
+        File configFile = File.createTempFile("esigate-load", ".properties");
+        configFile.deleteOnExit();
+        try (OutputStream outputStream = new FileOutputStream(configFile)) {
+            esigateProperties.store(outputStream, "Generated by " + LoadTest.class.getName());
+        }
+        System.setProperty(DriverFactory.PROP_CONF_LOCATION, configFile.getAbsolutePath());
+
+        EsigateServer.init(serverProperties);
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    EsigateServer.start();
+                } catch (Exception e) {
+                    LOG.error("esigate-server failed", e);
+                }
+            }
+        }, "esigate-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        for (int i = 0; i < STARTUP_RETRIES && !EsigateServer.isStarted(); i++) {
+            Thread.sleep(STARTUP_SLEEP);
+        }
+        if (!EsigateServer.isStarted()) {
+            throw new IllegalStateException("esigate-server did not start");
+        }
+    }
+
+    private static CloseableHttpClient createHttpClient() {
+        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(10000).setSocketTimeout(60000).build();
+        return HttpClients.custom().setMaxConnTotal(Integer.MAX_VALUE).setMaxConnPerRoute(Integer.MAX_VALUE)
+                .setDefaultRequestConfig(requestConfig).disableAutomaticRetries().build();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void report(LatencyRecorder recorder, double elapsed, JvmStats before, JvmStats after) {
+        double allocated = (after.allocatedBytes - before.allocatedBytes) / (1024d * 1024d);
+        StringBuilder result = new StringBuilder();
+        result.append(String.format(Locale.ENGLISH, "Requests:    %d in %.1f s, %.1f req/s%n", recorder.getCount(),
+                elapsed, recorder.getCount() / elapsed));
+        result.append(String.format(Locale.ENGLISH, "Errors:      %d (%.2f%%)%n", recorder.getErrors(),
+                100d * recorder.getErrors() / Math.max(1, recorder.getCount())));
+        if (recorder.getDropped() > 0) {
+            result.append("Not recorded: " + recorder.getDropped() + "\n");
+        }
+        result.append(String.format(Locale.ENGLISH, "Latency ms:  p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                millis(recorder, 50), millis(recorder, 90), millis(recorder, 99), millis(recorder, 99.9),
+                millis(recorder, 100)));
+        result.append(String.format(Locale.ENGLISH, "GC:          %d collections, %d ms (%.2f%% of the time)%n",
+                after.gcCount - before.gcCount, after.gcTime - before.gcTime, (after.gcTime - before.gcTime)
+                        / (elapsed * 10)));
+        if (after.allocatedBytes >= 0) {
+            result.append(String.format(Locale.ENGLISH, "Allocation:  %.0f MB, %.1f MB/s, %.1f kB/request%n",
+                    allocated, allocated / elapsed, allocated * 1024 / Math.max(1, recorder.getCount())));
+        }
+        System.out.print(result);
+    }
+
+    private static double millis(LatencyRecorder recorder, double percentile) {
+        return recorder.getPercentile(percentile) / 1000d;
+    }
+
+    /**
+     * Cumulated GC and allocation figures of the JVM at a given time.
+     */
+    private static final class JvmStats {
+        private long gcCount;
+        private long gcTime;
+        /** Bytes allocated by the threads alive at the time of the sample, -1 if the JVM cannot measure it. */
+        private long allocatedBytes = -1;
+
+        private JvmStats() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += Math.max(0, gc.getCollectionCount());
+                gcTime += Math.max(0, gc.getCollectionTime());
+            }
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+                if (sunThreadMXBean.isThreadAllocatedMemorySupported()
+                        && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                    allocatedBytes = 0;
+                    for (long allocated : sunThreadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+                        allocatedBytes += Math.max(0, allocated);
+                    }
+                }
+            }
+        }
+    }
+
+}
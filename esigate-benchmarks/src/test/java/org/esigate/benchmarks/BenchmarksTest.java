@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the benchmarks really do what they are supposed to measure.
+ */
+public class BenchmarksTest extends TestCase {
+
+    public void testParserRemovesEsiTags() throws Exception {
+        ParserBenchmark benchmark = new ParserBenchmark();
+        benchmark.size = "small";
+        benchmark.setup();
+        String result = benchmark.parse();
+        assertFalse(result.contains("esi:"));
+        assertTrue(result.contains("esi comment block"));
+        assertFalse(result.contains("removed"));
+    }
+
+    public void testEsiRenderingIncludesFragments() throws Exception {
+        EsiRenderingBenchmark benchmark = new EsiRenderingBenchmark();
+        benchmark.includes = 10;
+        benchmark.setup();
+        String result = benchmark.render();
+        assertFalse(result.contains("esi:include"));
+        assertTrue(result.contains(Corpus.fragment()));
+    }
+
+    public void testUrlRewriterRewritesLinks() {
+        UrlRewriterBenchmark benchmark = new UrlRewriterBenchmark();
+        benchmark.size = "small";
+        benchmark.absolute = false;
+        benchmark.setup();
+        String result = benchmark.rewriteHtml().toString();
+        assertTrue(result.contains("href=\"/shop/products/0/0/details.html?lang=en\""));
+        assertTrue(result.contains("href=\"http://www.example.com/external0\""));
+    }
+
+    public void testVariablesAreReplaced() throws Exception {
+        VariablesResolverBenchmark benchmark = new VariablesResolverBenchmark();
+        benchmark.setup();
+        assertEquals("/fragments/header.html?user=john&lang=en&agent=WIN&host=localhost&missing=none",
+                benchmark.variables());
+    }
+
+    public void testCache() throws Exception {
+        CacheBenchmark benchmark = new CacheBenchmark();
+        benchmark.setup();
+        String expected = benchmark.notCacheable();
+        assertTrue(expected.contains("Title 9"));
+        assertEquals(expected, benchmark.hit());
+        assertEquals(expected, benchmark.hit());
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks.load;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class LatencyDistributionTest extends TestCase {
+    private final Random random = new Random(0);
+
+    public void testFixed() {
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), LatencyDistribution.parse("fixed:20").sample(random));
+    }
+
+    public void testUniform() {
+        LatencyDistribution distribution = LatencyDistribution.parse("uniform:10-50");
+        for (int i = 0; i < 1000; i++) {
+            long sample = distribution.sample(random);
+            assertTrue(sample >= TimeUnit.MILLISECONDS.toNanos(10));
+            assertTrue(sample <= TimeUnit.MILLISECONDS.toNanos(50));
+        }
+    }
+
+    public void testExponentialMean() {
+        LatencyDistribution distribution = LatencyDistribution.parse("exponential:20");
+        long total = 0;
+        int samples = 100000;
+        for (int i = 0; i < samples; i++) {
+            total += distribution.sample(random);
+        }
+        double mean = total / (double) samples / TimeUnit.MILLISECONDS.toNanos(1);
+        assertTrue("Mean was " + mean, mean > 19 && mean < 21);
+    }
+
+    public void testInvalid() {
+        for (String spec : new String[] {"20", "fixed:abc", "uniform:50-10", "uniform:10", "gaussian:20"}) {
+            try {
+                LatencyDistribution.parse(spec);
+                fail("Should have rejected " + spec);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+}
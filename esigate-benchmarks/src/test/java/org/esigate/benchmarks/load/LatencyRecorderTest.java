@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.benchmarks.load;
+
+import junit.framework.TestCase;
+
+public class LatencyRecorderTest extends TestCase {
+
+    public void testPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder(1000);
+        for (int i = 100; i > 0; i--) {
+            recorder.record(i, i % 10 == 0);
+        }
+        assertEquals(100, recorder.getCount());
+        assertEquals(10, recorder.getErrors());
+        assertEquals(1, recorder.getPercentile(0));
+        assertEquals(50, recorder.getPercentile(50));
+        assertEquals(99, recorder.getPercentile(99));
+        assertEquals(100, recorder.getPercentile(100));
+    }
+
+    public void testFull() {
+        LatencyRecorder recorder = new LatencyRecorder(2);
+        recorder.record(1, false);
+        recorder.record(2, false);
+        recorder.record(3, false);
+        assertEquals(2, recorder.getCount());
+        assertEquals(1, recorder.getDropped());
+        assertEquals(2, recorder.getPercentile(100));
+    }
+
+    public void testEmpty() {
+        assertEquals(0, new LatencyRecorder(10).getPercentile(99));
+    }
+
+}
@@ -15,24 +15,30 @@
 
 package org.esigate;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolException;
+import org.apache.http.client.cache.HttpCacheContext;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultRedirectStrategy;
 import org.apache.http.message.BasicHttpResponse;
 import org.esigate.RequestExecutor.RequestExecutorBuilder;
+import org.esigate.api.BaseUrlRetrieveStrategy;
 import org.esigate.events.EventManager;
 import org.esigate.events.impl.ProxyEvent;
 import org.esigate.events.impl.RenderEvent;
@@ -47,6 +53,13 @@ import org.esigate.http.OutgoingRequest;
 import org.esigate.http.ResourceUtils;
 import org.esigate.impl.DriverRequest;
 import org.esigate.impl.UrlRewriter;
+import org.esigate.instrumentation.AllocationCounter;
+import org.esigate.instrumentation.DriverInstrumentation;
+import org.esigate.instrumentation.PhaseTimer;
+import org.esigate.instrumentation.RenderTrace;
+import org.esigate.instrumentation.TraceExporter;
+import org.esigate.instrumentation.TraceSpan;
+import org.esigate.url.HealthAwareBaseUrlRetrieveStrategy;
 import org.esigate.vars.VariablesResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -70,6 +83,8 @@ public final class Driver {
     private ContentTypeHelper contentTypeHelper;
     private UrlRewriter urlRewriter;
     private HeaderManager headerManager;
+    private DriverInstrumentation instrumentation = DriverInstrumentation.DISABLED;
+    private TraceExporter traceExporter;
     private final DefaultRedirectStrategy redirectStrategy = new DefaultRedirectStrategy();
 
     public static class DriverBuilder {
@@ -90,7 +105,15 @@ public final class Driver {
             }
             driver.eventManager = new EventManager(name);
             driver.config = new DriverConfiguration(name, properties);
+            BaseUrlRetrieveStrategy baseUrlRetrieveStrategy = driver.config.getBaseUrlRetrieveStrategy();
+            if (baseUrlRetrieveStrategy instanceof HealthAwareBaseUrlRetrieveStrategy) {
+                ((HealthAwareBaseUrlRetrieveStrategy) baseUrlRetrieveStrategy).register(driver.eventManager);
+            }
             driver.contentTypeHelper = new ContentTypeHelper(properties);
+            driver.instrumentation = DriverInstrumentation.create(properties, driver);
+            if (Parameters.TRACE.getValue(properties)) {
+                driver.traceExporter = ExtensionFactory.getExtension(properties, Parameters.TRACE_EXPORTER, driver);
+            }
             // Load extensions.
             ExtensionFactory.getExtensions(properties, Parameters.EXTENSIONS, driver);
             UrlRewriter urlRewriter = new UrlRewriter(properties);
@@ -160,26 +183,123 @@ public final class Driver {
 
         String targetUrl = ResourceUtils.getHttpUrlWithQueryString(resultingPageUrl, driverRequest, false);
 
-        String currentValue;
-        CloseableHttpResponse response;
+        Pair<String, CloseableHttpResponse> cachedValue = fetch(targetUrl, driverRequest);
+        String currentValue = cachedValue.getKey();
+        CloseableHttpResponse response = cachedValue.getValue();
+
+        logAction("render", pageUrl, renderers);
+
+        // Apply renderers
+        currentValue = performRendering(pageUrl, driverRequest, response, currentValue, renderers);
+
+        response.setEntity(new StringEntity(currentValue, HttpResponseUtils.getContentType(response)));
+
+        return response;
+    }
+
+    /**
+     * Retrieves a page the same way {@link #render(String, IncomingRequest, Renderer...)} does but without applying any
+     * renderer. The result is kept in the incoming request so that a later call to render for the same url is served
+     * without any new request to the provider.
+     * 
+     * @param pageUrl
+     *            Address of the page
+     * @param incomingRequest
+     *            originating request object
+     * @throws IOException
+     *             If an IOException occurs while reading the response
+     * @throws HttpErrorPage
+     *             If an Exception occurs while retrieving the page
+     */
+    public void prefetch(String pageUrl, IncomingRequest incomingRequest) throws IOException, HttpErrorPage {
+        DriverRequest driverRequest = new DriverRequest(incomingRequest, this, pageUrl);
+        String resultingPageUrl = VariablesResolver.replaceAllVariables(pageUrl, driverRequest);
+        String targetUrl = ResourceUtils.getHttpUrlWithQueryString(resultingPageUrl, driverRequest, false);
+        fetch(targetUrl, driverRequest);
+    }
+
+    /**
+     * Looks up the cache at once for several pages that are about to be rendered, so that remote cache storages are
+     * queried with a single request instead of one request per page. Pages already retrieved for this request are
+     * ignored. Must be followed by a call to {@link #releaseCacheEntries()} once the pages have been rendered.
+     * 
+     * @param pageUrls
+     *            Addresses of the pages
+     * @param incomingRequest
+     *            originating request object
+     */
+    public void preloadCacheEntries(Collection<String> pageUrls, IncomingRequest incomingRequest) {
+        List<OutgoingRequest> outgoingRequests = new ArrayList<OutgoingRequest>(pageUrls.size());
+        for (String pageUrl : pageUrls) {
+            DriverRequest driverRequest;
+            try {
+                driverRequest = new DriverRequest(incomingRequest, this, pageUrl);
+            } catch (HttpErrorPage e) {
+                // The error will be reported when the page is rendered
+                continue;
+            }
+            String resultingPageUrl = VariablesResolver.replaceAllVariables(pageUrl, driverRequest);
+            String targetUrl = ResourceUtils.getHttpUrlWithQueryString(resultingPageUrl, driverRequest, false);
+            if (incomingRequest.getAttribute(CACHE_RESPONSE_PREFIX + targetUrl) == null) {
+                outgoingRequests.add(requestExecutor.createOutgoingRequest(driverRequest, targetUrl, false));
+            }
+        }
+        requestExecutor.preloadCacheEntries(outgoingRequests);
+    }
+
+    /**
+     * Releases the cache entries loaded by {@link #preloadCacheEntries(Collection, IncomingRequest)}.
+     */
+    public void releaseCacheEntries() {
+        requestExecutor.releaseCacheEntries();
+    }
 
-        // Retrieve URL
-        // Get from cache to prevent multiple request to the same url if
-        // multiple fragments are used.
+    /**
+     * Removes from the cache all the pages the provider tagged with a given tag using the Surrogate-Key header.
+     * 
+     * @param tag
+     *            the tag
+     * @return the number of cache entries removed
+     */
+    public int purgeCacheTag(String tag) {
+        return requestExecutor.purgeCacheTag(tag);
+    }
 
+    /**
+     * Retrieves the content of a url, following redirects. The result is stored in the incoming request to prevent
+     * multiple requests to the same url if multiple fragments are used.
+     * 
+     * @param targetUrl
+     *            the url to retrieve
+     * @param driverRequest
+     *            the request
+     * @return the content as a String and the response
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    private Pair<String, CloseableHttpResponse> fetch(String targetUrl, DriverRequest driverRequest)
+            throws IOException, HttpErrorPage {
+        IncomingRequest incomingRequest = driverRequest.getOriginalRequest();
         String cacheKey = CACHE_RESPONSE_PREFIX + targetUrl;
         Pair<String, CloseableHttpResponse> cachedValue = incomingRequest.getAttribute(cacheKey);
         // content and response were not in cache
         if (cachedValue == null) {
+            TraceSpan span = RenderTrace.current();
+            long fetchStart = 0;
+            if (span != null) {
+                span.setProvider(config.getInstanceName());
+                fetchStart = System.nanoTime();
+            }
             OutgoingRequest outgoingRequest = requestExecutor.createOutgoingRequest(driverRequest, targetUrl, false);
             headerManager.copyHeaders(driverRequest, outgoingRequest);
-            response = requestExecutor.execute(outgoingRequest);
+            long timerStart = instrumentation.startFetch();
+            long allocationStart = instrumentation.getFetchAllocation().start();
+            CloseableHttpResponse response = requestExecutor.execute(outgoingRequest);
             int redirects = MAX_REDIRECTS;
             try {
                 while (redirects > 0
                         && redirectStrategy.isRedirected(outgoingRequest, response, outgoingRequest.getContext())) {
                     redirects--;
-                    System.err.println("redirect");
                     outgoingRequest =
                             requestExecutor.createOutgoingRequest(
                                     driverRequest,
@@ -191,23 +311,20 @@ public final class Driver {
             } catch (ProtocolException e) {
                 throw new HttpErrorPage(HttpStatus.SC_BAD_GATEWAY, "Invalid response from server", e);
             }
+            instrumentation.getFetchAllocation().stop(allocationStart);
+            if (instrumentation.isEnabled()) {
+                instrumentation.stopFetch(timerStart, getCacheStatus(outgoingRequest));
+            }
             response = headerManager.copyHeaders(outgoingRequest, incomingRequest, response);
-            currentValue = HttpResponseUtils.toString(response, this.eventManager);
+            String currentValue = readBody(response);
+            if (span != null) {
+                span.addFetch(System.nanoTime() - fetchStart, getCacheStatus(outgoingRequest), currentValue.length());
+            }
             // Cache
             cachedValue = new ImmutablePair<String, CloseableHttpResponse>(currentValue, response);
             incomingRequest.setAttribute(cacheKey, cachedValue);
         }
-        currentValue = cachedValue.getKey();
-        response = cachedValue.getValue();
-
-        logAction("render", pageUrl, renderers);
-
-        // Apply renderers
-        currentValue = performRendering(pageUrl, driverRequest, response, currentValue, renderers);
-
-        response.setEntity(new StringEntity(currentValue, HttpResponseUtils.getContentType(response)));
-
-        return response;
+        return cachedValue;
     }
 
     /**
@@ -281,12 +398,37 @@ public final class Driver {
 
         logAction("proxy", relUrl, renderers);
 
+        long requestStart = instrumentation.getRequest().start();
+
         String url = ResourceUtils.getHttpUrlWithQueryString(relUrl, driverRequest, true);
         OutgoingRequest outgoingRequest = requestExecutor.createOutgoingRequest(driverRequest, url, true);
         headerManager.copyHeaders(driverRequest, outgoingRequest);
 
+        RenderTrace trace = null;
+        if (traceExporter != null && RenderTrace.get(incomingRequest) == null) {
+            trace = RenderTrace.start(incomingRequest, relUrl, config.getInstanceName());
+        }
+
         try {
-            CloseableHttpResponse response = requestExecutor.execute(outgoingRequest);
+            TraceSpan span = RenderTrace.current();
+            long fetchStart = 0;
+            if (span != null) {
+                fetchStart = System.nanoTime();
+            }
+            CloseableHttpResponse response;
+            long timerStart = instrumentation.startFetch();
+            long allocationStart = instrumentation.getFetchAllocation().start();
+            try {
+                response = requestExecutor.execute(outgoingRequest);
+                instrumentation.getFetchAllocation().stop(allocationStart);
+                if (instrumentation.isEnabled()) {
+                    instrumentation.stopFetch(timerStart, getCacheStatus(outgoingRequest));
+                }
+            } finally {
+                if (span != null) {
+                    span.addFetch(System.nanoTime() - fetchStart, getCacheStatus(outgoingRequest), 0);
+                }
+            }
 
             response = headerManager.copyHeaders(outgoingRequest, incomingRequest, response);
 
@@ -324,7 +466,27 @@ public final class Driver {
             if (!postProxyPerformed) {
                 this.eventManager.fire(EventManager.EVENT_PROXY_POST, e);
             }
+            instrumentation.getRequest().stop(requestStart);
+            if (trace != null) {
+                endTrace(trace, e);
+            }
+        }
+    }
+
+    private void endTrace(RenderTrace trace, ProxyEvent e) {
+        trace.end();
+        HttpResponse response = e.getResponse();
+        if (response == null && e.getErrorPage() != null) {
+            response = e.getErrorPage().getHttpResponse();
+        }
+        if (response != null) {
+            response.setHeader(RenderTrace.HEADER, trace.getSummary());
         }
+        traceExporter.export(trace);
+    }
+
+    private static Object getCacheStatus(OutgoingRequest outgoingRequest) {
+        return outgoingRequest.getContext().getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
     }
 
     /**
@@ -355,7 +517,15 @@ public final class Driver {
         LOG.debug("'{}' is text : will apply renderers.", pageUrl);
 
         // Get response body
-        String currentValue = HttpResponseUtils.toString(response, this.eventManager);
+        TraceSpan span = RenderTrace.current();
+        long fetchStart = 0;
+        if (span != null) {
+            fetchStart = System.nanoTime();
+        }
+        String currentValue = readBody(response);
+        if (span != null) {
+            span.addFetch(System.nanoTime() - fetchStart, null, currentValue.length());
+        }
 
         // Perform rendering
         currentValue = performRendering(pageUrl, originalRequest, response, currentValue, renderers);
@@ -370,6 +540,15 @@ public final class Driver {
 
     }
 
+    private String readBody(CloseableHttpResponse response) throws HttpErrorPage {
+        long start = instrumentation.getBackendBody().start();
+        long allocationStart = instrumentation.getBackendBodyAllocation().start();
+        String result = HttpResponseUtils.toString(response, this.eventManager);
+        instrumentation.getBackendBodyAllocation().stop(allocationStart);
+        instrumentation.getBackendBody().stop(start);
+        return result;
+    }
+
     /**
      * Performs rendering (apply a render list) on an http response body (as a String).
      * 
@@ -395,15 +574,29 @@ public final class Driver {
         renderEvent.getRenderers().addAll(Arrays.asList(renderers));
 
         String currentBody = body;
+        TraceSpan span = RenderTrace.current();
+        long renderStart = 0;
+        if (span != null) {
+            renderStart = System.nanoTime();
+        }
 
         this.eventManager.fire(EventManager.EVENT_RENDER_PRE, renderEvent);
         for (Renderer renderer : renderEvent.getRenderers()) {
+            PhaseTimer timer = instrumentation.getRenderer(renderer);
+            AllocationCounter allocationCounter = instrumentation.getRendererAllocation(renderer);
+            long start = timer.start();
+            long allocationStart = allocationCounter.start();
             StringBuilderWriter stringWriter = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
             renderer.render(originalRequest, currentBody, stringWriter);
             stringWriter.close();
             currentBody = stringWriter.toString();
+            allocationCounter.stop(allocationStart);
+            timer.stop(start);
         }
         this.eventManager.fire(EventManager.EVENT_RENDER_POST, renderEvent);
+        if (span != null) {
+            span.addRender(System.nanoTime() - renderStart);
+        }
 
         return currentBody;
     }
@@ -426,11 +619,31 @@ public final class Driver {
         return requestExecutor;
     }
 
+    /**
+     * Releases the resources used by the request executor and the instrumentation. Called by the {@link DriverFactory}
+     * when the driver is replaced, the driver must not be used afterwards.
+     */
+    public void close() {
+        if (requestExecutor instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) requestExecutor);
+        }
+        instrumentation.close();
+    }
+
     @Override
     public String toString() {
         return "driver:" + config.getInstanceName();
     }
 
+    /**
+     * Get the timers used to measure the processing phases of this driver.
+     * 
+     * @return the instrumentation, never null
+     */
+    public DriverInstrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
     public ContentTypeHelper getContentTypeHelper() {
         return contentTypeHelper;
     }
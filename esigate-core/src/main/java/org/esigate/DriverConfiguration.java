@@ -22,6 +22,7 @@ import java.util.Properties;
 
 import org.esigate.api.BaseUrlRetrieveStrategy;
 import org.esigate.impl.UriMapping;
+import org.esigate.url.HealthAwareBaseUrlRetrieveStrategy;
 import org.esigate.url.IpHashBaseUrlRetrieveStrategy;
 import org.esigate.url.RoundRobinBaseUrlRetrieveStrategy;
 import org.esigate.url.SingleBaseUrlRetrieveStrategy;
@@ -43,6 +44,8 @@ public class DriverConfiguration {
     private final BaseUrlRetrieveStrategy baseUrlRetrieveStrategy;
     private final List<UriMapping> uriMappings;
     private boolean stripMappingPath;
+    private final int pageTimeout;
+    private final boolean bulkCacheLookup;
 
     public DriverConfiguration(String instanceName, Properties props) {
         this.instanceName = instanceName;
@@ -52,6 +55,8 @@ public class DriverConfiguration {
         this.visibleBaseURL = Parameters.VISIBLE_URL_BASE.getValue(props);
         this.stripMappingPath = Parameters.STRIP_MAPPING_PATH.getValue(props);
         this.uriMappings = parseMappings(props);
+        this.pageTimeout = Parameters.PAGE_TIMEOUT.getValue(props);
+        this.bulkCacheLookup = Parameters.BULK_CACHE_LOOKUP.getValue(props);
         properties = props;
     }
 
@@ -88,6 +93,8 @@ public class DriverConfiguration {
                 urlStrategy = new IpHashBaseUrlRetrieveStrategy(baseURLs);
             } else if (Parameters.STICKYSESSION.equalsIgnoreCase(strategy)) {
                 urlStrategy = new StickySessionBaseUrlRetrieveStrategy(baseURLs);
+            } else if (Parameters.HEALTHAWARE.equalsIgnoreCase(strategy)) {
+                urlStrategy = new HealthAwareBaseUrlRetrieveStrategy(baseURLs, props);
             } else {
                 throw new ConfigurationException("No such BaseUrlRetrieveStrategy '" + strategy + "'");
             }
@@ -135,4 +142,20 @@ public class DriverConfiguration {
     public boolean isStripMappingPath() {
         return stripMappingPath;
     }
+
+    /**
+     * 
+     * @return the maximum time in milliseconds allowed to retrieve a page and all its fragments, 0 for no limit
+     */
+    public int getPageTimeout() {
+        return pageTimeout;
+    }
+
+    /**
+     * 
+     * @return true if the cache entries for all the includes of a page should be looked up at once before rendering it
+     */
+    public boolean isBulkCacheLookup() {
+        return bulkCacheLookup;
+    }
 }
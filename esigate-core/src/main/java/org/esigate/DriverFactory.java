@@ -40,7 +40,7 @@ import org.esigate.Driver.DriverBuilder;
 import org.esigate.http.IncomingRequest;
 import org.esigate.impl.IndexedInstances;
 import org.esigate.impl.UriMapping;
-import org.esigate.util.UriUtils;
+import org.esigate.instrumentation.DriverInstrumentation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -105,6 +105,21 @@ public final class DriverFactory {
 
     }
 
+    /**
+     * Removes from the cache of all the instances the pages tagged with a given tag.
+     * 
+     * @param tag
+     *            the tag, as sent by the providers in the Surrogate-Key header
+     * @return the number of cache entries removed
+     */
+    public static int purgeCacheTag(String tag) {
+        int purged = 0;
+        for (Driver driver : getInstances()) {
+            purged += driver.purgeCacheTag(tag);
+        }
+        return purged;
+    }
+
     /**
      * Loads all instances according to default configuration file.
      */
@@ -186,7 +201,20 @@ public final class DriverFactory {
             newInstances.put(DEFAULT_INSTANCE_NAME, createDriver(DEFAULT_INSTANCE_NAME, defaultProperties));
         }
 
+        IndexedInstances oldInstances = instances;
         instances = new IndexedInstances(newInstances);
+        closeReplaced(oldInstances.getInstances(), newInstances);
+    }
+
+    /**
+     * Closes the drivers that are not used anymore.
+     */
+    private static void closeReplaced(Map<String, Driver> oldInstances, Map<String, Driver> newInstances) {
+        for (Driver driver : oldInstances.values()) {
+            if (!newInstances.containsValue(driver)) {
+                driver.close();
+            }
+        }
     }
 
     private static Driver createDriver(String name, Properties properties) {
@@ -241,8 +269,9 @@ public final class DriverFactory {
      *             if no instance was found for this request
      */
     static MatchedRequest selectProvider(IncomingRequest request) throws HttpErrorPage {
-        URI requestURI = UriUtils.createURI(request.getRequestLine().getUri());
-        String host = UriUtils.extractHost(requestURI).toHostString();
+        long start = System.nanoTime();
+        URI requestURI = request.getURI();
+        String host = request.getHttpHost().toHostString();
         Header hostHeader = request.getFirstHeader(HttpHeaders.HOST);
         if (hostHeader != null) {
             host = hostHeader.getValue();
@@ -273,6 +302,10 @@ public final class DriverFactory {
 
         MatchedRequest context = new MatchedRequest(driver, relativeUri);
         LOG.debug("Selected {} for scheme:{} host:{} relUrl:{}", driver, scheme, host, relativeUri);
+        DriverInstrumentation instrumentation = driver.getInstrumentation();
+        if (instrumentation.isEnabled()) {
+            instrumentation.getProviderSelection().record(System.nanoTime() - start);
+        }
         return context;
     }
 
@@ -306,9 +339,12 @@ public final class DriverFactory {
         }
 
         // Add new instance
-        newInstances.put(instanceName, instance);
+        Driver replaced = newInstances.put(instanceName, instance);
 
         instances = new IndexedInstances(newInstances);
+        if (replaced != null && !newInstances.containsValue(replaced)) {
+            replaced.close();
+        }
     }
 
     /**
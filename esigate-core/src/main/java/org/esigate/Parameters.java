@@ -16,7 +16,7 @@
 package org.esigate;
 
 import org.esigate.authentication.RemoteUserAuthenticationHandler;
-import org.esigate.cache.BasicCacheStorage;
+import org.esigate.cache.ConcurrentCacheStorage;
 import org.esigate.cookie.DefaultCookieManager;
 import org.esigate.extension.ConfigReloadOnChange;
 import org.esigate.extension.Esi;
@@ -25,6 +25,7 @@ import org.esigate.extension.FragmentLogging;
 import org.esigate.extension.ResourceFixup;
 import org.esigate.extension.XPoweredBy;
 import org.esigate.extension.surrogate.Surrogate;
+import org.esigate.instrumentation.MemoryTraceExporter;
 import org.esigate.util.Parameter;
 import org.esigate.util.ParameterArray;
 import org.esigate.util.ParameterBoolean;
@@ -52,8 +53,21 @@ public final class Parameters {
             "parsableContentTypes", "text/html", "application/xhtml+xml");
     // Network settings
     public static final Parameter<Integer> MAX_CONNECTIONS_PER_HOST = new ParameterInteger("maxConnectionsPerHost", 20);
+    // Maximum number of connections for all the hosts, 0 means the same as maxConnectionsPerHost
+    public static final Parameter<Integer> MAX_CONNECTIONS_TOTAL = new ParameterInteger("maxConnectionsTotal", 0);
+    // Maximum lifetime of a pooled connection in milliseconds, 0 means no limit
+    public static final Parameter<Integer> CONNECTION_TIME_TO_LIVE = new ParameterInteger("connectionTimeToLive", 0);
+    // Pooled connections idle for longer than this are closed in the background, 0 means disabled
+    public static final Parameter<Integer> IDLE_CONNECTION_TIMEOUT = new ParameterInteger("idleConnectionTimeout", 0);
+    public static final Parameter<Boolean> STALE_CONNECTION_CHECK = new ParameterBoolean("staleConnectionCheck", true);
     public static final Parameter<Integer> CONNECT_TIMEOUT = new ParameterInteger("connectTimeout", 1000);
     public static final Parameter<Integer> SOCKET_TIMEOUT = new ParameterInteger("socketTimeout", 10000);
+    // Maximum time allowed to retrieve a page and all its fragments, 0 means no limit
+    public static final Parameter<Integer> PAGE_TIMEOUT = new ParameterInteger("pageTimeout", 0);
+    // Circuit breaker: stop sending requests to a backend after consecutive failures, 0 means disabled
+    public static final Parameter<Integer> CIRCUIT_BREAKER_FAILURES = new ParameterInteger("circuitBreakerFailures", 0);
+    public static final Parameter<Integer> CIRCUIT_BREAKER_OPEN_TIME = new ParameterInteger("circuitBreakerOpenTime",
+            5000);
     // Proxy settings
     public static final Parameter<String> PROXY_HOST = new ParameterString("proxyHost");
     public static final Parameter<Integer> PROXY_PORT = new ParameterInteger("proxyPort", 0);
@@ -72,22 +86,50 @@ public final class Parameters {
     public static final String STICKYSESSION = "stickysession";
     public static final String IPHASH = "iphash";
     public static final String ROUNDROBIN = "roundrobin";
+    public static final String HEALTHAWARE = "healthaware";
     // Load-balancing
     public static final Parameter<String> REMOTE_URL_BASE_STRATEGY = new ParameterString("remoteUrlBaseStrategy",
             Parameters.ROUNDROBIN);
+    // Health-aware load-balancing
+    public static final Parameter<Integer> HEALTH_CONSECUTIVE_ERRORS = new ParameterInteger("healthConsecutiveErrors",
+            5);
+    public static final Parameter<Integer> HEALTH_EJECTION_TIME = new ParameterInteger("healthEjectionTime", 10000);
+    public static final Parameter<Integer> HEALTH_SLOW_START = new ParameterInteger("healthSlowStart", 30000);
+    // Hedged requests: send a duplicate GET to another remoteUrlBase when the first one is slow
+    public static final Parameter<Boolean> HEDGE_REQUESTS = new ParameterBoolean("hedgeRequests", false);
+    public static final Parameter<Float> HEDGE_PERCENTILE = new ParameterFloat("hedgePercentile", 95f);
+    public static final Parameter<Integer> HEDGE_MIN_DELAY = new ParameterInteger("hedgeMinDelay", 10);
     // Extensions
     public static final Parameter<Collection<String>> EXTENSIONS = new ParameterCollection("extensions",
             FragmentLogging.class.getName(), FetchLogging.class.getName(),
             RemoteUserAuthenticationHandler.class.getName(), Esi.class.getName(), ResourceFixup.class.getName(),
             XPoweredBy.class.getName(), Surrogate.class.getName(), ConfigReloadOnChange.class.getName());
+    public static final Parameter<String> INSTRUMENTATION = new ParameterString("instrumentation");
+    public static final Parameter<Boolean> ALLOCATION_TRACKING = new ParameterBoolean("allocationTracking", false);
+    public static final Parameter<Boolean> TRACE = new ParameterBoolean("trace", false);
+    public static final Parameter<String> TRACE_EXPORTER = new ParameterString("traceExporter",
+            MemoryTraceExporter.class.getName());
     // Cache settings
     public static final Parameter<Boolean> USE_CACHE = new ParameterBoolean("useCache", true);
     public static final Parameter<Integer> MAX_CACHE_ENTRIES = new ParameterInteger("maxCacheEntries", 1000);
     public static final Parameter<Integer> MAX_OBJECT_SIZE = new ParameterInteger("maxObjectSize", 1000000);
     public static final Parameter<String> CACHE_STORAGE = new ParameterString("cacheStorage",
-            BasicCacheStorage.class.getName());
+            ConcurrentCacheStorage.class.getName());
+    // Serialization of the entries for the storages that are not in memory, java serialization if not set
+    public static final Parameter<String> CACHE_ENTRY_SERIALIZER = new ParameterString("cacheEntrySerializer");
     public static final Parameter<Boolean> X_CACHE_HEADER = new ParameterBoolean("xCacheHeader", false);
     public static final Parameter<Boolean> VIA_HEADER = new ParameterBoolean("viaHeader", true);
+    // Look up the cache for all the includes of a page at once before rendering it
+    public static final Parameter<Boolean> BULK_CACHE_LOOKUP = new ParameterBoolean("bulkCacheLookup", false);
+    // Normalization of the requests before the cache lookup
+    public static final Parameter<Collection<String>> CACHE_KEY_IGNORED_PARAMETERS = new ParameterCollection(
+            "cacheKeyIgnoredParameters");
+    public static final Parameter<Boolean> CACHE_KEY_SORT_PARAMETERS = new ParameterBoolean("cacheKeySortParameters",
+            false);
+    public static final Parameter<Collection<String>> CACHE_KEY_NORMALIZED_HEADERS = new ParameterCollection(
+            "cacheKeyNormalizedHeaders");
+    public static final Parameter<Collection<String>> CACHE_KEY_LANGUAGES =
+            new ParameterCollection("cacheKeyLanguages");
     // Forced caching
     public static final Parameter<Integer> TTL = new ParameterInteger("ttl", 0);
     // Heuristic caching
@@ -108,6 +150,12 @@ public final class Parameters {
             "asynchronousWorkerIdleLifetimeSecs", 60);
     public static final Parameter<Integer> MAX_UPDATE_RETRIES = new ParameterInteger("maxUpdateRetries", 1);
     public static final Parameter<Integer> REVALIDATION_QUEUE_SIZE = new ParameterInteger("revalidationQueueSize", 100);
+    // Refresh of the most used entries before they expire
+    public static final Parameter<Boolean> BACKGROUND_REFRESH = new ParameterBoolean("backgroundRefresh", false);
+    public static final Parameter<Integer> BACKGROUND_REFRESH_MIN_HITS = new ParameterInteger(
+            "backgroundRefreshMinHits", 2);
+    public static final Parameter<Integer> BACKGROUND_REFRESH_ADVANCE = new ParameterInteger(
+            "backgroundRefreshAdvance", 5);
     // EhCache
     public static final Parameter<String> EHCACHE_CACHE_NAME_PROPERTY = new ParameterString("ehcache.cacheName",
             "esigate");
@@ -116,6 +164,9 @@ public final class Parameters {
     // MemCached
     public static final Parameter<Collection<String>> MEMCACHED_SERVERS_PROPERTY = new ParameterCollection(
             "memcached.servers");
+    // Near cache: local copy of the entries of a remote cache storage
+    public static final Parameter<Integer> NEAR_CACHE_TTL = new ParameterInteger("nearCacheTtl", 0);
+    public static final Parameter<Integer> NEAR_CACHE_MAX_ENTRIES = new ParameterInteger("nearCacheMaxEntries", 1000);
     // Default size for String or byte buffers used to manipulate html page contents
     public static final int DEFAULT_BUFFER_SIZE = 1024;
     // Default size for String or byte buffers used to manipulate small things like tags, cookie, log lines
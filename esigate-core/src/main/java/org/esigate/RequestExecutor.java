@@ -15,6 +15,7 @@
 
 package org.esigate;
 
+import java.util.Collection;
 import java.util.Properties;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -29,6 +30,29 @@ public interface RequestExecutor {
 
     CloseableHttpResponse execute(OutgoingRequest outgoingRequest) throws HttpErrorPage;
 
+    /**
+     * Looks up the cache for several requests at once. The entries found are used by the following calls to
+     * {@link #execute(OutgoingRequest)} in the current thread until {@link #releaseCacheEntries()} is called.
+     * 
+     * @param outgoingRequests
+     *            the requests that are about to be executed
+     */
+    void preloadCacheEntries(Collection<OutgoingRequest> outgoingRequests);
+
+    /**
+     * Releases the entries loaded by the matching call to {@link #preloadCacheEntries(Collection)}.
+     */
+    void releaseCacheEntries();
+
+    /**
+     * Removes from the cache all the entries tagged with a given tag by the provider.
+     * 
+     * @param tag
+     *            the tag, as sent in the Surrogate-Key header
+     * @return the number of entries removed
+     */
+    int purgeCacheTag(String tag);
+
     public interface RequestExecutorBuilder {
 
         RequestExecutorBuilder setEventManager(EventManager eventManager);
@@ -33,6 +33,7 @@ import org.esigate.ConfigurationException;
 import org.esigate.Parameters;
 import org.esigate.http.DateUtils;
 import org.esigate.http.OutgoingRequestContext;
+import org.esigate.instrumentation.DriverInstrumentation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,11 +45,15 @@ import org.slf4j.LoggerFactory;
  */
 public class CacheAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(CacheAdapter.class);
+    /** Context attribute holding the time the cache lookup started. */
+    private static final String CACHE_LOOKUP_START = "esigate.cacheLookupStart";
     private int staleIfError;
     private int staleWhileRevalidate;
     private int ttl;
     private boolean xCacheHeader;
     private boolean viaHeader;
+    private CacheKeyNormalizer cacheKeyNormalizer;
+    private DriverInstrumentation instrumentation = DriverInstrumentation.DISABLED;
 
     /**
      * Inititalize the instance.
@@ -67,11 +72,27 @@ public class CacheAdapter {
         ttl = Parameters.TTL.getValue(properties);
         xCacheHeader = Parameters.X_CACHE_HEADER.getValue(properties);
         viaHeader = Parameters.VIA_HEADER.getValue(properties);
+        cacheKeyNormalizer = CacheKeyNormalizer.create(properties);
         LOG.info("Initializing cache for provider " + Arrays.toString(Parameters.REMOTE_URL_BASE.getValue(properties))
                 + " staleIfError=" + staleIfError + " staleWhileRevalidate=" + staleWhileRevalidate + " ttl=" + ttl
                 + " xCacheHeader=" + xCacheHeader + " viaHeader=" + viaHeader);
     }
 
+    public void setInstrumentation(DriverInstrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    /**
+     * Records the cache lookup duration, either when the request is sent to the provider or when the response was found
+     * in the cache.
+     */
+    private void recordCacheLookup(HttpClientContext context) {
+        Object start = context.removeAttribute(CACHE_LOOKUP_START);
+        if (start != null) {
+            instrumentation.getCacheLookup().record(System.nanoTime() - (Long) start);
+        }
+    }
+
     public ClientExecChain wrapCachingHttpClient(final ClientExecChain wrapped) {
         return new ClientExecChain() {
 
@@ -86,9 +107,21 @@ public class CacheAdapter {
                     HttpException {
                 OutgoingRequestContext context = OutgoingRequestContext.adapt(httpClientContext);
 
+                // Normalize the request so that equivalent requests share the same cache entry
+                if (cacheKeyNormalizer != null && cacheKeyNormalizer.accepts(request)) {
+                    cacheKeyNormalizer.normalize(request, context);
+                }
+
+                if (instrumentation.isEnabled()) {
+                    context.setAttribute(CACHE_LOOKUP_START, System.nanoTime());
+                }
+
                 // Switch route for the cache to generate the right cache key
                 CloseableHttpResponse response = wrapped.execute(route, request, context, execAware);
 
+                // Served without calling the provider
+                recordCacheLookup(context);
+
                 // Remove previously added Cache-control header
                 if (request.getRequestLine().getMethod().equalsIgnoreCase("GET")
                         && (staleWhileRevalidate > 0 || staleIfError > 0)) {
@@ -149,13 +182,23 @@ public class CacheAdapter {
                     HttpException {
                 OutgoingRequestContext context = OutgoingRequestContext.adapt(httpClientContext);
 
-                CloseableHttpResponse response = wrapped.execute(route, request, context, execAware);
+                recordCacheLookup(context);
+
+                // Send the original request to the provider
+                HttpRequestWrapper backendRequest = request;
+                if (cacheKeyNormalizer != null) {
+                    backendRequest = cacheKeyNormalizer.restore(request, context);
+                }
+
+                CloseableHttpResponse response = wrapped.execute(route, backendRequest, context, execAware);
 
                 String method = request.getRequestLine().getMethod();
                 int statusCode = response.getStatusLine().getStatusCode();
 
-                // If ttl is set, force caching even for error pages
-                if (ttl > 0 && method.equalsIgnoreCase("GET") && isCacheableStatus(statusCode)) {
+                // If ttl is set, force caching even for error pages, but never for the errors generated without
+                // contacting the backend: they only concern the current request
+                if (ttl > 0 && method.equalsIgnoreCase("GET") && isCacheableStatus(statusCode)
+                        && !context.isBackendSkipped()) {
                     response.removeHeaders("Date");
                     response.removeHeaders("Cache-control");
                     response.removeHeaders("Expires");
@@ -16,11 +16,15 @@ package org.esigate.cache;
 
 import java.util.Properties;
 
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
 import org.apache.http.impl.client.cache.CacheConfig;
 import org.esigate.ConfigurationException;
 import org.esigate.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public final class CacheConfigHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(CacheConfigHelper.class);
 
     private CacheConfigHelper() {
 
@@ -73,7 +77,41 @@ public final class CacheConfigHelper {
         }
         CacheStorage cacheStorage = (CacheStorage) cacheStorageObject;
         cacheStorage.init(properties);
+        int maxTaggedEntries = Parameters.MAX_CACHE_ENTRIES.getValue(properties);
+        cacheStorage.setMaxTaggedEntries(maxTaggedEntries);
+        if (Parameters.NEAR_CACHE_TTL.getValue(properties) > 0 && !cacheStorage.isRemote()) {
+            LOG.warn("{} ignored: {} already keeps the entries in memory", Parameters.NEAR_CACHE_TTL.getName(),
+                    cacheStorageClass);
+        } else if (Parameters.NEAR_CACHE_TTL.getValue(properties) > 0) {
+            CacheStorage nearCacheStorage = new NearCacheStorage(cacheStorage);
+            nearCacheStorage.init(properties);
+            nearCacheStorage.setMaxTaggedEntries(maxTaggedEntries);
+            return nearCacheStorage;
+        }
         return cacheStorage;
     }
 
+    /**
+     * @param properties
+     *            the configuration
+     * @return the serializer configured with cacheEntrySerializer, or null to keep the default format of the storage
+     */
+    public static HttpCacheEntrySerializer createCacheEntrySerializer(Properties properties) {
+        String serializerClass = Parameters.CACHE_ENTRY_SERIALIZER.getValue(properties);
+        if (serializerClass == null) {
+            return null;
+        }
+        Object serializer;
+        try {
+            serializer = Class.forName(serializerClass).newInstance();
+        } catch (Exception e) {
+            throw new ConfigurationException("Could not instantiate cacheEntrySerializer", e);
+        }
+        if (!(serializer instanceof HttpCacheEntrySerializer)) {
+            throw new ConfigurationException(
+                    "Cache entry serializer class must implement org.apache.http.client.cache.HttpCacheEntrySerializer.");
+        }
+        return (HttpCacheEntrySerializer) serializer;
+    }
+
 }
@@ -0,0 +1,306 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpRequest;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.esigate.ConfigurationException;
+import org.esigate.Parameters;
+
+/**
+ * Normalizes the requests before the cache lookup so that requests that get the same response share the same cache
+ * entry.
+ * <p>
+ * Query parameters can be ignored (for instance tracking parameters) and sorted. The values of some request headers,
+ * which can be used by the providers in a Vary response header, are replaced by a bucket:
+ * <ul>
+ * <li>Accept-Encoding: "gzip" or "identity"</li>
+ * <li>Accept-Language: the preferred language, limited to the configured languages if any</li>
+ * <li>User-Agent: "mobile" or "desktop"</li>
+ * </ul>
+ * The original request is restored before it is sent to the provider, the normalization only changes the cache key. The
+ * response is shared by all the requests that fall into the same bucket.
+ */
+public final class CacheKeyNormalizer {
+    private static final String ORIGINAL_REQUEST_ATTRIBUTE = CacheKeyNormalizer.class.getName() + "#original";
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ACCEPT_LANGUAGE = "Accept-Language";
+    private static final String USER_AGENT = "User-Agent";
+    private static final Pattern MOBILE = Pattern.compile("Mobi|Android|iPhone|iPad|iPod|Opera Mini",
+            Pattern.CASE_INSENSITIVE);
+    private static final Comparator<String> PARAMETER_NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return parameterName(o1).compareTo(parameterName(o2));
+        }
+    };
+
+    private final Collection<String> ignoredParameters = new ArrayList<String>();
+    private final Collection<String> ignoredParameterPrefixes = new ArrayList<String>();
+    private final boolean sortParameters;
+    private final List<String> normalizedHeaders = new ArrayList<String>();
+    private final List<String> languages = new ArrayList<String>();
+
+    /**
+     * Creates a CacheKeyNormalizer from the configuration.
+     * 
+     * @param properties
+     *            the configuration
+     * @return the CacheKeyNormalizer or null if no normalization is configured
+     */
+    public static CacheKeyNormalizer create(Properties properties) {
+        CacheKeyNormalizer result = new CacheKeyNormalizer(properties);
+        if (result.ignoredParameters.isEmpty() && result.ignoredParameterPrefixes.isEmpty() && !result.sortParameters
+                && result.normalizedHeaders.isEmpty()) {
+            return null;
+        }
+        return result;
+    }
+
+    private CacheKeyNormalizer(Properties properties) {
+        for (String parameter : Parameters.CACHE_KEY_IGNORED_PARAMETERS.getValue(properties)) {
+            if (parameter.endsWith("*")) {
+                ignoredParameterPrefixes.add(parameter.substring(0, parameter.length() - 1));
+            } else {
+                ignoredParameters.add(parameter);
+            }
+        }
+        sortParameters = Parameters.CACHE_KEY_SORT_PARAMETERS.getValue(properties);
+        for (String header : Parameters.CACHE_KEY_NORMALIZED_HEADERS.getValue(properties)) {
+            if (ACCEPT_ENCODING.equalsIgnoreCase(header)) {
+                normalizedHeaders.add(ACCEPT_ENCODING);
+            } else if (ACCEPT_LANGUAGE.equalsIgnoreCase(header)) {
+                normalizedHeaders.add(ACCEPT_LANGUAGE);
+            } else if (USER_AGENT.equalsIgnoreCase(header)) {
+                normalizedHeaders.add(USER_AGENT);
+            } else {
+                throw new ConfigurationException("Unsupported value for "
+                        + Parameters.CACHE_KEY_NORMALIZED_HEADERS.getName() + ": " + header);
+            }
+        }
+        for (String language : Parameters.CACHE_KEY_LANGUAGES.getValue(properties)) {
+            languages.add(language.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * Normalizes a request before the cache lookup. The original values are kept in the context so that they can be
+     * restored by {@link #restore(HttpRequestWrapper, HttpContext)}.
+     * 
+     * @param request
+     *            the request
+     * @param context
+     *            the context of the request
+     */
+    public void normalize(HttpRequestWrapper request, HttpContext context) {
+        Map<String, Header[]> originalHeaders = new HashMap<String, Header[]>();
+        for (String name : normalizedHeaders) {
+            Header[] headers = request.getHeaders(name);
+            String bucket = getBucket(name, headers);
+            originalHeaders.put(name, headers);
+            request.removeHeaders(name);
+            if (bucket != null) {
+                request.addHeader(name, bucket);
+            }
+        }
+        URI uri = request.getURI();
+        String normalizedUri = normalizeUri(uri.toString());
+        if (!normalizedUri.equals(uri.toString())) {
+            request.setURI(URI.create(normalizedUri));
+        }
+        context.setAttribute(ORIGINAL_REQUEST_ATTRIBUTE, new Original(uri, originalHeaders));
+    }
+
+    /**
+     * Restores the original uri and headers before the request is sent to the provider. The request itself is not
+     * modified as the cache still uses it to store the response.
+     * 
+     * @param request
+     *            the request, which can be a copy of the normalized request created by the cache
+     * @param context
+     *            the context of the request
+     * @return a copy of the request with the original uri and headers, or the request if it was not normalized
+     */
+    public HttpRequestWrapper restore(HttpRequestWrapper request, HttpContext context) {
+        Original original = (Original) context.getAttribute(ORIGINAL_REQUEST_ATTRIBUTE);
+        if (original == null) {
+            return request;
+        }
+        HttpRequestWrapper result = HttpRequestWrapper.wrap(request);
+        for (Map.Entry<String, Header[]> headers : original.headers.entrySet()) {
+            result.removeHeaders(headers.getKey());
+            for (Header header : headers.getValue()) {
+                result.addHeader(header);
+            }
+        }
+        result.setURI(original.uri);
+        return result;
+    }
+
+    /**
+     * Removes the ignored parameters from the query string and sorts the remaining ones if required.
+     * 
+     * @param uri
+     *            an absolute or relative uri
+     * @return the normalized uri
+     */
+    public String normalizeUri(String uri) {
+        int queryStart = uri.indexOf('?');
+        if (queryStart < 0) {
+            return uri;
+        }
+        int queryEnd = uri.indexOf('#', queryStart);
+        if (queryEnd < 0) {
+            queryEnd = uri.length();
+        }
+        List<String> parameters = new ArrayList<String>();
+        for (String parameter : uri.substring(queryStart + 1, queryEnd).split("&")) {
+            if (!parameter.isEmpty() && !isIgnored(parameterName(parameter))) {
+                parameters.add(parameter);
+            }
+        }
+        if (sortParameters) {
+            Collections.sort(parameters, PARAMETER_NAME_ORDER);
+        }
+        StringBuilder result = new StringBuilder(uri.length());
+        result.append(uri, 0, queryStart);
+        for (int i = 0; i < parameters.size(); i++) {
+            result.append(i == 0 ? '?' : '&').append(parameters.get(i));
+        }
+        result.append(uri, queryEnd, uri.length());
+        return result.toString();
+    }
+
+    private boolean isIgnored(String name) {
+        if (ignoredParameters.contains(name)) {
+            return true;
+        }
+        for (String prefix : ignoredParameterPrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String parameterName(String parameter) {
+        int index = parameter.indexOf('=');
+        if (index < 0) {
+            return parameter;
+        }
+        return parameter.substring(0, index);
+    }
+
+    private String getBucket(String name, Header[] headers) {
+        if (USER_AGENT.equals(name)) {
+            for (Header header : headers) {
+                if (MOBILE.matcher(header.getValue()).find()) {
+                    return "mobile";
+                }
+            }
+            return "desktop";
+        }
+        String best = null;
+        float bestQuality = 0;
+        for (Header header : headers) {
+            for (HeaderElement element : header.getElements()) {
+                String value = element.getName().toLowerCase(Locale.ENGLISH);
+                float quality = getQuality(element);
+                if (ACCEPT_LANGUAGE.equals(name)) {
+                    value = getLanguage(value);
+                } else if (!"gzip".equals(value) && !"*".equals(value)) {
+                    continue;
+                }
+                if (value != null && quality > bestQuality) {
+                    best = value;
+                    bestQuality = quality;
+                }
+            }
+        }
+        if (ACCEPT_ENCODING.equals(name)) {
+            return best == null ? "identity" : "gzip";
+        }
+        if (best == null && !languages.isEmpty()) {
+            // Default language
+            return languages.get(0);
+        }
+        return best;
+    }
+
+    /**
+     * @return the primary tag of the language if it is one of the configured languages, or if no languages are
+     *         configured
+     */
+    private String getLanguage(String language) {
+        String primary = language;
+        int index = language.indexOf('-');
+        if (index > 0) {
+            primary = language.substring(0, index);
+        }
+        if ("*".equals(primary) || (!languages.isEmpty() && !languages.contains(primary))) {
+            return null;
+        }
+        return primary;
+    }
+
+    private static float getQuality(HeaderElement element) {
+        NameValuePair quality = element.getParameterByName("q");
+        if (quality == null || quality.getValue() == null) {
+            return 1;
+        }
+        try {
+            return Float.parseFloat(quality.getValue());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param request
+     *            a request
+     * @return true if the request is normalized, only GET and HEAD requests can be served from the cache
+     */
+    boolean accepts(HttpRequest request) {
+        String method = request.getRequestLine().getMethod();
+        return "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method);
+    }
+
+    private static final class Original {
+        private final URI uri;
+        private final Map<String, Header[]> headers;
+
+        private Original(URI uri, Map<String, Header[]> headers) {
+            this.uri = uri;
+            this.headers = headers;
+        }
+    }
+
+}
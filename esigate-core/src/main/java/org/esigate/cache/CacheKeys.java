@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Locale;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.utils.URIUtils;
+
+/**
+ * Computes the keys used by the http cache in order to look up the cache entries without going through the http client.
+ * Must give the same result as org.apache.http.impl.client.cache.CacheKeyGenerator which is not public.
+ */
+public final class CacheKeys {
+    private static final URI BASE_URI = URI.create("http://example.com/");
+    private static final int HTTP_DEFAULT_PORT = 80;
+    private static final int HTTPS_DEFAULT_PORT = 443;
+
+    private CacheKeys() {
+
+    }
+
+    /**
+     * @param host
+     *            the target host
+     * @param request
+     *            the request
+     * @return the key of the cache entry for this request
+     */
+    public static String getURI(HttpHost host, HttpRequest request) {
+        String uri = request.getRequestLine().getUri();
+        if ("*".equals(uri) || uri.startsWith("/")) {
+            uri = host.toString() + uri;
+        }
+        return canonicalizeUri(uri);
+    }
+
+    /**
+     * Lowercases the scheme and the host, makes the default port explicit and removes the fragment.
+     * 
+     * @param uri
+     *            absolute uri
+     * @return the canonical uri or the uri unchanged if it cannot be parsed
+     */
+    static String canonicalizeUri(String uri) {
+        try {
+            URL url = new URL(URIUtils.resolve(BASE_URI, uri).toASCIIString());
+            String protocol = url.getProtocol().toLowerCase(Locale.ENGLISH);
+            String hostname = url.getHost().toLowerCase(Locale.ENGLISH);
+            int port = url.getPort();
+            if (port == -1 && "http".equals(protocol)) {
+                port = HTTP_DEFAULT_PORT;
+            } else if (port == -1 && "https".equals(protocol)) {
+                port = HTTPS_DEFAULT_PORT;
+            }
+            String file = url.getPath();
+            if (url.getQuery() != null) {
+                file = file + "?" + url.getQuery();
+            }
+            return new URL(protocol, hostname, port, file).toString();
+        } catch (IllegalArgumentException e) {
+            return uri;
+        } catch (MalformedURLException e) {
+            return uri;
+        }
+    }
+
+}
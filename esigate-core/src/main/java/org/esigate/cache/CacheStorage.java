@@ -15,49 +15,277 @@
 package org.esigate.cache;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
+import org.apache.http.Header;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
 import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.esigate.Parameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Base class for the cache storages.
+ * <p>
+ * Keeps an index of the entries tagged by the provider with a Surrogate-Key header (a space-separated list of tags), so
+ * that all the entries with a given tag can be removed at once using {@link #purgeTag(String)}. The index is kept in
+ * memory and only knows the entries stored through this instance.
+ */
 public abstract class CacheStorage implements HttpCacheStorage {
     private static final Logger LOG = LoggerFactory.getLogger(CacheStorage.class);
+    /** Response header containing the tags of the entry. */
+    public static final String H_SURROGATE_KEY = "Surrogate-Key";
 
     public abstract void init(Properties properties);
 
     private HttpCacheStorage impl;
 
+    /** Entries looked up in advance for the current thread, see {@link #preload(Collection)}. */
+    private final ThreadLocal<Preloaded> preloaded = new ThreadLocal<Preloaded>();
+
+    /** Tags of each tagged entry, in insertion order. Guarded by itself, as well as {@link #tagKeys}. */
+    private final LinkedHashMap<String, Set<String>> keyTags = new LinkedHashMap<String, Set<String>>();
+    private final Map<String, Set<String>> tagKeys = new HashMap<String, Set<String>>();
+    private int maxTaggedEntries = Parameters.MAX_CACHE_ENTRIES.getDefaultValue();
+
     @Override
     public void putEntry(String key, HttpCacheEntry entry) throws IOException {
         LOG.debug("putEntry({},{})", key, entry);
+        forgetPreloaded(key);
         impl.putEntry(key, entry);
+        indexTags(key, entry);
     }
 
     @Override
     public HttpCacheEntry getEntry(String key) throws IOException {
         LOG.debug("getEntry({})", key);
+        Preloaded current = preloaded.get();
+        if (current != null && current.entries.containsKey(key)) {
+            return current.entries.get(key);
+        }
         return impl.getEntry(key);
     }
 
+    /**
+     * Retrieves several entries at once. Storages that can do it more efficiently than one entry at a time, for
+     * instance with a single network request, should override this method.
+     * 
+     * @param keys
+     *            the keys of the entries
+     * @return the entries found, indexed by key
+     * @throws IOException
+     *             if the storage could not be read
+     */
+    public Map<String, HttpCacheEntry> getEntries(Collection<String> keys) throws IOException {
+        Map<String, HttpCacheEntry> result = new HashMap<String, HttpCacheEntry>();
+        for (String key : keys) {
+            HttpCacheEntry entry = impl.getEntry(key);
+            if (entry != null) {
+                result.put(key, entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Looks up several entries with a single call to {@link #getEntries(Collection)} and keeps the result, including
+     * the entries not found, for the next calls to {@link #getEntry(String)} made by the current thread, until
+     * {@link #release()} is called. Calls can be nested, the entries are kept until the outermost call is released.
+     * 
+     * @param keys
+     *            the keys of the entries
+     * @throws IOException
+     *             if the storage could not be read
+     */
+    public void preload(Collection<String> keys) throws IOException {
+        Preloaded current = preloaded.get();
+        if (current == null) {
+            current = new Preloaded();
+            preloaded.set(current);
+        }
+        current.depth++;
+        Map<String, HttpCacheEntry> entries = getEntries(keys);
+        for (String key : keys) {
+            current.entries.put(key, entries.get(key));
+        }
+    }
+
+    /**
+     * Releases the entries preloaded by the matching call to {@link #preload(Collection)}.
+     */
+    public void release() {
+        Preloaded current = preloaded.get();
+        if (current != null && --current.depth <= 0) {
+            preloaded.remove();
+        }
+    }
+
+    private void forgetPreloaded(String key) {
+        Preloaded current = preloaded.get();
+        if (current != null) {
+            current.entries.remove(key);
+        }
+    }
+
     @Override
     public void removeEntry(String key) throws IOException {
         LOG.debug("removeEntry({})", key);
+        forgetPreloaded(key);
         impl.removeEntry(key);
-
+        indexTags(key, null);
     }
 
     @Override
-    public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException, HttpCacheUpdateException {
+    public void updateEntry(final String key, final HttpCacheUpdateCallback callback) throws IOException,
+            HttpCacheUpdateException {
         LOG.debug("updateEntry({},{})", key, callback);
-        impl.updateEntry(key, callback);
+        forgetPreloaded(key);
+        final HttpCacheEntry[] updated = new HttpCacheEntry[1];
+        impl.updateEntry(key, new HttpCacheUpdateCallback() {
+            @Override
+            public HttpCacheEntry update(HttpCacheEntry existing) throws IOException {
+                updated[0] = callback.update(existing);
+                return updated[0];
+            }
+        });
+        indexTags(key, updated[0]);
+    }
+
+    /**
+     * Removes all the entries tagged with a given tag.
+     * 
+     * @param tag
+     *            the tag, as sent by the provider in the Surrogate-Key header
+     * @return the number of entries removed
+     * @throws IOException
+     *             if the storage could not be updated
+     */
+    public int purgeTag(String tag) throws IOException {
+        Set<String> keys;
+        synchronized (keyTags) {
+            keys = tagKeys.get(tag);
+            if (keys == null) {
+                return 0;
+            }
+            keys = new HashSet<String>(keys);
+            for (String key : keys) {
+                unindex(key);
+            }
+        }
+        for (String key : keys) {
+            forgetPreloaded(key);
+            impl.removeEntry(key);
+        }
+        LOG.debug("purgeTag({}) removed {} entries", tag, keys.size());
+        return keys.size();
+    }
+
+    /**
+     * @param maxTaggedEntries
+     *            the maximum number of tagged entries, the oldest entries are removed from the cache beyond this number
+     *            so that they can never be served after their tag has been purged
+     */
+    public void setMaxTaggedEntries(int maxTaggedEntries) {
+        this.maxTaggedEntries = maxTaggedEntries;
+    }
+
+    private void indexTags(String key, HttpCacheEntry entry) throws IOException {
+        Set<String> tags = getTags(entry);
+        List<String> evicted = null;
+        synchronized (keyTags) {
+            if (!keyTags.containsKey(key) && tags.isEmpty()) {
+                return;
+            }
+            unindex(key);
+            if (tags.isEmpty()) {
+                return;
+            }
+            keyTags.put(key, tags);
+            for (String tag : tags) {
+                Set<String> keys = tagKeys.get(tag);
+                if (keys == null) {
+                    keys = new HashSet<String>();
+                    tagKeys.put(tag, keys);
+                }
+                keys.add(key);
+            }
+            if (keyTags.size() > maxTaggedEntries) {
+                evicted = new ArrayList<String>();
+                Iterator<String> eldest = keyTags.keySet().iterator();
+                for (int i = keyTags.size(); i > maxTaggedEntries; i--) {
+                    evicted.add(eldest.next());
+                }
+                for (String evictedKey : evicted) {
+                    unindex(evictedKey);
+                }
+            }
+        }
+        if (evicted != null) {
+            for (String evictedKey : evicted) {
+                forgetPreloaded(evictedKey);
+                impl.removeEntry(evictedKey);
+            }
+        }
+    }
+
+    private void unindex(String key) {
+        Set<String> tags = keyTags.remove(key);
+        if (tags == null) {
+            return;
+        }
+        for (String tag : tags) {
+            Set<String> keys = tagKeys.get(tag);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    tagKeys.remove(tag);
+                }
+            }
+        }
+    }
+
+    private static Set<String> getTags(HttpCacheEntry entry) {
+        Set<String> tags = new HashSet<String>();
+        if (entry != null) {
+            for (Header header : entry.getHeaders(H_SURROGATE_KEY)) {
+                for (String tag : header.getValue().split("\\s+")) {
+                    if (!tag.isEmpty()) {
+                        tags.add(tag);
+                    }
+                }
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Tells whether the entries are kept outside of this JVM or serialized, so that reading them is much more expensive
+     * than a lookup in memory. Only such storages are used behind a {@link NearCacheStorage}.
+     * 
+     * @return false by default
+     */
+    public boolean isRemote() {
+        return false;
     }
 
     public void setImpl(HttpCacheStorage impl) {
         this.impl = impl;
     }
 
+    private static final class Preloaded {
+        private final Map<String, HttpCacheEntry> entries = new HashMap<String, HttpCacheEntry>();
+        private int depth;
+    }
+
 }
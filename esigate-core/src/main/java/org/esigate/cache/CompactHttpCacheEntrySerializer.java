@@ -0,0 +1,207 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializationException;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * Binary serialization of {@link HttpCacheEntry} much more compact and faster than java serialization.
+ * <p>
+ * Numbers and lengths are written as variable length integers, strings in UTF-8 and the most common header names as a
+ * single byte. The body is always stored inline.
+ */
+public final class CompactHttpCacheEntrySerializer implements HttpCacheEntrySerializer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int VERSION = 1;
+    /**
+     * Header names encoded as their index. New names must only be appended at the end of the list, otherwise entries
+     * written by another version could not be read.
+     */
+    private static final String[] HEADER_NAMES = {"Date", "Server", "Content-Type", "Content-Length",
+            "Content-Encoding", "Content-Language", "Content-Location", "Cache-Control", "Expires", "Last-Modified",
+            "ETag", "Vary", "Age", "Via", "Pragma", "Set-Cookie", "Location", "Connection", "Keep-Alive",
+            "Transfer-Encoding", "Accept-Ranges", "X-Powered-By", "Surrogate-Control", "Surrogate-Key", "P3P",
+            "X-Cache", "Warning"};
+    private static final Map<String, Integer> HEADER_INDEXES = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < HEADER_NAMES.length; i++) {
+            HEADER_INDEXES.put(HEADER_NAMES[i].toLowerCase(), i);
+        }
+    }
+
+    @Override
+    public void writeTo(HttpCacheEntry entry, OutputStream os) throws IOException {
+        os.write(VERSION);
+        writeLong(os, entry.getRequestDate().getTime());
+        writeLong(os, entry.getResponseDate().getTime());
+        ProtocolVersion protocolVersion = entry.getProtocolVersion();
+        writeString(os, protocolVersion.getProtocol());
+        writeLong(os, protocolVersion.getMajor());
+        writeLong(os, protocolVersion.getMinor());
+        writeLong(os, entry.getStatusCode());
+        writeString(os, entry.getReasonPhrase());
+
+        Header[] headers = entry.getAllHeaders();
+        writeLong(os, headers.length);
+        for (Header header : headers) {
+            Integer index = HEADER_INDEXES.get(header.getName().toLowerCase());
+            if (index != null && HEADER_NAMES[index].equals(header.getName())) {
+                writeLong(os, index + 1);
+            } else {
+                writeLong(os, 0);
+                writeString(os, header.getName());
+            }
+            writeString(os, header.getValue());
+        }
+
+        Map<String, String> variants = entry.getVariantMap();
+        writeLong(os, variants.size());
+        for (Map.Entry<String, String> variant : variants.entrySet()) {
+            writeString(os, variant.getKey());
+            writeString(os, variant.getValue());
+        }
+
+        Resource resource = entry.getResource();
+        if (resource == null) {
+            os.write(0);
+        } else {
+            os.write(1);
+            byte[] body = IOUtils.toByteArray(resource.getInputStream());
+            writeLong(os, body.length);
+            os.write(body);
+        }
+    }
+
+    @Override
+    public HttpCacheEntry readFrom(InputStream is) throws IOException {
+        int version = is.read();
+        if (version != VERSION) {
+            throw new HttpCacheEntrySerializationException("Unsupported cache entry format: " + version);
+        }
+        Date requestDate = new Date(readLong(is));
+        Date responseDate = new Date(readLong(is));
+        ProtocolVersion protocolVersion = new ProtocolVersion(readString(is), readInt(is), readInt(is));
+        BasicStatusLine statusLine = new BasicStatusLine(protocolVersion, readInt(is), readString(is));
+
+        Header[] headers = new Header[readInt(is)];
+        for (int i = 0; i < headers.length; i++) {
+            int index = readInt(is);
+            String name;
+            if (index == 0) {
+                name = readString(is);
+            } else if (index <= HEADER_NAMES.length) {
+                name = HEADER_NAMES[index - 1];
+            } else {
+                throw new HttpCacheEntrySerializationException("Unknown header index: " + index);
+            }
+            headers[i] = new BasicHeader(name, readString(is));
+        }
+
+        int variantCount = readInt(is);
+        Map<String, String> variants = new HashMap<String, String>(variantCount * 2);
+        for (int i = 0; i < variantCount; i++) {
+            variants.put(readString(is), readString(is));
+        }
+
+        Resource resource = null;
+        int hasResource = is.read();
+        if (hasResource == 1) {
+            resource = new HeapResource(readBytes(is, readInt(is)));
+        } else if (hasResource != 0) {
+            throw new HttpCacheEntrySerializationException("Invalid cache entry");
+        }
+        return new HttpCacheEntry(requestDate, responseDate, statusLine, headers, resource, variants);
+    }
+
+    static void writeLong(OutputStream os, long value) throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            os.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        os.write((int) remaining);
+    }
+
+    static long readLong(InputStream is) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = is.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new HttpCacheEntrySerializationException("Invalid variable length integer");
+    }
+
+    private static int readInt(InputStream is) throws IOException {
+        long value = readLong(is);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new HttpCacheEntrySerializationException("Invalid value: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Strings are written as their length + 1 followed by the UTF-8 bytes, 0 meaning null.
+     */
+    static void writeString(OutputStream os, String value) throws IOException {
+        if (value == null) {
+            writeLong(os, 0);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeLong(os, bytes.length + 1L);
+            os.write(bytes);
+        }
+    }
+
+    static String readString(InputStream is) throws IOException {
+        int length = readInt(is);
+        if (length == 0) {
+            return null;
+        }
+        return new String(readBytes(is, length - 1), UTF_8);
+    }
+
+    private static byte[] readBytes(InputStream is, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new DataInputStream(is).readFully(bytes);
+        return bytes;
+    }
+
+}
@@ -19,6 +19,7 @@ import java.util.Properties;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Ehcache;
 
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
 import org.apache.http.impl.client.cache.CacheConfig;
 import org.apache.http.impl.client.cache.ehcache.EhcacheHttpCacheStorage;
 import org.esigate.Parameters;
@@ -38,7 +39,18 @@ public class EhcacheCacheStorage extends CacheStorage {
             ehcache = cacheManager.getEhcache(cacheName);
         }
         CacheConfig cacheConfig = CacheConfigHelper.createCacheConfig(properties);
-        setImpl(new EhcacheHttpCacheStorage(ehcache, cacheConfig));
+        HttpCacheEntrySerializer serializer = CacheConfigHelper.createCacheEntrySerializer(properties);
+        if (serializer == null) {
+            setImpl(new EhcacheHttpCacheStorage(ehcache, cacheConfig));
+        } else {
+            setImpl(new EhcacheHttpCacheStorage(ehcache, cacheConfig, serializer));
+        }
+    }
+
+    @Override
+    public boolean isRemote() {
+        // Entries are serialized, and may be stored on disk or in a cluster
+        return true;
     }
 
 }
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+/**
+ * Approximate access counter for a set of keys (count-min sketch). Counters are limited to 15 and periodically divided
+ * by 2 so that the popularity of old entries decreases over time.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = new int[] {0x97cb3127, 0xb3b8a9e7, 0x6b5ed1d3, 0x2f6a8e0b};
+
+    private final int[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * @param capacity
+     *            the number of entries in the cache
+     */
+    FrequencySketch(int capacity) {
+        int width = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+        this.table = new int[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * Math.max(16, capacity);
+    }
+
+    /**
+     * Records an access to a key.
+     * 
+     * @param hashCode
+     *            the hash code of the key
+     */
+    void increment(int hashCode) {
+        boolean incremented = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hashCode, i);
+            if (table[i][index] < MAX_COUNT) {
+                table[i][index]++;
+                incremented = true;
+            }
+        }
+        if (incremented && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @param hashCode
+     *            the hash code of the key
+     * @return the estimated number of accesses to the key
+     */
+    int frequency(int hashCode) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, table[i][indexOf(hashCode, i)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hashCode, int row) {
+        int hash = (hashCode ^ SEEDS[row]) * SEEDS[row];
+        hash ^= hash >>> 16;
+        return hash & mask;
+    }
+
+    private void reset() {
+        for (int[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        size = size / 2;
+    }
+
+}
@@ -18,20 +18,39 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.OperationTimeoutException;
 
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
 import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.memcached.KeyHashingScheme;
+import org.apache.http.impl.client.cache.memcached.MemcachedCacheEntry;
+import org.apache.http.impl.client.cache.memcached.MemcachedCacheEntryFactory;
 import org.apache.http.impl.client.cache.memcached.MemcachedCacheEntryFactoryImpl;
 import org.apache.http.impl.client.cache.memcached.MemcachedHttpCacheStorage;
+import org.apache.http.impl.client.cache.memcached.MemcachedKeyHashingException;
+import org.apache.http.impl.client.cache.memcached.MemcachedSerializationException;
 import org.apache.http.impl.client.cache.memcached.SHA256KeyHashingScheme;
 import org.esigate.ConfigurationException;
 import org.esigate.Parameters;
 
 public class MemcachedCacheStorage extends CacheStorage {
+    private MemcachedClient memcachedClient;
+    private final KeyHashingScheme keyHashingScheme = new SHA256KeyHashingScheme();
+    private MemcachedCacheEntryFactory cacheEntryFactory;
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
     @Override
     public void init(Properties properties) {
         Collection<String> serverStringList = Parameters.MEMCACHED_SERVERS_PROPERTY.getValue(properties);
@@ -56,14 +75,62 @@ public class MemcachedCacheStorage extends CacheStorage {
                         + "'. Each server must be in format 'host:port'. Port must be an integer.", e);
             }
         }
-        MemcachedClient memcachedClient;
         try {
             memcachedClient = new MemcachedClient(servers);
         } catch (IOException e) {
             throw new ConfigurationException(e);
         }
         CacheConfig cacheConfig = CacheConfigHelper.createCacheConfig(properties);
-        setImpl(new MemcachedHttpCacheStorage(memcachedClient, cacheConfig, new MemcachedCacheEntryFactoryImpl(),
-                new SHA256KeyHashingScheme()));
+        HttpCacheEntrySerializer serializer = CacheConfigHelper.createCacheEntrySerializer(properties);
+        if (serializer == null) {
+            cacheEntryFactory = new MemcachedCacheEntryFactoryImpl();
+        } else {
+            cacheEntryFactory = new SerializingMemcachedCacheEntryFactory(serializer);
+        }
+        setImpl(new MemcachedHttpCacheStorage(memcachedClient, cacheConfig, cacheEntryFactory, keyHashingScheme));
+    }
+
+    /**
+     * Retrieves several entries with a single request to the servers.
+     * 
+     * @param keys
+     *            the keys of the entries
+     * @return the entries found, indexed by key
+     * @throws IOException
+     *             if the servers did not answer in time
+     */
+    @Override
+    public Map<String, HttpCacheEntry> getEntries(Collection<String> keys) throws IOException {
+        Map<String, String> hashedKeys = new HashMap<String, String>();
+        for (String key : keys) {
+            try {
+                hashedKeys.put(keyHashingScheme.hash(key), key);
+            } catch (MemcachedKeyHashingException e) {
+                // Same as a cache miss
+            }
+        }
+        Map<String, Object> values;
+        try {
+            values = memcachedClient.getBulk(hashedKeys.keySet());
+        } catch (OperationTimeoutException e) {
+            throw new IOException(e);
+        }
+        Map<String, HttpCacheEntry> result = new HashMap<String, HttpCacheEntry>();
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            String key = hashedKeys.get(value.getKey());
+            if (key != null && value.getValue() instanceof byte[]) {
+                MemcachedCacheEntry entry = cacheEntryFactory.getUnsetCacheEntry();
+                try {
+                    entry.set((byte[]) value.getValue());
+                } catch (MemcachedSerializationException e) {
+                    continue;
+                }
+                // The entry may belong to another key with the same hash
+                if (key.equals(entry.getStorageKey())) {
+                    result.put(key, entry.getHttpCacheEntry());
+                }
+            }
+        }
+        return result;
     }
 }
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.esigate.Parameters;
+
+/**
+ * Keeps in memory, for a short time, the entries read from another {@link CacheStorage}. Used in front of a remote
+ * cache such as MemCached to avoid a network round trip for the most used entries.
+ * 
+ * @see Parameters#NEAR_CACHE_TTL
+ */
+public class NearCacheStorage extends CacheStorage {
+    private final CacheStorage remote;
+    private NearHttpCacheStorage nearHttpCacheStorage;
+
+    public NearCacheStorage(CacheStorage remote) {
+        this.remote = remote;
+    }
+
+    @Override
+    public void init(Properties properties) {
+        nearHttpCacheStorage =
+                new NearHttpCacheStorage(remote, Parameters.NEAR_CACHE_TTL.getValue(properties),
+                        Parameters.NEAR_CACHE_MAX_ENTRIES.getValue(properties));
+        setImpl(nearHttpCacheStorage);
+    }
+
+    /**
+     * Retrieves several entries, using a single request to the remote cache for all the entries not available locally
+     * when the remote cache supports it.
+     * 
+     * @param keys
+     *            the keys of the entries
+     * @return the entries found, indexed by key
+     * @throws IOException
+     *             if the remote cache could not be reached
+     */
+    @Override
+    public Map<String, HttpCacheEntry> getEntries(Collection<String> keys) throws IOException {
+        return nearHttpCacheStorage.getEntries(keys);
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+
+/**
+ * {@link HttpCacheStorage} that keeps a local copy of the entries of a remote storage for a limited time.
+ * <p>
+ * Entries written, updated or removed through this storage are written to the remote storage and updated locally at the
+ * same time, so the local copy is only out of date when the remote storage has been modified by another instance, and
+ * never longer than the time to live.
+ * <p>
+ * All the entries have the same time to live, so the order in which they are stored is also the order in which they
+ * expire. Eviction only looks at the oldest entries.
+ */
+final class NearHttpCacheStorage implements HttpCacheStorage {
+    private final CacheStorage remote;
+    private final long ttl;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, NearEntry> entries = new ConcurrentHashMap<String, NearEntry>();
+    /** The entries in the order they were stored, including the ones that have been replaced or removed since. */
+    private final Queue<NearEntry> expiryQueue = new ConcurrentLinkedQueue<NearEntry>();
+
+    /**
+     * @param remote
+     *            the remote storage
+     * @param ttl
+     *            time in milliseconds during which an entry is kept locally
+     * @param maxEntries
+     *            maximum number of entries kept locally
+     */
+    NearHttpCacheStorage(CacheStorage remote, long ttl, int maxEntries) {
+        this.remote = remote;
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        entries.remove(key);
+        remote.putEntry(key, entry);
+        store(key, entry);
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(String key) throws IOException {
+        NearEntry nearEntry = entries.get(key);
+        if (nearEntry != null && !nearEntry.isExpired(System.currentTimeMillis())) {
+            return nearEntry.entry;
+        }
+        HttpCacheEntry entry = remote.getEntry(key);
+        if (entry != null) {
+            store(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @see NearCacheStorage#getEntries(Collection)
+     */
+    Map<String, HttpCacheEntry> getEntries(Collection<String> keys) throws IOException {
+        Map<String, HttpCacheEntry> result = new HashMap<String, HttpCacheEntry>();
+        List<String> missing = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            NearEntry nearEntry = entries.get(key);
+            if (nearEntry != null && !nearEntry.isExpired(now)) {
+                result.put(key, nearEntry.entry);
+            } else {
+                missing.add(key);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        Map<String, HttpCacheEntry> loaded = remote.getEntries(missing);
+        for (Map.Entry<String, HttpCacheEntry> entry : loaded.entrySet()) {
+            store(entry.getKey(), entry.getValue());
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    @Override
+    public void removeEntry(String key) throws IOException {
+        entries.remove(key);
+        remote.removeEntry(key);
+    }
+
+    @Override
+    public void updateEntry(String key, final HttpCacheUpdateCallback callback) throws IOException,
+            HttpCacheUpdateException {
+        entries.remove(key);
+        final HttpCacheEntry[] updated = new HttpCacheEntry[1];
+        remote.updateEntry(key, new HttpCacheUpdateCallback() {
+            @Override
+            public HttpCacheEntry update(HttpCacheEntry existing) throws IOException {
+                updated[0] = callback.update(existing);
+                return updated[0];
+            }
+        });
+        if (updated[0] != null) {
+            store(key, updated[0]);
+        }
+    }
+
+    private void store(String key, HttpCacheEntry entry) {
+        long now = System.currentTimeMillis();
+        NearEntry nearEntry = new NearEntry(key, entry, now + ttl);
+        entries.put(key, nearEntry);
+        expiryQueue.add(nearEntry);
+        evict(now);
+    }
+
+    /**
+     * Removes the oldest entries while they are expired or there are too many entries. The queue items that have been
+     * replaced or removed in the meantime are just dropped.
+     */
+    private void evict(long now) {
+        NearEntry oldest = expiryQueue.peek();
+        while (oldest != null && (oldest.isExpired(now) || entries.size() > maxEntries)) {
+            oldest = expiryQueue.poll();
+            if (oldest != null) {
+                entries.remove(oldest.key, oldest);
+            }
+            oldest = expiryQueue.peek();
+        }
+    }
+
+    /**
+     * @return the number of entries kept locally
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private static final class NearEntry {
+        private final String key;
+        private final HttpCacheEntry entry;
+        private final long expires;
+
+        private NearEntry(String key, HttpCacheEntry entry, long expires) {
+            this.key = key;
+            this.entry = entry;
+            this.expires = expires;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+
+}
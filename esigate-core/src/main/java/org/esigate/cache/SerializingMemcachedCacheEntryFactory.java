@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
+import org.apache.http.impl.client.cache.memcached.MemcachedCacheEntry;
+import org.apache.http.impl.client.cache.memcached.MemcachedCacheEntryFactory;
+import org.apache.http.impl.client.cache.memcached.MemcachedSerializationException;
+
+/**
+ * {@link MemcachedCacheEntryFactory} that stores the cache entries with any {@link HttpCacheEntrySerializer}.
+ */
+final class SerializingMemcachedCacheEntryFactory implements MemcachedCacheEntryFactory {
+    private final HttpCacheEntrySerializer serializer;
+
+    SerializingMemcachedCacheEntryFactory(HttpCacheEntrySerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    @Override
+    public MemcachedCacheEntry getMemcachedCacheEntry(String storageKey, HttpCacheEntry entry) {
+        return new SerializedEntry(storageKey, entry);
+    }
+
+    @Override
+    public MemcachedCacheEntry getUnsetCacheEntry() {
+        return new SerializedEntry(null, null);
+    }
+
+    /**
+     * The storage key followed by the serialized entry.
+     */
+    private final class SerializedEntry implements MemcachedCacheEntry {
+        private String storageKey;
+        private HttpCacheEntry httpCacheEntry;
+
+        private SerializedEntry(String storageKey, HttpCacheEntry httpCacheEntry) {
+            this.storageKey = storageKey;
+            this.httpCacheEntry = httpCacheEntry;
+        }
+
+        @Override
+        public byte[] toByteArray() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                CompactHttpCacheEntrySerializer.writeString(out, storageKey);
+                serializer.writeTo(httpCacheEntry, out);
+            } catch (IOException e) {
+                throw new MemcachedSerializationException(e);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public String getStorageKey() {
+            return storageKey;
+        }
+
+        @Override
+        public HttpCacheEntry getHttpCacheEntry() {
+            return httpCacheEntry;
+        }
+
+        @Override
+        public void set(byte[] bytes) {
+            ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+            try {
+                String key = CompactHttpCacheEntrySerializer.readString(in);
+                HttpCacheEntry entry = serializer.readFrom(in);
+                this.storageKey = key;
+                this.httpCacheEntry = entry;
+            } catch (IOException e) {
+                throw new MemcachedSerializationException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+
+/**
+ * In-memory {@link HttpCacheStorage} that can be used concurrently by many threads.
+ * <p>
+ * Keys are spread over several shards. Each shard stores its entries in a {@link ConcurrentHashMap} so that reads never
+ * block. Eviction follows the W-TinyLFU policy: new entries go to a small LRU window, then have to be more frequently
+ * used than the least recently used entry of the main area to get in. The main area is a segmented LRU (probation and
+ * protected). Frequencies are estimated with a {@link FrequencySketch}. Reads update the eviction policy only if the
+ * shard is not locked by another thread, so the policy is approximate under contention but reads are never slowed down.
+ * <p>
+ * {@link #updateEntry(String, HttpCacheUpdateCallback)} is atomic for a given key without locking the whole cache.
+ */
+final class ShardedHttpCacheStorage implements HttpCacheStorage {
+    /** Shards are not made smaller than this. */
+    private static final int MIN_SHARD_SIZE = 32;
+
+    private final Shard[] shards;
+    private final int mask;
+    private final int maxUpdateRetries;
+
+    /**
+     * @param maxEntries
+     *            maximum number of entries in the cache
+     * @param maxUpdateRetries
+     *            number of retries when an entry is updated concurrently
+     */
+    ShardedHttpCacheStorage(int maxEntries, int maxUpdateRetries) {
+        int maxShards = Runtime.getRuntime().availableProcessors() * 4;
+        int shardCount = 1;
+        while (shardCount < maxShards && shardCount * 2 * MIN_SHARD_SIZE <= maxEntries) {
+            shardCount <<= 1;
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            int capacity = maxEntries / shardCount;
+            if (i < maxEntries % shardCount) {
+                capacity++;
+            }
+            shards[i] = new Shard(Math.max(1, capacity));
+        }
+        this.mask = shardCount - 1;
+        this.maxUpdateRetries = maxUpdateRetries;
+    }
+
+    private Shard shardFor(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return shards[hash & mask];
+    }
+
+    @Override
+    public void putEntry(String key, HttpCacheEntry entry) {
+        shardFor(key).put(key, entry);
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(String key) {
+        return shardFor(key).get(key);
+    }
+
+    @Override
+    public void removeEntry(String key) {
+        shardFor(key).remove(key);
+    }
+
+    @Override
+    public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException, HttpCacheUpdateException {
+        Shard shard = shardFor(key);
+        for (int i = 0; i <= maxUpdateRetries; i++) {
+            if (shard.update(key, callback)) {
+                return;
+            }
+        }
+        throw new HttpCacheUpdateException("Failed to update key " + key + " after " + maxUpdateRetries + " retries");
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.entries.size();
+        }
+        return size;
+    }
+
+    /**
+     * A part of the cache with its own eviction policy.
+     */
+    private static final class Shard {
+        private final ConcurrentHashMap<String, HttpCacheEntry> entries =
+                new ConcurrentHashMap<String, HttpCacheEntry>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final FrequencySketch sketch;
+        // Eviction policy, only accessed with the lock held. Maps are used in access order.
+        private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+        private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+        private final LinkedHashMap<String, Boolean> protectedArea =
+                new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+        private final int windowCapacity;
+        private final int mainCapacity;
+        private final int protectedCapacity;
+
+        private Shard(int capacity) {
+            this.sketch = new FrequencySketch(capacity);
+            this.windowCapacity = Math.max(1, capacity / 100);
+            this.mainCapacity = capacity - windowCapacity;
+            this.protectedCapacity = mainCapacity * 4 / 5;
+        }
+
+        private HttpCacheEntry get(String key) {
+            HttpCacheEntry entry = entries.get(key);
+            if (lock.tryLock()) {
+                try {
+                    sketch.increment(key.hashCode());
+                    if (entry != null) {
+                        onAccess(key);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return entry;
+        }
+
+        private void put(String key, HttpCacheEntry entry) {
+            lock.lock();
+            try {
+                if (entries.put(key, entry) == null) {
+                    onInsert(key);
+                } else {
+                    onAccess(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(String key) {
+            lock.lock();
+            try {
+                entries.remove(key);
+                forget(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return true if the update succeeded, false if the entry has been modified concurrently
+         */
+        private boolean update(String key, HttpCacheUpdateCallback callback) throws IOException {
+            HttpCacheEntry existing = entries.get(key);
+            HttpCacheEntry updated = callback.update(existing);
+            if (existing != null && updated != null) {
+                // Lock-free path: replace only if nobody changed the entry in the meantime
+                return entries.replace(key, existing, updated);
+            }
+            lock.lock();
+            try {
+                if (entries.get(key) != existing) {
+                    return false;
+                }
+                if (existing == null) {
+                    if (updated != null) {
+                        entries.put(key, updated);
+                        onInsert(key);
+                    }
+                } else {
+                    entries.remove(key);
+                    forget(key);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void onAccess(String key) {
+            if (window.get(key) != null || protectedArea.get(key) != null) {
+                // Moved to the end of the LRU list by the get
+                return;
+            }
+            if (probation.remove(key) != null) {
+                protectedArea.put(key, Boolean.TRUE);
+                if (protectedArea.size() > protectedCapacity) {
+                    String demoted = eldest(protectedArea);
+                    protectedArea.remove(demoted);
+                    probation.put(demoted, Boolean.TRUE);
+                }
+            }
+        }
+
+        private void onInsert(String key) {
+            window.put(key, Boolean.TRUE);
+            if (window.size() <= windowCapacity) {
+                return;
+            }
+            String candidate = eldest(window);
+            window.remove(candidate);
+            if (probation.size() + protectedArea.size() < mainCapacity) {
+                probation.put(candidate, Boolean.TRUE);
+                return;
+            }
+            String victim = null;
+            if (!probation.isEmpty()) {
+                victim = eldest(probation);
+            } else if (!protectedArea.isEmpty()) {
+                victim = eldest(protectedArea);
+            }
+            if (victim != null && sketch.frequency(candidate.hashCode()) > sketch.frequency(victim.hashCode())) {
+                evict(victim);
+                probation.put(candidate, Boolean.TRUE);
+            } else {
+                evict(candidate);
+            }
+        }
+
+        private void evict(String key) {
+            entries.remove(key);
+            forget(key);
+        }
+
+        private void forget(String key) {
+            if (window.remove(key) == null && probation.remove(key) == null) {
+                protectedArea.remove(key);
+            }
+        }
+
+        private static String eldest(LinkedHashMap<String, Boolean> map) {
+            return map.keySet().iterator().next();
+        }
+    }
+
+}
@@ -15,10 +15,14 @@
 
 package org.esigate.cookie;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.BasicCookieStore;
@@ -30,7 +34,6 @@ import org.esigate.Parameters;
 import org.esigate.UserContext;
 import org.esigate.http.cookie.CookieUtil;
 import org.esigate.impl.DriverRequest;
-import org.esigate.util.UriUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,8 +53,16 @@ import org.slf4j.LoggerFactory;
 public class DefaultCookieManager implements CookieManager {
     private static final Logger LOG = LoggerFactory.getLogger(CookieManager.class);
     private static final String COOKIES_LIST_SESSION_KEY = CookieManager.class.getName() + "#cookies";
-    private Collection<String> discardCookies;
-    private Collection<String> storeCookiesInSession;
+    private Set<String> discardCookies;
+    private Set<String> storeCookiesInSession;
+    private boolean discardAllCookies;
+    private boolean storeAllCookiesInSession;
+    /**
+     * Request attribute containing the browser cookies rewritten for the providers, shared by all the fragments of a
+     * page. Specific to this instance as the configuration can be different for each driver.
+     */
+    private final String rewrittenCookiesAttribute = CookieManager.class.getName() + "#rewritten@"
+            + Integer.toHexString(System.identityHashCode(this));
 
     protected Collection<String> getStoredCookies() {
         return storeCookiesInSession;
@@ -63,9 +74,11 @@ public class DefaultCookieManager implements CookieManager {
     @Override
     public void init(Driver d, Properties properties) {
         // Cookies to store to session
-        this.storeCookiesInSession = Parameters.STORE_COOKIES_IN_SESSION.getValue(properties);
+        this.storeCookiesInSession = new HashSet<String>(Parameters.STORE_COOKIES_IN_SESSION.getValue(properties));
         // Cookies to discard
-        this.discardCookies = Parameters.DISCARD_COOKIES.getValue(properties);
+        this.discardCookies = new HashSet<String>(Parameters.DISCARD_COOKIES.getValue(properties));
+        this.storeAllCookiesInSession = storeCookiesInSession.contains("*");
+        this.discardAllCookies = discardCookies.contains("*");
 
         // Verify configuration
         if (this.storeCookiesInSession.contains("*") && this.storeCookiesInSession.size() > 1) {
@@ -83,12 +96,12 @@ public class DefaultCookieManager implements CookieManager {
     @Override
     public void addCookie(Cookie cookie, DriverRequest originalRequest) {
         String name = cookie.getName();
-        if (discardCookies.contains(name) || (discardCookies.contains("*") && !storeCookiesInSession.contains(name))) {
+        if (discardCookies.contains(name) || (discardAllCookies && !storeCookiesInSession.contains(name))) {
             if (LOG.isInfoEnabled()) {
                 LOG.info("Cookie " + toString(cookie) + " -> discarding");
             }
             // Ignore cookie
-        } else if (storeCookiesInSession.contains(name) || storeCookiesInSession.contains("*")) {
+        } else if (storeAllCookiesInSession || storeCookiesInSession.contains(name)) {
             if (LOG.isInfoEnabled()) {
                 LOG.info("Cookie " + toString(cookie) + " -> storing to session");
             }
@@ -111,45 +124,69 @@ public class DefaultCookieManager implements CookieManager {
 
     @Override
     public List<Cookie> getCookies(DriverRequest originalRequest) {
-        BasicCookieStore cookies = new BasicCookieStore();
         UserContext userContext = originalRequest.getUserContext();
 
         // Read cookies from session
         BasicCookieStore sessionCookies = (BasicCookieStore) userContext.getAttribute(COOKIES_LIST_SESSION_KEY);
-        if (sessionCookies != null) {
-            for (Cookie c : sessionCookies.getCookies()) {
-                cookies.addCookie(c);
-            }
-        }
 
         // Read cookie from request
+        List<Cookie> requestCookies = getRewrittenRequestCookies(originalRequest);
+
+        if (sessionCookies == null) {
+            return requestCookies;
+        }
+        BasicCookieStore cookies = new BasicCookieStore();
+        for (Cookie c : sessionCookies.getCookies()) {
+            cookies.addCookie(c);
+        }
+        for (Cookie c : requestCookies) {
+            cookies.addCookie(c);
+        }
+        return cookies.getCookies();
+    }
+
+    /**
+     * Returns the cookies of the browser that have to be forwarded to the provider. The result only depends on the
+     * incoming request and on the provider host, it is computed once and kept in the incoming request for the next
+     * fragments.
+     */
+    private List<Cookie> getRewrittenRequestCookies(DriverRequest originalRequest) {
         Cookie[] requestCookies = originalRequest.getOriginalRequest().getCookies();
-        if (requestCookies != null) {
-            for (Cookie cookie : requestCookies) {
-                String name = cookie.getName();
-                if (!storeCookiesInSession.contains(name) && !storeCookiesInSession.contains("*")
-                        && !discardCookies.contains(name) && !discardCookies.contains("*")) {
-                    cookies.addCookie(rewriteForServer(cookie, originalRequest));
-                }
+        if (requestCookies == null || requestCookies.length == 0 || discardAllCookies || storeAllCookiesInSession) {
+            return Collections.emptyList();
+        }
+        String providerHost = null;
+        if (!originalRequest.getDriver().getConfiguration().isPreserveHost()) {
+            providerHost = originalRequest.getBaseUrl().getHost();
+        }
+        RewrittenCookies rewritten = originalRequest.getOriginalRequest().getAttribute(rewrittenCookiesAttribute);
+        if (rewritten != null && rewritten.matches(requestCookies, providerHost)) {
+            return rewritten.cookies;
+        }
+        String domain = providerHost;
+        if (domain == null) {
+            domain = originalRequest.getOriginalRequest().getHttpHost().getHostName();
+        }
+        BasicCookieStore cookies = new BasicCookieStore();
+        for (Cookie cookie : requestCookies) {
+            String name = cookie.getName();
+            if (!storeCookiesInSession.contains(name) && !discardCookies.contains(name)) {
+                cookies.addCookie(rewriteForServer(cookie, domain));
             }
         }
-        return cookies.getCookies();
+        rewritten =
+                new RewrittenCookies(requestCookies, providerHost, Collections.unmodifiableList(cookies.getCookies()));
+        originalRequest.getOriginalRequest().setAttribute(rewrittenCookiesAttribute, rewritten);
+        return rewritten.cookies;
     }
 
-    private static Cookie rewriteForServer(Cookie cookie, DriverRequest request) {
+    private static Cookie rewriteForServer(Cookie cookie, String domain) {
         String name = cookie.getName();
         if ("_JSESSIONID".equalsIgnoreCase(name)) {
             name = name.substring(1);
         }
         BasicClientCookie2 httpClientCookie = new BasicClientCookie2(name, cookie.getValue());
         httpClientCookie.setSecure(false);
-        String domain;
-        if (request.getDriver().getConfiguration().isPreserveHost()) {
-            domain = UriUtils.extractHostName(request.getOriginalRequest().getRequestLine().getUri());
-        } else {
-            domain = request.getBaseUrl().getHost();
-        }
-
         httpClientCookie.setDomain(domain);
         httpClientCookie.setPath("/");
         httpClientCookie.setComment(cookie.getComment());
@@ -190,12 +227,12 @@ public class DefaultCookieManager implements CookieManager {
 
         // Rewrite domain
         String domain =
-                rewriteDomain(cookie.getDomain(), request.getBaseUrl().getHost(),
-                        UriUtils.extractHostName(request.getOriginalRequest().getRequestLine().getUri()));
+                rewriteDomain(cookie.getDomain(), request.getBaseUrl().getHost(), request.getOriginalRequest()
+                        .getHttpHost().getHostName());
 
         // Rewrite path
         String originalPath = cookie.getPath();
-        String requestPath = UriUtils.getPath(request.getOriginalRequest().getRequestLine().getUri());
+        String requestPath = request.getOriginalRequest().getPath();
         String path = originalPath;
         if (requestPath == null || !requestPath.startsWith(originalPath)) {
             path = "/";
@@ -276,4 +313,25 @@ public class DefaultCookieManager implements CookieManager {
         }
     }
 
+    /**
+     * Browser cookies rewritten for a provider.
+     */
+    private static final class RewrittenCookies {
+        private final Cookie[] source;
+        private final String providerHost;
+        private final List<Cookie> cookies;
+
+        private RewrittenCookies(Cookie[] source, String providerHost, List<Cookie> cookies) {
+            this.source = source;
+            this.providerHost = providerHost;
+            this.cookies = cookies;
+        }
+
+        private boolean matches(Cookie[] requestCookies, String host) {
+            // IncomingRequest returns a new array each time but the same cookie instances
+            return Arrays.equals(source, requestCookies)
+                    && (providerHost == null ? host == null : providerHost.equals(host));
+        }
+    }
+
 }
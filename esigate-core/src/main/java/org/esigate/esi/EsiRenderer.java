@@ -16,10 +16,14 @@ package org.esigate.esi;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.apache.http.HttpStatus;
+import org.esigate.Driver;
 import org.esigate.HttpErrorPage;
 import org.esigate.Parameters;
 import org.esigate.Renderer;
@@ -41,7 +45,7 @@ public class EsiRenderer implements Renderer, Appendable {
 
     private static final Logger LOG = LoggerFactory.getLogger(EsiRenderer.class);
 
-    private static final Pattern PATTERN = Pattern
+    static final Pattern PATTERN = Pattern
             .compile("(<esi:\\w+((\\s+\\w+(\\s*=\\s*(?:\".*?\"|'.*?'|[^'\">\\s]+))?)+\\s*|\\s*)/?>)|(</esi:[^>]*>)");
     private static final Pattern PATTERN_COMMENTS = Pattern.compile("(<!--esi)|(-->)");
 
@@ -117,9 +121,26 @@ public class EsiRenderer implements Renderer, Appendable {
         parserComments.setHttpRequest(originalRequest);
         parserComments.parse(content, contentWithoutComments);
 
+        // Look up the cache for all the includes at once
+        Map<Driver, Set<String>> includes = null;
+        if (originalRequest.getDriver().getConfiguration().isBulkCacheLookup()) {
+            includes = findIncludes(contentWithoutComments, originalRequest.getDriver());
+            for (Map.Entry<Driver, Set<String>> entry : includes.entrySet()) {
+                entry.getKey().preloadCacheEntries(entry.getValue(), originalRequest.getOriginalRequest());
+            }
+        }
+
         // Pass 2. Process ESI
-        parser.setHttpRequest(originalRequest);
-        parser.parse(contentWithoutComments, this);
+        try {
+            parser.setHttpRequest(originalRequest);
+            parser.parse(contentWithoutComments, this);
+        } finally {
+            if (includes != null) {
+                for (Driver driver : includes.keySet()) {
+                    driver.releaseCacheEntries();
+                }
+            }
+        }
 
         if (name != null && !this.found) {
             throw new HttpErrorPage(HttpStatus.SC_BAD_GATEWAY, "Fragment " + name + " not found", "Fragment " + name
@@ -127,6 +148,20 @@ public class EsiRenderer implements Renderer, Appendable {
         }
     }
 
+    /**
+     * Finds the pages included by the include tags that will always be executed, grouped by provider.
+     */
+    private static Map<Driver, Set<String>> findIncludes(CharSequence content, Driver defaultDriver) {
+        List<String> srcs = new ArrayList<String>();
+        for (String src : IncludeScanner.scan(content)) {
+            InlineCache ic = InlineCache.getFragment(src);
+            if (ic == null || ic.isExpired()) {
+                srcs.add(src);
+            }
+        }
+        return IncludeScanner.groupByProvider(srcs, defaultDriver);
+    }
+
     @Override
     public Appendable append(CharSequence csq) throws IOException {
         if (write) {
@@ -23,6 +23,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Pattern;
 
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.esigate.Driver;
 import org.esigate.DriverFactory;
@@ -31,6 +33,9 @@ import org.esigate.Parameters;
 import org.esigate.Renderer;
 import org.esigate.http.HttpResponseUtils;
 import org.esigate.impl.DriverRequest;
+import org.esigate.instrumentation.PhaseTimer;
+import org.esigate.instrumentation.RenderTrace;
+import org.esigate.instrumentation.TraceSpan;
 import org.esigate.parser.Adapter;
 import org.esigate.parser.ElementType;
 import org.esigate.parser.ParserContext;
@@ -134,7 +139,56 @@ class IncludeElement extends BaseElement {
         String xslt = tag.getAttribute("stylesheet");
 
         DriverRequest httpRequest = ctx.getHttpRequest();
-        List<Renderer> rendererList = new ArrayList<Renderer>();
+        TraceSpan span = RenderTrace.startSpan(httpRequest.getOriginalRequest(), null, src, 0);
+        try {
+            List<Renderer> rendererList = new ArrayList<Renderer>();
+            Pair<Driver, String> target = resolveProvider(src, httpRequest.getDriver());
+            Driver driver = target.getLeft();
+            String page = target.getRight();
+
+            InlineCache ic = InlineCache.getFragment(src);
+            if (ic != null && !ic.isExpired()) {
+                String cache = ic.getFragment();
+                characters(cache, 0, cache.length());
+            } else {
+                EsiRenderer esiRenderer;
+                if (fragment != null) {
+                    esiRenderer = new EsiRenderer(page, fragment);
+                } else {
+                    esiRenderer = new EsiRenderer();
+                }
+                if (fragmentReplacements != null && !fragmentReplacements.isEmpty()) {
+                    esiRenderer.setFragmentsToReplace(fragmentReplacements);
+                }
+                rendererList.add(esiRenderer);
+                if (xpath != null) {
+                    rendererList.add(new XpathRenderer(xpath));
+                } else if (xslt != null) {
+                    rendererList.add(new XsltRenderer(xslt, driver, httpRequest));
+                }
+                PhaseTimer timer = driver.getInstrumentation().getInclude();
+                long start = timer.start();
+                CloseableHttpResponse response =
+                        driver.render(page, httpRequest.getOriginalRequest(),
+                                rendererList.toArray(new Renderer[rendererList.size()]));
+                outAdapter.append(HttpResponseUtils.toString(response));
+                timer.stop(start);
+            }
+        } finally {
+            RenderTrace.endSpan(span);
+        }
+    }
+
+    /**
+     * Finds the provider and the page targeted by an include src attribute.
+     * 
+     * @param src
+     *            the src or alt attribute of the include tag
+     * @param defaultDriver
+     *            the driver to use if no provider is specified
+     * @return the driver and the page url
+     */
+    static Pair<Driver, String> resolveProvider(String src, Driver defaultDriver) {
         Driver driver;
         String page;
 
@@ -142,7 +196,7 @@ class IncludeElement extends BaseElement {
         int idxLegacyPattern = src.indexOf(LEGACY_PROVIDER_PATTERN);
         if (idx < 0 && idxLegacyPattern < 0) {
             page = src;
-            driver = httpRequest.getDriver();
+            driver = defaultDriver;
         } else if (idx >= 0) {
 
             int startIdx = idx + PROVIDER_PATTERN.length();
@@ -168,32 +222,7 @@ class IncludeElement extends BaseElement {
                         src.substring(0, idxLegacyPattern));
             }
         }
-
-        InlineCache ic = InlineCache.getFragment(src);
-        if (ic != null && !ic.isExpired()) {
-            String cache = ic.getFragment();
-            characters(cache, 0, cache.length());
-        } else {
-            EsiRenderer esiRenderer;
-            if (fragment != null) {
-                esiRenderer = new EsiRenderer(page, fragment);
-            } else {
-                esiRenderer = new EsiRenderer();
-            }
-            if (fragmentReplacements != null && !fragmentReplacements.isEmpty()) {
-                esiRenderer.setFragmentsToReplace(fragmentReplacements);
-            }
-            rendererList.add(esiRenderer);
-            if (xpath != null) {
-                rendererList.add(new XpathRenderer(xpath));
-            } else if (xslt != null) {
-                rendererList.add(new XsltRenderer(xslt, driver, httpRequest));
-            }
-            CloseableHttpResponse response =
-                    driver.render(page, httpRequest.getOriginalRequest(),
-                            rendererList.toArray(new Renderer[rendererList.size()]));
-            outAdapter.append(HttpResponseUtils.toString(response));
-        }
+        return new ImmutablePair<Driver, String>(driver, page);
     }
 
     void addFragmentReplacement(String fragment, CharSequence replacement) {
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.esi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.esigate.ConfigurationException;
+import org.esigate.Driver;
+
+/**
+ * Finds the includes of a template without rendering it, so that the included pages can be looked up or fetched in
+ * advance.
+ */
+public final class IncludeScanner {
+    /**
+     * Includes inside these elements may not be executed so they are ignored.
+     */
+    private static final Set<String> CONDITIONAL_ELEMENTS = new HashSet<String>(Arrays.asList("esi:remove",
+            "esi:choose", "esi:except", "esi:include"));
+
+    private IncludeScanner() {
+
+    }
+
+    /**
+     * Finds the src attribute of all the include tags that will always be executed.
+     * 
+     * @param content
+     *            the template, without the esi comments
+     * @return the src attributes, without duplicates, in the order of the template
+     */
+    public static List<String> scan(CharSequence content) {
+        Set<String> result = new LinkedHashSet<String>();
+        int conditionalDepth = 0;
+        Matcher matcher = EsiRenderer.PATTERN.matcher(content);
+        while (matcher.find()) {
+            Tag tag;
+            try {
+                tag = Tag.create(matcher.group());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            String name = tag.getName();
+            if (tag.isClosing()) {
+                if (CONDITIONAL_ELEMENTS.contains(name) && conditionalDepth > 0) {
+                    conditionalDepth--;
+                }
+                continue;
+            }
+            if (conditionalDepth == 0 && "esi:include".equals(name) && tag.getAttribute("src") != null) {
+                result.add(tag.getAttribute("src"));
+            }
+            if (CONDITIONAL_ELEMENTS.contains(name) && !tag.isOpenClosed()) {
+                conditionalDepth++;
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /**
+     * Resolves the provider of each include.
+     * 
+     * @param srcs
+     *            the src attributes of the includes
+     * @param defaultDriver
+     *            the provider used when the src attribute does not specify one
+     * @return the pages to include, grouped by provider. Includes with an unknown provider are ignored, they will
+     *         report the error when they are executed
+     */
+    public static Map<Driver, Set<String>> groupByProvider(Collection<String> srcs, Driver defaultDriver) {
+        Map<Driver, Set<String>> result = new LinkedHashMap<Driver, Set<String>>();
+        for (String src : srcs) {
+            try {
+                Pair<Driver, String> target = IncludeElement.resolveProvider(src, defaultDriver);
+                Set<String> pages = result.get(target.getLeft());
+                if (pages == null) {
+                    pages = new LinkedHashSet<String>();
+                    result.put(target.getLeft(), pages);
+                }
+                pages.add(target.getRight());
+            } catch (ConfigurationException e) {
+                // Unknown provider, the include will report the error
+            }
+        }
+        return result;
+    }
+
+}
@@ -18,7 +18,6 @@ package org.esigate.esi;
 import org.esigate.Parameters;
 import org.esigate.parser.ElementType;
 import org.esigate.parser.ParserContext;
-import org.esigate.util.UriUtils;
 
 class InlineElement extends BaseElement {
 
@@ -50,7 +49,7 @@ class InlineElement extends BaseElement {
 
     @Override
     public void onTagEnd(String tag, ParserContext ctx) {
-        String originalUrl = UriUtils.getPath(ctx.getHttpRequest().getOriginalRequest().getRequestLine().getUri());
+        String originalUrl = ctx.getHttpRequest().getOriginalRequest().getPath();
         InlineCache.storeFragment(uri, null, fetchable, originalUrl, buf.toString());
     }
 }
@@ -15,6 +15,7 @@
 
 package org.esigate.extension.monitoring;
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Slf4jReporter;
@@ -34,6 +35,8 @@ import org.esigate.util.ParameterInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
@@ -49,18 +52,35 @@ import java.util.concurrent.TimeUnit;
  */
 public class Metric implements Extension, IEventListener {
     private static final Logger LOG = LoggerFactory.getLogger(Metric.class);
-    private static final Parameter<Integer> PARAM_METRIC_PERIOD = new ParameterInteger("metricPeriod", 60);
+    static final Parameter<Integer> PARAM_METRIC_PERIOD = new ParameterInteger("metricPeriod", 60);
 
     private MetricRegistry metric = new MetricRegistry();
     private ScheduledReporter reporter;
-    private Driver driver;
+    private String proxyName;
+    private String fetchName;
+    // Meters used for successful requests are resolved once
+    private Meter proxyMeter;
+    private Meter fetchMeter;
+    private final Map<CacheResponseStatus, Meter> fetchCacheMeters = new EnumMap<CacheResponseStatus, Meter>(
+            CacheResponseStatus.class);
 
     @Override
     public void init(Driver d, Properties properties) {
-        this.driver = d;
         LOG.debug("Initialize Metric");
-        driver.getEventManager().register(EventManager.EVENT_PROXY_POST, this);
-        driver.getEventManager().register(EventManager.EVENT_FETCH_POST, this);
+        d.getEventManager().register(EventManager.EVENT_PROXY_POST, this);
+        d.getEventManager().register(EventManager.EVENT_FETCH_POST, this);
+
+        String prefix = MetricRegistry.name(this.getClass().getSimpleName(), d.getConfiguration().getInstanceName());
+        proxyName = MetricRegistry.name(prefix, EventManager.EVENT_PROXY_POST.getId());
+        fetchName = MetricRegistry.name(prefix, EventManager.EVENT_FETCH_POST.getId());
+        proxyMeter = metric.meter(proxyName);
+        fetchMeter = metric.meter(fetchName);
+        for (CacheResponseStatus cacheResponseStatus : CacheResponseStatus.values()) {
+            if (cacheResponseStatus != CacheResponseStatus.CACHE_MISS) {
+                fetchCacheMeters.put(cacheResponseStatus,
+                        metric.meter(MetricRegistry.name(fetchName, cacheResponseStatus.name().toLowerCase())));
+            }
+        }
 
         reporter =
                 Slf4jReporter.forRegistry(this.metric).outputTo(LOG).convertRatesTo(TimeUnit.SECONDS)
@@ -72,16 +92,14 @@ public class Metric implements Extension, IEventListener {
     @Override
     public boolean event(EventDefinition id, Event event) {
 
-        String timerName =
-                MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration().getInstanceName(),
-                        id.getId());
-
         if (EventManager.EVENT_PROXY_POST.equals(id)) {
             if (((ProxyEvent) event).getErrorPage() != null) {
                 String statusCode =
                         String.valueOf(((ProxyEvent) event).getErrorPage().getHttpResponse().getStatusLine()
                                 .getStatusCode());
-                timerName = MetricRegistry.name(timerName, "error", statusCode);
+                metric.meter(MetricRegistry.name(proxyName, "error", statusCode)).mark();
+            } else {
+                proxyMeter.mark();
             }
         } else if (EventManager.EVENT_FETCH_POST.equals(id)) {
             // Retrieve HTTP response status code and cache status
@@ -89,19 +107,23 @@ public class Metric implements Extension, IEventListener {
             int statusCode = e.getHttpResponse().getStatusLine().getStatusCode();
             CacheResponseStatus cacheResponseStatus =
                     (CacheResponseStatus) e.getHttpContext().getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
+            boolean cached = cacheResponseStatus != null && !cacheResponseStatus.equals(CacheResponseStatus.CACHE_MISS);
 
-            // Adding status code when error
             if (statusCode >= HttpStatus.SC_BAD_REQUEST) {
-                timerName = MetricRegistry.name(timerName, "error", String.valueOf(statusCode));
-            }
-            // Adding cache if not MISS
-            if (cacheResponseStatus != null && !cacheResponseStatus.equals(CacheResponseStatus.CACHE_MISS)) {
-                timerName = MetricRegistry.name(timerName, cacheResponseStatus.name().toLowerCase());
+                // Adding status code when error
+                String timerName = MetricRegistry.name(fetchName, "error", String.valueOf(statusCode));
+                // Adding cache if not MISS
+                if (cached) {
+                    timerName = MetricRegistry.name(timerName, cacheResponseStatus.name().toLowerCase());
+                }
+                metric.meter(timerName).mark();
+            } else if (cached) {
+                fetchCacheMeters.get(cacheResponseStatus).mark();
+            } else {
+                fetchMeter.mark();
             }
         }
 
-        metric.meter(timerName).mark();
-
         return true;
     }
 }
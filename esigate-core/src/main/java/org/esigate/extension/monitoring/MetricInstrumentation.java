@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension.monitoring;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Slf4jReporter;
+import com.codahale.metrics.Timer;
+import org.esigate.Driver;
+import org.esigate.instrumentation.AllocationCounter;
+import org.esigate.instrumentation.Instrumentation;
+import org.esigate.instrumentation.PhaseTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This instrumentation records the duration of each processing phase in a timer and, when allocationTracking is
+ * enabled, the bytes allocated by the phases in a histogram named &lt;phase&gt;.allocatedBytes.
+ * <p/>
+ * Result will be logged using SLF4J in INFO level with the same period as {@link Metric}. To enable it, set in driver
+ * properties :
+ * <p/>
+ * <code>instrumentation=org.esigate.extension.monitoring.MetricInstrumentation</code>
+ */
+public class MetricInstrumentation implements Instrumentation, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricInstrumentation.class);
+    /** Number of durations kept by each timer to compute the percentiles. */
+    private static final int RESERVOIR_SIZE = 1028;
+
+    private MetricRegistry metric = new MetricRegistry();
+    private ScheduledReporter reporter;
+    private String prefix;
+
+    @Override
+    public void init(Driver driver, Properties properties) {
+        LOG.debug("Initialize MetricInstrumentation");
+        prefix = MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration().getInstanceName());
+
+        reporter =
+                Slf4jReporter.forRegistry(this.metric).outputTo(LOG).convertRatesTo(TimeUnit.SECONDS)
+                        .convertDurationsTo(TimeUnit.MILLISECONDS).build();
+
+        reporter.start(Metric.PARAM_METRIC_PERIOD.getValue(properties), TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized PhaseTimer getTimer(String name) {
+        String timerName = MetricRegistry.name(prefix, name);
+        Timer existing = metric.getTimers().get(timerName);
+        if (existing == null) {
+            // Unlike the default reservoir, a sliding window does not allocate anything when a duration is recorded
+            existing = metric.register(timerName, new Timer(new SlidingWindowReservoir(RESERVOIR_SIZE)));
+        }
+        final Timer timer = existing;
+        return new PhaseTimer() {
+
+            @Override
+            public void record(long durationNanos) {
+                timer.update(durationNanos, TimeUnit.NANOSECONDS);
+            }
+        };
+    }
+
+    @Override
+    public synchronized AllocationCounter getAllocationCounter(String name) {
+        String histogramName = MetricRegistry.name(prefix, name, "allocatedBytes");
+        Histogram existing = metric.getHistograms().get(histogramName);
+        if (existing == null) {
+            existing = metric.register(histogramName, new Histogram(new SlidingWindowReservoir(RESERVOIR_SIZE)));
+        }
+        final Histogram histogram = existing;
+        return new AllocationCounter() {
+
+            @Override
+            public void record(long bytes) {
+                histogram.update(bytes);
+            }
+        };
+    }
+
+    /**
+     * Stops the reporter thread when the driver is closed, for instance when the configuration is reloaded.
+     */
+    @Override
+    public void close() {
+        reporter.stop();
+    }
+
+}
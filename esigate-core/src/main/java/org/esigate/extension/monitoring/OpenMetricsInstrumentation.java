@@ -0,0 +1,317 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension.monitoring;
+
+import java.io.Closeable;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.esigate.Driver;
+import org.esigate.RequestExecutor;
+import org.esigate.http.ConnectionPool;
+import org.esigate.http.ConnectionPool.RouteStats;
+import org.esigate.http.HttpClientRequestExecutor;
+import org.esigate.instrumentation.AllocationCounter;
+import org.esigate.instrumentation.Instrumentation;
+import org.esigate.instrumentation.PhaseTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This instrumentation records the duration of each processing phase in histograms with fixed buckets that can be
+ * exposed in the OpenMetrics text format, and when allocationTracking is enabled the bytes allocated by the phases in
+ * counters. To enable it, set in driver properties :
+ * <p/>
+ * <code>instrumentation=org.esigate.extension.monitoring.OpenMetricsInstrumentation</code>
+ * <p/>
+ * The metrics of all the drivers are returned by {@link #scrape()}, esigate-server exposes them on its control port.
+ * Recording a value only increments atomic counters and scraping only reads them, so the requests are never blocked by
+ * a scrape.
+ */
+public class OpenMetricsInstrumentation implements Instrumentation, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(OpenMetricsInstrumentation.class);
+
+    /** Upper bounds of the buckets of the histograms, in nanoseconds. */
+    private static final long[] BUCKETS = {1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L, 100000000L,
+            250000000L, 500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L};
+    private static final String[] BUCKET_LABELS = {"0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25",
+            "0.5", "1.0", "2.5", "5.0", "10.0", "+Inf"};
+    private static final double NANOS_PER_SECOND = 1000000000d;
+
+    private static final Family REQUEST_DURATION = new Family("esigate_request_duration_seconds", "histogram",
+            "seconds", "Time spent by the drivers to process the requests.");
+    private static final Family FETCH_DURATION = new Family("esigate_fetch_duration_seconds", "histogram", "seconds",
+            "Time spent fetching responses through the cache, by cache status.");
+    private static final Family CONNECTION_LEASE_DURATION = new Family("esigate_connection_lease_duration_seconds",
+            "histogram", "seconds", "Time spent obtaining a connection to the provider from the pool.");
+    private static final Family PHASE_DURATION = new Family("esigate_phase_duration_seconds", "histogram", "seconds",
+            "Time spent in the other processing phases.");
+    private static final Family CACHE_RESPONSES = new Family("esigate_cache_responses", "counter", null,
+            "Responses fetched, by cache status.");
+    private static final Family ALLOCATED_BYTES = new Family("esigate_phase_allocated_bytes", "counter", "bytes",
+            "Memory allocated by the processing phases.");
+    private static final Family POOL_LEASED = new Family("esigate_connection_pool_leased", "gauge", null,
+            "Connections to the provider in use.");
+    private static final Family POOL_AVAILABLE = new Family("esigate_connection_pool_available", "gauge", null,
+            "Idle connections to the provider kept in the pool.");
+    private static final Family POOL_PENDING = new Family("esigate_connection_pool_pending", "gauge", null,
+            "Requests waiting for a connection to the provider.");
+    private static final Family POOL_MAX = new Family("esigate_connection_pool_max", "gauge", null,
+            "Maximum number of connections to the provider.");
+    private static final Family POOL_LEASES = new Family("esigate_connection_pool_leases", "counter", null,
+            "Connections to the provider requested from the pool.");
+    private static final Family POOL_CONNECTIONS_CREATED = new Family("esigate_connection_pool_connections_created",
+            "counter", null, "Connections to the provider created, the other leases reused a pooled connection.");
+    private static final Family[] HISTOGRAM_FAMILIES = {REQUEST_DURATION, FETCH_DURATION, CONNECTION_LEASE_DURATION,
+            PHASE_DURATION};
+
+    /** The instrumentation of each driver, by instance name, replaced when the configuration is reloaded. */
+    private static final ConcurrentMap<String, OpenMetricsInstrumentation> INSTANCES =
+            new ConcurrentHashMap<String, OpenMetricsInstrumentation>();
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Total> allocations = new ConcurrentHashMap<String, Total>();
+    private String instanceName;
+    private String providerLabel;
+    private Driver driver;
+
+    @Override
+    public void init(Driver driver, Properties properties) {
+        LOG.debug("Initialize OpenMetricsInstrumentation");
+        instanceName = driver.getConfiguration().getInstanceName();
+        providerLabel = "provider=\"" + escape(instanceName) + "\"";
+        this.driver = driver;
+        INSTANCES.put(instanceName, this);
+    }
+
+    @Override
+    public PhaseTimer getTimer(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Family family;
+            String labels;
+            if (REQUEST.equals(name)) {
+                family = REQUEST_DURATION;
+                labels = providerLabel;
+            } else if (name.startsWith(FETCH_PREFIX)) {
+                family = FETCH_DURATION;
+                labels = providerLabel + ",cache=\"" + escape(name.substring(FETCH_PREFIX.length())) + "\"";
+            } else if (BACKEND_CONNECT.equals(name)) {
+                family = CONNECTION_LEASE_DURATION;
+                labels = providerLabel;
+            } else {
+                family = PHASE_DURATION;
+                labels = providerLabel + ",phase=\"" + escape(name) + "\"";
+            }
+            histograms.putIfAbsent(name, new Histogram(family, labels));
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    @Override
+    public AllocationCounter getAllocationCounter(String name) {
+        Total total = allocations.get(name);
+        if (total == null) {
+            allocations.putIfAbsent(name, new Total(providerLabel + ",phase=\"" + escape(name) + "\""));
+            total = allocations.get(name);
+        }
+        return total;
+    }
+
+    /**
+     * Renders the metrics of all the drivers using this instrumentation in the OpenMetrics text format. The terminating
+     * "# EOF" line is not included so that other metric families can be appended.
+     * 
+     * @return the metric families
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : HISTOGRAM_FAMILIES) {
+            family.writeHeader(out);
+            for (OpenMetricsInstrumentation instance : INSTANCES.values()) {
+                for (Histogram histogram : instance.histograms.values()) {
+                    if (histogram.family == family) {
+                        histogram.writeTo(out);
+                    }
+                }
+            }
+        }
+        CACHE_RESPONSES.writeHeader(out);
+        for (OpenMetricsInstrumentation instance : INSTANCES.values()) {
+            for (Histogram histogram : instance.histograms.values()) {
+                if (histogram.family == FETCH_DURATION) {
+                    CACHE_RESPONSES.writeSample(out, "_total", histogram.labels, String.valueOf(histogram.getCount()));
+                }
+            }
+        }
+        ALLOCATED_BYTES.writeHeader(out);
+        for (OpenMetricsInstrumentation instance : INSTANCES.values()) {
+            for (Total total : instance.allocations.values()) {
+                ALLOCATED_BYTES.writeSample(out, "_total", total.labels, String.valueOf(total.value.get()));
+            }
+        }
+        writePoolStats(out);
+        return out.toString();
+    }
+
+    private static void writePoolStats(StringBuilder out) {
+        for (Family family : new Family[] {POOL_LEASED, POOL_AVAILABLE, POOL_PENDING, POOL_MAX, POOL_LEASES,
+                POOL_CONNECTIONS_CREATED}) {
+            family.writeHeader(out);
+            for (OpenMetricsInstrumentation instance : INSTANCES.values()) {
+                ConnectionPool connectionPool = instance.getConnectionPool();
+                if (connectionPool == null) {
+                    continue;
+                }
+                for (RouteStats routeStats : connectionPool.getRouteStats()) {
+                    String labels = instance.providerLabel + ",route=\"" + escape(routeStats.getRoute()) + "\"";
+                    if (family == POOL_LEASED) {
+                        family.writeSample(out, "", labels, String.valueOf(routeStats.getLeased()));
+                    } else if (family == POOL_AVAILABLE) {
+                        family.writeSample(out, "", labels, String.valueOf(routeStats.getAvailable()));
+                    } else if (family == POOL_PENDING) {
+                        family.writeSample(out, "", labels, String.valueOf(routeStats.getPending()));
+                    } else if (family == POOL_MAX) {
+                        family.writeSample(out, "", labels, String.valueOf(routeStats.getMax()));
+                    } else if (family == POOL_LEASES) {
+                        family.writeSample(out, "_total", labels, String.valueOf(routeStats.getLeases()));
+                    } else {
+                        family.writeSample(out, "_total", labels, String.valueOf(routeStats.getConnectionsCreated()));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops reporting the metrics of the driver, unless it has already been replaced by a new instance.
+     */
+    @Override
+    public void close() {
+        INSTANCES.remove(instanceName, this);
+    }
+
+    private ConnectionPool getConnectionPool() {
+        // The request executor is created after the instrumentation
+        RequestExecutor requestExecutor = driver.getRequestExecutor();
+        if (requestExecutor instanceof HttpClientRequestExecutor) {
+            return ((HttpClientRequestExecutor) requestExecutor).getConnectionPool();
+        }
+        return null;
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Name and metadata of a metric family.
+     */
+    private static final class Family {
+        private final String name;
+        private final String header;
+
+        private Family(String name, String type, String unit, String help) {
+            this.name = name;
+            StringBuilder result = new StringBuilder();
+            result.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            if (unit != null) {
+                result.append("# UNIT ").append(name).append(' ').append(unit).append('\n');
+            }
+            result.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            header = result.toString();
+        }
+
+        private void writeHeader(StringBuilder out) {
+            out.append(header);
+        }
+
+        private void writeSample(StringBuilder out, String suffix, String labels, String value) {
+            out.append(name).append(suffix).append('{').append(labels).append("} ").append(value).append('\n');
+        }
+    }
+
+    /**
+     * Histogram with fixed buckets, the count of each bucket is an atomic counter.
+     */
+    private static final class Histogram extends PhaseTimer {
+        private final Family family;
+        private final String labels;
+        private final String[] bucketLabels = new String[BUCKET_LABELS.length];
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_LABELS.length);
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        private Histogram(Family family, String labels) {
+            this.family = family;
+            this.labels = labels;
+            for (int i = 0; i < BUCKET_LABELS.length; i++) {
+                bucketLabels[i] = labels + ",le=\"" + BUCKET_LABELS[i] + "\"";
+            }
+        }
+
+        @Override
+        public void record(long durationNanos) {
+            int i = 0;
+            while (i < BUCKETS.length && durationNanos > BUCKETS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            sumNanos.addAndGet(durationNanos);
+        }
+
+        private long getCount() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        private void writeTo(StringBuilder out) {
+            // The sum may include a value not counted yet in the buckets, the count is always consistent with them
+            double sum = sumNanos.get() / NANOS_PER_SECOND;
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                cumulative += buckets.get(i);
+                family.writeSample(out, "_bucket", bucketLabels[i], String.valueOf(cumulative));
+            }
+            family.writeSample(out, "_count", labels, String.valueOf(cumulative));
+            family.writeSample(out, "_sum", labels, String.valueOf(sum));
+        }
+    }
+
+    /**
+     * Counter of the bytes allocated by a phase.
+     */
+    private static final class Total extends AllocationCounter {
+        private final String labels;
+        private final AtomicLong value = new AtomicLong();
+
+        private Total(String labels) {
+            this.labels = labels;
+        }
+
+        @Override
+        public void record(long bytes) {
+            value.addAndGet(bytes);
+        }
+    }
+
+}
@@ -25,6 +25,7 @@ import org.esigate.extension.Extension;
 import org.esigate.extension.surrogate.CapabilitiesEvent;
 import org.esigate.extension.surrogate.Surrogate;
 import org.esigate.util.Parameter;
+import org.esigate.util.ParameterBoolean;
 import org.esigate.util.ParameterInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,9 +50,14 @@ public class Esi implements Extension, IEventListener {
     // esi_max_threads = 0 -> linear execution
     private static final Parameter<Integer> THREADS = new ParameterInteger("esi_max_threads", 0);
     private static final Parameter<Integer> IDLE = new ParameterInteger("esi_max_idle", 60);
+    // esi_prefetch = true -> fetch includes as soon as the template is available (requires esi_max_threads > 0)
+    private static final Parameter<Boolean> PREFETCH = new ParameterBoolean("esi_prefetch", false);
+    private static final Parameter<Integer> PREFETCH_MAX_TEMPLATES = new ParameterInteger("esi_prefetch_max_templates",
+            1000);
     private int maxThreads;
     private int idle;
     private Executor executor;
+    private Prefetcher prefetcher;
     public static final String[] CAPABILITIES = new String[] {"ESI/1.0", "ESI-Inline/1.0", "X-ESI-Fragment/1.0",
             "X-ESI-Replace/1.0", "X-ESI-XSLT/1.0", "ESIGATE/4.0"};
 
@@ -78,7 +84,11 @@ public class Esi implements Extension, IEventListener {
         }
 
         if (doEsi) {
-            renderEvent.getRenderers().add(new EsiRenderer(this.executor));
+            EsiRenderer esiRenderer = new EsiRenderer(this.executor);
+            if (this.prefetcher != null) {
+                esiRenderer.setPrefetcher(this.prefetcher, null);
+            }
+            renderEvent.getRenderers().add(esiRenderer);
         }
 
         // Continue processing
@@ -116,6 +126,17 @@ public class Esi implements Extension, IEventListener {
                     String.valueOf(this.maxThreads), String.valueOf(this.idle));
         }
 
+        if (PREFETCH.getValue(properties)) {
+            if (this.executor == null) {
+                LOG.warn("ESI prefetch ignored: it requires multi-threaded ESI processing (esi_max_threads > 0).");
+            } else {
+                // Keep at least half of the threads for the includes
+                this.prefetcher =
+                        new Prefetcher(this.executor, PREFETCH_MAX_TEMPLATES.getValue(properties), this.maxThreads / 2);
+                LOG.info("ESI prefetch enabled.");
+            }
+        }
+
     }
 
 }
@@ -16,7 +16,10 @@ package org.esigate.extension.parallelesi;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
@@ -25,8 +28,10 @@ import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import org.apache.http.HttpStatus;
+import org.esigate.Driver;
 import org.esigate.HttpErrorPage;
 import org.esigate.Renderer;
+import org.esigate.esi.IncludeScanner;
 import org.esigate.impl.DriverRequest;
 import org.esigate.parser.future.FutureAppendable;
 import org.esigate.parser.future.FutureAppendableAdapter;
@@ -56,6 +61,10 @@ public class EsiRenderer implements Renderer, FutureAppendable {
      * Key for the executor for future tasks. This is used with parser#setData().
      */
     public static final String DATA_EXECUTOR = "executor";
+    /**
+     * Key for the prefetcher used to start speculative fetches. This is used with parser#setData().
+     */
+    public static final String DATA_PREFETCHER = "prefetcher";
 
     private static final Pattern PATTERN = Pattern
             .compile("(<esi:\\w+((\\s+\\w+(\\s*=\\s*(?:\".*?\"|'.*?'|[^'\">\\s]+))?)+\\s*|\\s*)/?>)|(</esi:[^>]*>)");
@@ -82,6 +91,10 @@ public class EsiRenderer implements Renderer, FutureAppendable {
 
     private Executor executor;
 
+    private Prefetcher prefetcher;
+
+    private String prefetchKey;
+
     public String getName() {
         return name;
     }
@@ -119,6 +132,19 @@ public class EsiRenderer implements Renderer, FutureAppendable {
         this.executor = executor;
     }
 
+    /**
+     * Enables speculative fetching of the includes found in the page.
+     * 
+     * @param prefetcher
+     *            the prefetcher
+     * @param key
+     *            the key used to remember the includes of the page or null if the page cannot be identified
+     */
+    void setPrefetcher(Prefetcher prefetcher, String key) {
+        this.prefetcher = prefetcher;
+        this.prefetchKey = key;
+    }
+
     public Map<String, CharSequence> getFragmentsToReplace() {
         return fragmentsToReplace;
     }
@@ -147,10 +173,34 @@ public class EsiRenderer implements Renderer, FutureAppendable {
 
             contentWithoutCommentsResult = contentWithoutComments.get();
 
+            // Start fetching all the includes we already know about
+            if (this.prefetcher != null) {
+                this.prefetcher.prefetch(originalRequest, this.prefetchKey, contentWithoutCommentsResult);
+            }
+
+            // Look up the cache for all the includes at once. The entries are only available to the current thread,
+            // so this is only done when the includes are processed sequentially.
+            Map<Driver, Set<String>> includes = null;
+            if (this.executor == null && originalRequest.getDriver().getConfiguration().isBulkCacheLookup()) {
+                includes = findIncludes(contentWithoutCommentsResult, originalRequest.getDriver());
+                for (Map.Entry<Driver, Set<String>> entry : includes.entrySet()) {
+                    entry.getKey().preloadCacheEntries(entry.getValue(), originalRequest.getOriginalRequest());
+                }
+            }
+
             // Pass 2. Process ESI
-            parser.setHttpRequest(originalRequest);
-            parser.setData(DATA_EXECUTOR, this.executor);
-            parser.parse(contentWithoutCommentsResult, this);
+            try {
+                parser.setHttpRequest(originalRequest);
+                parser.setData(DATA_EXECUTOR, this.executor);
+                parser.setData(DATA_PREFETCHER, this.prefetcher);
+                parser.parse(contentWithoutCommentsResult, this);
+            } finally {
+                if (includes != null) {
+                    for (Driver driver : includes.keySet()) {
+                        driver.releaseCacheEntries();
+                    }
+                }
+            }
 
             if (name != null && !this.found) {
                 throw new HttpErrorPage(HttpStatus.SC_BAD_GATEWAY, "Fragment " + name + " not found", "Fragment "
@@ -164,6 +214,20 @@ public class EsiRenderer implements Renderer, FutureAppendable {
         }
     }
 
+    /**
+     * Finds the pages included by the include tags that will always be executed, grouped by provider.
+     */
+    private static Map<Driver, Set<String>> findIncludes(CharSequence content, Driver defaultDriver) {
+        List<String> srcs = new ArrayList<String>();
+        for (String src : IncludeScanner.scan(content)) {
+            InlineCache ic = InlineCache.getFragment(src);
+            if (ic == null || ic.isExpired()) {
+                srcs.add(src);
+            }
+        }
+        return IncludeScanner.groupByProvider(srcs, defaultDriver);
+    }
+
     @Override
     public FutureAppendable enqueueAppend(Future<CharSequence> csq) {
         if (this.write) {
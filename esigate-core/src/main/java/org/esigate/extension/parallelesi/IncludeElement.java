@@ -25,10 +25,13 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableFuture;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.esigate.Driver;
 import org.esigate.DriverFactory;
@@ -37,6 +40,9 @@ import org.esigate.Parameters;
 import org.esigate.Renderer;
 import org.esigate.http.HttpResponseUtils;
 import org.esigate.impl.DriverRequest;
+import org.esigate.instrumentation.PhaseTimer;
+import org.esigate.instrumentation.RenderTrace;
+import org.esigate.instrumentation.TraceSpan;
 import org.esigate.parser.future.CharSequenceFuture;
 import org.esigate.parser.future.FutureElement;
 import org.esigate.parser.future.FutureElementType;
@@ -63,10 +69,14 @@ class IncludeElement extends BaseElement {
         private Map<String, CharSequence> fragmentReplacements;
         private Map<String, CharSequence> regexpReplacements;
         private Executor executor;
+        private Prefetcher prefetcher;
+        /** Span of the page containing the include, the task may be run by another thread. */
+        private final TraceSpan parentSpan = RenderTrace.current();
+        private final long created = System.nanoTime();
 
         private IncludeTask(Tag includeTag, String src, String alt, FutureParserContext ctx, FutureElement current,
                 boolean ignoreError, Map<String, CharSequence> fragmentReplacements,
-                Map<String, CharSequence> regexpReplacements, Executor executor) {
+                Map<String, CharSequence> regexpReplacements, Executor executor, Prefetcher prefetcher) {
             this.src = src;
             this.alt = alt;
             this.ctx = ctx;
@@ -76,17 +86,19 @@ class IncludeElement extends BaseElement {
             this.fragmentReplacements = fragmentReplacements;
             this.regexpReplacements = regexpReplacements;
             this.executor = executor;
+            this.prefetcher = prefetcher;
         }
 
         @Override
         public CharSequence call() throws IOException, HttpErrorPage {
             LOG.debug("Starting include task {}", this.src);
+            long queueWait = System.nanoTime() - created;
             StringBuilderWriter sw = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
 
             Exception currentException = null;
             // Handle src
             try {
-                processPage(this.src, includeTag, sw);
+                processPage(this.src, includeTag, sw, queueWait);
             } catch (IOException | HttpErrorPage e) {
                 currentException = e;
             }
@@ -96,7 +108,7 @@ class IncludeElement extends BaseElement {
                 // Reset exception
                 currentException = null;
                 try {
-                    processPage(alt, includeTag, sw);
+                    processPage(alt, includeTag, sw, 0);
                 } catch (IOException | HttpErrorPage e) {
                     currentException = e;
                 }
@@ -128,74 +140,104 @@ class IncludeElement extends BaseElement {
             return result;
         }
 
-        private void processPage(String srcOrAlt, Tag tag, Appendable out) throws IOException, HttpErrorPage {
+        private void processPage(String srcOrAlt, Tag tag, Appendable out, long queueWait) throws IOException,
+                HttpErrorPage {
             String fragment = tag.getAttribute("fragment");
             String xpath = tag.getAttribute("xpath");
             String xslt = tag.getAttribute("stylesheet");
 
             DriverRequest httpRequest = ctx.getHttpRequest();
-            List<Renderer> rendererList = new ArrayList<Renderer>();
-            Driver driver;
-            String page;
-
-            int idx = srcOrAlt.indexOf(PROVIDER_PATTERN);
-            int idxLegacyPattern = srcOrAlt.indexOf(LEGACY_PROVIDER_PATTERN);
-            if (idx < 0 && idxLegacyPattern < 0) {
-                page = srcOrAlt;
-                driver = httpRequest.getDriver();
-            } else if (idx >= 0) {
-                int startIdx = idx + PROVIDER_PATTERN.length();
-                int endIndex = srcOrAlt.indexOf("})", startIdx);
-                String provider = srcOrAlt.substring(startIdx, endIndex);
-                page = srcOrAlt.substring(endIndex + "})".length());
-                driver = DriverFactory.getInstance(provider);
-                if (LOG.isWarnEnabled() && idx > 0) {
-                    LOG.warn("Invalid src attribute : [{}], src should start with [{}{}})]."
-                            + " First characters [{}] have been ignored", srcOrAlt, PROVIDER_PATTERN, provider,
-                            srcOrAlt.substring(0, idx));
-                }
-            } else {
-                int startIdx = idxLegacyPattern + PROVIDER_PATTERN.length();
-                int endIndex = srcOrAlt.indexOf("})", startIdx);
-                String provider = srcOrAlt.substring(startIdx, endIndex);
-                page = srcOrAlt.substring(endIndex + "})".length());
-                driver = DriverFactory.getInstance(provider);
-                if (LOG.isWarnEnabled() && idxLegacyPattern > 0) {
-                    LOG.warn("Invalid src attribute : [{}], src should start with [{}{}})]."
-                            + " First characters [{}] have been ignored", srcOrAlt, PROVIDER_PATTERN, provider,
-                            srcOrAlt.substring(0, idxLegacyPattern));
-                }
-            }
+            TraceSpan span = RenderTrace.startSpan(httpRequest.getOriginalRequest(), parentSpan, srcOrAlt, queueWait);
+            try {
+                List<Renderer> rendererList = new ArrayList<Renderer>();
+                Pair<Driver, String> target = resolveProvider(srcOrAlt, httpRequest.getDriver());
+                Driver driver = target.getLeft();
+                String page = target.getRight();
 
-            InlineCache ic = InlineCache.getFragment(srcOrAlt);
-            if (ic != null && !ic.isExpired()) {
-                String cache = ic.getFragment();
-                out.append(cache);
-            } else {
-                EsiRenderer esiRenderer;
-                if (fragment != null) {
-                    esiRenderer = new EsiRenderer(page, fragment, executor);
+                InlineCache ic = InlineCache.getFragment(srcOrAlt);
+                if (ic != null && !ic.isExpired()) {
+                    String cache = ic.getFragment();
+                    out.append(cache);
                 } else {
-                    esiRenderer = new EsiRenderer(executor);
+                    EsiRenderer esiRenderer;
+                    if (fragment != null) {
+                        esiRenderer = new EsiRenderer(page, fragment, executor);
+                    } else {
+                        esiRenderer = new EsiRenderer(executor);
+                    }
+                    if (fragmentReplacements != null && !fragmentReplacements.isEmpty()) {
+                        esiRenderer.setFragmentsToReplace(fragmentReplacements);
+                    }
+                    if (prefetcher != null) {
+                        esiRenderer.setPrefetcher(prefetcher, Prefetcher.key(driver, page));
+                        // Wait for a speculative fetch of the same page if any
+                        prefetcher.await(httpRequest.getOriginalRequest(), driver, page);
+                    }
+                    rendererList.add(esiRenderer);
+                    if (xpath != null) {
+                        rendererList.add(new XpathRenderer(xpath));
+                    } else if (xslt != null) {
+                        rendererList.add(new XsltRenderer(xslt, driver, httpRequest));
+                    }
+                    PhaseTimer timer = driver.getInstrumentation().getInclude();
+                    long start = timer.start();
+                    CloseableHttpResponse response =
+                            driver.render(page, httpRequest.getOriginalRequest(),
+                                    rendererList.toArray(new Renderer[rendererList.size()]));
+                    out.append(HttpResponseUtils.toString(response));
+                    timer.stop(start);
                 }
-                if (fragmentReplacements != null && !fragmentReplacements.isEmpty()) {
-                    esiRenderer.setFragmentsToReplace(fragmentReplacements);
-                }
-                rendererList.add(esiRenderer);
-                if (xpath != null) {
-                    rendererList.add(new XpathRenderer(xpath));
-                } else if (xslt != null) {
-                    rendererList.add(new XsltRenderer(xslt, driver, httpRequest));
-                }
-                CloseableHttpResponse response =
-                        driver.render(page, httpRequest.getOriginalRequest(),
-                                rendererList.toArray(new Renderer[rendererList.size()]));
-                out.append(HttpResponseUtils.toString(response));
+            } finally {
+                RenderTrace.endSpan(span);
             }
         }
 
     }
 
+    /**
+     * Finds the provider and the page targeted by an include src attribute.
+     * 
+     * @param srcOrAlt
+     *            the src or alt attribute of the include tag
+     * @param defaultDriver
+     *            the driver to use if no provider is specified
+     * @return the driver and the page url
+     */
+    static Pair<Driver, String> resolveProvider(String srcOrAlt, Driver defaultDriver) {
+        Driver driver;
+        String page;
+
+        int idx = srcOrAlt.indexOf(PROVIDER_PATTERN);
+        int idxLegacyPattern = srcOrAlt.indexOf(LEGACY_PROVIDER_PATTERN);
+        if (idx < 0 && idxLegacyPattern < 0) {
+            page = srcOrAlt;
+            driver = defaultDriver;
+        } else if (idx >= 0) {
+            int startIdx = idx + PROVIDER_PATTERN.length();
+            int endIndex = srcOrAlt.indexOf("})", startIdx);
+            String provider = srcOrAlt.substring(startIdx, endIndex);
+            page = srcOrAlt.substring(endIndex + "})".length());
+            driver = DriverFactory.getInstance(provider);
+            if (LOG.isWarnEnabled() && idx > 0) {
+                LOG.warn("Invalid src attribute : [{}], src should start with [{}{}})]."
+                        + " First characters [{}] have been ignored", srcOrAlt, PROVIDER_PATTERN, provider,
+                        srcOrAlt.substring(0, idx));
+            }
+        } else {
+            int startIdx = idxLegacyPattern + PROVIDER_PATTERN.length();
+            int endIndex = srcOrAlt.indexOf("})", startIdx);
+            String provider = srcOrAlt.substring(startIdx, endIndex);
+            page = srcOrAlt.substring(endIndex + "})".length());
+            driver = DriverFactory.getInstance(provider);
+            if (LOG.isWarnEnabled() && idxLegacyPattern > 0) {
+                LOG.warn("Invalid src attribute : [{}], src should start with [{}{}})]."
+                        + " First characters [{}] have been ignored", srcOrAlt, PROVIDER_PATTERN, provider,
+                        srcOrAlt.substring(0, idxLegacyPattern));
+            }
+        }
+        return new ImmutablePair<Driver, String>(driver, page);
+    }
+
     public static final FutureElementType TYPE = new BaseElementType("<esi:include", "</esi:include") {
         @Override
         public IncludeElement newInstance() {
@@ -229,10 +271,11 @@ class IncludeElement extends BaseElement {
         FutureElement current = ctx.getCurrent();
         // write accumulated data into parent
         Executor executor = (Executor) ctx.getData(EsiRenderer.DATA_EXECUTOR);
+        Prefetcher prefetcher = (Prefetcher) ctx.getData(EsiRenderer.DATA_PREFETCHER);
         Future<CharSequence> result = null;
         IncludeTask task =
                 new IncludeTask(includeTag, src, alt, ctx, current, ignoreError, fragmentReplacements,
-                        regexpReplacements, executor);
+                        regexpReplacements, executor, prefetcher);
         if (executor == null) {
             // No threads.
             CharSequence content = task.call();
@@ -240,8 +283,14 @@ class IncludeElement extends BaseElement {
         } else {
             // Start processing in a new thread.
             RunnableFuture<CharSequence> r = new FutureTask<CharSequence>(task);
-            executor.execute(r);
-            result = r;
+            try {
+                executor.execute(r);
+                result = r;
+            } catch (RejectedExecutionException e) {
+                // All the threads are busy, render in the current thread.
+                LOG.debug("No thread available for include {}, processing it in the current thread", src);
+                result = new CharSequenceFuture(task.call());
+            }
         }
         ctx.getCurrent().characters(result);
     }
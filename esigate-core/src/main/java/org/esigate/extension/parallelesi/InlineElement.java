@@ -22,7 +22,6 @@ import java.util.concurrent.Future;
 import org.esigate.parser.future.FutureElementType;
 import org.esigate.parser.future.FutureParserContext;
 import org.esigate.parser.future.StringBuilderFutureAppendable;
-import org.esigate.util.UriUtils;
 
 class InlineElement extends BaseElement {
 
@@ -54,7 +53,7 @@ class InlineElement extends BaseElement {
 
     @Override
     public void onTagEnd(String tag, FutureParserContext ctx) throws IOException {
-        String originalUrl = UriUtils.getPath(ctx.getHttpRequest().getOriginalRequest().getRequestLine().getUri());
+        String originalUrl = ctx.getHttpRequest().getOriginalRequest().getPath();
         try {
             InlineCache.storeFragment(uri, null, fetchable, originalUrl, buf.get().toString());
         } catch (ExecutionException e) {
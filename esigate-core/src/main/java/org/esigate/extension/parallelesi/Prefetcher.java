@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.extension.parallelesi;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.esigate.ConfigurationException;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.esi.IncludeScanner;
+import org.esigate.http.IncomingRequest;
+import org.esigate.impl.DriverRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts fetching included pages as soon as a template is available instead of waiting for the parser to reach the
+ * include tags.
+ * <p>
+ * The includes found in each included page are remembered so that the next time this page is included, its own includes
+ * can be fetched at the same time as the page itself instead of waiting for it to be retrieved.
+ * <p>
+ * Fetched pages are stored in the incoming request by {@link Driver#prefetch(String, IncomingRequest)} and then reused
+ * by the include tasks.
+ * <p>
+ * Prefetches share the thread pool with the include tasks, so the number of prefetches running at the same time is
+ * limited in order to always leave threads for the includes.
+ */
+final class Prefetcher {
+    private static final Logger LOG = LoggerFactory.getLogger(Prefetcher.class);
+    private static final String IN_FLIGHT_ATTRIBUTE = Prefetcher.class.getName() + "#inFlight";
+
+    private final Executor executor;
+    private final Semaphore permits;
+    private final Map<String, List<String>> templates;
+
+    /**
+     * @param executor
+     *            the executor used for background fetches
+     * @param maxTemplates
+     *            maximum number of pages for which the includes are remembered
+     * @param maxPrefetches
+     *            maximum number of prefetches running at the same time
+     */
+    Prefetcher(Executor executor, final int maxTemplates, int maxPrefetches) {
+        this.executor = executor;
+        this.permits = new Semaphore(maxPrefetches);
+        this.templates = Collections.synchronizedMap(new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                return size() > maxTemplates;
+            }
+        });
+    }
+
+    /**
+     * The key identifying a page.
+     * 
+     * @param driver
+     *            the provider
+     * @param page
+     *            the page url
+     * @return the key
+     */
+    static String key(Driver driver, String page) {
+        return driver.getConfiguration().getInstanceName() + ":" + page;
+    }
+
+    /**
+     * Scans a template for includes, remembers them and starts fetching them.
+     * 
+     * @param request
+     *            the request for the template
+     * @param templateKey
+     *            the key of the template or null if it should not be remembered
+     * @param content
+     *            the template
+     */
+    void prefetch(DriverRequest request, String templateKey, CharSequence content) {
+        List<String> includes = IncludeScanner.scan(content);
+        if (templateKey != null) {
+            templates.put(templateKey, includes);
+        }
+        for (String src : includes) {
+            prefetch(request.getOriginalRequest(), request.getDriver(), src);
+        }
+    }
+
+    /**
+     * Waits for the speculative fetch of a page to complete if it has been started.
+     * 
+     * @param incomingRequest
+     *            the incoming request
+     * @param driver
+     *            the provider
+     * @param page
+     *            the page url
+     */
+    void await(IncomingRequest incomingRequest, Driver driver, String page) {
+        ConcurrentMap<String, Future<?>> inFlight = incomingRequest.getAttribute(IN_FLIGHT_ATTRIBUTE);
+        if (inFlight == null) {
+            return;
+        }
+        Future<?> future = inFlight.get(key(driver, page));
+        if (future != null) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // The page will be requested again and the error handled by the include
+                LOG.debug("Prefetch failed for {}", page, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the includes remembered for a page.
+     * 
+     * @param templateKey
+     *            the key of the page
+     * @return the src attribute of the includes or null if the page is unknown
+     */
+    List<String> getIncludes(String templateKey) {
+        return templates.get(templateKey);
+    }
+
+    private void prefetch(final IncomingRequest incomingRequest, Driver defaultDriver, String src) {
+        InlineCache ic = InlineCache.getFragment(src);
+        if (ic != null && !ic.isExpired()) {
+            return;
+        }
+        Pair<Driver, String> target;
+        try {
+            target = IncludeElement.resolveProvider(src, defaultDriver);
+        } catch (ConfigurationException e) {
+            // Unknown provider, the include will report the error
+            return;
+        }
+        final Driver driver = target.getLeft();
+        final String page = target.getRight();
+        String key = key(driver, page);
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, HttpErrorPage {
+                try {
+                    LOG.debug("Prefetching {}", page);
+                    driver.prefetch(page, incomingRequest);
+                    return null;
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+        ConcurrentMap<String, Future<?>> inFlight = getInFlight(incomingRequest);
+        if (inFlight.containsKey(key)) {
+            // Already started
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            // Too many prefetches, the page will be fetched when the include is executed
+            return;
+        }
+        if (inFlight.putIfAbsent(key, task) != null) {
+            permits.release();
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // No thread available, the page will be fetched when the include is executed
+            inFlight.remove(key, task);
+            permits.release();
+            return;
+        }
+        List<String> nestedIncludes = templates.get(key);
+        if (nestedIncludes != null) {
+            for (String nestedSrc : nestedIncludes) {
+                prefetch(incomingRequest, driver, nestedSrc);
+            }
+        }
+    }
+
+    private static ConcurrentMap<String, Future<?>> getInFlight(IncomingRequest incomingRequest) {
+        synchronized (incomingRequest) {
+            ConcurrentMap<String, Future<?>> inFlight = incomingRequest.getAttribute(IN_FLIGHT_ATTRIBUTE);
+            if (inFlight == null) {
+                inFlight = new ConcurrentHashMap<String, Future<?>>();
+                incomingRequest.setAttribute(IN_FLIGHT_ATTRIBUTE, inFlight);
+            }
+            return inFlight;
+        }
+    }
+
+}
@@ -26,11 +26,14 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.esigate.Driver;
 import org.esigate.Parameters;
+import org.esigate.cache.CacheStorage;
 import org.esigate.events.Event;
 import org.esigate.events.EventDefinition;
 import org.esigate.events.EventManager;
@@ -111,6 +114,8 @@ public class Surrogate implements Extension, IEventListener {
 
     private static final String H_SURROGATE_CAPABILITIES = "Surrogate-Capabilities";
 
+    private static final String H_SURROGATE_KEY = CacheStorage.H_SURROGATE_KEY;
+
     private static final Logger LOG = LoggerFactory.getLogger(Surrogate.class);
 
     /**
@@ -145,6 +150,19 @@ public class Surrogate implements Extension, IEventListener {
     public static final EventDefinition EVENT_SURROGATE_CAPABILITIES = new EventDefinition(
             "org.esigate.surrogate.capabilities", EventDefinition.TYPE_DEFAULT);
     private static final String CAP_SURROGATE = "Surrogate/1.0";
+    /**
+     * Maximum number of distinct header values memoized by each cache.
+     */
+    private static final int MAX_MEMOIZED_HEADERS = 256;
+    /**
+     * Default Surrogate-Control header by surrogate id and Surrogate-Capabilities header value.
+     */
+    private final ConcurrentMap<String, DefaultControl> defaultControls =
+            new ConcurrentHashMap<String, DefaultControl>();
+    /**
+     * Parsed Surrogate-Control header by surrogate id and header value.
+     */
+    private final ConcurrentMap<String, ParsedControl> parsedControls = new ConcurrentHashMap<String, ParsedControl>();
 
     @Override
     public void init(Driver driver, Properties properties) {
@@ -242,10 +260,13 @@ public class Surrogate implements Extension, IEventListener {
 
             if (e.getResponse() != null) {
                 processSurrogateControlContent(e.getResponse(), e.getOriginalRequest().containsHeader(H_X_SURROGATE));
+                processSurrogateKey(e.getResponse(), e.getOriginalRequest().containsHeader(H_X_SURROGATE));
                 removeVarySurrogateCapabilities(e.getResponse());
             } else if (e.getErrorPage() != null) {
                 processSurrogateControlContent(e.getErrorPage().getHttpResponse(), e.getOriginalRequest()
                         .containsHeader(H_X_SURROGATE));
+                processSurrogateKey(e.getErrorPage().getHttpResponse(),
+                        e.getOriginalRequest().containsHeader(H_X_SURROGATE));
                 removeVarySurrogateCapabilities(e.getErrorPage().getHttpResponse());
             }
 
@@ -283,79 +304,137 @@ public class Surrogate implements Extension, IEventListener {
 
         String ourSurrogateId = e.getHttpRequest().getFirstHeader(H_X_SURROGATE_ID).getValue();
 
-        SurrogateCapabilitiesHeader surrogateCapabilitiesHeader =
-                SurrogateCapabilitiesHeader.fromHeaderValue(e.getHttpRequest().getFirstHeader(H_SURROGATE_CAPABILITIES)
-                        .getValue());
+        if (!e.getHttpResponse().containsHeader(H_SURROGATE_CONTROL)) {
+            // Ensure another proxy can process the request
+            String capabilitiesHeader = e.getHttpRequest().getFirstHeader(H_SURROGATE_CAPABILITIES).getValue();
+            String key = ourSurrogateId + ' ' + capabilitiesHeader;
+            DefaultControl defaultControl = defaultControls.get(key);
+            if (defaultControl == null) {
+                defaultControl = new DefaultControl(computeDefaultControl(capabilitiesHeader, ourSurrogateId));
+                memoize(defaultControls, key, defaultControl);
+            }
+            if (defaultControl.value != null) {
+                e.getHttpResponse().addHeader(H_SURROGATE_CONTROL, defaultControl.value);
+            }
+        }
 
-        if (!e.getHttpResponse().containsHeader(H_SURROGATE_CONTROL)
-                && surrogateCapabilitiesHeader.getSurrogates().size() > 1) {
+        if (!e.getHttpResponse().containsHeader(H_SURROGATE_CONTROL)) {
+            return;
+        }
 
-            // Ensure another proxy can process the request
+        // If there is a Surrogate-Control header, add a Vary header to ensure content is not reuse when using a
+        // different set of Surrogates
+        e.getHttpResponse().addHeader("Vary", H_SURROGATE_CAPABILITIES);
+
+        String controlHeader = e.getHttpResponse().getFirstHeader(H_SURROGATE_CONTROL).getValue();
+        String key = ourSurrogateId + ' ' + controlHeader;
+        ParsedControl parsedControl = parsedControls.get(key);
+        if (parsedControl == null) {
+            parsedControl = parseControl(controlHeader, ourSurrogateId);
+            memoize(parsedControls, key, parsedControl);
+        }
 
-            LinkedHashMap<String, List<String>> targetCapabilities = new LinkedHashMap<String, List<String>>();
-            initSurrogateMap(targetCapabilities, surrogateCapabilitiesHeader);
-            for (String c : this.capabilities) {
+        e.getHttpResponse().setHeader(H_X_ENABLED_CAPABILITIES, parsedControl.enabledCapabilities);
+        e.getHttpResponse().setHeader(H_X_NEXT_SURROGATE_CONTROL, parsedControl.nextSurrogateControl);
 
-                // Ignore Surrogate/1.0
-                if ("Surrogate/1.0".equals(c)) {
-                    continue;
-                }
+        // If cache control must be updated.
+        if (parsedControl.cacheControl != null) {
+            MoveResponseHeader.moveHeader(e.getHttpResponse(), "Cache-Control", H_X_ORIGINAL_CACHE_CONTROL);
+            e.getHttpResponse().setHeader("Cache-Control", parsedControl.cacheControl);
+        }
+    }
+
+    private static <T> void memoize(ConcurrentMap<String, T> cache, String key, T value) {
+        if (cache.size() >= MAX_MEMOIZED_HEADERS) {
+            // Header values are not supposed to vary much, do not let unexpected values fill the memory
+            cache.clear();
+        }
+        cache.put(key, value);
+    }
+
+    /**
+     * Generates the Surrogate-Control header targeting each capability to the first surrogate supporting it.
+     * 
+     * @param capabilitiesHeader
+     *            the Surrogate-Capabilities header of the request
+     * @param ourSurrogateId
+     *            the current surrogate id.
+     * @return the header value or null if there is no other surrogate
+     */
+    private String computeDefaultControl(String capabilitiesHeader, String ourSurrogateId) {
+        SurrogateCapabilitiesHeader surrogateCapabilitiesHeader =
+                SurrogateCapabilitiesHeader.fromHeaderValue(capabilitiesHeader);
+
+        if (surrogateCapabilitiesHeader.getSurrogates().size() <= 1) {
+            return null;
+        }
 
-                String firstSurrogate = getFirstSurrogateFor(surrogateCapabilitiesHeader, c);
+        LinkedHashMap<String, List<String>> targetCapabilities = new LinkedHashMap<String, List<String>>();
+        initSurrogateMap(targetCapabilities, surrogateCapabilitiesHeader);
+        for (String c : this.capabilities) {
 
-                // firstSurrogate cannot be null since we are the last surrogate.
-                targetCapabilities.get(firstSurrogate).add(c);
+            // Ignore Surrogate/1.0
+            if ("Surrogate/1.0".equals(c)) {
+                continue;
             }
 
-            fixSurrogateMap(targetCapabilities, ourSurrogateId);
+            String firstSurrogate = getFirstSurrogateFor(surrogateCapabilitiesHeader, c);
 
-            StringBuilder sb = new StringBuilder();
-            boolean firstDevice = true;
-            for (String device : targetCapabilities.keySet()) {
-                if (targetCapabilities.get(device).size() == 0) {
-                    continue;
-                }
+            // firstSurrogate cannot be null since we are the last surrogate.
+            targetCapabilities.get(firstSurrogate).add(c);
+        }
 
-                if (!firstDevice) {
-                    sb.append(", ");
-                } else {
-                    firstDevice = false;
-                }
+        fixSurrogateMap(targetCapabilities, ourSurrogateId);
 
-                sb.append("content=\"");
-                boolean firstCap = true;
-                for (String cap : targetCapabilities.get(device)) {
-                    if (!firstCap) {
-                        sb.append(" ");
-                    } else {
-                        firstCap = false;
+        StringBuilder sb = new StringBuilder();
+        boolean firstDevice = true;
+        for (String device : targetCapabilities.keySet()) {
+            if (targetCapabilities.get(device).size() == 0) {
+                continue;
+            }
 
-                    }
-                    sb.append(cap);
+            if (!firstDevice) {
+                sb.append(", ");
+            } else {
+                firstDevice = false;
+            }
+
+            sb.append("content=\"");
+            boolean firstCap = true;
+            for (String cap : targetCapabilities.get(device)) {
+                if (!firstCap) {
+                    sb.append(" ");
+                } else {
+                    firstCap = false;
 
                 }
-                sb.append("\";");
-                sb.append(device);
+                sb.append(cap);
 
             }
+            sb.append("\";");
+            sb.append(device);
 
-            e.getHttpResponse().addHeader(H_SURROGATE_CONTROL, sb.toString());
         }
 
-        if (!e.getHttpResponse().containsHeader(H_SURROGATE_CONTROL)) {
-            return;
-        }
-
-        // If there is a Surrogate-Control header, add a Vary header to ensure content is not reuse when using a
-        // different set of Surrogates
-        e.getHttpResponse().addHeader("Vary", H_SURROGATE_CAPABILITIES);
+        return sb.toString();
+    }
 
+    /**
+     * Splits the Surrogate-Control header between the capabilities processed by this instance and the directives to
+     * forward to the next surrogate.
+     * 
+     * @param controlHeader
+     *            the Surrogate-Control header of the response
+     * @param ourSurrogateId
+     *            the current surrogate id.
+     * @return the result of the parsing
+     */
+    private ParsedControl parseControl(String controlHeader, String ourSurrogateId) {
         List<String> enabledCapabilities = new ArrayList<String>();
         List<String> remainingCapabilities = new ArrayList<String>();
         List<String> newSurrogateControlL = new ArrayList<String>();
         List<String> newCacheContent = new ArrayList<String>();
 
-        String controlHeader = e.getHttpResponse().getFirstHeader(H_SURROGATE_CONTROL).getValue();
         String[] control = split(controlHeader, ",");
 
         for (String directiveAndTarget : control) {
@@ -408,14 +487,11 @@ public class Surrogate implements Extension, IEventListener {
             }
         }
 
-        e.getHttpResponse().setHeader(H_X_ENABLED_CAPABILITIES, join(enabledCapabilities, " "));
-        e.getHttpResponse().setHeader(H_X_NEXT_SURROGATE_CONTROL, join(newSurrogateControlL, ", "));
-
-        // If cache control must be updated.
+        String cacheControl = null;
         if (newCacheContent.size() > 0) {
-            MoveResponseHeader.moveHeader(e.getHttpResponse(), "Cache-Control", H_X_ORIGINAL_CACHE_CONTROL);
-            e.getHttpResponse().setHeader("Cache-Control", join(newCacheContent, ", "));
+            cacheControl = join(newCacheContent, ", ");
         }
+        return new ParsedControl(join(enabledCapabilities, " "), join(newSurrogateControlL, ", "), cacheControl);
     }
 
     /**
@@ -517,4 +593,48 @@ public class Surrogate implements Extension, IEventListener {
 
         MoveResponseHeader.moveHeader(response, H_X_NEXT_SURROGATE_CONTROL, H_SURROGATE_CONTROL);
     }
+
+    /**
+     * Remove the Surrogate-Key header unless there is another surrogate in front of esigate. The tags have already been
+     * indexed by the cache, they are only useful to surrogates.
+     * 
+     * @param response
+     *            backend HTTP response.
+     * @param keepHeader
+     *            should the Surrogate-Key header be forwarded to the client.
+     */
+    private static void processSurrogateKey(HttpResponse response, boolean keepHeader) {
+        if (!keepHeader) {
+            response.removeHeaders(H_SURROGATE_KEY);
+        }
+    }
+
+    /**
+     * Surrogate-Control header generated when the provider did not send any, value is null if there is no other
+     * surrogate.
+     */
+    private static final class DefaultControl {
+        private final String value;
+
+        private DefaultControl(String value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Headers computed from a Surrogate-Control header.
+     */
+    private static final class ParsedControl {
+        private final String enabledCapabilities;
+        private final String nextSurrogateControl;
+        /** The new Cache-Control header or null if it must not be updated. */
+        private final String cacheControl;
+
+        private ParsedControl(String enabledCapabilities, String nextSurrogateControl, String cacheControl) {
+            this.enabledCapabilities = enabledCapabilities;
+            this.nextSurrogateControl = nextSurrogateControl;
+            this.cacheControl = cacheControl;
+        }
+    }
+
 }
@@ -0,0 +1,357 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.RequestLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.esigate.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Refreshes the most used cache entries in the background shortly before they expire, so that popular pages are never
+ * stale when they are requested.
+ * <p>
+ * Each GET request is recorded with the expiration time of its response. An entry is refreshed when it is about to
+ * expire if it has been requested at least a minimum number of times since it was last stored, the most requested
+ * entries first. Other entries simply expire. The refresh sends the request again through the cache with a
+ * "Cache-Control: max-age=0" header, which makes the cache revalidate or reload the entry.
+ * <p>
+ * Requests sent with cookies are never refreshed as the response could depend on the user. Only the request line, the
+ * headers and the base url are kept, the refresh is a new request that does not depend on the page that triggered it:
+ * it uses the configured timeouts and is not subject to the page timeout.
+ */
+final class CacheRefresher {
+    private static final Logger LOG = LoggerFactory.getLogger(CacheRefresher.class);
+    /** Interval in milliseconds between two checks of the entries about to expire. */
+    private static final long CHECK_INTERVAL = 1000;
+    private static final Comparator<Tracked> MOST_REQUESTED_FIRST = new Comparator<Tracked>() {
+        @Override
+        public int compare(Tracked o1, Tracked o2) {
+            return o2.hits.get() - o1.hits.get();
+        }
+    };
+
+    private final HttpClient httpClient;
+    private final RequestConfig requestConfig;
+    private final int minHits;
+    private final long advance;
+    private final int maxTracked;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<String, Tracked> tracked = new ConcurrentHashMap<String, Tracked>();
+
+    CacheRefresher(HttpClient httpClient, RequestConfig requestConfig, int minHits, long advance, int maxTracked,
+            int workers) {
+        this.httpClient = httpClient;
+        this.requestConfig = requestConfig;
+        this.minHits = minHits;
+        this.advance = advance;
+        this.maxTracked = maxTracked;
+        this.executor = Executors.newScheduledThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "esigate-refresh-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Creates a CacheRefresher if background refresh is enabled.
+     * 
+     * @param httpClient
+     *            the caching client used to send the requests
+     * @param requestConfig
+     *            the configuration of the refresh requests
+     * @param properties
+     *            the configuration
+     * @return the CacheRefresher or null if background refresh should not be used
+     */
+    static CacheRefresher create(HttpClient httpClient, RequestConfig requestConfig, Properties properties) {
+        if (!Parameters.BACKGROUND_REFRESH.getValue(properties)) {
+            return null;
+        }
+        if (!Parameters.USE_CACHE.getValue(properties)) {
+            LOG.warn("{} ignored: it requires {}", Parameters.BACKGROUND_REFRESH.getName(),
+                    Parameters.USE_CACHE.getName());
+            return null;
+        }
+        CacheRefresher result =
+                new CacheRefresher(httpClient, requestConfig,
+                        Parameters.BACKGROUND_REFRESH_MIN_HITS.getValue(properties),
+                        Parameters.BACKGROUND_REFRESH_ADVANCE.getValue(properties) * 1000L,
+                        Parameters.MAX_CACHE_ENTRIES.getValue(properties), Math.max(1,
+                                Parameters.MAX_ASYNCHRONOUS_WORKERS.getValue(properties)));
+        result.start();
+        return result;
+    }
+
+    private void start() {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshExpiring(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    LOG.error("Background refresh failed", e);
+                }
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a request and the response it received.
+     * 
+     * @param key
+     *            the cache key of the request
+     * @param request
+     *            the request, which has already been executed
+     * @param response
+     *            the response
+     */
+    void onResponse(String key, OutgoingRequest request, HttpResponse response) {
+        if (!"GET".equals(request.getRequestLine().getMethod()) || request.getContext().isProxy()) {
+            return;
+        }
+        long expires = getExpirationTime(response, System.currentTimeMillis());
+        if (expires < 0 || hasCookies(request)) {
+            tracked.remove(key);
+            return;
+        }
+        Tracked entry = tracked.get(key);
+        if (entry == null) {
+            if (tracked.size() >= maxTracked) {
+                return;
+            }
+            entry =
+                    new Tracked(key, request.getRequestLine(), request.getAllHeaders(), request.getBaseUrl(), request
+                            .getContext().getPhysicalHost());
+            Tracked previous = tracked.putIfAbsent(key, entry);
+            if (previous != null) {
+                entry = previous;
+            }
+        }
+        entry.hits.incrementAndGet();
+        entry.setExpires(expires);
+    }
+
+    /**
+     * Refreshes the entries that are about to expire and forgets the entries that have expired.
+     * 
+     * @param now
+     *            the current time
+     */
+    void refreshExpiring(long now) {
+        List<Tracked> toRefresh = new ArrayList<Tracked>();
+        for (Iterator<Tracked> it = tracked.values().iterator(); it.hasNext();) {
+            Tracked entry = it.next();
+            long expires = entry.getExpires();
+            if (expires <= now) {
+                // Cold entry, nobody asked for it again
+                it.remove();
+            } else if (expires - now <= advance && entry.hits.get() >= minHits && entry.startRefresh()) {
+                toRefresh.add(entry);
+            }
+        }
+        Collections.sort(toRefresh, MOST_REQUESTED_FIRST);
+        for (final Tracked entry : toRefresh) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refresh(entry);
+                }
+            });
+        }
+    }
+
+    private void refresh(Tracked entry) {
+        OutgoingRequestContext context = new OutgoingRequestContext();
+        OutgoingRequest request = new OutgoingRequest(entry.requestLine, entry.baseUrl, requestConfig, context);
+        request.setHeaders(entry.headers);
+        request.setHeader("Cache-Control", "max-age=0");
+        context.setPhysicalHost(entry.physicalHost);
+        context.setOutgoingRequest(request);
+        context.setCookieStore(new BasicCookieStore());
+        HttpResponse response = null;
+        try {
+            response = httpClient.execute(entry.physicalHost, request, context);
+            long expires = getExpirationTime(response, System.currentTimeMillis());
+            if (expires < 0) {
+                tracked.remove(entry.key, entry);
+            } else {
+                LOG.debug("Refreshed {}", entry.key);
+                entry.hits.set(0);
+                entry.setExpires(expires);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not refresh {}: {}", entry.key, e.toString());
+            tracked.remove(entry.key, entry);
+        } finally {
+            HttpClientUtils.closeQuietly(response);
+            entry.endRefresh();
+        }
+    }
+
+    /**
+     * Stops the background thread and forgets all the entries.
+     */
+    void close() {
+        executor.shutdownNow();
+        tracked.clear();
+    }
+
+    /**
+     * @return the number of entries currently tracked, used for tests
+     */
+    int size() {
+        return tracked.size();
+    }
+
+    private static boolean hasCookies(OutgoingRequest request) {
+        return request.getContext().getCookieStore() != null
+                && !request.getContext().getCookieStore().getCookies().isEmpty();
+    }
+
+    /**
+     * Computes the time when a response will expire, using Cache-Control, Age, Expires and Date headers.
+     * 
+     * @param response
+     *            the response
+     * @param now
+     *            the current time
+     * @return the expiration time or -1 if the response cannot be kept in a shared cache
+     */
+    static long getExpirationTime(HttpResponse response, long now) {
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName();
+                if ("no-store".equalsIgnoreCase(name) || "no-cache".equalsIgnoreCase(name)
+                        || "private".equalsIgnoreCase(name)) {
+                    return -1;
+                } else if ("max-age".equalsIgnoreCase(name)) {
+                    maxAge = parseSeconds(element.getValue());
+                } else if ("s-maxage".equalsIgnoreCase(name)) {
+                    sharedMaxAge = parseSeconds(element.getValue());
+                }
+            }
+        }
+        if (sharedMaxAge >= 0) {
+            maxAge = sharedMaxAge;
+        }
+        if (maxAge >= 0) {
+            long age = 0;
+            Header ageHeader = response.getFirstHeader("Age");
+            if (ageHeader != null) {
+                age = Math.max(0, parseSeconds(ageHeader.getValue()));
+            }
+            return maxAge > age ? now + (maxAge - age) * 1000 : -1;
+        }
+        Header expiresHeader = response.getFirstHeader("Expires");
+        Header dateHeader = response.getFirstHeader("Date");
+        if (expiresHeader != null && dateHeader != null) {
+            Date expires = DateUtils.parseDate(expiresHeader.getValue());
+            Date date = DateUtils.parseDate(dateHeader.getValue());
+            if (expires != null && date != null && expires.after(date)) {
+                return now + expires.getTime() - date.getTime();
+            }
+        }
+        return -1;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A request that may be refreshed.
+     */
+    private static final class Tracked {
+        private final String key;
+        private final RequestLine requestLine;
+        private final Header[] headers;
+        private final URL baseUrl;
+        private final HttpHost physicalHost;
+        /** Number of times the entry was requested since it was last refreshed. */
+        private final AtomicInteger hits = new AtomicInteger();
+        private long expires;
+        private boolean refreshing;
+
+        private Tracked(String key, RequestLine requestLine, Header[] headers, URL baseUrl, HttpHost physicalHost) {
+            this.key = key;
+            this.requestLine = requestLine;
+            this.headers = headers;
+            this.baseUrl = baseUrl;
+            this.physicalHost = physicalHost;
+        }
+
+        synchronized long getExpires() {
+            return expires;
+        }
+
+        synchronized void setExpires(long expires) {
+            this.expires = expires;
+        }
+
+        synchronized boolean startRefresh() {
+            if (refreshing) {
+                return false;
+            }
+            refreshing = true;
+            return true;
+        }
+
+        synchronized void endRefresh() {
+            refreshing = false;
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.HttpHost;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the failures for each backend and stops sending requests to a backend for a while after a number of
+ * consecutive failures.
+ * <p>
+ * Once the delay has expired, a single request is allowed (half-open state). Depending on its result, the circuit is
+ * closed again or stays open for another delay.
+ */
+class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final int maxFailures;
+    private final long openTime;
+    private final ConcurrentMap<HttpHost, Circuit> circuits = new ConcurrentHashMap<HttpHost, Circuit>();
+
+    /**
+     * @param maxFailures
+     *            number of consecutive failures that open the circuit
+     * @param openTime
+     *            time in milliseconds during which no request is sent once the circuit is open
+     */
+    CircuitBreaker(int maxFailures, long openTime) {
+        this.maxFailures = maxFailures;
+        this.openTime = openTime;
+    }
+
+    private Circuit getCircuit(HttpHost host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit();
+            Circuit previous = circuits.putIfAbsent(host, circuit);
+            if (previous != null) {
+                circuit = previous;
+            }
+        }
+        return circuit;
+    }
+
+    /**
+     * @param host
+     *            the backend
+     * @return true if a request can be sent to this backend
+     */
+    boolean allowRequest(HttpHost host) {
+        return getCircuit(host).allowRequest(host);
+    }
+
+    /**
+     * Records a successful request.
+     * 
+     * @param host
+     *            the backend
+     */
+    void onSuccess(HttpHost host) {
+        getCircuit(host).onSuccess(host);
+    }
+
+    /**
+     * Records a failed request.
+     * 
+     * @param host
+     *            the backend
+     */
+    void onFailure(HttpHost host) {
+        getCircuit(host).onFailure(host);
+    }
+
+    /**
+     * Records a request that completed without telling anything about the backend, for instance because it has been
+     * aborted or an unexpected error occurred. If it was the request allowed in half-open state, another one will be
+     * allowed.
+     * 
+     * @param host
+     *            the backend
+     */
+    void onCancel(HttpHost host) {
+        getCircuit(host).onCancel();
+    }
+
+    /**
+     * The state of the circuit for one backend.
+     */
+    private final class Circuit {
+        private int failures;
+        private long openUntil;
+        private boolean open;
+        private boolean probing;
+
+        synchronized boolean allowRequest(HttpHost host) {
+            if (!open) {
+                return true;
+            }
+            if (probing || System.currentTimeMillis() < openUntil) {
+                return false;
+            }
+            LOG.info("Circuit half-open for {}, trying one request", host);
+            probing = true;
+            return true;
+        }
+
+        synchronized void onSuccess(HttpHost host) {
+            if (open) {
+                LOG.info("Circuit closed for {}", host);
+            }
+            failures = 0;
+            open = false;
+            probing = false;
+        }
+
+        synchronized void onCancel() {
+            probing = false;
+        }
+
+        synchronized void onFailure(HttpHost host) {
+            failures++;
+            if (probing || (!open && failures >= maxFailures)) {
+                LOG.warn("Circuit open for {} after {} consecutive failures", host, failures);
+                open = true;
+                probing = false;
+                openUntil = System.currentTimeMillis() + openTime;
+            }
+        }
+    }
+
+}
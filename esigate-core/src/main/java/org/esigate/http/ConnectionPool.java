@@ -0,0 +1,267 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.esigate.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pool of the connections to the providers of a driver, with statistics for each route.
+ * <p>
+ * The numbers of leased, available and pending connections are copied from the pool by a background thread every
+ * second, so that they can be read without taking the lock of the pool. The same thread closes the expired connections
+ * and the connections that have been idle for longer than idleConnectionTimeout.
+ * <p>
+ * Closing the pool does not abort the requests in progress: they may still be using the driver being replaced by a
+ * configuration reload. Their connections are closed instead of being kept in the pool when they are released.
+ */
+public final class ConnectionPool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+    /** Interval in milliseconds between two updates of the statistics. */
+    private static final long MAINTENANCE_INTERVAL = 1000;
+
+    private final StatsConnectionManager connectionManager;
+    private final ConcurrentMap<HttpRoute, RouteStats> routes = new ConcurrentHashMap<HttpRoute, RouteStats>();
+    private final boolean monitored;
+    private final int idleConnectionTimeout;
+    private ScheduledExecutorService executor;
+    private volatile boolean closed;
+
+    ConnectionPool(Properties properties, boolean monitored) {
+        this.monitored = monitored;
+        idleConnectionTimeout = Parameters.IDLE_CONNECTION_TIMEOUT.getValue(properties);
+        connectionManager =
+                new StatsConnectionManager(new CountingConnectionFactory(),
+                        Parameters.CONNECTION_TIME_TO_LIVE.getValue(properties));
+        int maxConnectionsPerHost = Parameters.MAX_CONNECTIONS_PER_HOST.getValue(properties);
+        int maxConnectionsTotal = Parameters.MAX_CONNECTIONS_TOTAL.getValue(properties);
+        if (maxConnectionsTotal <= 0) {
+            maxConnectionsTotal = maxConnectionsPerHost;
+        }
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        connectionManager.setMaxTotal(maxConnectionsTotal);
+    }
+
+    /**
+     * Creates the connection pool and starts the background thread if needed.
+     * 
+     * @param properties
+     *            the configuration
+     * @param monitored
+     *            true if the statistics have to be updated
+     * @return the ConnectionPool
+     */
+    static ConnectionPool create(Properties properties, boolean monitored) {
+        ConnectionPool result = new ConnectionPool(properties, monitored);
+        if (monitored || result.idleConnectionTimeout > 0) {
+            result.start();
+        }
+        return result;
+    }
+
+    private void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "esigate-connection-pool-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maintain();
+                } catch (RuntimeException e) {
+                    LOG.error("Connection pool maintenance failed", e);
+                }
+            }
+        }, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the expired and idle connections and updates the statistics.
+     */
+    void maintain() {
+        if (idleConnectionTimeout > 0) {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS);
+        }
+        if (monitored) {
+            for (RouteStats routeStats : routes.values()) {
+                routeStats.poolStats = connectionManager.getStats(routeStats.route);
+            }
+        }
+    }
+
+    /**
+     * Stops the background thread and closes the idle connections. The connections currently leased are closed when
+     * they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (executor != null) {
+            executor.shutdown();
+        }
+        connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    HttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * @return the statistics of each route used so far
+     */
+    public Collection<RouteStats> getRouteStats() {
+        return Collections.unmodifiableCollection(routes.values());
+    }
+
+    private RouteStats getRouteStats(HttpRoute route) {
+        RouteStats result = routes.get(route);
+        if (result == null) {
+            routes.putIfAbsent(route, new RouteStats(route));
+            result = routes.get(route);
+        }
+        return result;
+    }
+
+    /**
+     * Statistics of the connections to a provider. The numbers of leased, available and pending connections are updated
+     * every second.
+     */
+    public static final class RouteStats {
+        private final HttpRoute route;
+        private final String name;
+        private final AtomicLong leases = new AtomicLong();
+        private final AtomicLong connectionsCreated = new AtomicLong();
+        private volatile PoolStats poolStats = new PoolStats(0, 0, 0, 0);
+
+        private RouteStats(HttpRoute route) {
+            this.route = route;
+            this.name = route.getTargetHost().toURI();
+        }
+
+        /**
+         * @return the scheme, host and port of the provider
+         */
+        public String getRoute() {
+            return name;
+        }
+
+        public int getLeased() {
+            return poolStats.getLeased();
+        }
+
+        public int getAvailable() {
+            return poolStats.getAvailable();
+        }
+
+        public int getPending() {
+            return poolStats.getPending();
+        }
+
+        public int getMax() {
+            return poolStats.getMax();
+        }
+
+        /**
+         * @return the number of connections requested, the connections reused are the leases minus the connections
+         *         created
+         */
+        public long getLeases() {
+            return leases.get();
+        }
+
+        public long getConnectionsCreated() {
+            return connectionsCreated.get();
+        }
+    }
+
+    /**
+     * Counts the connections requested for each route.
+     */
+    private final class StatsConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private StatsConnectionManager(HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connFactory,
+                long timeToLive) {
+            super(RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", SSLConnectionSocketFactory.getSocketFactory()).build(), connFactory, null, null,
+                    timeToLive, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            getRouteStats(route).leases.incrementAndGet();
+            return super.requestConnection(route, state);
+        }
+
+        @Override
+        public void releaseConnection(HttpClientConnection managedConn, Object state, long keepalive, TimeUnit tunit) {
+            super.releaseConnection(managedConn, state, keepalive, tunit);
+            if (closed) {
+                closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Counts the connections created for each route.
+     */
+    private final class CountingConnectionFactory implements
+            HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
+
+        @Override
+        public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+            getRouteStats(route).connectionsCreated.incrementAndGet();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        }
+    }
+
+}
@@ -15,6 +15,10 @@
 
 package org.esigate.http;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 import org.apache.http.Header;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHeaders;
@@ -24,8 +28,6 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.message.BasicHttpResponse;
 import org.esigate.impl.DriverRequest;
 import org.esigate.impl.UrlRewriter;
-import org.esigate.util.FilterList;
-import org.esigate.util.UriUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,8 +42,23 @@ import org.slf4j.LoggerFactory;
 public class HeaderManager {
     private static final Logger LOG = LoggerFactory.getLogger(HeaderManager.class);
 
-    private final FilterList requestHeadersFilterList = new FilterList();
-    private final FilterList responseHeadersFilterList = new FilterList();
+    /** The header is not forwarded. */
+    private static final int DROP = 0;
+    /** The header is copied as is. */
+    private static final int COPY = 1;
+    /** The header is not copied because it is already set by the HttpEntity. */
+    private static final int ENTITY = 2;
+    /** The header contains only an url that has to be rewritten. */
+    private static final int REWRITE_URL = 3;
+    /** Link header, the url between &lt; and &gt; has to be rewritten. */
+    private static final int REWRITE_LINK = 4;
+    /** Refresh header, the url after "url=" has to be rewritten. */
+    private static final int REWRITE_REFRESH = 5;
+    /** Referer header. */
+    private static final int REWRITE_REFERER = 6;
+
+    private final HeaderRules requestHeaderRules;
+    private final HeaderRules responseHeaderRules;
 
     private final UrlRewriter urlRewriter;
 
@@ -55,44 +72,76 @@ public class HeaderManager {
 
         this.urlRewriter = urlRewriter;
 
-        // Populate headers filter lists
+        // Compile the rules once so that copying the headers only needs a lookup per header
 
         // By default all request headers are forwarded
-        requestHeadersFilterList.add("*");
+        requestHeaderRules = new HeaderRules(COPY);
         // Except hop-by-hop headers
-        requestHeadersFilterList.remove("Connection");
-        requestHeadersFilterList.remove("Content-Length");
-        requestHeadersFilterList.remove("Cache-control");
-        requestHeadersFilterList.remove("Cookie");
-        requestHeadersFilterList.remove("Host");
-        requestHeadersFilterList.remove("Max-Forwards");
-        requestHeadersFilterList.remove("Pragma");
-        requestHeadersFilterList.remove("Proxy-Authorization");
-        requestHeadersFilterList.remove("TE");
-        requestHeadersFilterList.remove("Trailer");
-        requestHeadersFilterList.remove("Transfer-Encoding");
-        requestHeadersFilterList.remove("Upgrade");
+        requestHeaderRules.put("Connection", DROP);
+        requestHeaderRules.put("Content-Length", DROP);
+        requestHeaderRules.put("Cache-Control", DROP);
+        requestHeaderRules.put("Cookie", DROP);
+        requestHeaderRules.put("Host", DROP);
+        requestHeaderRules.put("Max-Forwards", DROP);
+        requestHeaderRules.put("Pragma", DROP);
+        requestHeaderRules.put("Proxy-Authorization", DROP);
+        requestHeaderRules.put("TE", DROP);
+        requestHeaderRules.put("Trailer", DROP);
+        requestHeaderRules.put("Transfer-Encoding", DROP);
+        requestHeaderRules.put("Upgrade", DROP);
+        // Special headers
+        requestHeaderRules.put(HttpHeaders.REFERER, REWRITE_REFERER);
 
         // By default all response headers are forwarded
-        responseHeadersFilterList.add("*");
+        responseHeaderRules = new HeaderRules(COPY);
         // Except hop-by-hop headers
-        responseHeadersFilterList.remove("Connection");
-        responseHeadersFilterList.remove("Content-Length");
-        responseHeadersFilterList.remove("Content-MD5");
-        responseHeadersFilterList.remove("Date");
-        responseHeadersFilterList.remove("Keep-Alive");
-        responseHeadersFilterList.remove("Proxy-Authenticate");
-        responseHeadersFilterList.remove("Set-Cookie");
-        responseHeadersFilterList.remove("Trailer");
-        responseHeadersFilterList.remove("Transfer-Encoding");
+        responseHeaderRules.put("Connection", DROP);
+        responseHeaderRules.put("Content-Length", DROP);
+        responseHeaderRules.put("Content-MD5", DROP);
+        responseHeaderRules.put("Date", DROP);
+        responseHeaderRules.put("Keep-Alive", DROP);
+        responseHeaderRules.put("Proxy-Authenticate", DROP);
+        responseHeaderRules.put("Set-Cookie", DROP);
+        responseHeaderRules.put("Trailer", DROP);
+        responseHeaderRules.put("Transfer-Encoding", DROP);
+        // Content-Encoding is set in HttpEntity
+        responseHeaderRules.put(HttpHeaders.CONTENT_ENCODING, ENTITY);
+        // Some headers containing an URI have to be rewritten
+        responseHeaderRules.put(HttpHeaders.LOCATION, REWRITE_URL);
+        responseHeaderRules.put(HttpHeaders.CONTENT_LOCATION, REWRITE_URL);
+        responseHeaderRules.put("Link", REWRITE_LINK);
+        responseHeaderRules.put("Refresh", REWRITE_REFRESH);
+        // P3P is not translated yet, it is used with a default fixed url most of the time.
     }
 
     protected boolean isForwardedRequestHeader(String headerName) {
-        return requestHeadersFilterList.contains(headerName);
+        return requestHeaderRules.get(headerName) != DROP;
     }
 
     protected boolean isForwardedResponseHeader(String headerName) {
-        return responseHeadersFilterList.contains(headerName);
+        return responseHeaderRules.get(headerName) != DROP;
+    }
+
+    /**
+     * The precompiled rule tells how to copy a header, but the decision to forward it or not belongs to
+     * {@link #isForwardedRequestHeader(String)} so that it can be overridden.
+     */
+    private int getRequestHeaderAction(String headerName) {
+        return getAction(requestHeaderRules.get(headerName), isForwardedRequestHeader(headerName));
+    }
+
+    private int getResponseHeaderAction(String headerName) {
+        return getAction(responseHeaderRules.get(headerName), isForwardedResponseHeader(headerName));
+    }
+
+    private static int getAction(int rule, boolean forwarded) {
+        if (!forwarded) {
+            return DROP;
+        }
+        if (rule == DROP) {
+            return COPY;
+        }
+        return rule;
     }
 
     /**
@@ -106,18 +155,23 @@ public class HeaderManager {
      *            destination request
      */
     public void copyHeaders(DriverRequest originalRequest, HttpRequest httpRequest) {
-        String baseUrl = originalRequest.getBaseUrl().toString();
-        String visibleBaseUrl = originalRequest.getVisibleBaseUrl();
+        String baseUrl = null;
+        String visibleBaseUrl = null;
         for (Header header : originalRequest.getOriginalRequest().getAllHeaders()) {
-            String name = header.getName();
-            // Special headers
-            if (HttpHeaders.REFERER.equalsIgnoreCase(name) && isForwardedRequestHeader(HttpHeaders.REFERER)) {
-                String value = header.getValue();
-                value = urlRewriter.rewriteReferer(value, baseUrl, visibleBaseUrl);
-                httpRequest.addHeader(name, value);
-                // All other headers are copied if allowed
-            } else if (isForwardedRequestHeader(name)) {
+            switch (getRequestHeaderAction(header.getName())) {
+            case COPY:
                 httpRequest.addHeader(header);
+                break;
+            case REWRITE_REFERER:
+                if (baseUrl == null) {
+                    baseUrl = originalRequest.getBaseUrl().toString();
+                    visibleBaseUrl = originalRequest.getVisibleBaseUrl();
+                }
+                httpRequest.addHeader(header.getName(),
+                        urlRewriter.rewriteReferer(header.getValue(), baseUrl, visibleBaseUrl));
+                break;
+            default:
+                break;
             }
         }
         // process X-Forwarded-For header
@@ -140,8 +194,8 @@ public class HeaderManager {
 
         // Process X-Forwarded-Proto header
         if (!httpRequest.containsHeader("X-Forwarded-Proto")) {
-            httpRequest.addHeader("X-Forwarded-Proto",
-                    UriUtils.extractScheme(originalRequest.getOriginalRequest().getRequestLine().getUri()));
+            httpRequest.addHeader("X-Forwarded-Proto", originalRequest.getOriginalRequest().getHttpHost()
+                    .getSchemeName());
         }
     }
 
@@ -167,51 +221,42 @@ public class HeaderManager {
             String name = header.getName();
             String value = header.getValue();
             try {
-                // Ignore Content-Encoding and Content-Type as these headers are
-                // set in HttpEntity
-                if (!HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name)) {
-                    if (isForwardedResponseHeader(name)) {
-                        // Some headers containing an URI have to be rewritten
-                        if (HttpHeaders.LOCATION.equalsIgnoreCase(name)
-                                || HttpHeaders.CONTENT_LOCATION.equalsIgnoreCase(name)) {
-                            // Header contains only an url
-                            value = urlRewriter.rewriteUrl(value, originalUri, baseUrl, visibleBaseUrl, true);
-                            value = HttpResponseUtils.removeSessionId(value, httpClientResponse);
-                            result.addHeader(name, value);
-                        } else if ("Link".equalsIgnoreCase(name)) {
-                            // Header has the following format
-                            // Link: </feed>; rel="alternate"
-
-                            if (value.startsWith("<") && value.contains(">")) {
-                                String urlValue = value.substring(1, value.indexOf(">"));
-
-                                String targetUrlValue =
-                                        urlRewriter.rewriteUrl(urlValue, originalUri, baseUrl, visibleBaseUrl, true);
-                                targetUrlValue = HttpResponseUtils.removeSessionId(targetUrlValue, httpClientResponse);
-
-                                value = value.replace("<" + urlValue + ">", "<" + targetUrlValue + ">");
-                            }
-
-                            result.addHeader(name, value);
-
-                        } else if ("Refresh".equalsIgnoreCase(name)) {
-                            // Header has the following format
-                            // Refresh: 5; url=http://www.example.com
-                            int urlPosition = value.indexOf("url=");
-                            if (urlPosition >= 0) {
-                                value = urlRewriter.rewriteRefresh(value, originalUri, baseUrl, visibleBaseUrl);
-                                value = HttpResponseUtils.removeSessionId(value, httpClientResponse);
-                            }
-                            result.addHeader(name, value);
-                        } else if ("P3p".equalsIgnoreCase(name)) {
-                            // Do not translate url yet.
-                            // P3P is used with a default fixed url most of the
-                            // time.
-                            result.addHeader(name, value);
-                        } else {
-                            result.addHeader(header.getName(), header.getValue());
-                        }
+                switch (getResponseHeaderAction(name)) {
+                case COPY:
+                    result.addHeader(header);
+                    break;
+                case REWRITE_URL:
+                    // Header contains only an url
+                    value = urlRewriter.rewriteUrl(value, originalUri, baseUrl, visibleBaseUrl, true);
+                    value = HttpResponseUtils.removeSessionId(value, httpClientResponse);
+                    result.addHeader(name, value);
+                    break;
+                case REWRITE_LINK:
+                    // Header has the following format
+                    // Link: </feed>; rel="alternate"
+                    if (value.startsWith("<") && value.contains(">")) {
+                        String urlValue = value.substring(1, value.indexOf(">"));
+
+                        String targetUrlValue =
+                                urlRewriter.rewriteUrl(urlValue, originalUri, baseUrl, visibleBaseUrl, true);
+                        targetUrlValue = HttpResponseUtils.removeSessionId(targetUrlValue, httpClientResponse);
+
+                        value = value.replace("<" + urlValue + ">", "<" + targetUrlValue + ">");
+                    }
+                    result.addHeader(name, value);
+                    break;
+                case REWRITE_REFRESH:
+                    // Header has the following format
+                    // Refresh: 5; url=http://www.example.com
+                    if (value.indexOf("url=") >= 0) {
+                        value = urlRewriter.rewriteRefresh(value, originalUri, baseUrl, visibleBaseUrl);
+                        value = HttpResponseUtils.removeSessionId(value, httpClientResponse);
                     }
+                    result.addHeader(name, value);
+                    break;
+                default:
+                    // DROP or ENTITY
+                    break;
                 }
             } catch (Exception e1) {
                 // It's important not to fail here.
@@ -223,4 +268,34 @@ public class HeaderManager {
         }
         return BasicCloseableHttpResponse.adapt(result);
     }
+
+    /**
+     * Action to apply to each header name, looked up case-insensitively. Names are usually sent with their usual case,
+     * so they are first looked up as is and only converted to lower case when not found.
+     */
+    private static final class HeaderRules {
+        private final Map<String, Integer> actions = new HashMap<String, Integer>();
+        private final Map<String, Integer> lowerCaseActions = new HashMap<String, Integer>();
+        private final int defaultAction;
+
+        private HeaderRules(int defaultAction) {
+            this.defaultAction = defaultAction;
+        }
+
+        private void put(String name, int action) {
+            actions.put(name, action);
+            lowerCaseActions.put(name.toLowerCase(Locale.ENGLISH), action);
+        }
+
+        private int get(String name) {
+            Integer action = actions.get(name);
+            if (action == null) {
+                action = lowerCaseActions.get(name.toLowerCase(Locale.ENGLISH));
+            }
+            if (action == null) {
+                return defaultAction;
+            }
+            return action;
+        }
+    }
 }
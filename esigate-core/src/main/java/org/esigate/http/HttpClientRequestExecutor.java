@@ -15,17 +15,23 @@
 
 package org.esigate.http;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.RequestLine;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
@@ -39,12 +45,16 @@ import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.cookie.CookieSpecProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.message.BasicHttpRequest;
 import org.esigate.ConfigurationException;
 import org.esigate.Driver;
 import org.esigate.HttpErrorPage;
 import org.esigate.Parameters;
 import org.esigate.RequestExecutor;
 import org.esigate.cache.CacheConfigHelper;
+import org.esigate.cache.CacheKeyNormalizer;
+import org.esigate.cache.CacheKeys;
+import org.esigate.cache.CacheStorage;
 import org.esigate.cookie.CookieManager;
 import org.esigate.events.EventManager;
 import org.esigate.events.impl.FragmentEvent;
@@ -64,7 +74,7 @@ import org.slf4j.LoggerFactory;
  * @author Francois-Xavier Bonnet
  * 
  */
-public final class HttpClientRequestExecutor implements RequestExecutor {
+public final class HttpClientRequestExecutor implements RequestExecutor, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(HttpClientRequestExecutor.class);
     private static final Set<String> SIMPLE_METHODS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
             "GET", "HEAD", "OPTIONS", "TRACE", "DELETE")));
@@ -76,7 +86,13 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
     private EventManager eventManager = null;
     private int connectTimeout;
     private int socketTimeout;
+    private boolean staleConnectionCheck;
     private HttpHost firstBaseUrlHost;
+    private RequestHedger requestHedger;
+    private CacheRefresher cacheRefresher;
+    private CacheStorage cacheStorage;
+    private CacheKeyNormalizer cacheKeyNormalizer;
+    private ConnectionPool connectionPool;
 
     /**
      * Builder class used to produce an immutable instance.
@@ -90,6 +106,8 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
         private Driver driver;
         private HttpClientConnectionManager connectionManager;
         private CookieManager cookieManager;
+        private CacheStorage cacheStorage;
+        private ConnectionPool connectionPool;
 
         @Override
         public HttpClientRequestExecutorBuilder setDriver(Driver pDriver) {
@@ -123,7 +141,16 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
             result.cookieManager = cookieManager;
             result.connectTimeout = Parameters.CONNECT_TIMEOUT.getValue(properties);
             result.socketTimeout = Parameters.SOCKET_TIMEOUT.getValue(properties);
+            result.staleConnectionCheck = Parameters.STALE_CONNECTION_CHECK.getValue(properties);
             result.httpClient = buildHttpClient();
+            result.cacheStorage = cacheStorage;
+            result.connectionPool = connectionPool;
+            if (cacheStorage != null) {
+                result.cacheKeyNormalizer = CacheKeyNormalizer.create(properties);
+            }
+            result.requestHedger = RequestHedger.create(result.httpClient, properties);
+            result.cacheRefresher =
+                    CacheRefresher.create(result.httpClient, result.createRequestConfig(Long.MAX_VALUE), properties);
             String firstBaseURL = Parameters.REMOTE_URL_BASE.getValue(properties)[0];
             result.firstBaseUrlHost = UriUtils.extractHost(firstBaseURL);
             return result;
@@ -169,9 +196,6 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
 
             httpClientBuilder.setProperties(properties);
 
-            httpClientBuilder.setMaxConnPerRoute(Parameters.MAX_CONNECTIONS_PER_HOST.getValue(properties));
-            httpClientBuilder.setMaxConnTotal(Parameters.MAX_CONNECTIONS_PER_HOST.getValue(properties));
-
             // Proxy settings
             if (proxyHost != null) {
                 httpClientBuilder.setProxy(proxyHost);
@@ -186,17 +210,23 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
             boolean useCache = Parameters.USE_CACHE.getValue(properties);
             httpClientBuilder.setUseCache(Parameters.USE_CACHE.getValue(properties));
             if (useCache) {
-                httpClientBuilder.setHttpCacheStorage(CacheConfigHelper.createCacheStorage(properties));
+                cacheStorage = CacheConfigHelper.createCacheStorage(properties);
+                httpClientBuilder.setHttpCacheStorage(cacheStorage);
                 httpClientBuilder.setCacheConfig(CacheConfigHelper.createCacheConfig(properties));
             }
 
             // Event manager
             httpClientBuilder.setEventManager(eventManager);
 
+            httpClientBuilder.setInstrumentation(driver.getInstrumentation());
+
             // Used for tests to skip connection manager and return hard coded
             // responses
             if (connectionManager != null) {
                 httpClientBuilder.setConnectionManager(connectionManager);
+            } else {
+                connectionPool = ConnectionPool.create(properties, driver.getInstrumentation().isEnabled());
+                httpClientBuilder.setConnectionManager(connectionPool.getConnectionManager());
             }
 
             Registry<CookieSpecProvider> cookieSpecRegistry =
@@ -221,6 +251,13 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
     private HttpClientRequestExecutor() {
     }
 
+    /**
+     * @return the pool of connections to the providers, null if a connection manager has been provided
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
     @Override
     public OutgoingRequest createOutgoingRequest(DriverRequest originalRequest, String uri, boolean proxy) {
         // Extract the host in the URI. This is the host we have to send the
@@ -238,16 +275,7 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
             }
         }
 
-        RequestConfig.Builder builder = RequestConfig.custom();
-        builder.setConnectTimeout(connectTimeout);
-        builder.setSocketTimeout(socketTimeout);
-
-        // Use browser compatibility cookie policy. This policy is the closest
-        // to the behavior of a real browser.
-        builder.setCookieSpec(CustomBrowserCompatSpecFactory.CUSTOM_BROWSER_COMPATIBILITY);
-
-        builder.setRedirectsEnabled(false);
-        RequestConfig config = builder.build();
+        RequestConfig config = createRequestConfig(originalRequest.getRemainingTime());
 
         OutgoingRequestContext context = new OutgoingRequestContext();
 
@@ -271,6 +299,51 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
         return outgoingRequest;
     }
 
+    /**
+     * Creates the configuration of a request.
+     * 
+     * @param remainingTime
+     *            the time left to render the page, Long.MAX_VALUE if there is no deadline
+     * @return the RequestConfig
+     */
+    private RequestConfig createRequestConfig(long remainingTime) {
+        RequestConfig.Builder builder = RequestConfig.custom();
+        if (remainingTime == Long.MAX_VALUE) {
+            builder.setConnectTimeout(connectTimeout);
+            builder.setSocketTimeout(socketTimeout);
+        } else {
+            // Never wait longer than the time left to render the page
+            builder.setConnectTimeout(withinBudget(connectTimeout, remainingTime));
+            builder.setSocketTimeout(withinBudget(socketTimeout, remainingTime));
+            builder.setConnectionRequestTimeout(withinBudget(0, remainingTime));
+        }
+
+        // Use browser compatibility cookie policy. This policy is the closest
+        // to the behavior of a real browser.
+        builder.setCookieSpec(CustomBrowserCompatSpecFactory.CUSTOM_BROWSER_COMPATIBILITY);
+
+        builder.setRedirectsEnabled(false);
+        builder.setStaleConnectionCheckEnabled(staleConnectionCheck);
+        return builder.build();
+    }
+
+    /**
+     * Reduces a timeout so that it does not exceed the remaining time.
+     * 
+     * @param timeout
+     *            the configured timeout, 0 meaning infinite
+     * @param remainingTime
+     *            the time left before the deadline
+     * @return the timeout to use, always positive
+     */
+    private static int withinBudget(int timeout, long remainingTime) {
+        int budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, remainingTime));
+        if (timeout <= 0) {
+            return budget;
+        }
+        return Math.min(timeout, budget);
+    }
+
     /**
      * Execute a HTTP request.
      * 
@@ -303,8 +376,15 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
                             "'Expect' request header is not supported"));
                 } else {
                     try {
-                        HttpHost physicalHost = context.getPhysicalHost();
-                        result = httpClient.execute(physicalHost, httpRequest, context);
+                        if (requestHedger != null) {
+                            result = requestHedger.execute(httpRequest);
+                        } else {
+                            HttpHost physicalHost = context.getPhysicalHost();
+                            result = httpClient.execute(physicalHost, httpRequest, context);
+                        }
+                        if (cacheRefresher != null) {
+                            cacheRefresher.onResponse(getCacheKey(httpRequest), httpRequest, result);
+                        }
                     } catch (IOException e) {
                         result = HttpErrorPage.generateHttpResponse(e);
                         LOG.warn(httpRequest.getRequestLine() + " -> " + result.getStatusLine().toString());
@@ -326,4 +406,72 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
         return httpResponse;
     }
 
+    @Override
+    public void preloadCacheEntries(Collection<OutgoingRequest> outgoingRequests) {
+        if (cacheStorage == null) {
+            return;
+        }
+        List<String> keys = new ArrayList<String>(outgoingRequests.size());
+        for (OutgoingRequest outgoingRequest : outgoingRequests) {
+            if ("GET".equals(outgoingRequest.getRequestLine().getMethod())) {
+                keys.add(getCacheKey(outgoingRequest));
+            }
+        }
+        try {
+            cacheStorage.preload(keys);
+        } catch (IOException e) {
+            // Entries will be looked up one by one
+            LOG.warn("Could not preload cache entries: {}", e.toString());
+        }
+    }
+
+    @Override
+    public void releaseCacheEntries() {
+        if (cacheStorage != null) {
+            cacheStorage.release();
+        }
+    }
+
+    @Override
+    public int purgeCacheTag(String tag) {
+        if (cacheStorage == null) {
+            return 0;
+        }
+        try {
+            return cacheStorage.purgeTag(tag);
+        } catch (IOException e) {
+            LOG.warn("Could not purge cache entries tagged {}: {}", tag, e.toString());
+            return 0;
+        }
+    }
+
+    /**
+     * Stops the background threads. Requests in progress are not interrupted.
+     */
+    @Override
+    public void close() {
+        if (requestHedger != null) {
+            requestHedger.close();
+        }
+        if (cacheRefresher != null) {
+            cacheRefresher.close();
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+    }
+
+    /**
+     * Computes the key the http cache will use for a request, after normalization.
+     */
+    private String getCacheKey(OutgoingRequest outgoingRequest) {
+        HttpRequest request = outgoingRequest;
+        if (cacheKeyNormalizer != null) {
+            RequestLine requestLine = outgoingRequest.getRequestLine();
+            request =
+                    new BasicHttpRequest(requestLine.getMethod(), cacheKeyNormalizer.normalizeUri(requestLine.getUri()));
+        }
+        return CacheKeys.getURI(outgoingRequest.getContext().getPhysicalHost(), request);
+    }
+
 }
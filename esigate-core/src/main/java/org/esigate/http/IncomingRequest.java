@@ -15,13 +15,16 @@
 
 package org.esigate.http;
 
+import java.net.URI;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpVersion;
 import org.apache.http.RequestLine;
 import org.apache.http.cookie.Cookie;
@@ -29,6 +32,7 @@ import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicRequestLine;
 import org.esigate.api.ContainerRequestContext;
 import org.esigate.api.Session;
+import org.esigate.util.UriUtils;
 
 /**
  * Represents an incoming http request.
@@ -38,7 +42,8 @@ import org.esigate.api.Session;
  */
 public final class IncomingRequest extends BasicHttpEntityEnclosingRequest {
 
-    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    // Attributes may be accessed concurrently when fragments are retrieved in parallel
+    private final Map<String, Object> attributes = Collections.synchronizedMap(new HashMap<String, Object>());
     private ContainerRequestContext context;
     private String remoteUser;
     private String remoteAddr;
@@ -48,6 +53,9 @@ public final class IncomingRequest extends BasicHttpEntityEnclosingRequest {
     private List<Cookie> newCookies = new ArrayList<Cookie>();
     private Session session;
     private String contextPath;
+    // Parsed forms of the request uri, computed on first use as the uri is used many times for each fragment
+    private volatile URI uri;
+    private volatile HttpHost httpHost;
 
     public static final class Builder {
         private final IncomingRequest result;
@@ -180,4 +188,41 @@ public final class IncomingRequest extends BasicHttpEntityEnclosingRequest {
         return contextPath;
     }
 
+    /**
+     * Returns the request uri parsed with {@link UriUtils#createURI(String)}. The uri is parsed only once.
+     * 
+     * @return the uri
+     */
+    public URI getURI() {
+        URI result = uri;
+        if (result == null) {
+            result = UriUtils.createURI(getRequestLine().getUri());
+            uri = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the host extracted from the request uri.
+     * 
+     * @return the host
+     */
+    public HttpHost getHttpHost() {
+        HttpHost result = httpHost;
+        if (result == null) {
+            result = UriUtils.extractHost(getURI());
+            httpHost = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the decoded path of the request uri.
+     * 
+     * @return the path
+     */
+    public String getPath() {
+        return getURI().getPath();
+    }
+
 }
@@ -16,11 +16,14 @@
 package org.esigate.http;
 
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.http.ProtocolVersion;
 import org.apache.http.RequestLine;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.concurrent.Cancellable;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicRequestLine;
 import org.esigate.UserContext;
@@ -29,16 +32,23 @@ import org.esigate.impl.DriverRequest;
 
 /**
  * Allows request line / uri modification after request creation.
+ * <p>
+ * The request can be aborted from another thread while it is being executed.
+ * <p>
+ * Requests sent in the background, outside of any incoming request, have no original request, only a base url.
  * 
  * @author fxbonnet
  * 
  */
-public class OutgoingRequest extends BasicHttpEntityEnclosingRequest implements Configurable {
+public class OutgoingRequest extends BasicHttpEntityEnclosingRequest implements Configurable, HttpExecutionAware {
 
     private RequestLine requestLine;
     private final RequestConfig requestConfig;
     private final OutgoingRequestContext context;
     private final DriverRequest originalRequest;
+    private final URL baseUrl;
+    private final AtomicReference<Cancellable> cancellable = new AtomicReference<Cancellable>();
+    private volatile boolean aborted;
 
     public OutgoingRequest(String method, String uri, ProtocolVersion version, DriverRequest originalRequest,
             RequestConfig requestConfig, OutgoingRequestContext context) {
@@ -47,6 +57,28 @@ public class OutgoingRequest extends BasicHttpEntityEnclosingRequest implements
         this.requestConfig = requestConfig;
         this.context = context;
         this.originalRequest = originalRequest;
+        this.baseUrl = null;
+    }
+
+    /**
+     * Creates a request that does not depend on any incoming request.
+     * 
+     * @param requestLine
+     *            the method, uri and protocol version
+     * @param baseUrl
+     *            the base url of the provider
+     * @param requestConfig
+     *            the configuration
+     * @param context
+     *            the context of the request
+     */
+    OutgoingRequest(RequestLine requestLine, URL baseUrl, RequestConfig requestConfig, OutgoingRequestContext context) {
+        super(requestLine);
+        this.requestLine = requestLine;
+        this.requestConfig = requestConfig;
+        this.context = context;
+        this.originalRequest = null;
+        this.baseUrl = baseUrl;
     }
 
     public void setUri(String uri) {
@@ -86,11 +118,41 @@ public class OutgoingRequest extends BasicHttpEntityEnclosingRequest implements
     }
 
     public URL getBaseUrl() {
+        if (originalRequest == null) {
+            return baseUrl;
+        }
         return originalRequest.getBaseUrl();
     }
 
+    /**
+     * @return the request being rendered, or null for a request sent in the background
+     */
     public DriverRequest getOriginalRequest() {
         return originalRequest;
     }
 
+    /**
+     * Aborts the request, the connection is closed if the request has already been sent.
+     */
+    public void abort() {
+        aborted = true;
+        Cancellable current = cancellable.getAndSet(null);
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    @Override
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    @Override
+    public void setCancellable(Cancellable pCancellable) {
+        cancellable.set(pCancellable);
+        if (aborted && pCancellable != null && cancellable.compareAndSet(pCancellable, null)) {
+            pCancellable.cancel();
+        }
+    }
+
 }
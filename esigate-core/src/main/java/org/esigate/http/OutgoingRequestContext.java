@@ -26,6 +26,7 @@ public class OutgoingRequestContext extends HttpClientContext {
     private static final String PROXY = "PROXY";
     private static final String OUTGOING_REQUEST = "OUTGOING_REQUEST";
     private static final String PHYSICAL_HOST = "PHYSICAL_HOST";
+    private static final String BACKEND_SKIPPED = "BACKEND_SKIPPED";
 
     public static OutgoingRequestContext adapt(final HttpContext context) {
         if (context instanceof OutgoingRequestContext) {
@@ -68,7 +69,7 @@ public class OutgoingRequestContext extends HttpClientContext {
      * 
      * @return physical host
      */
-    HttpHost getPhysicalHost() {
+    public HttpHost getPhysicalHost() {
         return getAttribute(PHYSICAL_HOST, HttpHost.class);
     }
 
@@ -81,6 +82,25 @@ public class OutgoingRequestContext extends HttpClientContext {
         setAttribute(PHYSICAL_HOST, httpHost);
     }
 
+    /**
+     * 
+     * @return true if the response has been generated without contacting the backend, because the page deadline was
+     *         exceeded or the circuit breaker was open
+     */
+    public boolean isBackendSkipped() {
+        Boolean skipped = getAttribute(BACKEND_SKIPPED, Boolean.class);
+        return skipped != null && skipped.booleanValue();
+    }
+
+    /**
+     * 
+     * @param skipped
+     *            true if the backend has not been contacted
+     */
+    void setBackendSkipped(boolean skipped) {
+        setAttribute(BACKEND_SKIPPED, skipped);
+    }
+
     /**
      * Set attribute and save previous attribute value
      * 
@@ -18,7 +18,11 @@ package org.esigate.http;
 import java.io.IOException;
 import java.util.Properties;
 
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpExecutionAware;
@@ -27,23 +31,41 @@ import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
 import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
 import org.esigate.cache.CacheAdapter;
 import org.esigate.events.EventManager;
 import org.esigate.events.impl.FetchEvent;
+import org.esigate.instrumentation.DriverInstrumentation;
 
 public class ProxyingHttpClientBuilder extends CachingHttpClientBuilder {
+    /** Context attribute holding the time the connection to the provider was requested. */
+    private static final String CONNECT_START = "esigate.connectStart";
     private Properties properties;
     private EventManager eventManager;
     private boolean useCache = true;
+    private DriverInstrumentation instrumentation = DriverInstrumentation.DISABLED;
 
     @Override
     protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
         ClientExecChain result = mainExec;
+        if (instrumentation.isEnabled()) {
+            result = addConnectStart(result);
+        }
+        int circuitBreakerFailures = Parameters.CIRCUIT_BREAKER_FAILURES.getValue(properties);
+        if (circuitBreakerFailures > 0) {
+            result =
+                    addCircuitBreaker(result, new CircuitBreaker(circuitBreakerFailures,
+                            Parameters.CIRCUIT_BREAKER_OPEN_TIME.getValue(properties)));
+        }
+        result = addDeadlineCheck(result);
         result = addFetchEvent(result);
         if (useCache) {
             CacheAdapter cacheAdapter = new CacheAdapter();
             cacheAdapter.init(properties);
+            cacheAdapter.setInstrumentation(instrumentation);
             result = cacheAdapter.wrapBackendHttpClient(result);
             result = super.decorateMainExec(result);
             result = cacheAdapter.wrapCachingHttpClient(result);
@@ -75,6 +97,140 @@ public class ProxyingHttpClientBuilder extends CachingHttpClientBuilder {
         return useCache;
     }
 
+    public void setInstrumentation(DriverInstrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+        if (instrumentation.isEnabled()) {
+            setRequestExecutor(new InstrumentedRequestExecutor(instrumentation));
+        }
+    }
+
+    /**
+     * Decorate the main exec in order to know when it starts to obtain a connection. The connection time is recorded by
+     * the {@link InstrumentedRequestExecutor} once the connection is ready.
+     * 
+     * @param wrapped
+     * @return the decorated ClientExecChain
+     */
+    private ClientExecChain addConnectStart(final ClientExecChain wrapped) {
+        return new ClientExecChain() {
+
+            @Override
+            public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                    HttpClientContext httpClientContext, HttpExecutionAware execAware) throws IOException,
+                    HttpException {
+                httpClientContext.setAttribute(CONNECT_START, System.nanoTime());
+                return wrapped.execute(route, request, httpClientContext, execAware);
+            }
+        };
+    }
+
+    /**
+     * Records the time needed to obtain a connection and the time until the response headers are received.
+     */
+    private static final class InstrumentedRequestExecutor extends HttpRequestExecutor {
+        private final DriverInstrumentation instrumentation;
+
+        private InstrumentedRequestExecutor(DriverInstrumentation instrumentation) {
+            this.instrumentation = instrumentation;
+        }
+
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            long start = System.nanoTime();
+            Object connectStart = context.removeAttribute(CONNECT_START);
+            if (connectStart != null) {
+                instrumentation.getBackendConnect().record(start - (Long) connectStart);
+            }
+            HttpResponse response = super.execute(request, conn, context);
+            instrumentation.getBackendFirstByte().record(System.nanoTime() - start);
+            return response;
+        }
+    }
+
+    /**
+     * Decorate with a circuit breaker. While the circuit is open for a backend, requests fail immediately. The cache
+     * then serves stale entries if staleIfError allows it, the error itself is never cached.
+     * 
+     * @param wrapped
+     * @param circuitBreaker
+     * @return the decorated ClientExecChain
+     */
+    private ClientExecChain addCircuitBreaker(final ClientExecChain wrapped, final CircuitBreaker circuitBreaker) {
+        return new ClientExecChain() {
+
+            @Override
+            public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                    HttpClientContext httpClientContext, HttpExecutionAware execAware) throws IOException,
+                    HttpException {
+                HttpHost host = route.getTargetHost();
+                if (!circuitBreaker.allowRequest(host)) {
+                    return skipBackend(OutgoingRequestContext.adapt(httpClientContext),
+                            HttpStatus.SC_SERVICE_UNAVAILABLE, "Circuit open");
+                }
+                boolean recorded = false;
+                try {
+                    CloseableHttpResponse response = wrapped.execute(route, request, httpClientContext, execAware);
+                    if (response.getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                        circuitBreaker.onFailure(host);
+                    } else {
+                        circuitBreaker.onSuccess(host);
+                    }
+                    recorded = true;
+                    return response;
+                } catch (IOException | HttpException | RuntimeException e) {
+                    // Aborted requests say nothing about the backend
+                    if (execAware == null || !execAware.isAborted()) {
+                        circuitBreaker.onFailure(host);
+                        recorded = true;
+                    }
+                    throw e;
+                } finally {
+                    // Never leave the circuit waiting for a probe that will not complete
+                    if (!recorded) {
+                        circuitBreaker.onCancel(host);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Generates the response of a request that is not sent to the backend. It only concerns the current request and
+     * must never be stored in the cache.
+     */
+    private static CloseableHttpResponse skipBackend(OutgoingRequestContext context, int statusCode, String message) {
+        context.setBackendSkipped(true);
+        CloseableHttpResponse response = HttpErrorPage.generateHttpResponse(statusCode, message);
+        response.setHeader("Cache-control", "no-store");
+        return response;
+    }
+
+    /**
+     * Decorate with a check of the page deadline. Requests that cannot complete in time are not sent to the backend, a
+     * gateway timeout is returned instead. Responses available in cache are still used.
+     * 
+     * @param wrapped
+     * @return the decorated ClientExecChain
+     */
+    private ClientExecChain addDeadlineCheck(final ClientExecChain wrapped) {
+        return new ClientExecChain() {
+
+            @Override
+            public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                    HttpClientContext httpClientContext, HttpExecutionAware execAware) throws IOException,
+                    HttpException {
+                OutgoingRequestContext context = OutgoingRequestContext.adapt(httpClientContext);
+                OutgoingRequest outgoingRequest = context.getOutgoingRequest();
+                if (outgoingRequest != null && outgoingRequest.getOriginalRequest() != null
+                        && outgoingRequest.getOriginalRequest().isDeadlineExceeded()) {
+                    return skipBackend(context, HttpStatus.SC_GATEWAY_TIMEOUT, "Page timeout");
+                }
+                return wrapped.execute(route, request, context, execAware);
+            }
+        };
+    }
+
     /**
      * Decorate with fetch event managements
      * 
@@ -101,6 +257,8 @@ public class ProxyingHttpClientBuilder extends CachingHttpClientBuilder {
                                 "An extension stopped the processing of the request without providing a response"));
                     }
                 } else {
+                    // The context is reused for redirects
+                    context.setBackendSkipped(false);
                     try {
                         fetchEvent.setHttpResponse(wrapped.execute(route, request, context, execAware));
                     } catch (IOException | HttpException e) {
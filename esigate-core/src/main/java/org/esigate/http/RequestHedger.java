@@ -0,0 +1,421 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.cookie.Cookie;
+import org.esigate.Parameters;
+import org.esigate.util.UriUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a duplicate of a GET request to another backend when the first one is slower than usual and uses whichever
+ * response comes first.
+ * <p>
+ * The delay before sending the duplicate is the configured percentile of the latencies observed so far. Responses
+ * served from the cache are not taken into account. The request to the slowest backend is aborted as soon as the other
+ * one has responded and the cookies it sets are discarded.
+ * <p>
+ * The requests are sent by a bounded thread pool. When all its threads are busy, the request is executed in the calling
+ * thread without hedging.
+ */
+final class RequestHedger {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestHedger.class);
+    /** Number of latencies kept to compute the percentile. */
+    private static final int SAMPLES = 1000;
+    /** No duplicate request is sent until we have enough samples. */
+    private static final int MIN_SAMPLES = 20;
+    /** The percentile is computed again every UPDATE_INTERVAL samples. */
+    private static final int UPDATE_INTERVAL = 20;
+
+    private final HttpClient httpClient;
+    private final HttpHost[] hosts;
+    private final float percentile;
+    private final int minDelay;
+    private final ExecutorService executor;
+    private final AtomicInteger nextHost = new AtomicInteger();
+    private final long[] samples = new long[SAMPLES];
+    private int sampleCount;
+    private int nextSample;
+    private int sinceUpdate;
+    private volatile long delay = -1;
+
+    RequestHedger(HttpClient httpClient, HttpHost[] hosts, float percentile, int minDelay, int maxThreads) {
+        this.httpClient = httpClient;
+        this.hosts = Arrays.copyOf(hosts, hosts.length);
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.executor =
+                new ThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                        new ThreadFactory() {
+                            private final AtomicInteger count = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "esigate-hedge-" + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+    }
+
+    /**
+     * Creates a RequestHedger if hedging is enabled and there are several backends.
+     * 
+     * @param httpClient
+     *            the client used to send the requests
+     * @param properties
+     *            the configuration
+     * @return the RequestHedger or null if hedging should not be used
+     */
+    static RequestHedger create(HttpClient httpClient, Properties properties) {
+        if (!Parameters.HEDGE_REQUESTS.getValue(properties)) {
+            return null;
+        }
+        String[] baseUrls = Parameters.REMOTE_URL_BASE.getValue(properties);
+        if (baseUrls.length < 2) {
+            LOG.warn("{} ignored: it requires several {}", Parameters.HEDGE_REQUESTS.getName(),
+                    Parameters.REMOTE_URL_BASE.getName());
+            return null;
+        }
+        HttpHost[] hosts = new HttpHost[baseUrls.length];
+        for (int i = 0; i < baseUrls.length; i++) {
+            hosts[i] = UriUtils.extractHost(baseUrls[i]);
+        }
+        // Each attempt holds a connection so there is no point in having more threads than connections
+        int maxThreads = Parameters.MAX_CONNECTIONS_TOTAL.getValue(properties);
+        if (maxThreads <= 0) {
+            maxThreads = Parameters.MAX_CONNECTIONS_PER_HOST.getValue(properties);
+        }
+        return new RequestHedger(httpClient, hosts, Parameters.HEDGE_PERCENTILE.getValue(properties),
+                Parameters.HEDGE_MIN_DELAY.getValue(properties), maxThreads);
+    }
+
+    /**
+     * Stops the threads once the requests in progress are complete.
+     */
+    void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Executes a request, possibly sending a duplicate to another backend.
+     * 
+     * @param request
+     *            the request
+     * @return the first response received
+     * @throws IOException
+     *             if all the attempts failed
+     */
+    HttpResponse execute(OutgoingRequest request) throws IOException {
+        OutgoingRequestContext context = request.getContext();
+        long currentDelay = this.delay;
+        HttpHost alternateHost = null;
+        if (currentDelay >= 0 && isIdempotent(request)) {
+            alternateHost = selectAlternateHost(context.getPhysicalHost());
+        }
+        if (alternateHost == null) {
+            return executeAndRecord(request);
+        }
+        CookieStore cookieStore = context.getCookieStore();
+
+        List<Attempt> attempts = new ArrayList<Attempt>(2);
+        CompletionService<HttpResponse> completionService = new ExecutorCompletionService<HttpResponse>(executor);
+        Attempt primary = new Attempt(request);
+        try {
+            primary.start(completionService);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("No thread available, sending {} without hedging", request.getRequestLine());
+            request.getContext().setCookieStore(cookieStore);
+            return executeAndRecord(request);
+        }
+        attempts.add(primary);
+        try {
+            Future<HttpResponse> done = completionService.poll(currentDelay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                LOG.debug("No response after {} ms for {}, sending the request to {}", currentDelay,
+                        request.getRequestLine(), alternateHost);
+                Attempt hedge = new Attempt(copy(request, alternateHost, cookieStore));
+                try {
+                    hedge.start(completionService);
+                    attempts.add(hedge);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("No thread available, not hedging {}", request.getRequestLine());
+                }
+                done = completionService.take();
+            }
+            ExecutionException firstException = null;
+            for (int remaining = attempts.size(); remaining > 0; remaining--) {
+                if (done == null) {
+                    done = completionService.take();
+                }
+                try {
+                    HttpResponse response = done.get();
+                    for (Attempt attempt : attempts) {
+                        if (attempt.future == done) {
+                            attempt.commit();
+                        } else {
+                            attempt.abandon();
+                        }
+                    }
+                    return response;
+                } catch (ExecutionException e) {
+                    if (firstException == null) {
+                        firstException = e;
+                    }
+                }
+                done = null;
+            }
+            throw rethrow(firstException);
+        } catch (InterruptedException e) {
+            for (Attempt attempt : attempts) {
+                attempt.abandon();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + request.getRequestLine());
+        }
+    }
+
+    private static boolean isIdempotent(OutgoingRequest request) {
+        String method = request.getRequestLine().getMethod();
+        return ("GET".equals(method) || "HEAD".equals(method)) && request.getEntity() == null;
+    }
+
+    private HttpHost selectAlternateHost(HttpHost physicalHost) {
+        int index = -1;
+        for (int i = 0; i < hosts.length; i++) {
+            if (hosts[i].equals(physicalHost)) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            // External url
+            return null;
+        }
+        int offset = 1 + (nextHost.getAndIncrement() & Integer.MAX_VALUE) % (hosts.length - 1);
+        return hosts[(index + offset) % hosts.length];
+    }
+
+    private static OutgoingRequest copy(OutgoingRequest request, HttpHost physicalHost, CookieStore cookieStore) {
+        OutgoingRequestContext context = new OutgoingRequestContext();
+        OutgoingRequest copy =
+                new OutgoingRequest(request.getRequestLine().getMethod(), request.getRequestLine().getUri(),
+                        request.getProtocolVersion(), request.getOriginalRequest(), request.getConfig(), context);
+        copy.setHeaders(request.getAllHeaders());
+        context.setPhysicalHost(physicalHost);
+        context.setOutgoingRequest(copy);
+        context.setProxy(request.getContext().isProxy());
+        context.setCookieStore(cookieStore);
+        return copy;
+    }
+
+    private HttpResponse executeAndRecord(OutgoingRequest request) throws IOException {
+        OutgoingRequestContext context = request.getContext();
+        long start = System.currentTimeMillis();
+        HttpResponse result = httpClient.execute(context.getPhysicalHost(), request, context);
+        if (HttpCacheContext.adapt(context).getCacheResponseStatus() != CacheResponseStatus.CACHE_HIT) {
+            record(System.currentTimeMillis() - start);
+        }
+        return result;
+    }
+
+    private static IOException rethrow(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Records the latency of a request sent to a backend.
+     * 
+     * @param latency
+     *            the latency in milliseconds
+     */
+    synchronized void record(long latency) {
+        samples[nextSample] = latency;
+        nextSample = (nextSample + 1) % SAMPLES;
+        if (sampleCount < SAMPLES) {
+            sampleCount++;
+        }
+        sinceUpdate++;
+        if (sampleCount >= MIN_SAMPLES && sinceUpdate >= UPDATE_INTERVAL) {
+            sinceUpdate = 0;
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sampleCount) - 1;
+            index = Math.max(0, Math.min(sampleCount - 1, index));
+            delay = Math.max(minDelay, sorted[index]);
+        }
+    }
+
+    /**
+     * @return the delay before sending a duplicate request or -1 if not enough latencies have been recorded yet
+     */
+    long getDelay() {
+        return delay;
+    }
+
+    /**
+     * A request sent to one backend.
+     */
+    private final class Attempt implements Callable<HttpResponse> {
+        private final OutgoingRequest request;
+        private final BufferedCookieStore cookieStore;
+        private Future<HttpResponse> future;
+        private HttpResponse response;
+        private boolean abandoned;
+
+        private Attempt(OutgoingRequest request) {
+            this.request = request;
+            CookieStore target = request.getContext().getCookieStore();
+            if (target == null) {
+                this.cookieStore = null;
+            } else {
+                this.cookieStore = new BufferedCookieStore(target);
+                request.getContext().setCookieStore(cookieStore);
+            }
+        }
+
+        private void start(CompletionService<HttpResponse> completionService) {
+            this.future = completionService.submit(this);
+        }
+
+        @Override
+        public HttpResponse call() throws IOException {
+            HttpResponse result = executeAndRecord(request);
+            synchronized (this) {
+                if (abandoned) {
+                    close(result);
+                } else {
+                    this.response = result;
+                }
+            }
+            return result;
+        }
+
+        private void commit() {
+            if (cookieStore != null) {
+                cookieStore.commit();
+            }
+        }
+
+        private synchronized void abandon() {
+            abandoned = true;
+            if (cookieStore != null) {
+                cookieStore.discard();
+            }
+            if (response != null) {
+                close(response);
+                response = null;
+            } else {
+                // Still waiting for the backend, release the connection now
+                request.abort();
+            }
+        }
+
+        private void close(HttpResponse result) {
+            if (result instanceof Closeable) {
+                IOUtils.closeQuietly((Closeable) result);
+            }
+        }
+    }
+
+    /**
+     * A CookieStore that keeps the cookies received until we know whether the response will be used or not.
+     */
+    private static final class BufferedCookieStore implements CookieStore {
+        private final CookieStore target;
+        private final List<Cookie> pending = new ArrayList<Cookie>();
+        private boolean committed;
+        private boolean discarded;
+
+        private BufferedCookieStore(CookieStore target) {
+            this.target = target;
+        }
+
+        @Override
+        public synchronized void addCookie(Cookie cookie) {
+            if (committed) {
+                target.addCookie(cookie);
+            } else if (!discarded) {
+                pending.add(cookie);
+            }
+        }
+
+        @Override
+        public List<Cookie> getCookies() {
+            return target.getCookies();
+        }
+
+        @Override
+        public boolean clearExpired(Date date) {
+            return target.clearExpired(date);
+        }
+
+        @Override
+        public void clear() {
+            target.clear();
+        }
+
+        private synchronized void commit() {
+            committed = true;
+            for (Cookie cookie : pending) {
+                target.addCookie(cookie);
+            }
+            pending.clear();
+        }
+
+        private synchronized void discard() {
+            discarded = true;
+            pending.clear();
+        }
+    }
+
+}
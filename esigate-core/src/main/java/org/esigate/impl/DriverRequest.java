@@ -33,6 +33,7 @@ import org.esigate.util.UriUtils;
  * 
  */
 public class DriverRequest {
+    private static final String DEADLINE_ATTRIBUTE = DriverRequest.class.getName() + "#deadline";
     private final IncomingRequest wrappedRequest;
     private final Driver driver;
     private final UserContext userContext;
@@ -40,6 +41,7 @@ public class DriverRequest {
     private final String visibleBaseUrl;
     private final boolean external;
     private String characterEncoding;
+    private final long deadline;
 
     /**
      * 
@@ -68,7 +70,24 @@ public class DriverRequest {
                 visibleBase = this.baseUrl.toString();
             }
         }
-        this.visibleBaseUrl = UriUtils.rewriteURI(visibleBase, UriUtils.extractHost(request.getRequestLine().getUri()));
+        this.visibleBaseUrl = UriUtils.rewriteURI(visibleBase, request.getHttpHost());
+        this.deadline = initDeadline(request, driver.getConfiguration().getPageTimeout());
+    }
+
+    /**
+     * The deadline is shared by all the requests sent for the same incoming request. It is set by the first driver
+     * used, usually the one rendering the main page.
+     */
+    private static long initDeadline(IncomingRequest request, int pageTimeout) {
+        Long requestDeadline = request.getAttribute(DEADLINE_ATTRIBUTE);
+        if (requestDeadline == null) {
+            if (pageTimeout <= 0) {
+                return 0;
+            }
+            requestDeadline = System.currentTimeMillis() + pageTimeout;
+            request.setAttribute(DEADLINE_ATTRIBUTE, requestDeadline);
+        }
+        return requestDeadline;
     }
 
     /**
@@ -153,4 +172,34 @@ public class DriverRequest {
         return visibleBaseUrl;
     }
 
+    /**
+     * Returns the time at which the whole page must have been retrieved.
+     * 
+     * @return the deadline in milliseconds since epoch or 0 if there is no limit
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns the time left before the deadline.
+     * 
+     * @return the remaining time in milliseconds, may be negative if the deadline is exceeded, or
+     *         {@link Long#MAX_VALUE} if there is no deadline
+     */
+    public long getRemainingTime() {
+        if (deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return deadline - System.currentTimeMillis();
+    }
+
+    /**
+     * 
+     * @return true if there is a deadline and it has been exceeded
+     */
+    public boolean isDeadlineExceeded() {
+        return getRemainingTime() <= 0;
+    }
+
 }
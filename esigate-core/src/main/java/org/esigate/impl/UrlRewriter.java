@@ -131,40 +131,24 @@ public class UrlRewriter {
      * @return the fixed url.
      */
     public String rewriteUrl(String url, String requestUrl, String baseUrl, String visibleBaseUrl, boolean absolute) {
-        // Base url should end with /
-        if (!baseUrl.endsWith("/")) {
-            baseUrl = baseUrl + "/";
-        }
-        URI baseUri = UriUtils.createURI(baseUrl);
-
-        // If no visible url base is defined, use base url as visible base url
-        if (!visibleBaseUrl.endsWith("/")) {
-            visibleBaseUrl = visibleBaseUrl + "/";
-        }
-        URI visibleBaseUri = UriUtils.createURI(visibleBaseUrl);
-
-        // Build the absolute Uri of the request sent to the backend
-        URI requestUri;
-        if (requestUrl.startsWith(visibleBaseUrl)) {
-            requestUri = UriUtils.createURI(requestUrl);
-        } else {
-            requestUri = UriUtils.concatPath(baseUri, requestUrl);
-        }
+        return rewriteUrl(url, new BaseUris(requestUrl, baseUrl, visibleBaseUrl), absolute);
+    }
 
+    private String rewriteUrl(String url, BaseUris baseUris, boolean absolute) {
         // Interpret the url relatively to the request url (may be relative)
-        URI uri = UriUtils.resolve(url, requestUri);
+        URI uri = UriUtils.resolve(url, baseUris.requestUri);
         // Normalize the path (remove . or .. if possible)
         uri = uri.normalize();
 
         // Try to relativize url to base url
-        URI relativeUri = baseUri.relativize(uri);
+        URI relativeUri = baseUris.baseUri.relativize(uri);
         // If the url is unchanged do nothing
         if (relativeUri.equals(uri)) {
             LOG.debug("url kept unchanged: [{}]", url);
             return url;
         }
         // Else rewrite replacing baseUrl by visibleBaseUrl
-        URI result = visibleBaseUri.resolve(relativeUri);
+        URI result = baseUris.visibleBaseUri.resolve(relativeUri);
         // If mode relative, remove all the scheme://host:port to keep only a url relative to server root (starts with
         // "/")
         if (!absolute) {
@@ -195,6 +179,8 @@ public class UrlRewriter {
             boolean absolute) {
         StringBuffer result = new StringBuffer(input.length());
         Matcher m = URL_PATTERN.matcher(input);
+        // Parsed only once for all the urls of the page
+        BaseUris baseUris = null;
         while (m.find()) {
             String url = input.subSequence(m.start(3) + 1, m.end(3) - 1).toString();
             String tag = m.group(0);
@@ -212,13 +198,19 @@ public class UrlRewriter {
                 LOG.debug("url in javascript kept unchanged: [{}]", url);
             } else if (m.group(2).equalsIgnoreCase("content")) {
                 if (META_REFRESH_PATTERN.matcher(tag).find()) {
-                    rewrittenUrl = rewriteRefresh(trimmedUrl, requestUrl, baseUrlParam, visibleBaseUrl);
+                    if (baseUris == null) {
+                        baseUris = new BaseUris(requestUrl, baseUrlParam, visibleBaseUrl);
+                    }
+                    rewrittenUrl = rewriteRefresh(trimmedUrl, baseUris);
                     LOG.debug("refresh url [{}] rewritten [{}]", url, rewrittenUrl);
                 } else {
                     LOG.debug("content attribute kept unchanged: [{}]", url);
                 }
             } else {
-                rewrittenUrl = rewriteUrl(trimmedUrl, requestUrl, baseUrlParam, visibleBaseUrl, absolute);
+                if (baseUris == null) {
+                    baseUris = new BaseUris(requestUrl, baseUrlParam, visibleBaseUrl);
+                }
+                rewrittenUrl = rewriteUrl(trimmedUrl, baseUris, absolute);
             }
             rewrittenUrl = rewrittenUrl.replaceAll("\\$", "\\\\\\$"); // replace '$' -> '\$' as it
             // denotes group
@@ -252,15 +244,49 @@ public class UrlRewriter {
      * @return the rewritten refresh value
      */
     public String rewriteRefresh(String input, String requestUrl, String baseUrl, String visibleBaseUrl) {
+        return rewriteRefresh(input, new BaseUris(requestUrl, baseUrl, visibleBaseUrl));
+    }
+
+    private String rewriteRefresh(String input, BaseUris baseUris) {
         // Header has the following format
         // Refresh: 5; url=http://www.w3.org/pub/WWW/People.html
         int urlPosition = input.indexOf("url=");
         if (urlPosition >= 0) {
             String urlValue = input.substring(urlPosition + "url=".length());
-            String targetUrlValue = rewriteUrl(urlValue, requestUrl, baseUrl, visibleBaseUrl, true);
+            String targetUrlValue = rewriteUrl(urlValue, baseUris, true);
             return input.substring(0, urlPosition) + "url=" + targetUrlValue;
         } else {
             return input;
         }
     }
+
+    /**
+     * The uris used to rewrite the urls of a request, parsed once for all the urls found in a page.
+     */
+    private static final class BaseUris {
+        private final URI baseUri;
+        private final URI visibleBaseUri;
+        private final URI requestUri;
+
+        private BaseUris(String requestUrl, String baseUrl, String visibleBaseUrl) {
+            // Base url should end with /
+            if (!baseUrl.endsWith("/")) {
+                baseUrl = baseUrl + "/";
+            }
+            baseUri = UriUtils.createURI(baseUrl);
+
+            // If no visible url base is defined, use base url as visible base url
+            if (!visibleBaseUrl.endsWith("/")) {
+                visibleBaseUrl = visibleBaseUrl + "/";
+            }
+            visibleBaseUri = UriUtils.createURI(visibleBaseUrl);
+
+            // Build the absolute Uri of the request sent to the backend
+            if (requestUrl.startsWith(visibleBaseUrl)) {
+                requestUri = UriUtils.createURI(requestUrl);
+            } else {
+                requestUri = UriUtils.concatPath(baseUri, requestUrl);
+            }
+        }
+    }
 }
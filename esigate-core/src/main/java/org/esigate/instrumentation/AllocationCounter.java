@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handle used to record the number of bytes allocated by the current thread during a processing phase.
+ * 
+ * <pre>
+ * long start = counter.start();
+ * // ...
+ * counter.stop(start);
+ * </pre>
+ * 
+ * The allocations are read with com.sun.management.ThreadMXBean, which is available on HotSpot and OpenJDK. On the
+ * other virtual machines, the counters are always {@link #DISABLED}. The measurement is turned on, for the whole
+ * virtual machine, only when a driver is configured with allocationTracking.
+ */
+public abstract class AllocationCounter {
+    private static final Logger LOG = LoggerFactory.getLogger(AllocationCounter.class);
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = getThreadMXBean();
+
+    /**
+     * Counter that does not read anything.
+     */
+    public static final AllocationCounter DISABLED = new AllocationCounter() {
+
+        @Override
+        public long start() {
+            return 0;
+        }
+
+        @Override
+        public void stop(long start) {
+            // Nothing to record
+        }
+
+        @Override
+        public void record(long bytes) {
+            // Nothing to record
+        }
+    };
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        try {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean result = (com.sun.management.ThreadMXBean) threadMXBean;
+                if (result.isThreadAllocatedMemorySupported()) {
+                    return result;
+                }
+            }
+        } catch (LinkageError e) {
+            LOG.debug("com.sun.management.ThreadMXBean is not available", e);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if this virtual machine can measure the memory allocated by a thread
+     */
+    public static boolean isSupported() {
+        return THREAD_MX_BEAN != null;
+    }
+
+    /**
+     * Turns on the measurement of the memory allocated by the threads, if it is not already on.
+     * 
+     * @return false if the virtual machine cannot measure it
+     */
+    static boolean enable() {
+        if (THREAD_MX_BEAN == null) {
+            return false;
+        }
+        try {
+            if (!THREAD_MX_BEAN.isThreadAllocatedMemoryEnabled()) {
+                THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+            }
+            return true;
+        } catch (SecurityException | UnsupportedOperationException e) {
+            LOG.debug("Could not enable thread allocated memory measurement", e);
+            return false;
+        }
+    }
+
+    /**
+     * Records the number of bytes allocated during a phase.
+     * 
+     * @param bytes
+     *            the number of bytes
+     */
+    public abstract void record(long bytes);
+
+    /**
+     * @return the value to give to {@link #stop(long)}
+     */
+    public long start() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Records the bytes allocated by the current thread since {@link #start()} was called.
+     * 
+     * @param start
+     *            the value returned by {@link #start()}, in the same thread
+     */
+    public void stop(long start) {
+        long bytes = THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+        if (start >= 0 && bytes >= 0) {
+            record(bytes);
+        }
+    }
+
+}
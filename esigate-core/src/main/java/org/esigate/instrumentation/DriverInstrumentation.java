@@ -0,0 +1,261 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+import java.io.Closeable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.Renderer;
+import org.esigate.extension.ExtensionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The timers and allocation counters of a driver, resolved once from the {@link Instrumentation} configured.
+ */
+public final class DriverInstrumentation {
+    private static final Logger LOG = LoggerFactory.getLogger(DriverInstrumentation.class);
+
+    /**
+     * Used when no instrumentation is configured, all the timers are disabled.
+     */
+    public static final DriverInstrumentation DISABLED = new DriverInstrumentation(null, false);
+
+    private final Instrumentation instrumentation;
+    private final PhaseTimer request;
+    private final PhaseTimer providerSelection;
+    private final PhaseTimer cacheLookup;
+    private final Map<CacheResponseStatus, PhaseTimer> fetches = new EnumMap<CacheResponseStatus, PhaseTimer>(
+            CacheResponseStatus.class);
+    private final PhaseTimer backendConnect;
+    private final PhaseTimer backendFirstByte;
+    private final PhaseTimer backendBody;
+    private final PhaseTimer parse;
+    private final PhaseTimer include;
+    private final ConcurrentMap<Class<?>, PhaseTimer> renderers = new ConcurrentHashMap<Class<?>, PhaseTimer>();
+    private final boolean allocationTracking;
+    private final AllocationCounter fetchAllocation;
+    private final AllocationCounter backendBodyAllocation;
+    private final AllocationCounter parseAllocation;
+    private final ConcurrentMap<Class<?>, AllocationCounter> rendererAllocations =
+            new ConcurrentHashMap<Class<?>, AllocationCounter>();
+
+    private DriverInstrumentation(Instrumentation instrumentation, boolean allocationTracking) {
+        this.instrumentation = instrumentation;
+        this.allocationTracking = instrumentation != null && allocationTracking;
+        request = resolve(Instrumentation.REQUEST);
+        providerSelection = resolve(Instrumentation.PROVIDER_SELECTION);
+        cacheLookup = resolve(Instrumentation.CACHE_LOOKUP);
+        for (CacheResponseStatus cacheResponseStatus : CacheResponseStatus.values()) {
+            fetches.put(cacheResponseStatus, resolve(Instrumentation.FETCH_PREFIX
+                    + cacheResponseStatus.name().toLowerCase()));
+        }
+        backendConnect = resolve(Instrumentation.BACKEND_CONNECT);
+        backendFirstByte = resolve(Instrumentation.BACKEND_FIRST_BYTE);
+        backendBody = resolve(Instrumentation.BACKEND_BODY);
+        parse = resolve(Instrumentation.PARSE);
+        include = resolve(Instrumentation.INCLUDE);
+        fetchAllocation = resolveAllocation(Instrumentation.FETCH);
+        backendBodyAllocation = resolveAllocation(Instrumentation.BACKEND_BODY);
+        parseAllocation = resolveAllocation(Instrumentation.PARSE);
+    }
+
+    /**
+     * Creates the instrumentation configured for a driver.
+     * 
+     * @param properties
+     *            the driver configuration
+     * @param driver
+     *            the driver
+     * @return the instrumentation, {@link #DISABLED} if none is configured
+     */
+    public static DriverInstrumentation create(Properties properties, Driver driver) {
+        Instrumentation instrumentation = ExtensionFactory.getExtension(properties, Parameters.INSTRUMENTATION, driver);
+        if (instrumentation == null) {
+            return DISABLED;
+        }
+        boolean allocationTracking = Parameters.ALLOCATION_TRACKING.getValue(properties);
+        if (allocationTracking && !AllocationCounter.enable()) {
+            LOG.warn("allocationTracking is not supported by this virtual machine, allocations will not be measured");
+            allocationTracking = false;
+        }
+        return new DriverInstrumentation(instrumentation, allocationTracking);
+    }
+
+    /**
+     * Releases the resources of the instrumentation when the driver is closed.
+     */
+    public void close() {
+        if (instrumentation instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) instrumentation);
+        }
+    }
+
+    private PhaseTimer resolve(String name) {
+        if (instrumentation == null) {
+            return PhaseTimer.DISABLED;
+        }
+        PhaseTimer timer = instrumentation.getTimer(name);
+        if (timer == null) {
+            return PhaseTimer.DISABLED;
+        }
+        return timer;
+    }
+
+    private AllocationCounter resolveAllocation(String name) {
+        if (!allocationTracking) {
+            return AllocationCounter.DISABLED;
+        }
+        AllocationCounter counter = instrumentation.getAllocationCounter(name);
+        if (counter == null) {
+            return AllocationCounter.DISABLED;
+        }
+        return counter;
+    }
+
+    /**
+     * @return true if an instrumentation is configured
+     */
+    public boolean isEnabled() {
+        return instrumentation != null;
+    }
+
+    public PhaseTimer getRequest() {
+        return request;
+    }
+
+    public PhaseTimer getProviderSelection() {
+        return providerSelection;
+    }
+
+    public PhaseTimer getCacheLookup() {
+        return cacheLookup;
+    }
+
+    /**
+     * @return the start time to give to {@link #stopFetch(long, Object)}
+     */
+    public long startFetch() {
+        if (instrumentation == null) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a fetch in the timer of its cache status. The cache status should only be read when the instrumentation
+     * is enabled.
+     * 
+     * @param start
+     *            the value returned by {@link #startFetch()}
+     * @param cacheResponseStatus
+     *            the cache status found in the http context, null if the response did not go through the cache
+     */
+    public void stopFetch(long start, Object cacheResponseStatus) {
+        PhaseTimer timer;
+        if (cacheResponseStatus instanceof CacheResponseStatus) {
+            timer = fetches.get(cacheResponseStatus);
+        } else {
+            timer = fetches.get(CacheResponseStatus.CACHE_MISS);
+        }
+        timer.stop(start);
+    }
+
+    public PhaseTimer getBackendConnect() {
+        return backendConnect;
+    }
+
+    public PhaseTimer getBackendFirstByte() {
+        return backendFirstByte;
+    }
+
+    public PhaseTimer getBackendBody() {
+        return backendBody;
+    }
+
+    public PhaseTimer getParse() {
+        return parse;
+    }
+
+    public PhaseTimer getInclude() {
+        return include;
+    }
+
+    public AllocationCounter getFetchAllocation() {
+        return fetchAllocation;
+    }
+
+    public AllocationCounter getBackendBodyAllocation() {
+        return backendBodyAllocation;
+    }
+
+    public AllocationCounter getParseAllocation() {
+        return parseAllocation;
+    }
+
+    /**
+     * @param renderer
+     *            a renderer
+     * @return the timer for this class of renderer
+     */
+    public PhaseTimer getRenderer(Renderer renderer) {
+        if (instrumentation == null) {
+            return PhaseTimer.DISABLED;
+        }
+        Class<?> rendererClass = renderer.getClass();
+        PhaseTimer timer = renderers.get(rendererClass);
+        if (timer == null) {
+            timer = resolve(getRendererName(rendererClass));
+            renderers.putIfAbsent(rendererClass, timer);
+        }
+        return timer;
+    }
+
+    /**
+     * @param renderer
+     *            a renderer
+     * @return the allocation counter for this class of renderer
+     */
+    public AllocationCounter getRendererAllocation(Renderer renderer) {
+        if (!allocationTracking) {
+            return AllocationCounter.DISABLED;
+        }
+        Class<?> rendererClass = renderer.getClass();
+        AllocationCounter counter = rendererAllocations.get(rendererClass);
+        if (counter == null) {
+            counter = resolveAllocation(getRendererName(rendererClass));
+            rendererAllocations.putIfAbsent(rendererClass, counter);
+        }
+        return counter;
+    }
+
+    private static String getRendererName(Class<?> rendererClass) {
+        String name = rendererClass.getSimpleName();
+        if (name.isEmpty()) {
+            name = rendererClass.getName();
+        }
+        return Instrumentation.RENDER_PREFIX + name;
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+import org.esigate.extension.Extension;
+
+/**
+ * Measures the time spent in each phase of the processing of a request. An instance is created for each driver,
+ * configured with the <code>instrumentation</code> parameter. When the <code>allocationTracking</code> parameter is
+ * enabled, the memory allocated by some of the phases is measured too.
+ * <p>
+ * Timers and counters are resolved by name only once, when the driver is built or the first time a renderer is used,
+ * then they are reused for all the requests. Implementations should return timers and counters that can record a value
+ * without allocating any object.
+ */
+public interface Instrumentation extends Extension {
+    /** Processing of a request by the driver, from the request to the provider until the response is rendered. */
+    String REQUEST = "request";
+    /** Selection of the driver matching the incoming request. */
+    String PROVIDER_SELECTION = "providerSelection";
+    /** Lookup of the http cache, until the response is found or the request is sent to the provider. */
+    String CACHE_LOOKUP = "cacheLookup";
+    /**
+     * Sending a request to the provider through the http client and the cache, until the response is received. The
+     * durations are recorded by the timer of the cache status of the response: {@link #FETCH_PREFIX} followed by
+     * cache_hit, cache_miss, cache_module_response or validated. Responses fetched without the cache are cache misses.
+     */
+    String FETCH = "fetch";
+    /** Prefix of the timers of {@link #FETCH}, followed by the cache status in lower case. */
+    String FETCH_PREFIX = "fetch.";
+    /** Obtaining a connection to the provider, including the wait for a pooled connection. */
+    String BACKEND_CONNECT = "backendConnect";
+    /** Sending the request to the provider until the response headers are received. */
+    String BACKEND_FIRST_BYTE = "backendFirstByte";
+    /** Reading the body of a response to be rendered. */
+    String BACKEND_BODY = "backendBody";
+    /** Parsing a page, including the processing of the tags that are not run asynchronously. */
+    String PARSE = "parse";
+    /** Retrieving and rendering an included page, recorded by the driver of the included page. */
+    String INCLUDE = "include";
+    /** Prefix of the timer of each renderer, followed by the simple name of the renderer class. */
+    String RENDER_PREFIX = "render.";
+
+    /**
+     * Resolves a timer.
+     * 
+     * @param name
+     *            the name of the timer
+     * @return the timer or null if this phase is not measured
+     */
+    PhaseTimer getTimer(String name);
+
+    /**
+     * Resolves an allocation counter, only called when allocationTracking is enabled. The counters are available for
+     * {@link #FETCH}, {@link #BACKEND_BODY}, {@link #PARSE} and the renderers.
+     * 
+     * @param name
+     *            the name of the phase
+     * @return the counter or null if the allocations of this phase are not measured
+     */
+    AllocationCounter getAllocationCounter(String name);
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+
+import org.esigate.Driver;
+import org.esigate.Parameters;
+
+/**
+ * Keeps the last traces in memory, shared by all the drivers. This is the default exporter, the traces can be read on
+ * the control port of esigate-server.
+ */
+public class MemoryTraceExporter implements TraceExporter {
+    private static final int MAX_TRACES = 100;
+    private static final Deque<RenderTrace> TRACES = new ArrayDeque<RenderTrace>(MAX_TRACES);
+
+    @Override
+    public void init(Driver driver, Properties properties) {
+        // Nothing to configure
+    }
+
+    @Override
+    public void export(RenderTrace trace) {
+        synchronized (TRACES) {
+            if (TRACES.size() == MAX_TRACES) {
+                TRACES.removeFirst();
+            }
+            TRACES.addLast(trace);
+        }
+    }
+
+    /**
+     * @return the last traces, oldest first
+     */
+    public static List<RenderTrace> getTraces() {
+        synchronized (TRACES) {
+            return new ArrayList<RenderTrace>(TRACES);
+        }
+    }
+
+    /**
+     * Forgets all the traces.
+     */
+    public static void clear() {
+        synchronized (TRACES) {
+            TRACES.clear();
+        }
+    }
+
+    /**
+     * @return the last traces as text, most recent first
+     */
+    public static String dump() {
+        List<RenderTrace> traces = getTraces();
+        StringBuilder result = new StringBuilder(Parameters.DEFAULT_BUFFER_SIZE);
+        for (int i = traces.size() - 1; i >= 0; i--) {
+            result.append(traces.get(i)).append('\n');
+        }
+        return result.toString();
+    }
+
+}
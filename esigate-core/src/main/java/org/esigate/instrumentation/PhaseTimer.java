@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+/**
+ * Handle used to record the durations of a processing phase.
+ * 
+ * <pre>
+ * long start = timer.start();
+ * // ...
+ * timer.stop(start);
+ * </pre>
+ */
+public abstract class PhaseTimer {
+    /**
+     * Timer that does not even read the clock.
+     */
+    public static final PhaseTimer DISABLED = new PhaseTimer() {
+
+        @Override
+        public long start() {
+            return 0;
+        }
+
+        @Override
+        public void stop(long start) {
+            // Nothing to record
+        }
+
+        @Override
+        public void record(long durationNanos) {
+            // Nothing to record
+        }
+
+    };
+
+    /**
+     * Records a duration.
+     * 
+     * @param durationNanos
+     *            the duration in nanoseconds
+     */
+    public abstract void record(long durationNanos);
+
+    /**
+     * @return the start time to give to {@link #stop(long)}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since {@link #start()} was called.
+     * 
+     * @param start
+     *            the value returned by {@link #start()}
+     */
+    public void stop(long start) {
+        record(System.nanoTime() - start);
+    }
+
+}
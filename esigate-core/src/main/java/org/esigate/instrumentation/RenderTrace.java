@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+import org.esigate.Parameters;
+import org.esigate.http.IncomingRequest;
+
+/**
+ * Tree of the {@link TraceSpan}s of an incoming request, showing how the time was spent in the included pages.
+ * <p>
+ * The span being processed is attached to the current thread. Spans processed by another thread must be given their
+ * parent explicitly.
+ */
+public final class RenderTrace {
+    /**
+     * Response header containing a summary of the trace.
+     */
+    public static final String HEADER = "X-Esigate-Trace";
+    private static final String ATTRIBUTE = RenderTrace.class.getName();
+    private static final ThreadLocal<TraceSpan> CURRENT = new ThreadLocal<TraceSpan>();
+    private static final long NANOS_PER_TENTH_OF_MILLI = 100000L;
+
+    private final String requestLine;
+    private final long timestamp = System.currentTimeMillis();
+    private final TraceSpan root;
+
+    private RenderTrace(String requestLine, TraceSpan root) {
+        this.requestLine = requestLine;
+        this.root = root;
+    }
+
+    /**
+     * Starts tracing a request, the root span becomes the current span of the thread.
+     * 
+     * @param request
+     *            the incoming request
+     * @param name
+     *            the name of the root span, typically the page requested to the provider
+     * @param provider
+     *            the name of the driver processing the request
+     * @return the trace
+     */
+    public static RenderTrace start(IncomingRequest request, String name, String provider) {
+        TraceSpan root = new TraceSpan(name, 0, CURRENT.get());
+        root.setProvider(provider);
+        RenderTrace trace = new RenderTrace(request.getRequestLine().toString(), root);
+        request.setAttribute(ATTRIBUTE, trace);
+        CURRENT.set(root);
+        return trace;
+    }
+
+    /**
+     * @param request
+     *            the incoming request
+     * @return the trace of the request or null if it is not traced
+     */
+    public static RenderTrace get(IncomingRequest request) {
+        return request.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * @return the span processed by the current thread, null if none
+     */
+    public static TraceSpan current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts a span if the request is traced. It becomes the current span of the thread.
+     * 
+     * @param request
+     *            the incoming request
+     * @param parent
+     *            the parent span, null for the current span of the thread
+     * @param name
+     *            the name of the span, typically the src of an include
+     * @param queueWait
+     *            the time spent before a thread was available to process this span
+     * @return the span or null if the request is not traced
+     */
+    public static TraceSpan startSpan(IncomingRequest request, TraceSpan parent, String name, long queueWait) {
+        RenderTrace trace = get(request);
+        if (trace == null) {
+            return null;
+        }
+        TraceSpan previous = CURRENT.get();
+        TraceSpan actualParent = parent;
+        if (actualParent == null) {
+            actualParent = previous;
+        }
+        if (actualParent == null) {
+            actualParent = trace.root;
+        }
+        TraceSpan span = new TraceSpan(name, queueWait, previous);
+        actualParent.addChild(span);
+        CURRENT.set(span);
+        return span;
+    }
+
+    /**
+     * Ends a span and restores the span that was current before it was started.
+     * 
+     * @param span
+     *            the span, may be null
+     */
+    public static void endSpan(TraceSpan span) {
+        if (span == null) {
+            return;
+        }
+        span.end();
+        if (span.getPrevious() == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(span.getPrevious());
+        }
+    }
+
+    /**
+     * Ends the trace.
+     */
+    public void end() {
+        endSpan(root);
+    }
+
+    public TraceSpan getRoot() {
+        return root;
+    }
+
+    public String getRequestLine() {
+        return requestLine;
+    }
+
+    /**
+     * @return the time the trace started in milliseconds since epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return a one-line summary: total time, fetch time, render time of the page, number of includes and slowest
+     *         include
+     */
+    public String getSummary() {
+        long[] fetchAndCount = new long[2];
+        TraceSpan[] slowest = new TraceSpan[1];
+        sum(root, fetchAndCount, slowest);
+        StringBuilder result = new StringBuilder(Parameters.SMALL_BUFFER_SIZE);
+        result.append("total=");
+        appendMillis(result, root.getDuration());
+        result.append(", fetch=");
+        appendMillis(result, fetchAndCount[0]);
+        result.append(", render=");
+        appendMillis(result, root.getRenderTime());
+        result.append(", includes=").append(fetchAndCount[1]);
+        if (slowest[0] != null) {
+            result.append(", slowest=").append(slowest[0].getName()).append(" (");
+            appendMillis(result, slowest[0].getDuration());
+            result.append(')');
+        }
+        return result.toString();
+    }
+
+    private static void sum(TraceSpan span, long[] fetchAndCount, TraceSpan[] slowest) {
+        fetchAndCount[0] += span.getFetchTime();
+        for (TraceSpan child : span.getChildren()) {
+            fetchAndCount[1]++;
+            if (slowest[0] == null || child.getDuration() > slowest[0].getDuration()) {
+                slowest[0] = child;
+            }
+            sum(child, fetchAndCount, slowest);
+        }
+    }
+
+    /**
+     * Writes the tree of spans, one line per span with its start offset relative to the beginning of the request.
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(Parameters.SMALL_BUFFER_SIZE);
+        result.append(requestLine).append('\n');
+        append(result, root, 1);
+        return result.toString();
+    }
+
+    private void append(StringBuilder result, TraceSpan span, int depth) {
+        for (int i = 0; i < depth; i++) {
+            result.append("  ");
+        }
+        result.append(span.getName());
+        result.append(" provider=").append(span.getProvider());
+        result.append(" start=+");
+        appendMillis(result, span.getStart() - root.getStart());
+        result.append(" total=");
+        appendMillis(result, span.getDuration());
+        result.append(" queue=");
+        appendMillis(result, span.getQueueWait());
+        result.append(" fetch=");
+        appendMillis(result, span.getFetchTime());
+        result.append(" render=");
+        appendMillis(result, span.getRenderTime());
+        result.append(" cache=").append(span.getCacheStatus());
+        result.append(" size=").append(span.getSize());
+        result.append('\n');
+        for (TraceSpan child : span.getChildren()) {
+            append(result, child, depth + 1);
+        }
+    }
+
+    private static void appendMillis(StringBuilder result, long nanos) {
+        long tenths = nanos / NANOS_PER_TENTH_OF_MILLI;
+        result.append(tenths / 10).append('.').append(Math.abs(tenths % 10)).append("ms");
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+import org.esigate.extension.Extension;
+
+/**
+ * Receives the {@link RenderTrace} of each traced request once the response is ready. Configured with the
+ * <code>traceExporter</code> parameter when <code>trace</code> is enabled.
+ */
+public interface TraceExporter extends Extension {
+
+    /**
+     * @param trace
+     *            the trace of a request, all its spans are ended
+     */
+    void export(RenderTrace trace);
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A step of the processing of a request, the page requested or an included page. Durations are in nanoseconds.
+ */
+public final class TraceSpan {
+    private final String name;
+    private final long start = System.nanoTime();
+    private final long queueWait;
+    private final List<TraceSpan> children = new CopyOnWriteArrayList<TraceSpan>();
+    /** The current span of the thread before this one was started. */
+    private final TraceSpan previous;
+    private volatile long duration = -1;
+    private volatile String provider;
+    private volatile String cacheStatus;
+    private volatile long fetchTime;
+    private volatile long renderTime;
+    private volatile long size;
+
+    TraceSpan(String name, long queueWait, TraceSpan previous) {
+        this.name = name;
+        this.queueWait = queueWait;
+        this.previous = previous;
+    }
+
+    void end() {
+        duration = System.nanoTime() - start;
+    }
+
+    TraceSpan getPrevious() {
+        return previous;
+    }
+
+    void addChild(TraceSpan child) {
+        children.add(child);
+    }
+
+    /**
+     * Records a request to the provider.
+     * 
+     * @param time
+     *            the duration of the request
+     * @param status
+     *            the cache status of the response, null if unknown
+     * @param length
+     *            the number of characters read
+     */
+    public void addFetch(long time, Object status, long length) {
+        fetchTime += time;
+        if (status != null) {
+            cacheStatus = status.toString();
+        }
+        size += length;
+    }
+
+    /**
+     * Records the time spent in the renderers.
+     * 
+     * @param time
+     *            the duration of the rendering
+     */
+    public void addRender(long time) {
+        renderTime += time;
+    }
+
+    public void setProvider(String provider) {
+        this.provider = provider;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} when the span started
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the total duration or -1 if the span is not finished
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the time spent waiting for a thread to process this span
+     */
+    public long getQueueWait() {
+        return queueWait;
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public String getCacheStatus() {
+        return cacheStatus;
+    }
+
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    public long getRenderTime() {
+        return renderTime;
+    }
+
+    /**
+     * @return the number of characters received from the provider
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public List<TraceSpan> getChildren() {
+        return children;
+    }
+
+}
@@ -0,0 +1,6 @@
+/**
+ * Package contains the interfaces used to measure the time spent and the memory allocated in each processing phase
+ * and to trace requests.
+ */
+package org.esigate.instrumentation;
+
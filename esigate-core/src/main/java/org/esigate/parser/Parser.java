@@ -24,6 +24,9 @@ import java.util.regex.Pattern;
 import org.apache.http.HttpResponse;
 import org.esigate.HttpErrorPage;
 import org.esigate.impl.DriverRequest;
+import org.esigate.instrumentation.AllocationCounter;
+import org.esigate.instrumentation.DriverInstrumentation;
+import org.esigate.instrumentation.PhaseTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,6 +66,15 @@ public class Parser {
      * @throws HttpErrorPage
      */
     public void parse(CharSequence in, Appendable out) throws IOException, HttpErrorPage {
+        PhaseTimer timer = PhaseTimer.DISABLED;
+        AllocationCounter allocationCounter = AllocationCounter.DISABLED;
+        if (httpRequest != null) {
+            DriverInstrumentation instrumentation = httpRequest.getDriver().getInstrumentation();
+            timer = instrumentation.getParse();
+            allocationCounter = instrumentation.getParseAllocation();
+        }
+        long start = timer.start();
+        long allocationStart = allocationCounter.start();
         ParserContextImpl ctx = new ParserContextImpl(out, httpRequest, httpResponse);
         Matcher matcher = pattern.matcher(in);
         int currentPosition = 0;
@@ -94,6 +106,8 @@ public class Parser {
         }
         // we reached the end of input
         ctx.characters(in, currentPosition, in.length());
+        allocationCounter.stop(allocationStart);
+        timer.stop(start);
     }
 
     public void setHttpRequest(DriverRequest httpRequest) {
@@ -26,6 +26,9 @@ import java.util.regex.Pattern;
 import org.apache.http.HttpResponse;
 import org.esigate.HttpErrorPage;
 import org.esigate.impl.DriverRequest;
+import org.esigate.instrumentation.AllocationCounter;
+import org.esigate.instrumentation.DriverInstrumentation;
+import org.esigate.instrumentation.PhaseTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,6 +75,15 @@ public class FutureParser {
      * @throws HttpErrorPage
      */
     public void parse(CharSequence in, FutureAppendable out) throws IOException, HttpErrorPage {
+        PhaseTimer timer = PhaseTimer.DISABLED;
+        AllocationCounter allocationCounter = AllocationCounter.DISABLED;
+        if (this.httpRequest != null) {
+            DriverInstrumentation instrumentation = this.httpRequest.getDriver().getInstrumentation();
+            timer = instrumentation.getParse();
+            allocationCounter = instrumentation.getParseAllocation();
+        }
+        long start = timer.start();
+        long allocationStart = allocationCounter.start();
         FutureParserContextImpl ctx = new FutureParserContextImpl(out, this.httpRequest, this.httpResponse, this.data);
         Matcher matcher = this.pattern.matcher(in);
         int currentPosition = 0;
@@ -102,6 +114,8 @@ public class FutureParser {
         }
         // we reached the end of input
         ctx.characters(new CharSequenceFuture(in.subSequence(currentPosition, in.length())));
+        allocationCounter.stop(allocationStart);
+        timer.stop(start);
     }
 
     public void setHttpRequest(DriverRequest httpRequest) {
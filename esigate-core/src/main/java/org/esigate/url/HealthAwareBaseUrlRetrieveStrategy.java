@@ -0,0 +1,257 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.url;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.esigate.Parameters;
+import org.esigate.api.BaseUrlRetrieveStrategy;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.FetchEvent;
+import org.esigate.http.IncomingRequest;
+import org.esigate.http.OutgoingRequest;
+import org.esigate.http.OutgoingRequestContext;
+import org.esigate.util.UriUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load-balancing strategy that takes into account the health of each backend.
+ * <p>
+ * For each base url, it keeps track of the average latency (exponentially weighted moving average), the error rate and
+ * the number of requests in progress, using fetch events. Base urls are selected by picking two of them at random and
+ * keeping the less loaded one (power of two choices). The responses generated without contacting the backend (page
+ * timeout, open circuit) and the aborted requests are not taken into account.
+ * <p>
+ * A base url is ejected after a number of consecutive errors. It is reintroduced after a delay that grows each time it
+ * is ejected again, then receives progressively more traffic (slow start).
+ */
+public class HealthAwareBaseUrlRetrieveStrategy implements BaseUrlRetrieveStrategy, IEventListener {
+    private static final Logger LOG = LoggerFactory.getLogger(HealthAwareBaseUrlRetrieveStrategy.class);
+    private static final String START_TIME_ATTRIBUTE = HealthAwareBaseUrlRetrieveStrategy.class.getName()
+            + "#startTime";
+    /** Weight of the last request in the moving averages. */
+    private static final double ALPHA = 0.2;
+    /** Maximum number of times the ejection delay is doubled. */
+    private static final int MAX_BACKOFF = 5;
+    /** Avoids a division by zero when a node fails all the requests. */
+    private static final double MIN_ERROR_RATE_DIVISOR = 0.01;
+    /** Minimum share of the traffic a node gets when it is reintroduced. */
+    private static final double MIN_SLOW_START_WEIGHT = 0.1;
+
+    private final String[] urls;
+    private final Node[] nodes;
+    private final int maxConsecutiveErrors;
+    private final long ejectionTime;
+    private final long slowStart;
+
+    public HealthAwareBaseUrlRetrieveStrategy(String[] urls, Properties properties) {
+        this.urls = urls;
+        this.nodes = new Node[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            nodes[i] = new Node(UriUtils.extractHost(urls[i]));
+        }
+        this.maxConsecutiveErrors = Parameters.HEALTH_CONSECUTIVE_ERRORS.getValue(properties);
+        this.ejectionTime = Parameters.HEALTH_EJECTION_TIME.getValue(properties);
+        this.slowStart = Parameters.HEALTH_SLOW_START.getValue(properties);
+    }
+
+    /**
+     * Registers to the fetch events in order to collect statistics.
+     * 
+     * @param eventManager
+     *            the event manager of the driver
+     */
+    public void register(EventManager eventManager) {
+        eventManager.register(EventManager.EVENT_FETCH_PRE, this);
+        eventManager.register(EventManager.EVENT_FETCH_POST, this);
+    }
+
+    @Override
+    public String getBaseURL(IncomingRequest originalRequest) {
+        long now = System.currentTimeMillis();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<Integer> candidates = new ArrayList<Integer>(nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+            // Nodes in slow start are only considered for a part of the requests
+            if (nodes[i].isAvailable(now) && random.nextDouble() < nodes[i].getWeight(now)) {
+                candidates.add(i);
+            }
+        }
+        if (candidates.isEmpty()) {
+            // Better try an ejected node than nothing
+            return urls[random.nextInt(nodes.length)];
+        }
+        if (candidates.size() == 1) {
+            return urls[candidates.get(0)];
+        }
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        int a = candidates.get(first);
+        int b = candidates.get(second);
+        if (nodes[a].getCost() <= nodes[b].getCost()) {
+            return urls[a];
+        }
+        return urls[b];
+    }
+
+    @Override
+    public boolean event(EventDefinition id, Event event) {
+        FetchEvent fetchEvent = (FetchEvent) event;
+        OutgoingRequestContext context = fetchEvent.getHttpContext();
+        Node node = findNode(context.getPhysicalHost());
+        if (node == null) {
+            // External url
+            return true;
+        }
+        if (EventManager.EVENT_FETCH_PRE.equals(id)) {
+            context.setAttribute(START_TIME_ATTRIBUTE, System.currentTimeMillis());
+            node.requestStarted();
+        } else {
+            Long startTime = (Long) context.removeAttribute(START_TIME_ATTRIBUTE);
+            OutgoingRequest outgoingRequest = context.getOutgoingRequest();
+            if (startTime != null
+                    && (context.isBackendSkipped() || outgoingRequest != null && outgoingRequest.isAborted())) {
+                // Says nothing about the health of the backend
+                node.requestCancelled();
+            } else if (startTime != null) {
+                boolean success =
+                        fetchEvent.getHttpResponse() != null
+                                && fetchEvent.getHttpResponse().getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR;
+                node.requestCompleted(System.currentTimeMillis() - startTime, success);
+            }
+        }
+        return true;
+    }
+
+    private Node findNode(HttpHost host) {
+        for (Node node : nodes) {
+            if (node.host.equals(host)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the start of a request, used for tests.
+     */
+    void requestStarted(String url) {
+        nodes[indexOf(url)].requestStarted();
+    }
+
+    /**
+     * Records the end of a request, used for tests.
+     */
+    void requestCompleted(String url, long latency, boolean success) {
+        nodes[indexOf(url)].requestCompleted(latency, success);
+    }
+
+    private int indexOf(String url) {
+        for (int i = 0; i < urls.length; i++) {
+            if (urls[i].equals(url)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(url);
+    }
+
+    /**
+     * Statistics for one base url.
+     */
+    private final class Node {
+        private final HttpHost host;
+        private int inFlight;
+        private double latency;
+        private double errorRate;
+        private int consecutiveErrors;
+        private int ejections;
+        private long ejectedUntil;
+
+        private Node(HttpHost host) {
+            this.host = host;
+        }
+
+        synchronized boolean isAvailable(long now) {
+            return now >= ejectedUntil;
+        }
+
+        /**
+         * The expected cost of sending a request to this node, the lower the better.
+         */
+        synchronized double getCost() {
+            return (latency + 1) * (inFlight + 1) / (1 - errorRate + MIN_ERROR_RATE_DIVISOR);
+        }
+
+        /**
+         * The share of the traffic this node can receive, lower than 1 just after it has been reintroduced.
+         */
+        synchronized double getWeight(long now) {
+            if (ejectedUntil > 0 && slowStart > 0 && now - ejectedUntil < slowStart) {
+                return Math.max(MIN_SLOW_START_WEIGHT, (double) (now - ejectedUntil) / slowStart);
+            }
+            return 1;
+        }
+
+        synchronized void requestStarted() {
+            inFlight++;
+        }
+
+        synchronized void requestCancelled() {
+            if (inFlight > 0) {
+                inFlight--;
+            }
+        }
+
+        synchronized void requestCompleted(long duration, boolean success) {
+            if (inFlight > 0) {
+                inFlight--;
+            }
+            latency = latency + ALPHA * (duration - latency);
+            errorRate = errorRate + ALPHA * ((success ? 0 : 1) - errorRate);
+            if (success) {
+                consecutiveErrors = 0;
+                if (ejections > 0 && System.currentTimeMillis() - ejectedUntil > slowStart) {
+                    ejections = 0;
+                }
+            } else {
+                consecutiveErrors++;
+                if (consecutiveErrors >= maxConsecutiveErrors && isAvailable(System.currentTimeMillis())) {
+                    long delay = ejectionTime << Math.min(ejections, MAX_BACKOFF);
+                    ejections++;
+                    ejectedUntil = System.currentTimeMillis() + delay;
+                    // Start again from scratch when the node is reintroduced
+                    consecutiveErrors = 0;
+                    errorRate = 0;
+                    latency = 0;
+                    LOG.warn("{} ejected for {} ms after {} consecutive errors", host, delay, maxConsecutiveErrors);
+                }
+            }
+        }
+    }
+
+}
@@ -15,6 +15,8 @@
 
 package org.esigate.url;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.cookie.BasicClientCookie;
 import org.esigate.api.BaseUrlRetrieveStrategy;
@@ -30,7 +32,7 @@ public class StickySessionBaseUrlRetrieveStrategy implements BaseUrlRetrieveStra
     }
 
     private int generateIndex() {
-        return (int) (Math.random() * this.urls.length);
+        return ThreadLocalRandom.current().nextInt(this.urls.length);
     }
 
     @Override
@@ -23,6 +23,8 @@ import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.esigate.http.IncomingRequest;
 import org.esigate.impl.DriverRequest;
 
 public final class HttpRequestHelper {
@@ -45,7 +47,7 @@ public final class HttpRequestHelper {
             characterEncoding = "ISO-8859-1";
         }
         List<NameValuePair> parameters =
-                UriUtils.parse(request.getOriginalRequest().getRequestLine().getUri(), characterEncoding);
+                URLEncodedUtils.parse(request.getOriginalRequest().getURI(), characterEncoding);
         Iterator<NameValuePair> it = parameters.iterator();
         while (it.hasNext()) {
             NameValuePair nameValuePair = it.next();
@@ -65,7 +67,12 @@ public final class HttpRequestHelper {
      * @return the host formatted as host:port
      */
     public static HttpHost getHost(HttpRequest request) {
-        HttpHost httpHost = UriUtils.extractHost(request.getRequestLine().getUri());
+        HttpHost httpHost;
+        if (request instanceof IncomingRequest) {
+            httpHost = ((IncomingRequest) request).getHttpHost();
+        } else {
+            httpHost = UriUtils.extractHost(request.getRequestLine().getUri());
+        }
         String scheme = httpHost.getSchemeName();
         String host = httpHost.getHostName();
         int port = httpHost.getPort();
@@ -30,7 +30,6 @@ import org.esigate.DriverFactory;
 import org.esigate.http.IncomingRequest;
 import org.esigate.impl.DriverRequest;
 import org.esigate.util.HttpRequestHelper;
-import org.esigate.util.UriUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -196,7 +195,7 @@ public final class VariablesResolver {
         String res = null;
         if (var.indexOf("QUERY_STRING") != -1) {
             if (arg == null) {
-                res = UriUtils.getRawQuery(incomingRequest.getRequestLine().getUri());
+                res = incomingRequest.getURI().getRawQuery();
             } else {
                 res = HttpRequestHelper.getParameter(request, arg);
             }
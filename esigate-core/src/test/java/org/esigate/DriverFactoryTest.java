@@ -15,11 +15,24 @@
 
 package org.esigate;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import org.esigate.http.HttpResponseUtils;
 import org.esigate.http.IncomingRequest;
 import org.esigate.impl.DriverRequest;
 import org.esigate.impl.UriMapping;
@@ -211,4 +224,59 @@ public class DriverFactoryTest extends TestCase {
 
     }
 
+    public void testReloadDuringRequest() throws Exception {
+        final CountDownLatch requestReceived = new CountDownLatch(1);
+        final CountDownLatch respond = new CountDownLatch(1);
+        final ServerSocket serverSocket = new ServerSocket(0);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, InterruptedException {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                        String line = in.readLine();
+                        while (line != null && !line.isEmpty()) {
+                            line = in.readLine();
+                        }
+                        requestReceived.countDown();
+                        respond.await();
+                        OutputStream out = socket.getOutputStream();
+                        out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok"
+                                .getBytes("UTF-8"));
+                        socket.close();
+                    }
+                }
+            });
+            Properties properties = new Properties();
+            properties.setProperty(Parameters.REMOTE_URL_BASE.getName(),
+                    "http://localhost:" + serverSocket.getLocalPort() + "/");
+            properties.setProperty(Parameters.USE_CACHE.getName(), "false");
+            DriverFactory.configure("reloaded", properties);
+            final Driver oldDriver = DriverFactory.getInstance("reloaded");
+            Callable<String> render = new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return HttpResponseUtils.toString(oldDriver.render("/page", TestUtils.createIncomingRequest()
+                            .build()));
+                }
+            };
+            Future<String> inFlight = executor.submit(render);
+            assertTrue(requestReceived.await(5, TimeUnit.SECONDS));
+
+            DriverFactory.configure("reloaded", properties);
+            assertNotSame(oldDriver, DriverFactory.getInstance("reloaded"));
+
+            respond.countDown();
+            assertEquals("The request in progress should complete", "ok", inFlight.get(5, TimeUnit.SECONDS));
+            assertEquals("The replaced driver should still be usable", "ok",
+                    executor.submit(render).get(5, TimeUnit.SECONDS));
+        } finally {
+            respond.countDown();
+            executor.shutdownNow();
+            serverSocket.close();
+        }
+    }
+
 }
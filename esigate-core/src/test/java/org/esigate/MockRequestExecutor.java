@@ -16,8 +16,10 @@
 package org.esigate;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -70,6 +72,7 @@ public final class MockRequestExecutor implements RequestExecutor {
     }
 
     private final HashMap<String, String> resources = new HashMap<String, String>();
+    private final AtomicInteger requestCount = new AtomicInteger();
 
     private MockRequestExecutor() {
     }
@@ -116,9 +119,33 @@ public final class MockRequestExecutor implements RequestExecutor {
 
     @Override
     public CloseableHttpResponse execute(OutgoingRequest outgoingRequest) throws HttpErrorPage {
+        requestCount.incrementAndGet();
         return getResource(outgoingRequest.getRequestLine().getUri());
     }
 
+    @Override
+    public void preloadCacheEntries(Collection<OutgoingRequest> outgoingRequests) {
+        // No cache
+    }
+
+    @Override
+    public void releaseCacheEntries() {
+        // No cache
+    }
+
+    @Override
+    public int purgeCacheTag(String tag) {
+        // No cache
+        return 0;
+    }
+
+    /**
+     * @return the number of requests executed so far
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
     public static MockRequestExecutor createMockDriver(String name) {
         return (MockRequestExecutor) createDriver(name).getRequestExecutor();
     }
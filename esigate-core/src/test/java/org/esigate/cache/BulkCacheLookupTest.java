@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.message.BasicHttpResponse;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.Renderer;
+import org.esigate.esi.EsiRenderer;
+import org.esigate.http.HttpResponseUtils;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+
+public class BulkCacheLookupTest extends TestCase {
+    private static final AtomicInteger GET_ENTRY_COUNT = new AtomicInteger();
+    private static final AtomicInteger GET_ENTRIES_COUNT = new AtomicInteger();
+
+    /**
+     * Counts the calls to the underlying storage.
+     */
+    public static class CountingCacheStorage extends CacheStorage {
+        @Override
+        public void init(Properties properties) {
+            final BasicHttpCacheStorage storage = new BasicHttpCacheStorage(CacheConfig.DEFAULT);
+            setImpl(new org.apache.http.client.cache.HttpCacheStorage() {
+                @Override
+                public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+                    storage.putEntry(key, entry);
+                }
+
+                @Override
+                public HttpCacheEntry getEntry(String key) throws IOException {
+                    GET_ENTRY_COUNT.incrementAndGet();
+                    return storage.getEntry(key);
+                }
+
+                @Override
+                public void removeEntry(String key) throws IOException {
+                    storage.removeEntry(key);
+                }
+
+                @Override
+                public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+                    storage.updateEntry(key, callback);
+                }
+            });
+        }
+
+        @Override
+        public Map<String, HttpCacheEntry> getEntries(Collection<String> keys) throws IOException {
+            GET_ENTRIES_COUNT.incrementAndGet();
+            return super.getEntries(keys);
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        GET_ENTRY_COUNT.set(0);
+        GET_ENTRIES_COUNT.set(0);
+    }
+
+    private static CacheStorage createCacheStorage() {
+        CacheStorage cacheStorage = new CountingCacheStorage();
+        cacheStorage.init(new Properties());
+        return cacheStorage;
+    }
+
+    public void testPreloadedEntriesAreReused() throws Exception {
+        CacheStorage cacheStorage = createCacheStorage();
+        cacheStorage.putEntry("a", CacheStorageTestUtils.makeCacheEntry("entry a"));
+        cacheStorage.preload(Arrays.asList("a", "b"));
+        assertEquals(1, GET_ENTRIES_COUNT.get());
+        assertEquals(2, GET_ENTRY_COUNT.get());
+        assertEquals("entry a", CacheStorageTestUtils.getContent(cacheStorage.getEntry("a")));
+        assertNull("Entries not found should be remembered too", cacheStorage.getEntry("b"));
+        assertEquals(2, GET_ENTRY_COUNT.get());
+        cacheStorage.release();
+        cacheStorage.getEntry("a");
+        assertEquals(3, GET_ENTRY_COUNT.get());
+    }
+
+    public void testModifiedEntriesAreNotReused() throws Exception {
+        CacheStorage cacheStorage = createCacheStorage();
+        cacheStorage.preload(Arrays.asList("a"));
+        cacheStorage.putEntry("a", CacheStorageTestUtils.makeCacheEntry("entry a"));
+        assertEquals("entry a", CacheStorageTestUtils.getContent(cacheStorage.getEntry("a")));
+        cacheStorage.release();
+    }
+
+    public void testNestedPreload() throws Exception {
+        CacheStorage cacheStorage = createCacheStorage();
+        cacheStorage.preload(Arrays.asList("a"));
+        cacheStorage.preload(Arrays.asList("b"));
+        cacheStorage.release();
+        cacheStorage.getEntry("a");
+        assertEquals("Entries should be kept until the outermost release", 2, GET_ENTRY_COUNT.get());
+        cacheStorage.release();
+        cacheStorage.getEntry("a");
+        assertEquals(3, GET_ENTRY_COUNT.get());
+    }
+
+    public void testIncludesAreLookedUpAtOnce() throws Exception {
+        assertIncludesAreLookedUpAtOnce("http://localhost/", false);
+    }
+
+    public void testCacheKeysAreCanonical() throws Exception {
+        assertIncludesAreLookedUpAtOnce("http://LocalHost:80/", false);
+    }
+
+    public void testIncludesAreLookedUpAtOnceWithSequentialParallelEsi() throws Exception {
+        assertIncludesAreLookedUpAtOnce("http://localhost/", true);
+    }
+
+    private static Renderer createEsiRenderer(boolean parallelEsi) {
+        if (parallelEsi) {
+            return new org.esigate.extension.parallelesi.EsiRenderer(null);
+        }
+        return new EsiRenderer();
+    }
+
+    private void assertIncludesAreLookedUpAtOnce(String baseUrl, boolean parallelEsi) throws Exception {
+        final AtomicInteger backendRequests = new AtomicInteger();
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), baseUrl);
+        properties.put(Parameters.CACHE_STORAGE.getName(), CountingCacheStorage.class.getName());
+        properties.put(Parameters.BULK_CACHE_LOOKUP.getName(), "true");
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                backendRequests.incrementAndGet();
+                String uri = request.getRequestLine().getUri();
+                String content;
+                if (uri.endsWith("/page")) {
+                    content = "<esi:include src=\"/a\"/><esi:include src=\"/b\"/>";
+                } else {
+                    content = uri.substring(uri.lastIndexOf('/') + 1);
+                }
+                HttpResponse response =
+                        new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), HttpStatus.SC_OK, "OK");
+                response.addHeader("Date", DateUtils.formatDate(new Date()));
+                response.addHeader("Cache-Control", "max-age=60");
+                response.setEntity(new StringEntity(content, ContentType.TEXT_HTML));
+                return response;
+            }
+        });
+
+        String result =
+                HttpResponseUtils.toString(driver.render("/page", TestUtils.createIncomingRequest().build(),
+                        createEsiRenderer(parallelEsi)));
+        assertEquals("ab", result);
+        assertEquals(3, backendRequests.get());
+
+        GET_ENTRY_COUNT.set(0);
+        GET_ENTRIES_COUNT.set(0);
+        result =
+                HttpResponseUtils.toString(driver.render("/page", TestUtils.createIncomingRequest().build(),
+                        createEsiRenderer(parallelEsi)));
+        assertEquals("ab", result);
+        assertEquals("Everything should come from the cache", 3, backendRequests.get());
+        assertEquals(1, GET_ENTRIES_COUNT.get());
+        assertEquals("The includes should have been looked up only once", 3, GET_ENTRY_COUNT.get());
+    }
+
+}
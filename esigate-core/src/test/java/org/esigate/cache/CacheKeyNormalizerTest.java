@@ -0,0 +1,122 @@
+package org.esigate.cache;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.http.HttpResponseUtils;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+
+public class CacheKeyNormalizerTest extends TestCase {
+
+    private static CacheKeyNormalizer createNormalizer(String... keyValues) {
+        Properties properties = new Properties();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            properties.put(keyValues[i], keyValues[i + 1]);
+        }
+        return CacheKeyNormalizer.create(properties);
+    }
+
+    public void testDisabledByDefault() {
+        assertNull(CacheKeyNormalizer.create(new Properties()));
+    }
+
+    public void testIgnoredAndSortedParameters() {
+        CacheKeyNormalizer normalizer =
+                createNormalizer(Parameters.CACHE_KEY_IGNORED_PARAMETERS.getName(), "utm_*, gclid",
+                        Parameters.CACHE_KEY_SORT_PARAMETERS.getName(), "true");
+        assertEquals("/page?a=1&b=2&b=1",
+                normalizer.normalizeUri("/page?utm_source=news&b=2&gclid=x&a=1&utm_medium=mail&b=1"));
+        assertEquals("http://localhost:8080/page", normalizer.normalizeUri("http://localhost:8080/page?gclid=x"));
+        assertEquals("/page?a=1#top", normalizer.normalizeUri("/page?a=1&utm_campaign=c#top"));
+        assertEquals("/page", normalizer.normalizeUri("/page"));
+    }
+
+    public void testHeaderBuckets() {
+        CacheKeyNormalizer normalizer =
+                createNormalizer(Parameters.CACHE_KEY_NORMALIZED_HEADERS.getName(),
+                        "Accept-Encoding, Accept-Language, User-Agent", Parameters.CACHE_KEY_LANGUAGES.getName(),
+                        "en, fr");
+        HttpRequestWrapper request = HttpRequestWrapper.wrap(new HttpGet("/page?a=1"));
+        request.addHeader("Accept-Encoding", "deflate, gzip;q=0.5");
+        request.addHeader("Accept-Language", "de-DE, fr-CA;q=0.8, en;q=0.5");
+        request.addHeader("User-Agent", "Mozilla/5.0 (iPhone; CPU iPhone OS 8_0 like Mac OS X) Mobile/12A365");
+        HttpContext context = new BasicHttpContext();
+        normalizer.normalize(request, context);
+        assertEquals("gzip", request.getFirstHeader("Accept-Encoding").getValue());
+        assertEquals("fr", request.getFirstHeader("Accept-Language").getValue());
+        assertEquals("mobile", request.getFirstHeader("User-Agent").getValue());
+
+        HttpRequestWrapper restored = normalizer.restore(request, context);
+        assertEquals("deflate, gzip;q=0.5", restored.getFirstHeader("Accept-Encoding").getValue());
+        assertEquals("de-DE, fr-CA;q=0.8, en;q=0.5", restored.getFirstHeader("Accept-Language").getValue());
+        assertEquals("gzip", request.getFirstHeader("Accept-Encoding").getValue());
+
+        request = HttpRequestWrapper.wrap(new HttpGet("/page"));
+        request.addHeader("Accept-Encoding", "gzip;q=0");
+        normalizer.normalize(request, context);
+        assertEquals("identity", request.getFirstHeader("Accept-Encoding").getValue());
+        assertEquals("Default language", "en", request.getFirstHeader("Accept-Language").getValue());
+        assertEquals("desktop", request.getFirstHeader("User-Agent").getValue());
+    }
+
+    public void testRequestsShareTheSameCacheEntry() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost/");
+        properties.put(Parameters.CACHE_KEY_IGNORED_PARAMETERS.getName(), "utm_*");
+        properties.put(Parameters.CACHE_KEY_SORT_PARAMETERS.getName(), "true");
+        properties.put(Parameters.CACHE_KEY_NORMALIZED_HEADERS.getName(), "Accept-Language");
+        final List<HttpRequest> backendRequests = new ArrayList<HttpRequest>();
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                backendRequests.add(request);
+                HttpResponse response =
+                        new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), HttpStatus.SC_OK, "OK");
+                response.addHeader("Date", DateUtils.formatDate(new Date()));
+                response.addHeader("Cache-Control", "max-age=60");
+                response.addHeader("Vary", "Accept-Language");
+                response.setEntity(new StringEntity("content", ContentType.TEXT_HTML));
+                return response;
+            }
+        });
+
+        String result =
+                HttpResponseUtils.toString(driver.render("/page?utm_source=a&id=1&lang=fr", TestUtils
+                        .createIncomingRequest().addHeader("Accept-Language", "fr-FR, fr").build()));
+        assertEquals("content", result);
+        assertEquals(1, backendRequests.size());
+        assertEquals(
+                "The provider should receive the original request",
+                "/page?utm_source=a&id=1&lang=fr",
+                URI.create(backendRequests.get(0).getRequestLine().getUri()).getRawPath() + "?"
+                        + URI.create(backendRequests.get(0).getRequestLine().getUri()).getRawQuery());
+        assertEquals("fr-FR, fr", backendRequests.get(0).getFirstHeader("Accept-Language").getValue());
+
+        result =
+                HttpResponseUtils.toString(driver.render("/page?lang=fr&id=1&utm_source=b", TestUtils
+                        .createIncomingRequest().addHeader("Accept-Language", "fr-CA").build()));
+        assertEquals("content", result);
+        assertEquals("Second request should come from the cache", 1, backendRequests.size());
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+
+public class CacheKeysTest extends TestCase {
+    private static final List<String> STORED_KEYS = new CopyOnWriteArrayList<String>();
+
+    /**
+     * Records the keys the http cache stores its entries with.
+     */
+    public static class RecordingCacheStorage extends CacheStorage {
+        @Override
+        public void init(Properties properties) {
+            final BasicHttpCacheStorage storage = new BasicHttpCacheStorage(CacheConfig.DEFAULT);
+            setImpl(new org.apache.http.client.cache.HttpCacheStorage() {
+                @Override
+                public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+                    STORED_KEYS.add(key);
+                    storage.putEntry(key, entry);
+                }
+
+                @Override
+                public HttpCacheEntry getEntry(String key) throws IOException {
+                    return storage.getEntry(key);
+                }
+
+                @Override
+                public void removeEntry(String key) throws IOException {
+                    storage.removeEntry(key);
+                }
+
+                @Override
+                public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+                    storage.updateEntry(key, callback);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        STORED_KEYS.clear();
+    }
+
+    public void testRelativeUri() {
+        assertEquals("http://localhost:80/a?b=1",
+                CacheKeys.getURI(new HttpHost("localhost"), new BasicHttpRequest("GET", "/a?b=1")));
+    }
+
+    public void testSchemeAndHostAreLowercased() {
+        assertEquals("http://localhost:8080/A", CacheKeys.canonicalizeUri("HTTP://LocalHost:8080/A"));
+    }
+
+    public void testDefaultPorts() {
+        assertEquals("http://localhost:80/", CacheKeys.canonicalizeUri("http://localhost/"));
+        assertEquals("https://localhost:443/", CacheKeys.canonicalizeUri("https://localhost/"));
+    }
+
+    public void testFragmentIsRemoved() {
+        assertEquals("http://localhost:80/a?b", CacheKeys.canonicalizeUri("http://localhost/a?b#c"));
+    }
+
+    public void testInvalidUriIsLeftUnchanged() {
+        assertEquals("foo://bar", CacheKeys.canonicalizeUri("foo://bar"));
+    }
+
+    public void testSameKeyAsTheHttpCache() throws Exception {
+        assertSameKeyAsTheHttpCache("http://localhost/", false, "http://localhost:8080/a?b=1", new HttpHost(
+                "localhost", 80, "http"));
+    }
+
+    public void testSameKeyAsTheHttpCacheWithMixedCaseHostAndExplicitPort() throws Exception {
+        assertSameKeyAsTheHttpCache("http://LocalHost:80/", false, "http://localhost:8080/a?b=1", new HttpHost(
+                "LocalHost", 80, "http"));
+    }
+
+    public void testSameKeyAsTheHttpCacheWithHttps() throws Exception {
+        assertSameKeyAsTheHttpCache("https://localhost/", false, "http://localhost:8080/a?b=1", new HttpHost(
+                "localhost", 443, "https"));
+    }
+
+    public void testSameKeyAsTheHttpCacheWithPreservedMixedCaseHost() throws Exception {
+        assertSameKeyAsTheHttpCache("http://localhost/", true, "http://WWW.Example.com/a?b=1", new HttpHost(
+                "WWW.Example.com", 80, "http"));
+    }
+
+    private void assertSameKeyAsTheHttpCache(String baseUrl, boolean preserveHost, String incomingUrl,
+            HttpHost targetHost) throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), baseUrl);
+        properties.put(Parameters.PRESERVE_HOST.getName(), Boolean.toString(preserveHost));
+        properties.put(Parameters.CACHE_STORAGE.getName(), RecordingCacheStorage.class.getName());
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                HttpResponse response =
+                        new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), HttpStatus.SC_OK, "OK");
+                response.addHeader("Date", DateUtils.formatDate(new Date()));
+                response.addHeader("Cache-Control", "max-age=60");
+                response.setEntity(new StringEntity("content", ContentType.TEXT_HTML));
+                return response;
+            }
+        });
+        driver.render("/a?b=1", TestUtils.createIncomingRequest(incomingUrl).build());
+        assertEquals(1, STORED_KEYS.size());
+        assertEquals(STORED_KEYS.get(0), CacheKeys.getURI(targetHost, new BasicHttpRequest("GET", "/a?b=1")));
+    }
+
+}
@@ -13,6 +13,7 @@ import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
 import org.apache.http.client.cache.Resource;
 import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicStatusLine;
 
 public final class CacheStorageTestUtils {
@@ -49,6 +50,14 @@ public final class CacheStorageTestUtils {
         return new HttpCacheEntry(new Date(), new Date(), statusLine, new Header[0], resource);
     }
 
+    static HttpCacheEntry makeTaggedCacheEntry(String content, String surrogateKey) {
+        ProtocolVersion protocolVersion = new ProtocolVersion("HTTP", 1, 1);
+        StatusLine statusLine = new BasicStatusLine(protocolVersion, HttpStatus.SC_OK, "OK");
+        Resource resource = new HeapResource(content.getBytes());
+        Header[] headers = new Header[] {new BasicHeader(CacheStorage.H_SURROGATE_KEY, surrogateKey)};
+        return new HttpCacheEntry(new Date(), new Date(), statusLine, headers, resource);
+    }
+
     static String getContent(HttpCacheEntry entry) throws Exception {
         if (entry == null) {
             return null;
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
+import org.apache.http.impl.client.cache.DefaultHttpCacheEntrySerializer;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+public class CompactHttpCacheEntrySerializerTest extends TestCase {
+    private final HttpCacheEntrySerializer serializer = new CompactHttpCacheEntrySerializer();
+
+    private static HttpCacheEntry createEntry() throws Exception {
+        Header[] headers =
+                new Header[] {new BasicHeader("Date", "Mon, 19 Oct 2026 10:00:00 GMT"),
+                        new BasicHeader("Content-Type", "text/html; charset=UTF-8"),
+                        new BasicHeader("content-length", "11"), new BasicHeader("X-Custom", "éàç"),
+                        new BasicHeader("Set-Cookie", "a=1"), new BasicHeader("Set-Cookie", "b=2")};
+        Map<String, String> variants = new HashMap<String, String>();
+        variants.put("{Accept-Encoding=gzip}", "{Accept-Encoding=gzip}http://localhost:80/");
+        return new HttpCacheEntry(new Date(1000), new Date(2000), new BasicStatusLine(
+                new ProtocolVersion("HTTP", 1, 1), HttpStatus.SC_NOT_FOUND, "Not Found"), headers, new HeapResource(
+                "hello world".getBytes("UTF-8")), variants);
+    }
+
+    private static byte[] serialize(HttpCacheEntrySerializer serializer, HttpCacheEntry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.writeTo(entry, out);
+        return out.toByteArray();
+    }
+
+    public void testRoundTrip() throws Exception {
+        HttpCacheEntry entry = createEntry();
+        HttpCacheEntry result = serializer.readFrom(new ByteArrayInputStream(serialize(serializer, entry)));
+        assertEquals(entry.getRequestDate(), result.getRequestDate());
+        assertEquals(entry.getResponseDate(), result.getResponseDate());
+        assertEquals(entry.getStatusLine().toString(), result.getStatusLine().toString());
+        assertEquals(entry.getAllHeaders().length, result.getAllHeaders().length);
+        for (int i = 0; i < entry.getAllHeaders().length; i++) {
+            assertEquals(entry.getAllHeaders()[i].getName(), result.getAllHeaders()[i].getName());
+            assertEquals(entry.getAllHeaders()[i].getValue(), result.getAllHeaders()[i].getValue());
+        }
+        assertEquals(entry.getVariantMap(), result.getVariantMap());
+        assertEquals("hello world", CacheStorageTestUtils.getContent(result));
+    }
+
+    public void testNoResource() throws Exception {
+        HttpCacheEntry entry =
+                new HttpCacheEntry(new Date(), new Date(), new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1),
+                        HttpStatus.SC_NOT_MODIFIED, null), new Header[0], null);
+        HttpCacheEntry result = serializer.readFrom(new ByteArrayInputStream(serialize(serializer, entry)));
+        assertNull(result.getResource());
+        assertNull(result.getReasonPhrase());
+    }
+
+    public void testSmallerThanJavaSerialization() throws Exception {
+        HttpCacheEntry entry = createEntry();
+        int compactSize = serialize(serializer, entry).length;
+        int javaSize = serialize(new DefaultHttpCacheEntrySerializer(), entry).length;
+        assertTrue("Compact: " + compactSize + " bytes, java: " + javaSize + " bytes", compactSize * 5 < javaSize);
+    }
+
+    public void testInvalidData() throws Exception {
+        byte[] data = serialize(new DefaultHttpCacheEntrySerializer(), createEntry());
+        try {
+            serializer.readFrom(new ByteArrayInputStream(data));
+            fail("Should not be able to read java serialized entries");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testTruncatedData() throws Exception {
+        byte[] data = serialize(serializer, createEntry());
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        try {
+            serializer.readFrom(new ByteArrayInputStream(truncated));
+            fail("Truncated entry should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.esigate.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.esigate.Parameters;
+
+public class ConcurrentCacheStorageTest extends TestCase {
+    public void testBasicOperations() throws Exception {
+        CacheStorage cacheStorage = new ConcurrentCacheStorage();
+        cacheStorage.init(new Properties());
+        CacheStorageTestUtils.testBasicOperations(cacheStorage);
+    }
+
+    public void testMaxEntries() throws Exception {
+        ShardedHttpCacheStorage storage = new ShardedHttpCacheStorage(100, 1);
+        for (int i = 0; i < 1000; i++) {
+            storage.putEntry("key" + i, CacheStorageTestUtils.makeCacheEntry("entry" + i));
+        }
+        assertTrue("Cache contains " + storage.size() + " entries", storage.size() <= 100);
+    }
+
+    public void testFrequentlyUsedEntryIsKept() throws Exception {
+        ShardedHttpCacheStorage storage = new ShardedHttpCacheStorage(100, 1);
+        storage.putEntry("hot", CacheStorageTestUtils.makeCacheEntry("hot"));
+        for (int i = 0; i < 1000; i++) {
+            storage.getEntry("hot");
+            storage.putEntry("key" + i, CacheStorageTestUtils.makeCacheEntry("entry" + i));
+        }
+        assertNotNull("Frequently used entry should not have been evicted", storage.getEntry("hot"));
+    }
+
+    public void testConcurrentUpdates() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.MAX_UPDATE_RETRIES.getName(), "1000000");
+        final CacheStorage cacheStorage = new ConcurrentCacheStorage();
+        cacheStorage.init(properties);
+        cacheStorage.putEntry("counter", CacheStorageTestUtils.makeCacheEntry("0"));
+        final HttpCacheUpdateCallback increment = new HttpCacheUpdateCallback() {
+            @Override
+            public HttpCacheEntry update(HttpCacheEntry existing) {
+                try {
+                    int value = Integer.parseInt(CacheStorageTestUtils.getContent(existing));
+                    return CacheStorageTestUtils.makeCacheEntry(Integer.toString(value + 1));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 100; j++) {
+                        cacheStorage.updateEntry("counter", increment);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+        assertEquals("400", CacheStorageTestUtils.getContent(cacheStorage.getEntry("counter")));
+    }
+}
@@ -15,11 +15,14 @@
 
 package org.esigate.cache;
 
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Properties;
 
 import junit.framework.TestCase;
 import net.spy.memcached.compat.log.SLF4JLogger;
 
+import org.apache.http.client.cache.HttpCacheEntry;
 import org.esigate.ConfigurationException;
 import org.esigate.Parameters;
 
@@ -31,11 +34,36 @@ public class MemcachedCacheStorageTest extends TestCase {
 
     }
 
-    public void testBasicOperations() {
-        // Cannot be really tested as we would need a running memcached server
-        // CacheStorage cacheStorage = new MemcachedCacheStorage();
-        // cacheStorage.init(new Properties());
-        // CacheStorageTestUtils.testBasicOperations(cacheStorage);
+    public void testBasicOperations() throws Exception {
+        MemcachedServerStub server = new MemcachedServerStub();
+        try {
+            Properties properties = new Properties();
+            properties.put(Parameters.MEMCACHED_SERVERS_PROPERTY.getName(), server.getAddress());
+            CacheStorage cacheStorage = new MemcachedCacheStorage();
+            cacheStorage.init(properties);
+            CacheStorageTestUtils.testBasicOperations(cacheStorage);
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testGetEntries() throws Exception {
+        MemcachedServerStub server = new MemcachedServerStub();
+        try {
+            Properties properties = new Properties();
+            properties.put(Parameters.MEMCACHED_SERVERS_PROPERTY.getName(), server.getAddress());
+            MemcachedCacheStorage cacheStorage = new MemcachedCacheStorage();
+            cacheStorage.init(properties);
+            cacheStorage.putEntry("a", CacheStorageTestUtils.makeCacheEntry("entry a"));
+            cacheStorage.putEntry("b", CacheStorageTestUtils.makeCacheEntry("entry b"));
+            Map<String, HttpCacheEntry> entries = cacheStorage.getEntries(Arrays.asList("a", "b", "c"));
+            assertEquals(2, entries.size());
+            assertEquals("entry a", CacheStorageTestUtils.getContent(entries.get("a")));
+            assertEquals("entry b", CacheStorageTestUtils.getContent(entries.get("b")));
+            assertEquals("Entries should have been retrieved with a single request", 1, server.getGetRequests());
+        } finally {
+            server.stop();
+        }
     }
 
     public void testConfiguration() throws Exception {
@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Minimal in-process memcached server implementing the text protocol commands used by spymemcached: get, gets, set, cas
+ * and delete. Counts the get requests received.
+ */
+class MemcachedServerStub {
+    private final ServerSocket serverSocket;
+    private final ConcurrentHashMap<String, Item> items = new ConcurrentHashMap<String, Item>();
+    private final AtomicInteger getRequests = new AtomicInteger();
+    private final AtomicInteger keysRequested = new AtomicInteger();
+    private final AtomicLong casCounter = new AtomicLong();
+
+    MemcachedServerStub() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        Thread handler = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        });
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                } catch (IOException e) {
+                    // Server stopped
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String getAddress() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    int getGetRequests() {
+        return getRequests.get();
+    }
+
+    int getKeysRequested() {
+        return keysRequested.get();
+    }
+
+    /**
+     * Waits until the given number of items has been stored, as spymemcached sends the writes asynchronously.
+     */
+    void awaitItems(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (items.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    void stop() {
+        IOUtils.closeQuietly(serverSocket);
+    }
+
+    private void handle(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = readLine(in)) != null) {
+                String[] command = line.split(" ");
+                String name = command[0];
+                if ("get".equals(name) || "gets".equals(name)) {
+                    getRequests.incrementAndGet();
+                    for (int i = 1; i < command.length; i++) {
+                        keysRequested.incrementAndGet();
+                        Item item = items.get(command[i]);
+                        if (item != null) {
+                            String header = "VALUE " + command[i] + " " + item.flags + " " + item.data.length;
+                            if ("gets".equals(name)) {
+                                header += " " + item.cas;
+                            }
+                            write(out, header);
+                            out.write(item.data);
+                            write(out, "");
+                        }
+                    }
+                    write(out, "END");
+                } else if ("set".equals(name) || "cas".equals(name)) {
+                    byte[] data = new byte[Integer.parseInt(command[4])];
+                    new DataInputStream(in).readFully(data);
+                    readLine(in);
+                    Item item = new Item(Integer.parseInt(command[2]), data, casCounter.incrementAndGet());
+                    if ("set".equals(name)) {
+                        items.put(command[1], item);
+                        write(out, "STORED");
+                    } else {
+                        Item existing = items.get(command[1]);
+                        if (existing == null) {
+                            write(out, "NOT_FOUND");
+                        } else if (existing.cas == Long.parseLong(command[5])
+                                && items.replace(command[1], existing, item)) {
+                            write(out, "STORED");
+                        } else {
+                            write(out, "EXISTS");
+                        }
+                    }
+                } else if ("delete".equals(name)) {
+                    write(out, items.remove(command[1]) != null ? "DELETED" : "NOT_FOUND");
+                } else if ("version".equals(name)) {
+                    write(out, "VERSION 1.4.0");
+                } else {
+                    write(out, "ERROR");
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Connection closed
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private static void write(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes("US-ASCII"));
+    }
+
+    private static final class Item {
+        private final int flags;
+        private final byte[] data;
+        private final long cas;
+
+        private Item(int flags, byte[] data, long cas) {
+            this.flags = flags;
+            this.data = data;
+            this.cas = cas;
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import net.spy.memcached.compat.log.SLF4JLogger;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.esigate.Parameters;
+
+public class NearCacheStorageTest extends TestCase {
+    private MemcachedServerStub server;
+
+    @Override
+    protected void setUp() throws Exception {
+        // Redirect the logs to slf4j
+        System.setProperty("net.spy.log.LoggerImpl", SLF4JLogger.class.getName());
+        server = new MemcachedServerStub();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+    }
+
+    private CacheStorage createCacheStorage(int ttl) {
+        Properties properties = new Properties();
+        properties.put(Parameters.CACHE_STORAGE.getName(), MemcachedCacheStorage.class.getName());
+        properties.put(Parameters.MEMCACHED_SERVERS_PROPERTY.getName(), server.getAddress());
+        properties.put(Parameters.NEAR_CACHE_TTL.getName(), Integer.toString(ttl));
+        return CacheConfigHelper.createCacheStorage(properties);
+    }
+
+    public void testBasicOperations() throws Exception {
+        CacheStorageTestUtils.testBasicOperations(createCacheStorage(10000));
+    }
+
+    public void testNotEnabledByDefault() {
+        Properties properties = new Properties();
+        properties.put(Parameters.CACHE_STORAGE.getName(), MemcachedCacheStorage.class.getName());
+        properties.put(Parameters.MEMCACHED_SERVERS_PROPERTY.getName(), server.getAddress());
+        assertTrue(CacheConfigHelper.createCacheStorage(properties) instanceof MemcachedCacheStorage);
+    }
+
+    public void testNotUsedWithInMemoryStorage() {
+        Properties properties = new Properties();
+        properties.put(Parameters.CACHE_STORAGE.getName(), BasicCacheStorage.class.getName());
+        properties.put(Parameters.NEAR_CACHE_TTL.getName(), "10000");
+        assertTrue(CacheConfigHelper.createCacheStorage(properties) instanceof BasicCacheStorage);
+    }
+
+    public void testEntriesAreReadLocally() throws Exception {
+        CacheStorage cacheStorage = createCacheStorage(10000);
+        cacheStorage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("entry"));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("entry", CacheStorageTestUtils.getContent(cacheStorage.getEntry("key")));
+        }
+        assertEquals("Entry should not have been requested to memcached", 0, server.getGetRequests());
+    }
+
+    public void testEntriesExpire() throws Exception {
+        CacheStorage cacheStorage = createCacheStorage(50);
+        cacheStorage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("entry"));
+        Thread.sleep(100);
+        assertEquals("entry", CacheStorageTestUtils.getContent(cacheStorage.getEntry("key")));
+        assertEquals(1, server.getGetRequests());
+        assertEquals("entry", CacheStorageTestUtils.getContent(cacheStorage.getEntry("key")));
+        assertEquals(1, server.getGetRequests());
+    }
+
+    public void testRemovedEntryIsNotReadLocally() throws Exception {
+        CacheStorage cacheStorage = createCacheStorage(10000);
+        cacheStorage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("entry"));
+        cacheStorage.removeEntry("key");
+        assertNull(cacheStorage.getEntry("key"));
+    }
+
+    public void testGetEntries() throws Exception {
+        NearCacheStorage cacheStorage = (NearCacheStorage) createCacheStorage(10000);
+        CacheStorage otherInstance = createCacheStorage(10000);
+        cacheStorage.putEntry("a", CacheStorageTestUtils.makeCacheEntry("entry a"));
+        otherInstance.putEntry("b", CacheStorageTestUtils.makeCacheEntry("entry b"));
+        otherInstance.putEntry("c", CacheStorageTestUtils.makeCacheEntry("entry c"));
+        server.awaitItems(3);
+
+        Map<String, HttpCacheEntry> entries = cacheStorage.getEntries(Arrays.asList("a", "b", "c", "d"));
+        assertEquals(3, entries.size());
+        assertEquals("entry a", CacheStorageTestUtils.getContent(entries.get("a")));
+        assertEquals("entry b", CacheStorageTestUtils.getContent(entries.get("b")));
+        assertEquals("entry c", CacheStorageTestUtils.getContent(entries.get("c")));
+        assertEquals("Missing entries should have been retrieved with a single request", 1, server.getGetRequests());
+        assertEquals(3, server.getKeysRequested());
+
+        cacheStorage.getEntries(Arrays.asList("a", "b", "c"));
+        assertEquals(1, server.getGetRequests());
+    }
+
+    public void testMaxEntries() throws Exception {
+        CacheStorage remote = new ConcurrentCacheStorage();
+        remote.init(new Properties());
+        NearHttpCacheStorage nearCacheStorage = new NearHttpCacheStorage(remote, 10000, 100);
+        for (int i = 0; i < 1000; i++) {
+            nearCacheStorage.putEntry("key" + i, CacheStorageTestUtils.makeCacheEntry("entry" + i));
+        }
+        assertEquals(100, nearCacheStorage.size());
+        // The most recent entries are kept
+        remote.removeEntry("key999");
+        assertEquals("entry999", CacheStorageTestUtils.getContent(nearCacheStorage.getEntry("key999")));
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.esigate.cache;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+
+public class PurgeTagTest extends TestCase {
+    private CacheStorage cacheStorage;
+
+    @Override
+    protected void setUp() {
+        cacheStorage = new ConcurrentCacheStorage();
+        cacheStorage.init(new Properties());
+    }
+
+    public void testPurgeTag() throws Exception {
+        cacheStorage.putEntry("a", CacheStorageTestUtils.makeTaggedCacheEntry("a", "product-1 home"));
+        cacheStorage.putEntry("b", CacheStorageTestUtils.makeTaggedCacheEntry("b", "product-2  home"));
+        cacheStorage.putEntry("c", CacheStorageTestUtils.makeCacheEntry("c"));
+
+        assertEquals(1, cacheStorage.purgeTag("product-1"));
+        assertNull(cacheStorage.getEntry("a"));
+        assertNotNull(cacheStorage.getEntry("b"));
+
+        assertEquals(1, cacheStorage.purgeTag("home"));
+        assertNull(cacheStorage.getEntry("b"));
+        assertNotNull("Entry without tag should be kept", cacheStorage.getEntry("c"));
+        assertEquals(0, cacheStorage.purgeTag("home"));
+    }
+
+    public void testTagsAreReplacedOnUpdate() throws Exception {
+        cacheStorage.putEntry("a", CacheStorageTestUtils.makeTaggedCacheEntry("a", "old"));
+        cacheStorage.updateEntry("a", new HttpCacheUpdateCallback() {
+            @Override
+            public HttpCacheEntry update(HttpCacheEntry existing) {
+                return CacheStorageTestUtils.makeTaggedCacheEntry("a2", "new");
+            }
+        });
+        assertEquals(0, cacheStorage.purgeTag("old"));
+        assertNotNull(cacheStorage.getEntry("a"));
+        assertEquals(1, cacheStorage.purgeTag("new"));
+        assertNull(cacheStorage.getEntry("a"));
+    }
+
+    public void testRemovedEntryIsNotPurged() throws Exception {
+        cacheStorage.putEntry("a", CacheStorageTestUtils.makeTaggedCacheEntry("a", "tag"));
+        cacheStorage.removeEntry("a");
+        assertEquals(0, cacheStorage.purgeTag("tag"));
+    }
+
+    public void testMaxTaggedEntries() throws Exception {
+        cacheStorage.setMaxTaggedEntries(2);
+        cacheStorage.putEntry("a", CacheStorageTestUtils.makeTaggedCacheEntry("a", "tag"));
+        cacheStorage.putEntry("b", CacheStorageTestUtils.makeTaggedCacheEntry("b", "tag"));
+        cacheStorage.putEntry("c", CacheStorageTestUtils.makeTaggedCacheEntry("c", "tag"));
+        assertNull("Oldest tagged entry should have been removed", cacheStorage.getEntry("a"));
+        assertEquals(2, cacheStorage.purgeTag("tag"));
+        assertNull(cacheStorage.getEntry("b"));
+        assertNull(cacheStorage.getEntry("c"));
+    }
+}
@@ -121,6 +121,27 @@ public class DefaultCookieManagerTest extends TestCase {
         assertEquals("c", cookies.get(1).getName());
     }
 
+    public void testRewrittenCookiesAreSharedByTheFragmentsOfAPage() throws HttpErrorPage {
+        IncomingRequest incomingRequest =
+                TestUtils.createIncomingRequest().addCookie(new BasicClientCookie("a", "value a"))
+                        .addCookie(new BasicClientCookie("_JSESSIONID", "session"))
+                        .addCookie(new BasicClientCookie("e", "value e")).build();
+        List<org.apache.http.cookie.Cookie> cookies =
+                cookieManager.getCookies(new DriverRequest(incomingRequest, driver, "/fragment1"));
+        assertEquals(2, cookies.size());
+        assertEquals("JSESSIONID", cookies.get(0).getName());
+        assertEquals("localhost", cookies.get(0).getDomain());
+        assertEquals("a", cookies.get(1).getName());
+        assertSame(cookies, cookieManager.getCookies(new DriverRequest(incomingRequest, driver, "/fragment2")));
+
+        // Cookies stored in session are added
+        DriverRequest fragment3 = new DriverRequest(incomingRequest, driver, "/fragment3");
+        cookieManager.addCookie(new BasicClientCookie("b", "value b"), fragment3);
+        cookies = cookieManager.getCookies(fragment3);
+        assertEquals(3, cookies.size());
+        assertEquals("b", cookies.get(2).getName());
+    }
+
     public void testRewriteDomain() {
         assertEquals(null, DefaultCookieManager.rewriteDomain("provider1", "provider1", "www.foo.com"));
         assertEquals(".foo.com",
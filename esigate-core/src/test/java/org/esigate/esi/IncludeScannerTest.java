@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.esigate.esi;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class IncludeScannerTest extends TestCase {
+
+    public void testScanIgnoresConditionalIncludes() {
+        String page =
+                "<esi:include src=\"/a\"/><esi:remove><esi:include src=\"/b\"/></esi:remove>"
+                        + "<esi:choose><esi:when test=\"true\"><esi:include src=\"/c\"/></esi:when></esi:choose>"
+                        + "<esi:include src=\"/d\"><esi:except><esi:include src=\"/e\"/></esi:except>"
+                        + "</esi:include><esi:include src=\"/a\"/>";
+        assertEquals(Arrays.asList("/a", "/d"), IncludeScanner.scan(page));
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.extension.monitoring;
+
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.MockConnectionManager;
+
+public class MetricInstrumentationTest extends TestCase {
+    /** Name of the threads of the Slf4jReporter. */
+    private static final String REPORTER_THREAD_PREFIX = "metrics-logger-reporter-";
+    private static final long THREAD_STOP_TIMEOUT = 5000;
+
+    private static Set<Thread> getReporterThreads() {
+        Set<Thread> result = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(REPORTER_THREAD_PREFIX)) {
+                result.add(thread);
+            }
+        }
+        return result;
+    }
+
+    public void testReporterIsStoppedWhenDriverIsClosed() throws Exception {
+        Set<Thread> previousThreads = getReporterThreads();
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.INSTRUMENTATION.getName(), MetricInstrumentation.class.getName());
+        Driver driver = TestUtils.createMockDriver(properties, new MockConnectionManager(), "metricInstrumentation");
+        Set<Thread> reporterThreads = getReporterThreads();
+        reporterThreads.removeAll(previousThreads);
+        assertEquals("The reporter should have been started", 1, reporterThreads.size());
+
+        driver.close();
+        Thread reporterThread = reporterThreads.iterator().next();
+        reporterThread.join(THREAD_STOP_TIMEOUT);
+        assertFalse("The reporter should have been stopped", reporterThread.isAlive());
+    }
+
+}
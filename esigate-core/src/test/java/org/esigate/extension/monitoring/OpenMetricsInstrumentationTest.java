@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension.monitoring;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.MockConnectionManager;
+
+public class OpenMetricsInstrumentationTest extends TestCase {
+
+    public void testScrape() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.INSTRUMENTATION.getName(), OpenMetricsInstrumentation.class.getName());
+        MockConnectionManager connManager = new MockConnectionManager();
+        connManager.setResponse(TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                .header("Cache-Control", "max-age=60").header("Content-Type", "text/plain").entity("cached").build());
+        Driver driver = TestUtils.createMockDriver(properties, connManager, "openmetrics");
+
+        for (int i = 0; i < 2; i++) {
+            HttpResponse response =
+                    TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost/page").build());
+            assertEquals("cached", EntityUtils.toString(response.getEntity()));
+        }
+
+        String metrics = OpenMetricsInstrumentation.scrape();
+        assertTrue(metrics, metrics.contains("# TYPE esigate_request_duration_seconds histogram\n"
+                + "# UNIT esigate_request_duration_seconds seconds\n"));
+        assertTrue(metrics,
+                metrics.contains("esigate_request_duration_seconds_bucket{provider=\"openmetrics\",le=\"+Inf\"} 2\n"));
+        assertTrue(metrics, metrics.contains("esigate_request_duration_seconds_count{provider=\"openmetrics\"} 2\n"));
+        assertTrue(metrics, metrics.contains("esigate_fetch_duration_seconds_count{provider=\"openmetrics\","
+                + "cache=\"cache_hit\"} 1\n"));
+        assertTrue(metrics, metrics.contains("esigate_cache_responses_total{provider=\"openmetrics\","
+                + "cache=\"cache_miss\"} 1\n"));
+        assertTrue(metrics, metrics.contains("esigate_cache_responses_total{provider=\"openmetrics\","
+                + "cache=\"cache_hit\"} 1\n"));
+        assertTrue(metrics,
+                metrics.contains("esigate_connection_lease_duration_seconds_count{provider=\"openmetrics\"} 1\n"));
+        assertTrue(metrics, metrics.contains("esigate_phase_duration_seconds_count{provider=\"openmetrics\","
+                + "phase=\"cacheLookup\"} 2\n"));
+        assertTrue(metrics, metrics.contains("# TYPE esigate_connection_pool_leased gauge\n"));
+        assertFalse("Families must not be repeated",
+                metrics.indexOf("# TYPE esigate_cache_responses ") != metrics
+                        .lastIndexOf("# TYPE esigate_cache_responses "));
+    }
+
+    public void testClosedDriverIsNotReported() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.INSTRUMENTATION.getName(), OpenMetricsInstrumentation.class.getName());
+        MockConnectionManager connManager = new MockConnectionManager();
+        connManager.setResponse(TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                .header("Content-Type", "text/plain").entity("content").build());
+        Driver driver = TestUtils.createMockDriver(properties, connManager, "closed");
+        TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost/page").build());
+        assertTrue(OpenMetricsInstrumentation.scrape().contains("provider=\"closed\""));
+
+        driver.close();
+        assertFalse(OpenMetricsInstrumentation.scrape().contains("provider=\"closed\""));
+    }
+
+    public void testBuckets() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.INSTRUMENTATION.getName(), OpenMetricsInstrumentation.class.getName());
+        Driver driver = TestUtils.createMockDriver(properties, new MockConnectionManager(), "buckets");
+        OpenMetricsInstrumentation instrumentation = new OpenMetricsInstrumentation();
+        instrumentation.init(driver, properties);
+
+        instrumentation.getTimer("parse").record(2000000L);
+        instrumentation.getTimer("parse").record(20000000000L);
+
+        String metrics = OpenMetricsInstrumentation.scrape();
+        String labels = "{provider=\"buckets\",phase=\"parse\"";
+        assertTrue(metrics, metrics.contains("esigate_phase_duration_seconds_bucket" + labels + ",le=\"0.001\"} 0\n"));
+        assertTrue(metrics, metrics.contains("esigate_phase_duration_seconds_bucket" + labels + ",le=\"0.0025\"} 1\n"));
+        assertTrue(metrics, metrics.contains("esigate_phase_duration_seconds_bucket" + labels + ",le=\"10.0\"} 1\n"));
+        assertTrue(metrics, metrics.contains("esigate_phase_duration_seconds_bucket" + labels + ",le=\"+Inf\"} 2\n"));
+        assertTrue(metrics, metrics.contains("esigate_phase_duration_seconds_sum" + labels + "} 20.002\n"));
+    }
+
+}
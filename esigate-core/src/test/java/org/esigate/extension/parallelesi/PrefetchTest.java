@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.extension.parallelesi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.MockRequestExecutor;
+
+public class PrefetchTest extends AbstractElementTest {
+
+    private ExecutorService executor;
+    private Prefetcher prefetcher;
+    private MockRequestExecutor requestExecutor;
+
+    @Override
+    protected void setUp() {
+        super.setUp();
+        Driver driver = MockRequestExecutor.createDriver();
+        setProvider(driver);
+        requestExecutor = (MockRequestExecutor) driver.getRequestExecutor();
+        executor = Executors.newCachedThreadPool();
+        prefetcher = new Prefetcher(executor, 10, 10);
+        EsiRenderer tested = new EsiRenderer(executor);
+        tested.setPrefetcher(prefetcher, null);
+        setTested(tested);
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdown();
+    }
+
+    public void testNestedIncludesAreLearned() throws IOException, HttpErrorPage {
+        addResource("/a", "a<esi:include src=\"/b\"/>");
+        addResource("/b", "b");
+        String page = "before <esi:include src=\"$(PROVIDER{mock})/a\"/> after";
+
+        assertEquals("before ab after", render(page));
+        assertEquals(2, requestExecutor.getRequestCount());
+        assertEquals(Arrays.asList("/b"), prefetcher.getIncludes("mock:/a"));
+
+        // Second time, /b is fetched together with /a and each page is still requested only once
+        incomingRequest("http://localhost/");
+        assertEquals("before ab after", render(page));
+        assertEquals(4, requestExecutor.getRequestCount());
+    }
+
+    public void testErrorIsHandledByInclude() throws IOException, HttpErrorPage {
+        String page = "before <esi:include src=\"$(PROVIDER{mock})/missing\" onerror=\"continue\"/> after";
+        assertEquals("before  after", render(page));
+    }
+
+    public void testIncludesAreRenderedInlineWhenAllThreadsAreBusy() throws Exception {
+        addResource("/a", "a");
+        addResource("/b", "b");
+        ThreadPoolExecutor singleThread =
+                new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            // Keep the only thread busy
+            singleThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            EsiRenderer tested = new EsiRenderer(singleThread);
+            tested.setPrefetcher(new Prefetcher(singleThread, 10, 0), null);
+            setTested(tested);
+            String page = "<esi:include src=\"$(PROVIDER{mock})/a\"/><esi:include src=\"$(PROVIDER{mock})/b\"/>";
+            assertEquals("ab", render(page));
+        } finally {
+            latch.countDown();
+            singleThread.shutdown();
+        }
+    }
+
+}
@@ -88,6 +88,43 @@ public class SurrogateTest extends TestCase {
 
     }
 
+    /**
+     * Parsed headers are reused for identical header values, the result must not change.
+     * 
+     * @throws Exception
+     *             test error.
+     */
+    public void testSurrogateControlSameHeaderTwice() throws Exception {
+
+        // Conf
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.put(Parameters.EXTENSIONS, Esi.class.getName() + "," + Surrogate.class.getName());
+
+        // Setup remote server (provider) response.
+        Driver driver =
+                TestUtils.createMockDriver(
+                        properties,
+                        new SequenceResponse().response(
+                                TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                                        .header("Surrogate-Control", "content=\"ESI/1.0 ORAESI/9.0.2\", no-store")
+                                        .header("Content-Type", "text/html; charset=utf-8").build()).response(
+                                TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                                        .header("Surrogate-Control", "content=\"ESI/1.0 ORAESI/9.0.2\", no-store")
+                                        .header("Content-Type", "text/html; charset=utf-8").build()));
+
+        for (int i = 0; i < 2; i++) {
+            IncomingRequest requestWithSurrogate =
+                    TestUtils.createRequest("http://test.mydomain.fr/foobar/")
+                            .addHeader("Surrogate-Capabilities", "ab=\"Surrogate/1.0\"").build();
+            HttpResponse response = TestUtils.driverProxy(driver, requestWithSurrogate);
+            Assert.assertEquals("content=\"ORAESI/9.0.2\", no-store", response.getFirstHeader("Surrogate-Control")
+                    .getValue());
+            Assert.assertEquals("no-store", response.getFirstHeader("Cache-Control").getValue());
+        }
+
+    }
+
     /**
      * 2.2 Surrogate-Control Header
      * <p>
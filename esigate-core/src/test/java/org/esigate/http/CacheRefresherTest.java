@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.http;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.protocol.HttpContext;
+import org.esigate.Driver;
+import org.esigate.MockRequestExecutor;
+import org.esigate.Parameters;
+import org.esigate.impl.DriverRequest;
+import org.esigate.test.TestUtils;
+import org.esigate.test.http.HttpResponseBuilder;
+import org.mockito.ArgumentMatcher;
+
+public class CacheRefresherTest extends TestCase {
+    private static final HttpHost HOST = new HttpHost("localhost", 8080);
+    private static final RequestConfig REFRESH_CONFIG = RequestConfig.custom().setSocketTimeout(10000).build();
+
+    private HttpClient httpClient;
+    private Driver driver;
+    private CacheRefresher cacheRefresher;
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost:8080");
+        driver = MockRequestExecutor.createDriver("tested", properties);
+        httpClient = mock(HttpClient.class);
+        when(httpClient.execute(eq(HOST), any(HttpRequest.class), any(HttpContext.class))).thenReturn(
+                new HttpResponseBuilder().status(HttpStatus.SC_OK).header("Cache-Control", "max-age=60").build());
+        cacheRefresher = new CacheRefresher(httpClient, REFRESH_CONFIG, 2, 5000, 100, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cacheRefresher.close();
+    }
+
+    private OutgoingRequest createRequest(String uri) throws Exception {
+        DriverRequest driverRequest = TestUtils.createDriverRequest(driver);
+        OutgoingRequestContext context = new OutgoingRequestContext();
+        OutgoingRequest request =
+                new OutgoingRequest("GET", uri, driverRequest.getOriginalRequest().getProtocolVersion(), driverRequest,
+                        RequestConfig.custom().setSocketTimeout(1).build(), context);
+        context.setPhysicalHost(HOST);
+        context.setOutgoingRequest(request);
+        return request;
+    }
+
+    private static HttpResponse createResponse(String cacheControl) {
+        return new HttpResponseBuilder().status(HttpStatus.SC_OK).header("Cache-Control", cacheControl).build();
+    }
+
+    private static ArgumentMatcher<HttpRequest> refreshOf(final String uri) {
+        return new ArgumentMatcher<HttpRequest>() {
+            @Override
+            public boolean matches(Object argument) {
+                HttpRequest request = (HttpRequest) argument;
+                return uri.equals(request.getRequestLine().getUri())
+                        && "max-age=0".equals(request.getFirstHeader("Cache-Control").getValue());
+            }
+        };
+    }
+
+    public void testDisabledByDefault() {
+        assertNull(CacheRefresher.create(httpClient, REFRESH_CONFIG, new Properties()));
+    }
+
+    public void testExpirationTime() {
+        long now = 1000000;
+        assertEquals(
+                now + 50000,
+                CacheRefresher.getExpirationTime(new HttpResponseBuilder()
+                        .header("Cache-Control", "public, max-age=60").header("Age", "10").build(), now));
+        assertEquals(now + 20000, CacheRefresher.getExpirationTime(createResponse("max-age=60, s-maxage=20"), now));
+        assertEquals(-1, CacheRefresher.getExpirationTime(createResponse("private, max-age=60"), now));
+        assertEquals(-1, CacheRefresher.getExpirationTime(createResponse("no-cache"), now));
+        assertEquals(
+                now + 30000,
+                CacheRefresher.getExpirationTime(
+                        new HttpResponseBuilder().header("Date", "Thu, 01 Jan 2015 00:00:00 GMT")
+                                .header("Expires", "Thu, 01 Jan 2015 00:00:30 GMT").build(), now));
+    }
+
+    public void testHotEntryIsRefreshedBeforeExpiration() throws Exception {
+        OutgoingRequest hot = createRequest("http://localhost:8080/hot");
+        OutgoingRequest cold = createRequest("http://localhost:8080/cold");
+        cacheRefresher.onResponse("hot", hot, createResponse("max-age=3"));
+        cacheRefresher.onResponse("hot", hot, createResponse("max-age=3"));
+        cacheRefresher.onResponse("cold", cold, createResponse("max-age=3"));
+        assertEquals(2, cacheRefresher.size());
+
+        long now = System.currentTimeMillis();
+        cacheRefresher.refreshExpiring(now);
+        verify(httpClient, timeout(1000)).execute(eq(HOST), argThat(refreshOf("http://localhost:8080/hot")),
+                any(HttpContext.class));
+        verify(httpClient, never()).execute(eq(HOST), argThat(refreshOf("http://localhost:8080/cold")),
+                any(HttpContext.class));
+
+        // Let the refresh complete
+        Thread.sleep(100);
+        // The cold entry expires and is forgotten, the hot one is fresh again
+        cacheRefresher.refreshExpiring(now + 4000);
+        assertEquals(1, cacheRefresher.size());
+    }
+
+    public void testRefreshDoesNotDependOnThePage() throws Exception {
+        OutgoingRequest request = createRequest("http://localhost:8080/");
+        request.addHeader("Accept-Language", "fr");
+        cacheRefresher.onResponse("key", request, createResponse("max-age=3"));
+        cacheRefresher.onResponse("key", request, createResponse("max-age=3"));
+
+        cacheRefresher.refreshExpiring(System.currentTimeMillis());
+        verify(httpClient, timeout(1000)).execute(eq(HOST), argThat(new ArgumentMatcher<HttpRequest>() {
+            @Override
+            public boolean matches(Object argument) {
+                OutgoingRequest refresh = (OutgoingRequest) argument;
+                // No reference to the page, nor to its deadline
+                return refresh.getOriginalRequest() == null && refresh.getConfig() == REFRESH_CONFIG
+                        && "http://localhost:8080".equals(refresh.getBaseUrl().toString())
+                        && "fr".equals(refresh.getFirstHeader("Accept-Language").getValue());
+            }
+        }), any(HttpContext.class));
+    }
+
+    public void testUncacheableResponseIsNotTracked() throws Exception {
+        OutgoingRequest request = createRequest("http://localhost:8080/");
+        cacheRefresher.onResponse("key", request, createResponse("no-store"));
+        assertEquals(0, cacheRefresher.size());
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.net.ServerSocket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.BasicHttpContext;
+import org.esigate.Parameters;
+import org.esigate.http.ConnectionPool.RouteStats;
+
+public class ConnectionPoolTest extends TestCase {
+    private ServerSocket serverSocket;
+    private HttpRoute route;
+
+    @Override
+    protected void setUp() throws Exception {
+        // Connections are only kept in the pool once connected, the server accepts them in its backlog
+        serverSocket = new ServerSocket(0);
+        route = new HttpRoute(new HttpHost("localhost", serverSocket.getLocalPort()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        serverSocket.close();
+    }
+
+    private HttpClientConnection lease(HttpClientConnectionManager connectionManager) throws Exception {
+        HttpClientConnection connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        if (!connection.isOpen()) {
+            connectionManager.connect(connection, route, 1000, new BasicHttpContext());
+            connectionManager.routeComplete(connection, route, new BasicHttpContext());
+        }
+        return connection;
+    }
+
+    public void testLimits() {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.MAX_CONNECTIONS_PER_HOST.getName(), "5");
+        PoolingHttpClientConnectionManager connectionManager =
+                (PoolingHttpClientConnectionManager) new ConnectionPool(properties, false).getConnectionManager();
+        assertEquals(5, connectionManager.getDefaultMaxPerRoute());
+        assertEquals("Same as maxConnectionsPerHost by default", 5, connectionManager.getMaxTotal());
+
+        properties.setProperty(Parameters.MAX_CONNECTIONS_TOTAL.getName(), "50");
+        connectionManager =
+                (PoolingHttpClientConnectionManager) new ConnectionPool(properties, false).getConnectionManager();
+        assertEquals(5, connectionManager.getDefaultMaxPerRoute());
+        assertEquals(50, connectionManager.getMaxTotal());
+    }
+
+    public void testRouteStats() throws Exception {
+        ConnectionPool connectionPool = new ConnectionPool(new Properties(), true);
+        HttpClientConnectionManager connectionManager = connectionPool.getConnectionManager();
+
+        HttpClientConnection connection = lease(connectionManager);
+        connectionPool.maintain();
+        RouteStats routeStats = connectionPool.getRouteStats().iterator().next();
+        assertEquals("http://localhost:" + serverSocket.getLocalPort(), routeStats.getRoute());
+        assertEquals(1, routeStats.getLeased());
+        assertEquals(0, routeStats.getAvailable());
+        assertEquals(20, routeStats.getMax());
+
+        connectionManager.releaseConnection(connection, null, 1, TimeUnit.MINUTES);
+        connection = lease(connectionManager);
+        connectionManager.releaseConnection(connection, null, 1, TimeUnit.MINUTES);
+        connectionPool.maintain();
+        assertEquals(0, routeStats.getLeased());
+        assertEquals(1, routeStats.getAvailable());
+        assertEquals(2, routeStats.getLeases());
+        assertEquals("The second lease reuses the connection", 1, routeStats.getConnectionsCreated());
+    }
+
+    public void testIdleConnectionsAreClosed() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.IDLE_CONNECTION_TIMEOUT.getName(), "1");
+        ConnectionPool connectionPool = new ConnectionPool(properties, true);
+        HttpClientConnectionManager connectionManager = connectionPool.getConnectionManager();
+
+        HttpClientConnection connection = lease(connectionManager);
+        connectionManager.releaseConnection(connection, null, 1, TimeUnit.MINUTES);
+        Thread.sleep(10);
+        connectionPool.maintain();
+        RouteStats routeStats = connectionPool.getRouteStats().iterator().next();
+        assertEquals(0, routeStats.getAvailable());
+        assertEquals(1, routeStats.getConnectionsCreated());
+    }
+
+    public void testClose() throws Exception {
+        ConnectionPool connectionPool = ConnectionPool.create(new Properties(), true);
+        HttpClientConnectionManager connectionManager = connectionPool.getConnectionManager();
+        HttpClientConnection idleConnection = lease(connectionManager);
+        HttpClientConnection leasedConnection = lease(connectionManager);
+        connectionManager.releaseConnection(idleConnection, null, 1, TimeUnit.MINUTES);
+
+        connectionPool.close();
+        assertFalse("Idle connections are closed", idleConnection.isOpen());
+        assertTrue("Requests in progress are not aborted", leasedConnection.isOpen());
+        HttpClientConnection lateConnection = lease(connectionManager);
+        assertTrue("Connections can still be leased by the requests using the old driver", lateConnection.isOpen());
+
+        connectionManager.releaseConnection(leasedConnection, null, 1, TimeUnit.MINUTES);
+        connectionManager.releaseConnection(lateConnection, null, 1, TimeUnit.MINUTES);
+        assertFalse("Released connections are not kept in the pool", leasedConnection.isOpen());
+        assertFalse("Released connections are not kept in the pool", lateConnection.isOpen());
+        connectionPool.maintain();
+        assertEquals(0, connectionPool.getRouteStats().iterator().next().getAvailable());
+    }
+
+}
@@ -19,6 +19,7 @@ import java.util.Properties;
 import junit.framework.TestCase;
 
 import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.esigate.Driver;
 import org.esigate.Parameters;
 import org.esigate.impl.DriverRequest;
@@ -94,4 +95,70 @@ public class HeaderManagerTest extends TestCase {
         assertEquals("Wrong X-Forwarded-Proto header", "https", headers[0].getValue());
     }
 
+    /**
+     * Test that response headers are matched case-insensitively and that urls are rewritten.
+     * 
+     * @throws Exception
+     */
+    public void testCopyResponseHeaders() throws Exception {
+        UrlRewriter urlRewriter = Mockito.mock(UrlRewriter.class);
+        Mockito.when(
+                urlRewriter.rewriteUrl(Mockito.eq("http://www.foo.com/page"), Mockito.anyString(), Mockito.anyString(),
+                        Mockito.anyString(), Mockito.eq(true))).thenReturn("http://localhost/page");
+        headerManager = new HeaderManager(urlRewriter);
+        Properties props = new Properties();
+        props.put(Parameters.REMOTE_URL_BASE.getName(), "http://www.foo.com/");
+        Driver driver = Driver.builder().setName("test").setProperties(props).build();
+        DriverRequest driverRequest = TestUtils.createDriverRequest("http://localhost/", driver);
+        OutgoingRequest outgoingRequest =
+                new OutgoingRequest("GET", "http://www.foo.com/", driverRequest.getOriginalRequest()
+                        .getProtocolVersion(), driverRequest, null, null);
+        HttpResponse response =
+                TestUtils.createHttpResponse().header("location", "http://www.foo.com/page")
+                        .header("DATE", "Thu, 01 Jan 2015 00:00:00 GMT").header("Content-Encoding", "gzip")
+                        .header("X-Custom", "value").build();
+        HttpResponse result = headerManager.copyHeaders(outgoingRequest, driverRequest.getOriginalRequest(), response);
+        assertEquals("http://localhost/page", result.getFirstHeader("Location").getValue());
+        assertNull(result.getFirstHeader("Date"));
+        assertNull(result.getFirstHeader("Content-Encoding"));
+        assertEquals("value", result.getFirstHeader("X-Custom").getValue());
+    }
+
+    /**
+     * Test that the forwarding rules can be overridden.
+     * 
+     * @throws Exception
+     */
+    public void testOverriddenForwardingRules() throws Exception {
+        headerManager = new HeaderManager(Mockito.mock(UrlRewriter.class)) {
+            @Override
+            protected boolean isForwardedRequestHeader(String headerName) {
+                return !"X-Secret".equalsIgnoreCase(headerName);
+            }
+
+            @Override
+            protected boolean isForwardedResponseHeader(String headerName) {
+                return !"X-Custom".equalsIgnoreCase(headerName);
+            }
+        };
+        Properties props = new Properties();
+        props.put(Parameters.REMOTE_URL_BASE.getName(), "http://www.foo.com/");
+        Driver driver = Driver.builder().setName("test").setProperties(props).build();
+        DriverRequest driverRequest =
+                new DriverRequest(TestUtils.createIncomingRequest("http://localhost/").addHeader("X-Secret", "secret")
+                        .addHeader("Cookie", "a=b").build(), driver, "/");
+        OutgoingRequest outgoingRequest =
+                new OutgoingRequest("GET", "http://www.foo.com/", driverRequest.getOriginalRequest()
+                        .getProtocolVersion(), driverRequest, null, null);
+        headerManager.copyHeaders(driverRequest, outgoingRequest);
+        assertNull(outgoingRequest.getFirstHeader("X-Secret"));
+        assertEquals("a=b", outgoingRequest.getFirstHeader("Cookie").getValue());
+
+        HttpResponse response =
+                TestUtils.createHttpResponse().header("X-Custom", "value").header("Set-Cookie", "a=b").build();
+        HttpResponse result = headerManager.copyHeaders(outgoingRequest, driverRequest.getOriginalRequest(), response);
+        assertNull(result.getFirstHeader("X-Custom"));
+        assertEquals("a=b", result.getFirstHeader("Set-Cookie").getValue());
+    }
+
 }
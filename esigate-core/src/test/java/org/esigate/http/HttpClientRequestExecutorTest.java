@@ -18,6 +18,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPOutputStream;
 
 import junit.framework.TestCase;
@@ -25,6 +26,7 @@ import junit.framework.TestCase;
 import org.apache.commons.io.output.NullOutputStream;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolVersion;
@@ -41,6 +43,7 @@ import org.esigate.cookie.CookieManager;
 import org.esigate.extension.ExtensionFactory;
 import org.esigate.impl.DriverRequest;
 import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
 import org.esigate.test.conn.MockConnectionManager;
 
 /**
@@ -764,4 +767,183 @@ public class HttpClientRequestExecutorTest extends TestCase {
         assertEquals(HttpStatus.SC_NOT_MODIFIED, result2.getStatusLine().getStatusCode());
     }
 
+    public void testPageTimeoutLimitsTimeouts() throws Exception {
+        properties.put(Parameters.PAGE_TIMEOUT.getName(), "500");
+        createHttpClientRequestExecutor();
+        DriverRequest httpRequest = TestUtils.createDriverRequest(driver);
+        OutgoingRequest outgoingRequest =
+                httpClientRequestExecutor.createOutgoingRequest(httpRequest, "http://localhost:8080", false);
+        assertTrue(outgoingRequest.getConfig().getSocketTimeout() <= 500);
+        assertTrue(outgoingRequest.getConfig().getConnectTimeout() <= 500);
+        assertTrue(outgoingRequest.getConfig().getConnectionRequestTimeout() <= 500);
+    }
+
+    public void testPageTimeoutExceeded() throws Exception {
+        properties.put(Parameters.PAGE_TIMEOUT.getName(), "10");
+        properties.put(Parameters.USE_CACHE.getName(), "false");
+        createHttpClientRequestExecutor();
+        mockConnectionManager.setResponse(createMockResponse("0"));
+        DriverRequest httpRequest = TestUtils.createDriverRequest(driver);
+        Thread.sleep(ONE_HUNDRED_MS);
+        assertTrue(httpRequest.isDeadlineExceeded());
+        OutgoingRequest outgoingRequest =
+                httpClientRequestExecutor.createOutgoingRequest(httpRequest, "http://localhost:8080", false);
+        try {
+            httpClientRequestExecutor.execute(outgoingRequest);
+            fail("Request should not be sent after the page deadline");
+        } catch (HttpErrorPage e) {
+            assertEquals(HttpStatus.SC_GATEWAY_TIMEOUT, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+    }
+
+    public void testPageTimeoutResponseIsNotCached() throws Exception {
+        properties.put(Parameters.PAGE_TIMEOUT.getName(), "10");
+        properties.put(Parameters.TTL.getName(), "60");
+        createHttpClientRequestExecutor();
+        AtomicInteger count = countRequests(createMockResponse("0"));
+        DriverRequest lateRequest = TestUtils.createDriverRequest(driver);
+        Thread.sleep(ONE_HUNDRED_MS);
+        try {
+            httpClientRequestExecutor.execute(httpClientRequestExecutor.createOutgoingRequest(lateRequest,
+                    "http://localhost:8080", false));
+            fail("Request should not be sent after the page deadline");
+        } catch (HttpErrorPage e) {
+            assertEquals(HttpStatus.SC_GATEWAY_TIMEOUT, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+        // The next page must not get the timeout of the previous one from the cache
+        DriverRequest nextRequest = TestUtils.createDriverRequest(driver);
+        assertTrue(compare(createMockResponse("0"), httpClientRequestExecutor.execute(httpClientRequestExecutor
+                .createOutgoingRequest(nextRequest, "http://localhost:8080", false))));
+        assertEquals(1, count.get());
+    }
+
+    private AtomicInteger countRequests(final HttpResponse... responses) {
+        final AtomicInteger count = new AtomicInteger();
+        mockConnectionManager.setResponseHandler(new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                int index = count.getAndIncrement();
+                return responses[Math.min(index, responses.length - 1)];
+            }
+        });
+        return count;
+    }
+
+    public void testCircuitBreakerOpensAfterConsecutiveFailures() throws Exception {
+        properties.put(Parameters.USE_CACHE.getName(), "false");
+        properties.put(Parameters.CIRCUIT_BREAKER_FAILURES.getName(), "2");
+        createHttpClientRequestExecutor();
+        AtomicInteger count = countRequests(createMockResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, "error"));
+        for (int i = 0; i < 5; i++) {
+            try {
+                executeRequest();
+                fail("Should return an error");
+            } catch (HttpErrorPage e) {
+                assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getHttpResponse().getStatusLine().getStatusCode());
+            }
+        }
+        assertEquals("Circuit should be open after 2 failures", 2, count.get());
+    }
+
+    public void testCircuitBreakerHalfOpen() throws Exception {
+        properties.put(Parameters.USE_CACHE.getName(), "false");
+        properties.put(Parameters.CIRCUIT_BREAKER_FAILURES.getName(), "1");
+        properties.put(Parameters.CIRCUIT_BREAKER_OPEN_TIME.getName(), "50");
+        createHttpClientRequestExecutor();
+        AtomicInteger count =
+                countRequests(createMockResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, "error"), createMockResponse("ok"));
+        try {
+            executeRequest();
+            fail("Should return an error");
+        } catch (HttpErrorPage e) {
+            assertEquals(1, count.get());
+        }
+        Thread.sleep(ONE_HUNDRED_MS);
+        assertTrue(compare(createMockResponse("ok"), executeRequest()));
+        assertTrue(compare(createMockResponse("ok"), executeRequest()));
+        assertEquals(3, count.get());
+    }
+
+    public void testCircuitBreakerHalfOpenAfterUnexpectedError() throws Exception {
+        properties.put(Parameters.USE_CACHE.getName(), "false");
+        properties.put(Parameters.CIRCUIT_BREAKER_FAILURES.getName(), "1");
+        properties.put(Parameters.CIRCUIT_BREAKER_OPEN_TIME.getName(), "50");
+        createHttpClientRequestExecutor();
+        final HttpResponse error = createMockResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, "error");
+        final HttpResponse ok = createMockResponse("ok");
+        final AtomicInteger count = new AtomicInteger();
+        mockConnectionManager.setResponseHandler(new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                switch (count.getAndIncrement()) {
+                case 0:
+                    return error;
+                case 1:
+                    throw new AssertionError("Unexpected error");
+                default:
+                    return ok;
+                }
+            }
+        });
+        try {
+            executeRequest();
+            fail("Should return an error");
+        } catch (HttpErrorPage e) {
+            assertEquals(1, count.get());
+        }
+        Thread.sleep(ONE_HUNDRED_MS);
+        try {
+            executeRequest();
+            fail("Should throw an error");
+        } catch (AssertionError e) {
+            assertEquals(2, count.get());
+        }
+        // The circuit is still half-open, the next request is allowed
+        assertTrue(compare(ok, executeRequest()));
+        assertEquals(3, count.get());
+    }
+
+    public void testCircuitOpenResponseIsNotCached() throws Exception {
+        properties.put(Parameters.TTL.getName(), "60");
+        properties.put(Parameters.CIRCUIT_BREAKER_FAILURES.getName(), "1");
+        properties.put(Parameters.CIRCUIT_BREAKER_OPEN_TIME.getName(), "50");
+        createHttpClientRequestExecutor();
+        // 502 is not cached even with a ttl
+        AtomicInteger count =
+                countRequests(createMockResponse(HttpStatus.SC_BAD_GATEWAY, "error"), createMockResponse("ok"));
+        try {
+            executeRequest();
+            fail("Should return an error");
+        } catch (HttpErrorPage e) {
+            assertEquals(HttpStatus.SC_BAD_GATEWAY, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+        try {
+            executeRequest();
+            fail("Circuit should be open");
+        } catch (HttpErrorPage e) {
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+        assertEquals(1, count.get());
+        // Once the circuit closes, the backend is called again instead of the cache
+        Thread.sleep(ONE_HUNDRED_MS);
+        assertTrue(compare(createMockResponse("ok"), executeRequest()));
+        assertEquals(2, count.get());
+    }
+
+    public void testCircuitBreakerServesStaleEntries() throws Exception {
+        properties.put(Parameters.STALE_IF_ERROR.getName(), "60");
+        properties.put(Parameters.HEURISTIC_CACHING_ENABLED.getName(), "false");
+        properties.put(Parameters.CIRCUIT_BREAKER_FAILURES.getName(), "2");
+        createHttpClientRequestExecutor();
+        HttpResponse response = createMockResponse("0");
+        response.setHeader("Last-modified", "Fri, 20 May 2011 00:00:00 GMT");
+        response.setHeader("Cache-control", "max-age=0");
+        AtomicInteger count = countRequests(response, createMockResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR, "error"));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(compare(response, executeRequest()));
+        }
+        // 1 request to load the cache + 2 failures, then the circuit is open and the cache is used
+        assertEquals(3, count.get());
+    }
+
 }
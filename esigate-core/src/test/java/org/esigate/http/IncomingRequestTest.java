@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.http;
+
+import junit.framework.TestCase;
+
+import org.esigate.test.TestUtils;
+
+public class IncomingRequestTest extends TestCase {
+
+    public void testParsedUriIsReused() {
+        IncomingRequest request = TestUtils.createIncomingRequest("https://www.foo.com:8443/a%20b/page?x=1").build();
+        assertSame(request.getURI(), request.getURI());
+        assertEquals("x=1", request.getURI().getRawQuery());
+        assertEquals("/a b/page", request.getPath());
+        assertSame(request.getHttpHost(), request.getHttpHost());
+        assertEquals("https", request.getHttpHost().getSchemeName());
+        assertEquals("www.foo.com", request.getHttpHost().getHostName());
+        assertEquals(8443, request.getHttpHost().getPort());
+    }
+
+    public void testServerWithoutPath() {
+        IncomingRequest request = TestUtils.createIncomingRequest("http://www.foo.com").build();
+        assertEquals("/", request.getPath());
+    }
+
+}
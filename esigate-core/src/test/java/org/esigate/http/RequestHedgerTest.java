@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.esigate.http;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.esigate.Driver;
+import org.esigate.MockRequestExecutor;
+import org.esigate.Parameters;
+import org.esigate.impl.DriverRequest;
+import org.esigate.test.TestUtils;
+import org.esigate.test.http.HttpResponseBuilder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class RequestHedgerTest extends TestCase {
+    private static final HttpHost SLOW = new HttpHost("localhost", 8080);
+    private static final HttpHost FAST = new HttpHost("127.0.0.1", 8080);
+
+    private HttpClient httpClient;
+    private Driver driver;
+    private RequestHedger requestHedger;
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost:8080, http://127.0.0.1:8080");
+        properties.put(Parameters.HEDGE_REQUESTS.getName(), "true");
+        driver = MockRequestExecutor.createDriver("tested", properties);
+        httpClient = mock(HttpClient.class);
+        when(httpClient.execute(eq(SLOW), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(
+                respondAfter(1000, "slow"));
+        when(httpClient.execute(eq(FAST), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(
+                respondAfter(0, "fast"));
+        requestHedger = RequestHedger.create(httpClient, properties);
+    }
+
+    @Override
+    protected void tearDown() {
+        requestHedger.close();
+    }
+
+    private static Answer<HttpResponse> respondAfter(final long delay, final String content) {
+        return new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) throws Exception {
+                Thread.sleep(delay);
+                return new HttpResponseBuilder().status(HttpStatus.SC_OK).entity(content).build();
+            }
+        };
+    }
+
+    private OutgoingRequest createRequest(String method) throws Exception {
+        DriverRequest driverRequest = TestUtils.createDriverRequest(driver);
+        OutgoingRequestContext context = new OutgoingRequestContext();
+        OutgoingRequest request =
+                new OutgoingRequest(method, "http://localhost:8080/", driverRequest.getOriginalRequest()
+                        .getProtocolVersion(), driverRequest, null, context);
+        context.setPhysicalHost(SLOW);
+        context.setOutgoingRequest(request);
+        return request;
+    }
+
+    public void testDisabledWithSingleBackend() {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost:8080");
+        properties.put(Parameters.HEDGE_REQUESTS.getName(), "true");
+        assertNull(RequestHedger.create(httpClient, properties));
+    }
+
+    public void testNoHedgingWithoutEnoughSamples() {
+        assertEquals(-1, requestHedger.getDelay());
+        for (int i = 0; i < 20; i++) {
+            requestHedger.record(1);
+        }
+        assertEquals(Parameters.HEDGE_MIN_DELAY.getDefaultValue().longValue(), requestHedger.getDelay());
+        for (int i = 0; i < 20; i++) {
+            requestHedger.record(i * 100);
+        }
+        assertEquals(1700, requestHedger.getDelay());
+    }
+
+    public void testSlowBackendIsHedged() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            requestHedger.record(50);
+        }
+        long start = System.currentTimeMillis();
+        HttpResponse response = requestHedger.execute(createRequest("GET"));
+        long duration = System.currentTimeMillis() - start;
+        assertEquals("fast", HttpResponseUtils.toString(response, null));
+        assertTrue("Request took " + duration + " ms", duration < 1000);
+    }
+
+    public void testSlowRequestIsAborted() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            requestHedger.record(50);
+        }
+        OutgoingRequest request = createRequest("GET");
+        HttpResponse response = requestHedger.execute(request);
+        assertEquals("fast", HttpResponseUtils.toString(response, null));
+        assertTrue(request.isAborted());
+    }
+
+    public void testPostIsNotHedged() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            requestHedger.record(50);
+        }
+        HttpResponse response = requestHedger.execute(createRequest("POST"));
+        assertEquals("slow", HttpResponseUtils.toString(response, null));
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.DriverFactory;
+import org.esigate.Parameters;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.SequenceResponse;
+
+public class DriverInstrumentationTest extends TestCase {
+
+    /**
+     * Counts the durations recorded by each timer and sums the allocations.
+     */
+    public static class CountingInstrumentation implements Instrumentation {
+        private static final Map<String, AtomicInteger> COUNTS = new ConcurrentHashMap<String, AtomicInteger>();
+        private static final Map<String, AtomicLong> ALLOCATIONS = new ConcurrentHashMap<String, AtomicLong>();
+
+        @Override
+        public void init(Driver driver, Properties properties) {
+            COUNTS.clear();
+            ALLOCATIONS.clear();
+        }
+
+        @Override
+        public PhaseTimer getTimer(String name) {
+            final AtomicInteger count = new AtomicInteger();
+            COUNTS.put(name, count);
+            return new PhaseTimer() {
+
+                @Override
+                public void record(long durationNanos) {
+                    count.incrementAndGet();
+                }
+            };
+        }
+
+        @Override
+        public AllocationCounter getAllocationCounter(String name) {
+            final AtomicLong allocated = new AtomicLong();
+            ALLOCATIONS.put(name, allocated);
+            return new AllocationCounter() {
+
+                @Override
+                public void record(long bytes) {
+                    allocated.addAndGet(bytes);
+                }
+            };
+        }
+
+        static long getAllocated(String name) {
+            AtomicLong allocated = ALLOCATIONS.get(name);
+            if (allocated == null) {
+                return -1;
+            }
+            return allocated.get();
+        }
+
+        static int getCount(String name) {
+            AtomicInteger count = COUNTS.get(name);
+            if (count == null) {
+                return -1;
+            }
+            return count.get();
+        }
+    }
+
+    public void testDisabledByDefault() {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        Driver driver =
+                TestUtils.createMockDriver(properties, TestUtils.createHttpResponse().status(HttpStatus.SC_OK).build());
+        assertSame(DriverInstrumentation.DISABLED, driver.getInstrumentation());
+        assertSame(PhaseTimer.DISABLED, driver.getInstrumentation().getBackendFirstByte());
+    }
+
+    public void testPhasesAreRecorded() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.MAPPINGS.getName(), "/*");
+        properties.setProperty(Parameters.INSTRUMENTATION.getName(), CountingInstrumentation.class.getName());
+        properties.setProperty(Parameters.USE_CACHE.getName(), "false");
+        TestUtils.createMockDriver(
+                properties,
+                new SequenceResponse().response(
+                        TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                .header("Content-Type", "text/html; charset=utf-8")
+                                .entity("<esi:include src=\"/fragment\"/>").build()).response(
+                        TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                .header("Content-Type", "text/html; charset=utf-8").entity("fragment").build()));
+
+        HttpResponse response = DriverFactory.proxy(TestUtils.createIncomingRequest("http://localhost/page").build());
+
+        assertEquals("fragment", EntityUtils.toString(response.getEntity()));
+        assertEquals(1, CountingInstrumentation.getCount(Instrumentation.REQUEST));
+        assertEquals(1, CountingInstrumentation.getCount(Instrumentation.PROVIDER_SELECTION));
+        assertEquals("Responses fetched without the cache are misses", 2,
+                CountingInstrumentation.getCount(Instrumentation.FETCH_PREFIX + "cache_miss"));
+        assertEquals(2, CountingInstrumentation.getCount(Instrumentation.BACKEND_CONNECT));
+        assertEquals(2, CountingInstrumentation.getCount(Instrumentation.BACKEND_FIRST_BYTE));
+        assertEquals(2, CountingInstrumentation.getCount(Instrumentation.BACKEND_BODY));
+        assertEquals(1, CountingInstrumentation.getCount(Instrumentation.INCLUDE));
+        assertTrue(CountingInstrumentation.getCount(Instrumentation.PARSE) >= 2);
+        assertTrue(CountingInstrumentation.getCount(Instrumentation.RENDER_PREFIX + "EsiRenderer") >= 2);
+        assertEquals(0, CountingInstrumentation.getCount(Instrumentation.CACHE_LOOKUP));
+        assertEquals("Allocations should not be measured by default", -1,
+                CountingInstrumentation.getAllocated(Instrumentation.FETCH));
+    }
+
+    public void testAllocationsAreRecorded() throws Exception {
+        if (!AllocationCounter.isSupported()) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.MAPPINGS.getName(), "/*");
+        properties.setProperty(Parameters.INSTRUMENTATION.getName(), CountingInstrumentation.class.getName());
+        properties.setProperty(Parameters.ALLOCATION_TRACKING.getName(), "true");
+        properties.setProperty(Parameters.USE_CACHE.getName(), "false");
+        Driver driver =
+                TestUtils
+                        .createMockDriver(
+                                properties,
+                                new SequenceResponse().response(
+                                        TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                                .header("Content-Type", "text/html; charset=utf-8")
+                                                .entity("<esi:include src=\"/fragment\"/>").build()).response(
+                                        TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                                .header("Content-Type", "text/html; charset=utf-8").entity("fragment")
+                                                .build()));
+
+        HttpResponse response = DriverFactory.proxy(TestUtils.createIncomingRequest("http://localhost/page").build());
+
+        assertEquals("fragment", EntityUtils.toString(response.getEntity()));
+        assertTrue(CountingInstrumentation.getAllocated(Instrumentation.FETCH) > 0);
+        assertTrue(CountingInstrumentation.getAllocated(Instrumentation.BACKEND_BODY) > 0);
+        assertTrue(CountingInstrumentation.getAllocated(Instrumentation.PARSE) > 0);
+        long rendering = CountingInstrumentation.getAllocated(Instrumentation.RENDER_PREFIX + "EsiRenderer");
+        assertTrue("Rendering includes parsing",
+                rendering >= CountingInstrumentation.getAllocated(Instrumentation.PARSE));
+        assertNotSame(AllocationCounter.DISABLED, driver.getInstrumentation().getFetchAllocation());
+    }
+
+    public void testCacheLookupIsRecorded() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.INSTRUMENTATION.getName(), CountingInstrumentation.class.getName());
+        Driver driver =
+                TestUtils.createMockDriver(properties,
+                        TestUtils.createHttpResponse().status(HttpStatus.SC_OK).header("Cache-Control", "max-age=60")
+                                .header("Content-Type", "text/plain").entity("cached").build());
+
+        for (int i = 0; i < 2; i++) {
+            HttpResponse response =
+                    TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost/page").build());
+            assertEquals("cached", EntityUtils.toString(response.getEntity()));
+        }
+
+        assertEquals(2, CountingInstrumentation.getCount(Instrumentation.CACHE_LOOKUP));
+        assertEquals(1, CountingInstrumentation.getCount(Instrumentation.BACKEND_FIRST_BYTE));
+        assertEquals(2, CountingInstrumentation.getCount(Instrumentation.REQUEST));
+        assertEquals(1, CountingInstrumentation.getCount(Instrumentation.FETCH_PREFIX + "cache_miss"));
+        assertEquals(1, CountingInstrumentation.getCount(Instrumentation.FETCH_PREFIX + "cache_hit"));
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.instrumentation;
+
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.extension.parallelesi.Esi;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.UriResponse;
+
+public class RenderTraceTest extends TestCase {
+
+    @Override
+    protected void setUp() {
+        MemoryTraceExporter.clear();
+    }
+
+    private Driver createDriver(Properties properties) throws Exception {
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.TRACE.getName(), "true");
+        return TestUtils.createMockDriver(
+                properties,
+                new UriResponse()
+                        .response(
+                                "/page",
+                                TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                        .header("Content-Type", "text/html; charset=utf-8")
+                                        .entity("<esi:include src=\"/a\"/><esi:include src=\"/b\"/>").build())
+                        .response(
+                                "/a",
+                                TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                        .header("Content-Type", "text/html; charset=utf-8")
+                                        .entity("a<esi:include src=\"/c\"/>").build())
+                        .response(
+                                "/b",
+                                TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                        .header("Content-Type", "text/html; charset=utf-8").entity("b").build())
+                        .response(
+                                "/c",
+                                TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                        .header("Content-Type", "text/html; charset=utf-8").entity("c").build()));
+    }
+
+    private void assertTrace(HttpResponse response) throws Exception {
+        assertEquals("acb", EntityUtils.toString(response.getEntity()));
+        String summary = response.getFirstHeader(RenderTrace.HEADER).getValue();
+        assertTrue(summary, summary.startsWith("total="));
+        assertTrue(summary, summary.contains("includes=3"));
+
+        List<RenderTrace> traces = MemoryTraceExporter.getTraces();
+        assertEquals(1, traces.size());
+        TraceSpan root = traces.get(0).getRoot();
+        assertEquals("/page", root.getName());
+        assertEquals("tested", root.getProvider());
+        assertEquals(2, root.getChildren().size());
+        TraceSpan a = root.getChildren().get(0);
+        TraceSpan b = root.getChildren().get(1);
+        if ("/b".equals(a.getName())) {
+            // Includes may be processed in any order by parallel esi
+            a = b;
+            b = root.getChildren().get(0);
+        }
+        assertEquals("/a", a.getName());
+        assertEquals("tested", a.getProvider());
+        assertEquals("a<esi:include src=\"/c\"/>".length(), a.getSize());
+        assertTrue(a.getDuration() >= a.getFetchTime());
+        assertEquals(1, a.getChildren().size());
+        assertEquals("/c", a.getChildren().get(0).getName());
+        assertEquals("/b", b.getName());
+        assertTrue(b.getChildren().isEmpty());
+        assertNull(RenderTrace.current());
+    }
+
+    public void testTrace() throws Exception {
+        Driver driver = createDriver(new Properties());
+        assertTrace(TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost/page").build()));
+    }
+
+    public void testTraceWithParallelEsi() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.EXTENSIONS.getName(), Esi.class.getName());
+        properties.setProperty("esi_max_threads", "4");
+        Driver driver = createDriver(properties);
+        assertTrace(TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost/page").build()));
+    }
+
+    public void testNoTraceByDefault() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        Driver driver =
+                TestUtils.createMockDriver(
+                        properties,
+                        TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                .header("Content-Type", "text/html; charset=utf-8").entity("page").build());
+        HttpResponse response =
+                TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost/page").build());
+        assertNull(response.getFirstHeader(RenderTrace.HEADER));
+        assertTrue(MemoryTraceExporter.getTraces().isEmpty());
+    }
+
+}
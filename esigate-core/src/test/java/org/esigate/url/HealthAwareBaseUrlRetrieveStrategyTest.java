@@ -0,0 +1,168 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.url;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
+import org.esigate.api.BaseUrlRetrieveStrategy;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.http.IncomingRequest;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+import org.esigate.test.http.HttpResponseBuilder;
+
+public class HealthAwareBaseUrlRetrieveStrategyTest extends TestCase {
+    private static final String URL1 = "http://example.com/test/";
+    private static final String URL2 = "http://example1.com/test/";
+    private static final String URL3 = "http://example2.com/test/";
+
+    private HealthAwareBaseUrlRetrieveStrategy strategy;
+    private IncomingRequest request;
+
+    @Override
+    protected void setUp() {
+        Properties properties = new Properties();
+        properties.put(Parameters.HEALTH_CONSECUTIVE_ERRORS.getName(), "3");
+        properties.put(Parameters.HEALTH_EJECTION_TIME.getName(), "100");
+        properties.put(Parameters.HEALTH_SLOW_START.getName(), "0");
+        strategy = new HealthAwareBaseUrlRetrieveStrategy(new String[] {URL1, URL2, URL3}, properties);
+        request = TestUtils.createIncomingRequest().build();
+    }
+
+    private int count(String url, int requests) {
+        int result = 0;
+        for (int i = 0; i < requests; i++) {
+            if (url.equals(strategy.getBaseURL(request))) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    public void testFailingNodeIsEjectedThenReintroduced() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            strategy.requestStarted(URL1);
+            strategy.requestCompleted(URL1, 10, false);
+        }
+        assertEquals(0, count(URL1, 100));
+        Thread.sleep(150);
+        assertTrue(count(URL1, 100) > 0);
+    }
+
+    public void testSlowNodeGetsLessTraffic() {
+        for (int i = 0; i < 10; i++) {
+            strategy.requestCompleted(URL1, 1000, true);
+            strategy.requestCompleted(URL2, 10, true);
+            strategy.requestCompleted(URL3, 10, true);
+        }
+        // URL1 is never selected as it is always compared to a faster node
+        assertEquals(0, count(URL1, 100));
+    }
+
+    public void testBusyNodeGetsLessTraffic() {
+        for (int i = 0; i < 10; i++) {
+            strategy.requestStarted(URL2);
+        }
+        assertEquals(0, count(URL2, 100));
+    }
+
+    public void testAllNodesEjected() {
+        for (String url : new String[] {URL1, URL2, URL3}) {
+            for (int i = 0; i < 3; i++) {
+                strategy.requestCompleted(url, 10, false);
+            }
+        }
+        assertNotNull(strategy.getBaseURL(request));
+    }
+
+    public void testStatisticsCollectedFromFetchEvents() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost:8080/, http://127.0.0.1:8080/");
+        properties.put(Parameters.REMOTE_URL_BASE_STRATEGY.getName(), Parameters.HEALTHAWARE);
+        properties.put(Parameters.HEALTH_CONSECUTIVE_ERRORS.getName(), "1");
+        properties.put(Parameters.USE_CACHE.getName(), "false");
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest httpRequest) {
+                return new HttpResponseBuilder().status(HttpStatus.SC_SERVICE_UNAVAILABLE).build();
+            }
+        });
+        try {
+            TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost:8080/").build());
+            fail("Should return an error");
+        } catch (HttpErrorPage e) {
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+        // One of the nodes has been ejected, all the traffic goes to the other one
+        String baseUrl = driver.getConfiguration().getBaseUrlRetrieveStrategy().getBaseURL(request);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(baseUrl, driver.getConfiguration().getBaseUrlRetrieveStrategy().getBaseURL(request));
+        }
+    }
+
+    public void testPageTimeoutIsNotCountedAsAnError() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost:8080/, http://127.0.0.1:8080/");
+        properties.put(Parameters.REMOTE_URL_BASE_STRATEGY.getName(), Parameters.HEALTHAWARE);
+        properties.put(Parameters.HEALTH_CONSECUTIVE_ERRORS.getName(), "1");
+        properties.put(Parameters.PAGE_TIMEOUT.getName(), "1");
+        properties.put(Parameters.USE_CACHE.getName(), "false");
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest httpRequest) {
+                return new HttpResponseBuilder().status(HttpStatus.SC_OK).build();
+            }
+        });
+        // Make sure the deadline is exceeded before the request is sent
+        driver.getEventManager().register(EventManager.EVENT_FETCH_PRE, new IEventListener() {
+            @Override
+            public boolean event(EventDefinition id, Event event) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+        });
+        try {
+            TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost:8080/").build());
+            fail("Should return an error");
+        } catch (HttpErrorPage e) {
+            assertEquals(HttpStatus.SC_GATEWAY_TIMEOUT, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+        // No node has been ejected
+        BaseUrlRetrieveStrategy strategy = driver.getConfiguration().getBaseUrlRetrieveStrategy();
+        String baseUrl = strategy.getBaseURL(request);
+        boolean otherNodeSelected = false;
+        for (int i = 0; i < 100 && !otherNodeSelected; i++) {
+            otherNodeSelected = !baseUrl.equals(strategy.getBaseURL(request));
+        }
+        assertTrue(otherNodeSelected);
+    }
+
+}
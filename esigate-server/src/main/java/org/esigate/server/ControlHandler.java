@@ -18,6 +18,7 @@ package org.esigate.server;
 import java.io.IOException;
 import java.io.Writer;
 import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -29,10 +30,12 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.webapp.WebAppContext;
 
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 
@@ -44,6 +47,11 @@ import com.codahale.metrics.Timer;
  * <ul>
  * <li>POST /shutdown</li>
  * <li>POST /status</li>
+ * <li>POST /cache/purge?tag=&lt;tag&gt; : removes from the cache all the pages tagged with this tag in the
+ * Surrogate-Key header and returns the number of entries removed</li>
+ * <li>GET /traces : displays the last requests traced, when the trace parameter is enabled</li>
+ * <li>GET /metrics : server metrics and the metrics of the drivers using OpenMetricsInstrumentation, in the OpenMetrics
+ * text format</li>
  * </ul>
  * 
  * @author Nicolas Richeton
@@ -56,6 +64,11 @@ public class ControlHandler extends AbstractHandler {
      * Human-readable status
      */
     private static final String URL_STATUS = "/server-status";
+    private static final String URL_PURGE = "/cache/purge";
+    private static final String URL_TRACES = "/traces";
+    private static final String URL_METRICS = "/metrics";
+    private static final String CONTENT_TYPE_OPENMETRICS = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final String[] RESPONSE_CODES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
     /**
      * Machine-readable status.
      * 
@@ -75,6 +88,7 @@ public class ControlHandler extends AbstractHandler {
      * </pre>
      */
     private final MetricRegistry registry;
+    private final WebAppContext context;
 
     /**
      * Control handler for administration tasks.
@@ -83,7 +97,20 @@ public class ControlHandler extends AbstractHandler {
      *            metrics registry.
      */
     public ControlHandler(MetricRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * Control handler for administration tasks.
+     * 
+     * @param registry
+     *            metrics registry.
+     * @param context
+     *            esigate web application, required for cache purge.
+     */
+    public ControlHandler(MetricRegistry registry, WebAppContext context) {
         this.registry = registry;
+        this.context = context;
     }
 
     private static boolean fromControlConnection(Request serverRequest) {
@@ -154,6 +181,51 @@ public class ControlHandler extends AbstractHandler {
                 }
                 break;
 
+            case URL_PURGE:
+                String tag = request.getParameter("tag");
+                if ("POST".equals(serverRequest.getMethod()) && tag != null && context != null) {
+                    int purged = purgeCacheTag(tag);
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    try (Writer sos = response.getWriter()) {
+                        sos.append("Purged: " + purged + "\n");
+                    }
+                } else {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                }
+                break;
+
+            case URL_TRACES:
+                if ("GET".equals(serverRequest.getMethod()) && context != null) {
+                    String traces = (String) invokeWebApp("org.esigate.instrumentation.MemoryTraceExporter", "dump");
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.setContentType("text/plain");
+                    try (Writer sos = response.getWriter()) {
+                        sos.append(traces);
+                    }
+                } else {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                }
+                break;
+
+            case URL_METRICS:
+                if ("GET".equals(serverRequest.getMethod())) {
+                    StringBuilder metrics = new StringBuilder();
+                    writeServerMetrics(metrics);
+                    if (context != null) {
+                        metrics.append((String) invokeWebApp(
+                                "org.esigate.extension.monitoring.OpenMetricsInstrumentation", "scrape"));
+                    }
+                    metrics.append("# EOF\n");
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.setContentType(CONTENT_TYPE_OPENMETRICS);
+                    try (Writer sos = response.getWriter()) {
+                        sos.append(metrics);
+                    }
+                } else {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                }
+                break;
+
             default:
                 response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
                 break;
@@ -218,6 +290,50 @@ public class ControlHandler extends AbstractHandler {
 
     }
 
+    /**
+     * Writes the server metrics in the OpenMetrics text format. The metrics are looked up by name in the registry
+     * without copying it and their values are read without any lock.
+     * 
+     * @param out
+     *            the destination
+     */
+    private void writeServerMetrics(StringBuilder out) {
+        Map<String, Metric> metrics = this.registry.getMetrics();
+
+        out.append("# TYPE esigate_server_responses counter\n");
+        out.append("# HELP esigate_server_responses Responses sent to the clients, by status code class.\n");
+        for (String code : RESPONSE_CODES) {
+            Meter meter = (Meter) metrics.get(PREFIX_CONTEXT + code + "-responses");
+            if (meter != null) {
+                out.append("esigate_server_responses_total{code=\"").append(code).append("\"} ")
+                        .append(meter.getCount()).append('\n');
+            }
+        }
+
+        Counter activeRequests = (Counter) metrics.get(PREFIX_CONTEXT + "active-requests");
+        if (activeRequests != null) {
+            writeGauge(out, "esigate_server_active_requests", "Requests being processed.", activeRequests.getCount());
+        }
+        writeGauge(out, "esigate_server_threads", "Threads of the server thread pool.",
+                (Gauge<?>) metrics.get(PREFIX_THREAD_POOL + "size"));
+        writeGauge(out, "esigate_server_thread_pool_queue_size", "Jobs waiting for a thread of the server.",
+                (Gauge<?>) metrics.get(PREFIX_THREAD_POOL + "jobs"));
+        writeGauge(out, "esigate_server_thread_pool_utilization", "Ratio of the server threads in use.",
+                (Gauge<?>) metrics.get(PREFIX_THREAD_POOL + "utilization"));
+    }
+
+    private static void writeGauge(StringBuilder out, String name, String help, Gauge<?> gauge) {
+        if (gauge != null) {
+            writeGauge(out, name, help, gauge.getValue());
+        }
+    }
+
+    private static void writeGauge(StringBuilder out, String name, String help, Object value) {
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
     /**
      * Remove unnecessary prefix from Metrics meters id.
      * 
@@ -238,6 +354,45 @@ public class ControlHandler extends AbstractHandler {
         return result;
     }
 
+    /**
+     * Calls DriverFactory in the web application.
+     * 
+     * @param tag
+     *            the tag to purge
+     * @return the number of cache entries removed
+     */
+    private int purgeCacheTag(String tag) throws ServletException {
+        return (Integer) invokeWebApp("org.esigate.DriverFactory", "purgeCacheTag", tag);
+    }
+
+    /**
+     * Calls a static method in the web application. Esigate classes are not visible from the server class loader.
+     * 
+     * @param className
+     *            the class
+     * @param methodName
+     *            the static method, all its parameters must be Strings
+     * @param args
+     *            the parameters
+     * @return the result of the method
+     */
+    private Object invokeWebApp(String className, String methodName, String... args) throws ServletException {
+        Thread currentThread = Thread.currentThread();
+        ClassLoader previousClassLoader = currentThread.getContextClassLoader();
+        ClassLoader webAppClassLoader = context.getClassLoader();
+        currentThread.setContextClassLoader(webAppClassLoader);
+        try {
+            Class<?>[] parameterTypes = new Class<?>[args.length];
+            Arrays.fill(parameterTypes, String.class);
+            Class<?> webAppClass = webAppClassLoader.loadClass(className);
+            return webAppClass.getMethod(methodName, parameterTypes).invoke(null, (Object[]) args);
+        } catch (ReflectiveOperationException e) {
+            throw new ServletException("Could not call " + className + "." + methodName, e);
+        } finally {
+            currentThread.setContextClassLoader(previousClassLoader);
+        }
+    }
+
     /**
      * Start a new thread to shutdown the server
      */
@@ -277,7 +277,7 @@ public final class EsigateServer {
             HandlerCollection handlers = new HandlerList();
             // control handler must be the first one.
             // Work in progress, currently disabled.
-            handlers.addHandler(new ControlHandler(registry));
+            handlers.addHandler(new ControlHandler(registry, context));
             InstrumentedHandler ih = new InstrumentedHandler(registry);
             ih.setName("main");
             ih.setHandler(context);
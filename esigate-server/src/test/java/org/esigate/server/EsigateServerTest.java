@@ -20,10 +20,25 @@ import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.http.HttpResponseUtils;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
 import org.junit.Test;
 
 import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.PostMethodWebRequest;
 import com.meterware.httpunit.WebConversation;
 import com.meterware.httpunit.WebRequest;
 import com.meterware.httpunit.WebResponse;
@@ -38,6 +53,7 @@ public class EsigateServerTest extends AbstractEsigateServerTest {
 
     static final int STATUS_OK = 200;
     static final int STATUS_NOTFOUND = 404;
+    static final String CACHE_STORAGE = "org.esigate.cache.ConcurrentCacheStorage";
 
     /**
      * Test control handler (auto mode).
@@ -99,6 +115,134 @@ public class EsigateServerTest extends AbstractEsigateServerTest {
         System.out.println(resp.getText());
     }
 
+    /**
+     * Test metrics in OpenMetrics format.
+     * 
+     * @throws Exception
+     *             on error.
+     */
+    @Test
+    @SuppressWarnings("static-method")
+    public void testControlConnectionMetrics() throws Exception {
+
+        WebConversation webConversation;
+
+        webConversation = new WebConversation();
+        webConversation.setExceptionsThrownOnErrorStatus(false);
+        WebRequest req = new GetMethodWebRequest("http://localhost:8081/metrics");
+        WebResponse resp = webConversation.getResponse(req);
+
+        assertEquals(STATUS_OK, resp.getResponseCode());
+        assertTrue(resp.getContentType().startsWith("application/openmetrics-text"));
+        String metrics = resp.getText();
+        assertTrue(metrics.contains("esigate_server_responses_total{code=\"2xx\"} "));
+        assertTrue(metrics.contains("\nesigate_server_thread_pool_queue_size "));
+        assertTrue(metrics.contains("# TYPE esigate_request_duration_seconds histogram\n"));
+        assertTrue(metrics.endsWith("# EOF\n"));
+    }
+
+    /**
+     * Test cache purge by tag.
+     * 
+     * @throws Exception
+     *             on error.
+     */
+    @Test
+    @SuppressWarnings("static-method")
+    public void testControlConnectionPurge() throws Exception {
+        AtomicInteger backendRequests = new AtomicInteger();
+        Driver driver = createTaggingDriver(backendRequests);
+        assertEquals("page", render(driver));
+        assertEquals("page", render(driver));
+        assertEquals(1, backendRequests.get());
+
+        WebConversation webConversation;
+
+        webConversation = new WebConversation();
+        webConversation.setExceptionsThrownOnErrorStatus(false);
+        WebRequest req = new PostMethodWebRequest("http://localhost:8081/cache/purge?tag=product-1");
+        WebResponse resp = webConversation.getResponse(req);
+
+        assertEquals(STATUS_OK, resp.getResponseCode());
+        assertEquals("Purged: 1\n", resp.getText());
+        assertEquals("page", render(driver));
+        assertEquals("The page should have been evicted from the cache", 2, backendRequests.get());
+    }
+
+    /**
+     * Ensure cache purge is refused on the main connection.
+     * 
+     * @throws Exception
+     *             on error.
+     */
+    @Test
+    @SuppressWarnings("static-method")
+    public void testControlConnectionPurgePort() throws Exception {
+        AtomicInteger backendRequests = new AtomicInteger();
+        Driver driver = createTaggingDriver(backendRequests);
+        render(driver);
+
+        WebConversation webConversation;
+
+        webConversation = new WebConversation();
+        webConversation.setExceptionsThrownOnErrorStatus(false);
+        WebRequest req = new PostMethodWebRequest("http://localhost:8080/cache/purge?tag=product-1");
+        WebResponse resp = webConversation.getResponse(req);
+
+        assertEquals(STATUS_NOTFOUND, resp.getResponseCode());
+        render(driver);
+        assertEquals("The page should still be in the cache", 1, backendRequests.get());
+    }
+
+    /**
+     * Test traces of the last requests.
+     * 
+     * @throws Exception
+     *             on error.
+     */
+    @Test
+    @SuppressWarnings("static-method")
+    public void testControlConnectionTraces() throws Exception {
+        Driver driver = createTaggingDriver(new AtomicInteger());
+        TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost:8080/traced-page").build())
+                .close();
+
+        WebConversation webConversation;
+
+        webConversation = new WebConversation();
+        webConversation.setExceptionsThrownOnErrorStatus(false);
+        WebRequest req = new GetMethodWebRequest("http://localhost:8081/traces");
+        WebResponse resp = webConversation.getResponse(req);
+
+        assertEquals(STATUS_OK, resp.getResponseCode());
+        assertTrue(resp.getContentType().startsWith("text/plain"));
+        assertTrue(resp.getText().contains("/traced-page"));
+    }
+
+    /**
+     * Ensure traces are not exposed on the main connection.
+     * 
+     * @throws Exception
+     *             on error.
+     */
+    @Test
+    @SuppressWarnings("static-method")
+    public void testControlConnectionTracesPort() throws Exception {
+        Driver driver = createTaggingDriver(new AtomicInteger());
+        TestUtils.driverProxy(driver, TestUtils.createIncomingRequest("http://localhost:8080/traced-page").build())
+                .close();
+
+        WebConversation webConversation;
+
+        webConversation = new WebConversation();
+        webConversation.setExceptionsThrownOnErrorStatus(false);
+        WebRequest req = new GetMethodWebRequest("http://localhost:8080/traces");
+        WebResponse resp = webConversation.getResponse(req);
+
+        assertEquals(STATUS_NOTFOUND, resp.getResponseCode());
+        assertFalse(resp.getText().contains("/traced-page"));
+    }
+
     /**
      * Ensure control handler only process requests on control port.
      * 
@@ -119,4 +263,32 @@ public class EsigateServerTest extends AbstractEsigateServerTest {
         assertEquals(STATUS_NOTFOUND, resp.getResponseCode());
     }
 
+    /**
+     * Registers in the DriverFactory a driver caching the pages of a provider which tags them with "product-1". The
+     * requests are traced.
+     */
+    private static Driver createTaggingDriver(final AtomicInteger backendRequests) {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost.mydomain.fr/");
+        properties.put(Parameters.CACHE_STORAGE.getName(), CACHE_STORAGE);
+        properties.put(Parameters.TRACE.getName(), "true");
+        return TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                backendRequests.incrementAndGet();
+                try {
+                    return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                            .header("Date", DateUtils.formatDate(new Date())).header("Cache-Control", "max-age=60")
+                            .header("Surrogate-Key", "product-1").entity("page").build();
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+    }
+
+    private static String render(Driver driver) throws Exception {
+        return HttpResponseUtils.toString(driver.render("/page", TestUtils.createIncomingRequest().build()));
+    }
+
 }
@@ -16,6 +16,7 @@
 package org.esigate.servlet;
 
 import java.io.IOException;
+import java.util.Properties;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -26,21 +27,37 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.esigate.ConfigurationException;
+import org.esigate.Driver;
 import org.esigate.DriverFactory;
 import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
 import org.esigate.http.IncomingRequest;
+import org.esigate.servlet.impl.AsyncProxy;
 import org.esigate.servlet.impl.RequestFactory;
 import org.esigate.servlet.impl.ResponseSender;
 
 /**
  * {@link Filter} that can mix local and distant contents using EsiGate.
+ * <p>
+ * With the init parameter "async" set to true, and if the container supports it (Servlet 3.1 and
+ * &lt;async-supported&gt;true&lt;/async-supported&gt; in the filter declaration), the requests are processed
+ * asynchronously by {@link AsyncProxy}. The number of threads used to wait for the providers can be set with the init
+ * parameter "asyncThreads" and the number of requests waiting for a thread with "asyncQueueSize". The providers are
+ * given at most "asyncTimeout" milliseconds to start the response, by default the largest pageTimeout of the providers,
+ * or connectTimeout + socketTimeout for the providers that have no pageTimeout. Sending the response to the client may
+ * then take up to "asyncWriteTimeout" milliseconds. Asynchronous processing cannot be combined with
+ * {@link ServletExtension}.
  * 
  * @author Francois-Xavier Bonnet
  * 
  */
 public class ProxyFilter implements Filter {
     private RequestFactory requestFactory;
+    private static final int DEFAULT_ASYNC_THREADS = 200;
+    private static final long DEFAULT_ASYNC_WRITE_TIMEOUT = 600000;
     private final ResponseSender responseSender = new ResponseSender();
+    private AsyncProxy asyncProxy;
 
     @Override
     public void init(FilterConfig filterConfig) {
@@ -48,6 +65,48 @@ public class ProxyFilter implements Filter {
         // Force esigate configuration parsing to trigger errors right away (if
         // any) and prevent delay on first call.
         DriverFactory.ensureConfigured();
+        if (Boolean.parseBoolean(filterConfig.getInitParameter("async"))) {
+            int threads = DEFAULT_ASYNC_THREADS;
+            String asyncThreads = filterConfig.getInitParameter("asyncThreads");
+            if (asyncThreads != null) {
+                threads = Integer.parseInt(asyncThreads.trim());
+            }
+            int queueSize = threads;
+            String asyncQueueSize = filterConfig.getInitParameter("asyncQueueSize");
+            if (asyncQueueSize != null) {
+                queueSize = Integer.parseInt(asyncQueueSize.trim());
+            }
+            long timeout = 0;
+            for (Driver driver : DriverFactory.getInstances()) {
+                Properties properties = driver.getConfiguration().getProperties();
+                if (Parameters.EXTENSIONS.getValue(properties).contains(ServletExtension.class.getName())) {
+                    throw new ConfigurationException("ServletExtension cannot be used with asynchronous processing ("
+                            + driver.getConfiguration().getInstanceName() + "." + Parameters.EXTENSIONS.getName() + ")");
+                }
+                timeout = Math.max(timeout, getTimeout(properties));
+            }
+            String asyncTimeout = filterConfig.getInitParameter("asyncTimeout");
+            if (asyncTimeout != null) {
+                timeout = Long.parseLong(asyncTimeout.trim());
+            }
+            long writeTimeout = DEFAULT_ASYNC_WRITE_TIMEOUT;
+            String asyncWriteTimeout = filterConfig.getInitParameter("asyncWriteTimeout");
+            if (asyncWriteTimeout != null) {
+                writeTimeout = Long.parseLong(asyncWriteTimeout.trim());
+            }
+            asyncProxy = new AsyncProxy(responseSender, threads, queueSize, timeout, writeTimeout);
+        }
+    }
+
+    /**
+     * @return the maximum time to wait for a provider, until the response starts
+     */
+    private static long getTimeout(Properties properties) {
+        int pageTimeout = Parameters.PAGE_TIMEOUT.getValue(properties);
+        if (pageTimeout > 0) {
+            return pageTimeout;
+        }
+        return (long) Parameters.CONNECT_TIMEOUT.getValue(properties) + Parameters.SOCKET_TIMEOUT.getValue(properties);
     }
 
     @Override
@@ -56,6 +115,10 @@ public class ProxyFilter implements Filter {
         HttpServletResponse httpServletResponse = (HttpServletResponse) response;
         IncomingRequest incomingRequest = requestFactory.create(httpServletRequest, httpServletResponse, chain);
 
+        if (asyncProxy != null && httpServletRequest.isAsyncSupported()) {
+            asyncProxy.proxy(incomingRequest, httpServletRequest, httpServletResponse);
+            return;
+        }
         try {
             CloseableHttpResponse driverResponse = DriverFactory.proxy(incomingRequest);
             responseSender.sendResponse(driverResponse, incomingRequest, httpServletResponse);
@@ -68,7 +131,9 @@ public class ProxyFilter implements Filter {
 
     @Override
     public void destroy() {
-        // Nothing to do
+        if (asyncProxy != null) {
+            asyncProxy.destroy();
+        }
     }
 
 }
@@ -67,6 +67,11 @@ public class ServletExtension implements Extension, IEventListener {
                     + driver.getConfiguration().getInstanceName() + ".staleWhileRevalidate="
                     + Parameters.STALE_WHILE_REVALIDATE.getValue(properties) + ")");
         }
+        if (Parameters.BACKGROUND_REFRESH.getValue(properties)) {
+            throw new ConfigurationException("ServletExtension does not support background refresh ("
+                    + driver.getConfiguration().getInstanceName() + "." + Parameters.BACKGROUND_REFRESH.getName()
+                    + "=true)");
+        }
     }
 
     @Override
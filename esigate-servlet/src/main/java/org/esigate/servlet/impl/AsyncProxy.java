@@ -0,0 +1,386 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.servlet.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.esigate.DriverFactory;
+import org.esigate.HttpErrorPage;
+import org.esigate.http.IncomingRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes the requests asynchronously (Servlet 3.1 containers only).
+ * <p>
+ * The container thread is released as soon as the request has been handed to a pool of esigate threads, which wait for
+ * the providers and read their responses. The response is then written with non-blocking output so that slow clients do
+ * not hold any thread either: a chunk is read from the provider only once the previous one has been written.
+ * <p>
+ * The requests waiting for a thread are kept in a bounded queue, the requests that do not fit in get a 503 Service
+ * Unavailable response.
+ * <p>
+ * This mode cannot be used together with {@link org.esigate.servlet.ServletExtension} as local servlets have to be
+ * called by the container thread.
+ * <p>
+ * A request whose response has not started after the timeout gets a 504 Gateway Timeout response. Once started, the
+ * response has to be sent within the write timeout, otherwise the connection to the client is closed.
+ */
+public class AsyncProxy {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncProxy.class);
+    private static final int OUTPUT_BUFFER_SIZE = 4096;
+
+    private final ResponseSender responseSender;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer;
+    private final long timeout;
+    private final long writeTimeout;
+
+    /**
+     * @param responseSender
+     *            the {@link ResponseSender} used to copy the headers
+     * @param threads
+     *            the number of threads waiting for the providers
+     * @param queueSize
+     *            the number of requests that can wait for a thread
+     * @param timeout
+     *            the maximum time in milliseconds to get the response from the provider, must be positive
+     * @param writeTimeout
+     *            the maximum time in milliseconds to send the response to the client, must be positive
+     */
+    public AsyncProxy(ResponseSender responseSender, int threads, int queueSize, long timeout, long writeTimeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+        if (writeTimeout <= 0) {
+            throw new IllegalArgumentException("Write timeout must be positive: " + writeTimeout);
+        }
+        this.responseSender = responseSender;
+        this.timeout = timeout;
+        this.writeTimeout = writeTimeout;
+        this.executor =
+                new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        queueSize), new DaemonThreadFactory("esigate-async-"), new ThreadPoolExecutor.AbortPolicy());
+        this.timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("esigate-async-timeout-"));
+    }
+
+    /**
+     * Starts the asynchronous processing of a request, returns immediately.
+     * 
+     * @param incomingRequest
+     *            the request
+     * @param request
+     *            the servlet request, it must support asynchronous processing
+     * @param response
+     *            the servlet response
+     */
+    public void proxy(final IncomingRequest incomingRequest, HttpServletRequest request,
+            final HttpServletResponse response) {
+        AsyncContext asyncContext = request.startAsync();
+        // The container timeout only applies once the response has started, the provider phase has its own timer
+        asyncContext.setTimeout(timeout + writeTimeout);
+        final Exchange exchange = new Exchange(asyncContext, response);
+        asyncContext.addListener(exchange);
+        exchange.scheduleTimeout(timer, timeout);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CloseableHttpResponse driverResponse;
+                    try {
+                        driverResponse = DriverFactory.proxy(incomingRequest);
+                    } catch (HttpErrorPage e) {
+                        driverResponse = e.getHttpResponse();
+                    } catch (IOException | RuntimeException e) {
+                        LOG.error("Error while processing request", e);
+                        driverResponse = HttpErrorPage.generateHttpResponse(e);
+                    }
+                    if (!exchange.startResponse(driverResponse)) {
+                        // Timed out, the client already got an error
+                        HttpClientUtils.closeQuietly(driverResponse);
+                        return;
+                    }
+                    try {
+                        sendResponse(driverResponse, incomingRequest, response, exchange);
+                    } catch (IOException | RuntimeException e) {
+                        LOG.warn("Could not send response: {}", e.toString());
+                        exchange.complete();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Too many requests waiting for a thread, rejecting {}", incomingRequest.getRequestLine());
+            exchange.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void sendResponse(CloseableHttpResponse httpResponse, IncomingRequest incomingRequest,
+            HttpServletResponse response, Exchange exchange) throws IOException {
+        if (response.isCommitted()) {
+            // Response already sent
+            exchange.complete();
+            return;
+        }
+        responseSender.sendHeaders(httpResponse, incomingRequest, response);
+        HttpEntity httpEntity = httpResponse.getEntity();
+        if (httpEntity == null) {
+            response.sendError(httpResponse.getStatusLine().getStatusCode(), httpResponse.getStatusLine()
+                    .getReasonPhrase());
+            exchange.complete();
+        } else {
+            ServletOutputStream outputStream = response.getOutputStream();
+            EntityWriter entityWriter = new EntityWriter(httpEntity.getContent(), outputStream, exchange);
+            outputStream.setWriteListener(entityWriter);
+            entityWriter.run();
+        }
+    }
+
+    /**
+     * Stops the threads.
+     */
+    public void destroy() {
+        executor.shutdown();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Names the threads and does not prevent the JVM from exiting.
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * The processing of one request. The asynchronous context is completed only once, by whoever finishes first: the
+     * thread sending the response, the timer when the provider is too slow or the container when the client is too
+     * slow.
+     */
+    private static final class Exchange implements AsyncListener {
+        private final AsyncContext asyncContext;
+        private final HttpServletResponse response;
+        private final AtomicBoolean responseStarted = new AtomicBoolean();
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile CloseableHttpResponse httpResponse;
+        private volatile ScheduledFuture<?> timeoutTask;
+
+        private Exchange(AsyncContext asyncContext, HttpServletResponse response) {
+            this.asyncContext = asyncContext;
+            this.response = response;
+        }
+
+        void scheduleTimeout(ScheduledExecutorService timer, final long timeout) {
+            timeoutTask = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!responseStarted.get()) {
+                        LOG.warn("No response after {} ms", timeout);
+                        sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return false if the request has already timed out and the response must not be sent
+         */
+        boolean startResponse(CloseableHttpResponse pHttpResponse) {
+            if (!responseStarted.compareAndSet(false, true)) {
+                return false;
+            }
+            this.httpResponse = pHttpResponse;
+            cancelTimeout();
+            return true;
+        }
+
+        /**
+         * Sends an error instead of the response of the provider, unless the response has already started.
+         */
+        void sendError(int statusCode) {
+            if (responseStarted.compareAndSet(false, true)) {
+                try {
+                    response.sendError(statusCode);
+                } catch (IOException e) {
+                    LOG.debug("Could not send error {}", statusCode, e);
+                }
+                complete();
+            }
+        }
+
+        void complete() {
+            if (completed.compareAndSet(false, true)) {
+                cancelTimeout();
+                HttpClientUtils.closeQuietly(httpResponse);
+                asyncContext.complete();
+            }
+        }
+
+        private void cancelTimeout() {
+            ScheduledFuture<?> task = timeoutTask;
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            if (responseStarted.compareAndSet(false, true)) {
+                LOG.warn("No response after {} ms", asyncContext.getTimeout());
+                try {
+                    response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                } catch (IOException e) {
+                    LOG.debug("Could not send timeout error", e);
+                }
+            } else {
+                LOG.warn("Response not sent after {} ms, closing connection", asyncContext.getTimeout());
+            }
+            complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            complete();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * Copies the entity to the servlet output. The entity is read by the esigate threads ({@link #run()}), never by the
+     * container thread calling {@link #onWritePossible()}: reading from the provider may block. Each chunk is written
+     * as soon as the container tells us it can be written without blocking, then the next one is read.
+     */
+    private final class EntityWriter implements WriteListener, Runnable {
+        private final InputStream content;
+        private final ServletOutputStream outputStream;
+        private final Exchange exchange;
+        private final byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+        /** Number of bytes in the buffer waiting to be written, -1 when the end of the entity has been reached. */
+        private int pending;
+
+        private EntityWriter(InputStream content, ServletOutputStream outputStream, Exchange exchange) {
+            this.content = content;
+            this.outputStream = outputStream;
+            this.exchange = exchange;
+        }
+
+        /**
+         * Reads the entity as long as it can be written without blocking.
+         */
+        @Override
+        public void run() {
+            try {
+                boolean more;
+                do {
+                    int n = content.read(buffer);
+                    // Setting the chunk and trying to write it at once ensures onWritePossible() cannot start another
+                    // reader in between
+                    synchronized (this) {
+                        pending = n;
+                        more = write();
+                    }
+                } while (more);
+            } catch (IOException | RuntimeException e) {
+                onError(e);
+            }
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            if (write()) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    onError(e);
+                }
+            }
+        }
+
+        /**
+         * @return true if the chunk read has been written and the next one can be read
+         */
+        private synchronized boolean write() throws IOException {
+            if (pending == 0 || !outputStream.isReady()) {
+                // Waiting for the provider or for onWritePossible()
+                return false;
+            }
+            if (pending < 0) {
+                complete();
+                return false;
+            }
+            outputStream.write(buffer, 0, pending);
+            pending = 0;
+            return true;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            LOG.warn("Could not send response: {}", t.toString());
+            complete();
+        }
+
+        private void complete() {
+            try {
+                content.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close entity content", e);
+            }
+            exchange.complete();
+        }
+    }
+
+}
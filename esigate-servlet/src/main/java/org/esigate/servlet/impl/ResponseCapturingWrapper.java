@@ -21,18 +21,16 @@ import java.io.Writer;
 import java.util.Locale;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
@@ -56,12 +54,14 @@ import org.slf4j.LoggerFactory;
  * contain only an abstract of the response truncated to the bufer size. The complete response will have already been
  * written to the original {@link HttpServletResponse}</li>
  * </ul>
+ * The content captured is kept in fixed-size chunks so that it is never copied while the buffer grows.
  * 
  * @author Francois-Xavier Bonnet
  * 
  */
 public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
     private static final Logger LOG = LoggerFactory.getLogger(ResponseCapturingWrapper.class);
+    private static final int CHUNK_SIZE = 4 * Parameters.DEFAULT_BUFFER_SIZE;
 
     // OutputStream and Writer exposed
     private ServletOutputStream outputStream;
@@ -72,8 +72,8 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
     private PrintWriter responseWriter;
 
     // OutputStream and Writer buffers
-    private ByteArrayOutputStream internalOutputStream;
-    private StringBuilderWriter internalWriter;
+    private SegmentedOutputStream internalOutputStream;
+    private SegmentedWriter internalWriter;
 
     private HttpServletResponse response;
 
@@ -107,6 +107,11 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
         httpClientResponse.setStatusLine(new BasicStatusLine(HttpVersion.HTTP_1_1, sc, ""));
     }
 
+    /**
+     * Deprecated in the Servlet API but still called by some applications, the status has to be captured like the other
+     * one.
+     */
+    @SuppressWarnings("deprecation")
     @Override
     public void setStatus(int sc, String sm) {
         httpClientResponse.setStatusLine(new BasicStatusLine(HttpVersion.HTTP_1_1, sc, sm));
@@ -261,18 +266,6 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
         return response.encodeRedirectURL(url);
     }
 
-    @SuppressWarnings("deprecation")
-    @Override
-    public String encodeUrl(String url) {
-        return response.encodeUrl(url);
-    }
-
-    @SuppressWarnings("deprecation")
-    @Override
-    public String encodeRedirectUrl(String url) {
-        return response.encodeRedirectUrl(url);
-    }
-
     @Override
     public void reset() {
         if (isCommitted()) {
@@ -290,12 +283,12 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
             throw new IllegalStateException("Writer already obtained");
         }
         if (outputStream == null) {
-            internalOutputStream = new ByteArrayOutputStream(Parameters.DEFAULT_BUFFER_SIZE);
+            internalOutputStream = new SegmentedOutputStream(CHUNK_SIZE);
             outputStream = new ServletOutputStream() {
 
                 @Override
                 public void write(int b) throws IOException {
-                    if (capture || bytesWritten < bufferSize) {
+                    if (capture || !committed) {
                         internalOutputStream.write(b);
                     } else {
                         responseOutputStream.write(b);
@@ -306,6 +299,46 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
                     }
                 }
 
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    int offset = off;
+                    int remaining = len;
+                    if (!committed && bytesWritten < bufferSize) {
+                        // Capture up to the buffer size, then decide what to do with the rest
+                        int n = Math.min(remaining, bufferSize - bytesWritten);
+                        internalOutputStream.write(b, offset, n);
+                        bytesWritten += n;
+                        offset += n;
+                        remaining -= n;
+                        if (bytesWritten == bufferSize) {
+                            commit();
+                        }
+                    }
+                    if (remaining > 0) {
+                        if (capture) {
+                            internalOutputStream.write(b, offset, remaining);
+                        } else {
+                            responseOutputStream.write(b, offset, remaining);
+                        }
+                        bytesWritten += remaining;
+                    }
+                }
+
+                @Override
+                public boolean isReady() {
+                    // Writing to the buffer never blocks
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    try {
+                        writeListener.onWritePossible();
+                    } catch (IOException e) {
+                        writeListener.onError(e);
+                    }
+                }
+
                 @Override
                 public void flush() throws IOException {
                     commit();
@@ -341,19 +374,31 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
             throw new IllegalStateException("OutputStream already obtained");
         }
         if (writer == null) {
-            internalWriter = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
+            internalWriter = new SegmentedWriter(CHUNK_SIZE / 2);
             writer = new PrintWriter(new Writer() {
 
                 @Override
                 public void write(char[] cbuf, int off, int len) throws IOException {
-                    if (capture || bytesWritten < bufferSize) {
-                        internalWriter.write(cbuf, off, len);
-                    } else {
-                        responseWriter.write(cbuf, off, len);
+                    int offset = off;
+                    int remaining = len;
+                    if (!committed && bytesWritten < bufferSize) {
+                        // Capture up to the buffer size, then decide what to do with the rest
+                        int n = Math.min(remaining, bufferSize - bytesWritten);
+                        internalWriter.write(cbuf, offset, n);
+                        bytesWritten += n;
+                        offset += n;
+                        remaining -= n;
+                        if (bytesWritten == bufferSize) {
+                            commit();
+                        }
                     }
-                    bytesWritten++;
-                    if (bytesWritten == bufferSize) {
-                        commit();
+                    if (remaining > 0) {
+                        if (capture) {
+                            internalWriter.write(cbuf, offset, remaining);
+                        } else {
+                            responseWriter.write(cbuf, offset, remaining);
+                        }
+                        bytesWritten += remaining;
                     }
                 }
 
@@ -373,7 +418,7 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
                         if (!capture) {
                             responseSender.sendHeaders(httpClientResponse, incomingRequest, response);
                             responseWriter = response.getWriter();
-                            responseWriter.write(internalWriter.toString());
+                            internalWriter.writeTo(responseWriter);
                         }
                         committed = true;
                     }
@@ -404,7 +449,7 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
             internalOutputStream.reset();
         }
         if (internalWriter != null) {
-            internalWriter = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
+            internalWriter.reset();
         }
         bytesWritten = 0;
     }
@@ -448,7 +493,7 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
             } catch (IOException e) {
                 // Nothing to do;
             }
-            httpClientResponse.setEntity(new ByteArrayEntity(internalOutputStream.toByteArray(), resultContentType));
+            httpClientResponse.setEntity(internalOutputStream.toEntity(resultContentType));
         }
         if (!capture) {
             // The result has already been written to the response, let's close
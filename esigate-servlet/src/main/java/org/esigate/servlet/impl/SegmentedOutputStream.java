@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.servlet.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * OutputStream keeping the bytes written in a chain of fixed-size chunks. Unlike a growing array, the content written
+ * is never copied when the buffer grows and the content can be sent as an {@link org.apache.http.HttpEntity} without
+ * being copied into a single array.
+ */
+final class SegmentedOutputStream extends OutputStream {
+    private final int chunkSize;
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    /** Number of bytes used in the last chunk. */
+    private int count;
+    private long size;
+
+    SegmentedOutputStream(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void write(int b) {
+        if (chunks.isEmpty() || count == chunkSize) {
+            addChunk();
+        }
+        chunks.get(chunks.size() - 1)[count++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (chunks.isEmpty() || count == chunkSize) {
+                addChunk();
+            }
+            int n = Math.min(remaining, chunkSize - count);
+            System.arraycopy(b, offset, chunks.get(chunks.size() - 1), count, n);
+            count += n;
+            offset += n;
+            remaining -= n;
+        }
+        size += len;
+    }
+
+    private void addChunk() {
+        chunks.add(new byte[chunkSize]);
+        count = 0;
+    }
+
+    /**
+     * Discards the content written.
+     */
+    void reset() {
+        chunks.clear();
+        count = 0;
+        size = 0;
+    }
+
+    /**
+     * Writes the content of the buffer to an OutputStream.
+     * 
+     * @param outputStream
+     *            the destination
+     * @throws IOException
+     *             if the destination cannot be written
+     */
+    void writeTo(OutputStream outputStream) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            outputStream.write(chunks.get(i), 0, chunkLength(i));
+        }
+    }
+
+    private int chunkLength(int index) {
+        if (index == chunks.size() - 1) {
+            return count;
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Creates an entity sharing the chunks written so far. The buffer must not be written anymore after this method has
+     * been called.
+     * 
+     * @param contentType
+     *            the content type of the entity, may be null
+     * @return the entity
+     */
+    AbstractHttpEntity toEntity(ContentType contentType) {
+        AbstractHttpEntity entity = new AbstractHttpEntity() {
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public long getContentLength() {
+                return size;
+            }
+
+            @Override
+            public InputStream getContent() {
+                List<InputStream> streams = new ArrayList<InputStream>(chunks.size());
+                for (int i = 0; i < chunks.size(); i++) {
+                    streams.add(new ByteArrayInputStream(chunks.get(i), 0, chunkLength(i)));
+                }
+                return new SequenceInputStream(Collections.enumeration(streams));
+            }
+
+            @Override
+            public void writeTo(OutputStream outstream) throws IOException {
+                SegmentedOutputStream.this.writeTo(outstream);
+            }
+
+            @Override
+            public boolean isStreaming() {
+                return false;
+            }
+
+        };
+        if (contentType != null) {
+            entity.setContentType(contentType.toString());
+        }
+        return entity;
+    }
+
+}
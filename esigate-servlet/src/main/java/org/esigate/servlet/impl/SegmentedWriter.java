@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.servlet.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writer keeping the characters written in a chain of fixed-size chunks, the characters are copied only once when the
+ * content is converted to a String.
+ */
+final class SegmentedWriter extends Writer {
+    private final int chunkSize;
+    private final List<char[]> chunks = new ArrayList<char[]>();
+    /** Number of characters used in the last chunk. */
+    private int count;
+    private int size;
+
+    SegmentedWriter(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (chunks.isEmpty() || count == chunkSize) {
+                chunks.add(new char[chunkSize]);
+                count = 0;
+            }
+            int n = Math.min(remaining, chunkSize - count);
+            System.arraycopy(cbuf, offset, chunks.get(chunks.size() - 1), count, n);
+            count += n;
+            offset += n;
+            remaining -= n;
+        }
+        size += len;
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to flush
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    /**
+     * Discards the content written.
+     */
+    void reset() {
+        chunks.clear();
+        count = 0;
+        size = 0;
+    }
+
+    /**
+     * Writes the content of the buffer to a Writer.
+     * 
+     * @param writer
+     *            the destination
+     * @throws IOException
+     *             if the destination cannot be written
+     */
+    void writeTo(Writer writer) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            writer.write(chunks.get(i), 0, i == chunks.size() - 1 ? count : chunkSize);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(size);
+        for (int i = 0; i < chunks.size(); i++) {
+            result.append(chunks.get(i), 0, i == chunks.size() - 1 ? count : chunkSize);
+        }
+        return result.toString();
+    }
+
+}
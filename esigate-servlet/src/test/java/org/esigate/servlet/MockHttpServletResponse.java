@@ -5,10 +5,13 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
@@ -20,6 +23,7 @@ public class MockHttpServletResponse implements HttpServletResponse {
     private int bufferSize = 0;
     private boolean committed = false;
     private boolean closed = false;
+    private int status = SC_OK;
     private HashMap<String, String> headers = new HashMap<String, String>();
 
     @Override
@@ -49,6 +53,20 @@ public class MockHttpServletResponse implements HttpServletResponse {
                     outputStreamContent.write(b);
                 }
 
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    try {
+                        writeListener.onWritePossible();
+                    } catch (IOException e) {
+                        writeListener.onError(e);
+                    }
+                }
+
                 @Override
                 public void close() throws IOException {
                     flush();
@@ -116,6 +134,10 @@ public class MockHttpServletResponse implements HttpServletResponse {
     public void setContentLength(int len) {
     }
 
+    @Override
+    public void setContentLengthLong(long len) {
+    }
+
     @Override
     public void setContentType(String type) {
     }
@@ -176,11 +198,14 @@ public class MockHttpServletResponse implements HttpServletResponse {
         return null;
     }
 
+    // Deprecated but part of the interface
+    @SuppressWarnings("deprecation")
     @Override
     public String encodeUrl(String url) {
         return null;
     }
 
+    @SuppressWarnings("deprecation")
     @Override
     public String encodeRedirectUrl(String url) {
         return null;
@@ -229,14 +254,37 @@ public class MockHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void setStatus(int sc) {
+        status = sc;
     }
 
+    @SuppressWarnings("deprecation")
     @Override
     public void setStatus(int sc, String sm) {
+        status = sc;
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
     }
 
+    @Override
     public String getHeader(String name) {
         return headers.get(name.toLowerCase());
     }
 
+    @Override
+    public Collection<String> getHeaders(String name) {
+        String value = getHeader(name);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(value);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return headers.keySet();
+    }
+
 }
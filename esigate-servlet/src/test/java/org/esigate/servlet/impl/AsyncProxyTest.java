@@ -0,0 +1,287 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.servlet.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.esigate.Parameters;
+import org.esigate.http.IncomingRequest;
+import org.esigate.servlet.MockHttpServletResponse;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class AsyncProxyTest extends TestCase {
+
+    /**
+     * Non-blocking output whose listener is called by the test, as a container would do.
+     */
+    private static final class ContainerOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private volatile boolean ready;
+        private volatile WriteListener writeListener;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener pWriteListener) {
+            this.writeListener = pWriteListener;
+        }
+
+        @Override
+        public void write(int b) {
+            content.write(b);
+        }
+
+        void writePossible() throws Exception {
+            Thread container = new Thread("container") {
+                @Override
+                public void run() {
+                    ready = true;
+                    try {
+                        writeListener.onWritePossible();
+                    } catch (IOException e) {
+                        writeListener.onError(e);
+                    }
+                }
+            };
+            container.start();
+            container.join();
+        }
+    }
+
+    private static void createMockDriver(IResponseHandler responseHandler) {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.MAPPINGS.getName(), "/async/*");
+        properties.setProperty(Parameters.USE_CACHE.getName(), "false");
+        TestUtils.createMockDriver(properties, responseHandler);
+    }
+
+    private static AsyncContext startAsync(HttpServletRequest request) {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(request.startAsync()).thenReturn(asyncContext);
+        return asyncContext;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://provider/");
+        properties.setProperty(Parameters.MAPPINGS.getName(), "/async/*");
+        TestUtils.createMockDriver(
+                properties,
+                TestUtils.createHttpResponse().status(HttpStatus.SC_OK).header("Content-Type", "text/plain")
+                        .entity("Hello from provider").build());
+    }
+
+    public void testResponseIsWrittenAsynchronously() throws Exception {
+
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.startAsync()).thenReturn(asyncContext);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        IncomingRequest incomingRequest = TestUtils.createIncomingRequest("http://localhost/async/page").build();
+
+        AsyncProxy asyncProxy = new AsyncProxy(new ResponseSender(), 1, 1, 5000, 60000);
+        try {
+            asyncProxy.proxy(incomingRequest, request, response);
+            verify(asyncContext, timeout(5000)).complete();
+            assertEquals(HttpStatus.SC_OK, response.getStatus());
+            assertEquals("Hello from provider", response.getOutputStreamContentAsString("UTF-8"));
+        } finally {
+            asyncProxy.destroy();
+        }
+    }
+
+    public void testTimeoutBeforeResponse() throws Exception {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        // The container times out before the provider answers
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((AsyncListener) invocation.getArguments()[0]).onTimeout(null);
+                return null;
+            }
+        }).when(asyncContext).addListener(any(AsyncListener.class));
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.startAsync()).thenReturn(asyncContext);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        IncomingRequest incomingRequest = TestUtils.createIncomingRequest("http://localhost/async/page").build();
+
+        AsyncProxy asyncProxy = new AsyncProxy(new ResponseSender(), 1, 1, 5000, 60000);
+        try {
+            asyncProxy.proxy(incomingRequest, request, response);
+            verify(asyncContext).setTimeout(65000);
+            verify(response).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            // Let the provider answer, the response is dropped
+            Thread.sleep(200);
+            verify(asyncContext, times(1)).complete();
+            verify(response, never()).getOutputStream();
+        } finally {
+            asyncProxy.destroy();
+        }
+    }
+
+    public void testProviderTimeout() throws Exception {
+        final CountDownLatch providerResponse = new CountDownLatch(1);
+        createMockDriver(new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                try {
+                    providerResponse.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).build();
+            }
+        });
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        AsyncContext asyncContext = startAsync(request);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        IncomingRequest incomingRequest = TestUtils.createIncomingRequest("http://localhost/async/page").build();
+
+        AsyncProxy asyncProxy = new AsyncProxy(new ResponseSender(), 1, 1, 100, 60000);
+        try {
+            asyncProxy.proxy(incomingRequest, request, response);
+            verify(asyncContext).setTimeout(60100);
+            verify(response, timeout(5000)).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            verify(asyncContext).complete();
+            providerResponse.countDown();
+            // Let the provider answer, the response is dropped
+            Thread.sleep(200);
+            verify(asyncContext, times(1)).complete();
+            verify(response, never()).getOutputStream();
+        } finally {
+            providerResponse.countDown();
+            asyncProxy.destroy();
+        }
+    }
+
+    public void testSlowClientIsNotCutByProviderTimeout() throws Exception {
+        final Set<String> readingThreads = new CopyOnWriteArraySet<String>();
+        createMockDriver(new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                InputStream content = new ByteArrayInputStream("Hello from provider".getBytes()) {
+                    @Override
+                    public synchronized int read(byte[] b, int off, int len) {
+                        readingThreads.add(Thread.currentThread().getName());
+                        return super.read(b, off, len);
+                    }
+                };
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                        .entity(new InputStreamEntity(content, ContentType.TEXT_PLAIN)).build();
+            }
+        });
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        AsyncContext asyncContext = startAsync(request);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ContainerOutputStream outputStream = new ContainerOutputStream();
+        when(response.getOutputStream()).thenReturn(outputStream);
+        IncomingRequest incomingRequest = TestUtils.createIncomingRequest("http://localhost/async/page").build();
+
+        AsyncProxy asyncProxy = new AsyncProxy(new ResponseSender(), 1, 1, 100, 60000);
+        try {
+            asyncProxy.proxy(incomingRequest, request, response);
+            verify(response, timeout(5000)).getOutputStream();
+            // The client does not read anything until the provider timeout has expired
+            Thread.sleep(300);
+            outputStream.writePossible();
+            verify(asyncContext, timeout(5000)).complete();
+            assertEquals("Hello from provider", outputStream.content.toString("UTF-8"));
+            verify(response, never()).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            assertFalse(readingThreads.isEmpty());
+            for (String thread : readingThreads) {
+                assertTrue("The provider should only be read by esigate threads: " + thread,
+                        thread.startsWith("esigate-async-"));
+            }
+        } finally {
+            asyncProxy.destroy();
+        }
+    }
+
+    public void testRequestsAreRejectedWhenQueueIsFull() throws Exception {
+        final CountDownLatch providerResponse = new CountDownLatch(1);
+        createMockDriver(new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                try {
+                    providerResponse.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).build();
+            }
+        });
+        IncomingRequest incomingRequest = TestUtils.createIncomingRequest("http://localhost/async/page").build();
+
+        AsyncProxy asyncProxy = new AsyncProxy(new ResponseSender(), 1, 1, 5000, 60000);
+        try {
+            // One request processed, one waiting in the queue
+            for (int i = 0; i < 2; i++) {
+                HttpServletRequest request = mock(HttpServletRequest.class);
+                startAsync(request);
+                asyncProxy.proxy(incomingRequest, request, mock(HttpServletResponse.class));
+            }
+            HttpServletRequest request = mock(HttpServletRequest.class);
+            AsyncContext asyncContext = startAsync(request);
+            HttpServletResponse response = mock(HttpServletResponse.class);
+            asyncProxy.proxy(incomingRequest, request, response);
+            verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            verify(asyncContext).complete();
+        } finally {
+            providerResponse.countDown();
+            asyncProxy.destroy();
+        }
+    }
+
+}
@@ -25,6 +25,7 @@ import java.util.TimeZone;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -66,6 +67,16 @@ public class HttpServletSessionTest extends TestCase {
                 this.byteOutputStream.write(b);
             }
 
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException();
+            }
+
         };
         when(response.getOutputStream()).thenReturn(outputStream);
         ServletContext context = mock(ServletContext.class);
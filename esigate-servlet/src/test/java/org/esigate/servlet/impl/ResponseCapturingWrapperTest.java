@@ -170,6 +170,38 @@ public class ResponseCapturingWrapperTest extends TestCase {
                 httpServletResponse.getOutputStreamContentAsString("UTF-8"));
     }
 
+    public void testHugeHtmlResponseWrittenToOutputStream() throws Exception {
+        int bufferSize = 100000;
+        ResponseCapturingWrapper tested =
+                new ResponseCapturingWrapper(httpServletResponse, contentTypeHelper, false, bufferSize, responseSender,
+                        incomingRequest);
+        tested.setContentType("text/html;charset=UTF-8");
+        StringBuilder expected = new StringBuilder();
+        while (expected.length() < 20000) {
+            tested.getOutputStream().write(BIG_STRING.getBytes("UTF-8"));
+            expected.append(BIG_STRING);
+        }
+        HttpEntity entity = tested.getCloseableHttpResponse().getEntity();
+        assertEquals(expected.length(), entity.getContentLength());
+        assertEquals(expected.toString(), EntityUtils.toString(entity));
+        // The entity can be read several times
+        assertEquals(expected.toString(), EntityUtils.toString(entity));
+    }
+
+    public void testBigNonParseableResponseWrittenToWriter() throws Exception {
+        ResponseCapturingWrapper tested =
+                new ResponseCapturingWrapper(httpServletResponse, contentTypeHelper, true, BUFFER_SIZE, responseSender,
+                        incomingRequest);
+        tested.setContentType("binary/octet-stream");
+        tested.getWriter().write(BIG_STRING);
+        assertTrue("Response should be sent as soon as the buffer is full", tested.isCommitted());
+        HttpEntity entity = tested.getCloseableHttpResponse().getEntity();
+        // Should be truncated to the buffer size as the rest did not need to be captured
+        assertEquals(BIG_STRING.substring(0, BUFFER_SIZE), EntityUtils.toString(entity));
+        assertEquals("The response should have been sent entirely to the writer", BIG_STRING,
+                httpServletResponse.getWriterContent());
+    }
+
     public void testParseableResponseNoCharset() throws Exception {
         ResponseCapturingWrapper tested =
                 new ResponseCapturingWrapper(httpServletResponse, contentTypeHelper, true, BUFFER_SIZE, responseSender,